@@ -0,0 +1,417 @@
+import java.util.*;
+
+// In-memory labeled data of the image currently being labeled: confirmed joints, tags and
+// the confirmed bounding box of each labeled object instance.
+
+// Joints are identified by their ordinal, i.e. their position in "JointNames.txt" (which is
+// also their position in the joint drop-down list). Their coordinates are kept in int arrays
+// indexed by ordinal, and a BitSet records which joints have been confirmed, so looking up,
+// confirming and drawing a joint takes constant time and allocates nothing. Joints read
+// from a .label file whose names are not in "JointNames.txt" get ordinals after the listed
+// joints, so they are kept and written back unchanged, as are further keys of a joint
+// that LabelCodec does not know.
+// Several objects (e.g. the animals of a herd) can be labeled in one image. Each has its
+// own joints and bounding box (an Instance); the tags belong to the image. Joints and
+// boxes are confirmed on the current instance, chosen with selectInstance, and the methods
+// that take no instance refer to the current one. There is always at least one instance.
+// Labels generated by KeyframeInterpolator stay marked as interpolated until a joint or
+// box is confirmed (or setInterpolated(false) is called), i.e. until they were reviewed.
+// The .label JSON only appears at the I/O boundary: the data is copied from and to a
+// LabelData (see LabelCodec) when an image is opened and saved.
+
+public class Annotation {
+
+   private String[] names; // Joint names by ordinal
+   private int nameCount; // Number of known joint names (listed ones first)
+   private final Map<String, Integer> ordinals; // Ordinal of each known joint name
+   private final ArrayList<Instance> instances; // All object instances (at least one)
+   private int currentIndex; // Position of the current instance
+   private Instance current; // The instance joints and boxes are confirmed on
+   private final LinkedHashMap<String, String> tags; // Tag names and texts in the order they were added
+   private boolean interpolated; // True if the labels were generated by KeyframeInterpolator and not reviewed yet
+   private long modCount; // Incremented whenever the joints, boxes or current instance change, so views can tell when to redraw
+
+   // Joints and bounding box of one labeled object
+   public class Instance {
+
+      private int[] x; // Joint x coordinates by ordinal (only valid if confirmed)
+      private int[] y; // Joint y coordinates by ordinal (only valid if confirmed)
+      private String[][] extras; // Further keys of each joint by ordinal, as read from the .label file (null if none)
+      private final BitSet confirmed; // Ordinals of the confirmed joints
+      private int[] order; // Ordinals of the confirmed joints, in the order they were first confirmed
+      private int confirmedCount; // Number of confirmed joints
+      private int boxFields; // Which confirmed bounding box fields are present (LabelData.BOX_X | ...)
+      private int boxX; // Top-left corner x coordinate of the confirmed bounding box
+      private int boxY; // Top-left corner y coordinate of the confirmed bounding box
+      private int boxW; // Width of the confirmed bounding box
+      private int boxH; // Height of the confirmed bounding box
+
+      // Creates an empty instance with room for every known joint
+      private Instance() {
+         x = new int[names.length];
+         y = new int[names.length];
+         extras = new String[names.length][];
+         order = new int[names.length];
+         confirmed = new BitSet(names.length);
+      }
+
+      // Returns true if the joint with the given ordinal has been confirmed
+      public boolean isConfirmed(int ordinal) {
+         return confirmed.get(ordinal);
+      }
+
+      // Returns the x coordinate of the confirmed joint with the given ordinal
+      public int getX(int ordinal) {
+         return x[ordinal];
+      }
+
+      // Returns the y coordinate of the confirmed joint with the given ordinal
+      public int getY(int ordinal) {
+         return y[ordinal];
+      }
+
+      // Returns the number of confirmed joints
+      public int getConfirmedCount() {
+         return confirmedCount;
+      }
+
+      // Returns the ordinal of the i-th confirmed joint, in the order they were first confirmed
+      public int getConfirmedOrdinal(int i) {
+         return order[i];
+      }
+
+      // Returns which confirmed bounding box fields are present (LabelData.BOX_X | ...)
+      public int getBoxFields() {
+         return boxFields;
+      }
+
+      // Returns the confirmed bounding box's top-left x coordinate (0 if none)
+      public int getBoxX() {
+         return boxX;
+      }
+
+      // Returns the confirmed bounding box's top-left y coordinate (0 if none)
+      public int getBoxY() {
+         return boxY;
+      }
+
+      // Returns the confirmed bounding box's width (0 if none)
+      public int getBoxW() {
+         return boxW;
+      }
+
+      // Returns the confirmed bounding box's height (0 if none)
+      public int getBoxH() {
+         return boxH;
+      }
+
+      // Returns true if neither a joint nor a bounding box has been confirmed
+      public boolean isEmpty() {
+         return confirmedCount == 0 && boxFields == 0;
+      }
+
+      // Removes all confirmed joints and the bounding box
+      private void clear() {
+         confirmed.clear();
+         Arrays.fill(extras, null);
+         confirmedCount = 0;
+         boxFields = 0;
+         boxX = 0;
+         boxY = 0;
+         boxW = 0;
+         boxH = 0;
+      }
+
+      // Confirms the joint with the given ordinal at the given coordinates
+      private void confirm(int ordinal, int x, int y) {
+         this.x[ordinal] = x;
+         this.y[ordinal] = y;
+         if (!confirmed.get(ordinal)) {
+            confirmed.set(ordinal);
+            order[confirmedCount++] = ordinal;
+         }
+      }
+
+      // Makes room for joints with ordinals below the given capacity
+      private void grow(int capacity) {
+         x = Arrays.copyOf(x, capacity);
+         y = Arrays.copyOf(y, capacity);
+         extras = Arrays.copyOf(extras, capacity);
+         order = Arrays.copyOf(order, capacity);
+      }
+
+      // Replaces this instance's joints and bounding box with the given ones read from a .label file
+      private void read(LabelData data) {
+         clear();
+         for (int i = 0; i < data.getJointCount(); i++) {
+            int ordinal = ordinalOrAdd(data.getJointName(i));
+            confirm(ordinal, data.getJointX(i), data.getJointY(i));
+            extras[ordinal] = data.getJointExtras(i);
+         }
+         boxFields = data.getBoxFields();
+         boxX = data.getBoxX();
+         boxY = data.getBoxY();
+         boxW = data.getBoxW();
+         boxH = data.getBoxH();
+      }
+
+      // Copies this instance's joints, in confirmation order, and bounding box into the given LabelData
+      private void write(LabelData data) {
+         for (int i = 0; i < confirmedCount; i++) {
+            int ordinal = order[i];
+            data.addJoint(names[ordinal], x[ordinal], y[ordinal], extras[ordinal]);
+         }
+         if ((boxFields & LabelData.BOX_X) != 0) {
+            data.setBoxX(boxX);
+         }
+         if ((boxFields & LabelData.BOX_Y) != 0) {
+            data.setBoxY(boxY);
+         }
+         if ((boxFields & LabelData.BOX_W) != 0) {
+            data.setBoxW(boxW);
+         }
+         if ((boxFields & LabelData.BOX_H) != 0) {
+            data.setBoxH(boxH);
+         }
+      }
+   }
+
+   // Creates an empty annotation for the given joint names
+   // Parameters:
+   //    - List<String> jointNames: all joint names (from "JointNames.txt"), in drop-down list order
+   public Annotation(java.util.List<String> jointNames) {
+      int capacity = Math.max(jointNames.size(), 8);
+      names = new String[capacity];
+      ordinals = new HashMap<String, Integer>();
+      for (String name : jointNames) {
+         names[nameCount] = name;
+         if (!ordinals.containsKey(name)) {
+            ordinals.put(name, nameCount);
+         }
+         nameCount++;
+      }
+      instances = new ArrayList<Instance>();
+      current = new Instance();
+      instances.add(current);
+      tags = new LinkedHashMap<String, String>();
+   }
+
+   // Removes all confirmed joints, tags, bounding boxes and instances but the first (which
+   // becomes the current one), e.g. before opening another image
+   public void clear() {
+      modCount++;
+      instances.subList(1, instances.size()).clear();
+      currentIndex = 0;
+      current = instances.get(0);
+      current.clear();
+      tags.clear();
+      interpolated = false;
+   }
+
+   // Returns the ordinal of the given joint name, or -1 if it is not known
+   // Parameters:
+   //    - String name: the joint name
+   public int ordinalOf(String name) {
+      Integer ordinal = ordinals.get(name);
+      return ordinal == null ? -1 : ordinal;
+   }
+
+   // Returns the name of the joint with the given ordinal
+   public String getName(int ordinal) {
+      return names[ordinal];
+   }
+
+   // Returns the number of object instances (at least one)
+   public int getInstanceCount() {
+      return instances.size();
+   }
+
+   // Returns the object instance at the given position
+   public Instance getInstance(int i) {
+      return instances.get(i);
+   }
+
+   // Returns the position of the current instance
+   public int getCurrentInstance() {
+      return currentIndex;
+   }
+
+   // Makes the instance at the given position the current one. Positions after the last
+   // instance add new (empty) instances up to the given one.
+   // Parameters:
+   //    - int i: position of the instance
+   public void selectInstance(int i) {
+      modCount++;
+      while (i >= instances.size()) {
+         instances.add(new Instance());
+      }
+      currentIndex = i;
+      current = instances.get(i);
+   }
+
+   // Returns true if the joint with the given ordinal has been confirmed on the current instance
+   public boolean isConfirmed(int ordinal) {
+      return current.isConfirmed(ordinal);
+   }
+
+   // Returns the x coordinate of the current instance's confirmed joint with the given ordinal
+   public int getX(int ordinal) {
+      return current.getX(ordinal);
+   }
+
+   // Returns the y coordinate of the current instance's confirmed joint with the given ordinal
+   public int getY(int ordinal) {
+      return current.getY(ordinal);
+   }
+
+   // Returns the number of confirmed joints of the current instance
+   public int getConfirmedCount() {
+      return current.getConfirmedCount();
+   }
+
+   // Returns the number of confirmed joints of all instances
+   public int getTotalConfirmedCount() {
+      int count = 0;
+      for (Instance instance : instances) {
+         count += instance.getConfirmedCount();
+      }
+      return count;
+   }
+
+   // Returns the ordinal of the current instance's i-th confirmed joint, in the order they
+   // were first confirmed
+   public int getConfirmedOrdinal(int i) {
+      return current.getConfirmedOrdinal(i);
+   }
+
+   // Confirms the current instance's joint with the given ordinal at the given coordinates.
+   // A joint that was already confirmed keeps its position in the confirmation order.
+   // Parameters:
+   //    - int ordinal: the joint's ordinal
+   //    - int x, int y: the joint's coordinates within the image
+   public void confirm(int ordinal, int x, int y) {
+      modCount++;
+      interpolated = false;
+      current.confirm(ordinal, x, y);
+   }
+
+   // Confirms the current instance's joint with the given name at the given coordinates,
+   // giving it a new ordinal if it is not known (e.g. when replaying a journal after
+   // "JointNames.txt" changed)
+   // Parameters:
+   //    - String name: the joint's name
+   //    - int x, int y: the joint's coordinates within the image
+   public void confirm(String name, int x, int y) {
+      confirm(ordinalOrAdd(name), x, y);
+   }
+
+   // Returns a number that changes whenever joints or boxes are confirmed or cleared, or
+   // another instance is selected
+   public long getModCount() {
+      return modCount;
+   }
+
+   // Returns the tags (name to text) in the order they were added
+   public Map<String, String> getTags() {
+      return tags;
+   }
+
+   // Returns true if the labels were generated by KeyframeInterpolator and not reviewed yet
+   public boolean isInterpolated() {
+      return interpolated;
+   }
+
+   // Marks the labels as interpolated (true) or reviewed (false)
+   public void setInterpolated(boolean interpolated) {
+      this.interpolated = interpolated;
+   }
+
+   // Sets the current instance's confirmed bounding box
+   // Parameters:
+   //    - int x, int y: top-left corner of the box
+   //    - int w, int h: width and height of the box
+   public void setBox(int x, int y, int w, int h) {
+      modCount++;
+      interpolated = false;
+      current.boxX = x;
+      current.boxY = y;
+      current.boxW = w;
+      current.boxH = h;
+      current.boxFields = LabelData.BOX_ALL;
+   }
+
+   // Returns the current instance's confirmed bounding box's top-left x coordinate (0 if none)
+   public int getBoxX() {
+      return current.getBoxX();
+   }
+
+   // Returns the current instance's confirmed bounding box's top-left y coordinate (0 if none)
+   public int getBoxY() {
+      return current.getBoxY();
+   }
+
+   // Returns the current instance's confirmed bounding box's width (0 if none)
+   public int getBoxW() {
+      return current.getBoxW();
+   }
+
+   // Returns the current instance's confirmed bounding box's height (0 if none)
+   public int getBoxH() {
+      return current.getBoxH();
+   }
+
+   // Replaces this annotation's contents with the given labels read from a .label file.
+   // The first instance becomes the current one.
+   // Parameters:
+   //    - LabelData data: labels read by LabelCodec
+   public void read(LabelData data) {
+      clear();
+      current.read(data);
+      for (int i = 0; i < data.getInstanceCount(); i++) {
+         Instance instance = new Instance();
+         instances.add(instance);
+         instance.read(data.getInstance(i));
+      }
+      tags.putAll(data.getTags());
+      interpolated = data.isInterpolated();
+   }
+
+   // Copies this annotation's contents into the given (reused) LabelData for writing.
+   // Empty instances at the end (e.g. just added) are left out; empty instances between
+   // others are kept, so every instance keeps its position.
+   // Parameters:
+   //    - LabelData data: receives the joints, in confirmation order, tags and bounding box
+   //      of each instance
+   public void write(LabelData data) {
+      data.clear();
+      instances.get(0).write(data);
+      int last = instances.size() - 1;
+      while (last > 0 && instances.get(last).isEmpty()) {
+         last--;
+      }
+      for (int i = 1; i <= last; i++) {
+         instances.get(i).write(data.addInstance());
+      }
+      data.getTags().putAll(tags);
+      data.setInterpolated(interpolated);
+   }
+
+   // Returns the ordinal of the given joint name, giving it a new ordinal after all known
+   // joints if it is not known yet
+   private int ordinalOrAdd(String name) {
+      Integer ordinal = ordinals.get(name);
+      if (ordinal != null) {
+         return ordinal;
+      }
+      if (nameCount == names.length) {
+         int capacity = nameCount * 2;
+         names = Arrays.copyOf(names, capacity);
+         for (Instance instance : instances) {
+            instance.grow(capacity);
+         }
+      }
+      names[nameCount] = name;
+      ordinals.put(name, nameCount);
+      return nameCount++;
+   }
+}
@@ -0,0 +1,488 @@
+import java.awt.*;
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.*;
+import org.json.simple.*;
+import org.json.simple.parser.*;
+
+// Headless command-line tool that exports all .label files under a directory tree into a
+// single training dataset.
+
+// Usage:
+//    $ java -cp ".:./json-simple-1.1.jar" DatasetExporter <root directory> --format <coco|yolo|jsonl> --output <path> [--joints <JointNames.txt>] [--store <label store>]
+// The labeled data is read from .label files by default, or from the given label store
+// (see LabelStore.open).
+
+// Formats:
+//    - coco:  one COCO keypoints JSON file (images, one annotation per labeled object
+//             instance, and one category whose keypoints are the joint names). --output is
+//             the JSON file.
+//    - yolo:  one YOLO pose .txt file per image with a line per object instance
+//             ("0 cx cy w h x1 y1 v1 x2 y2 v2 ..." with coordinates normalized by the image
+//             size), mirroring the directory structure under root, plus a dataset.yaml with
+//             the keypoint shape and joint names. --output is a directory. Instances without
+//             a confirmed bounding box are left out (images without any get an empty file).
+//    - jsonl: one JSON object per line and image, with the image's pathname, size, the
+//             first instance's keypoints and bounding box, tags, and (only for images with
+//             several instances) an "instances" array with the keypoints and bounding box of
+//             each further instance. --output is the .jsonl file.
+// Images labeled with several object instances (see Annotation) export every instance;
+// further instances with neither joints nor a bounding box are left out.
+// Keypoints are always listed in the order of "JointNames.txt", as x, y, visibility triples
+// (visibility 2 for confirmed joints, and 0, 0, 0 for joints that were not labeled).
+
+// The labeled images are found one directory at a time (see LabelStore.iterate), and
+// their labeled data is parsed in parallel, one batch at a time, and written in that
+// order, so the output is the same on every run and memory use does not grow with the
+// size of the dataset (the segment store keeps the pathnames of all its images in memory
+// anyway, and lists them at once). Image sizes are read from the image headers (see ImageHeaders).
+// A throughput report (files per second) is printed to standard error when done.
+
+public class DatasetExporter {
+
+   public static final int BATCH_SIZE = 1024; // Number of .label files parsed in parallel before writing them
+
+   private final java.util.List<String> jointNames; // Joint names in output order
+   private final Map<String, Integer> jointOrdinals; // Position of each joint name within jointNames
+
+   // Creates a new exporter that writes keypoints in the order of the given joint names
+   // Parameters:
+   //    - List<String> jointNames: all joint names, in output order
+   public DatasetExporter(java.util.List<String> jointNames) {
+      this.jointNames = new ArrayList<String>(jointNames);
+      jointOrdinals = new HashMap<String, Integer>();
+      for (int i = 0; i < jointNames.size(); i++) {
+         jointOrdinals.put(jointNames.get(i), i);
+      }
+   }
+
+   // Exports the labeled data of all images under the given root in the given format and
+   // returns a summary of the export
+   // Parameters:
+   //    - LabelStore store: the store holding the labeled data
+   //    - Path root: the directory whose images (including subdirectories) are exported
+   //    - String format: "coco", "yolo" or "jsonl"
+   //    - File output: output file (coco, jsonl) or directory (yolo)
+   public Report export(LabelStore store, Path root, String format, File output) throws IOException {
+      Sink sink;
+      if (format.equals("coco")) {
+         sink = new CocoSink(output, jointNames);
+      } else if (format.equals("yolo")) {
+         sink = new YoloSink(root, output, jointNames);
+      } else if (format.equals("jsonl")) {
+         sink = new JsonlSink(output);
+      } else {
+         throw new IllegalArgumentException("Unknown format: " + format);
+      }
+
+      long start = System.nanoTime();
+      Report report = new Report();
+      Iterator<String> images = store.iterate(root.toAbsolutePath().toString());
+      java.util.List<String> batch = new ArrayList<String>(BATCH_SIZE);
+      try {
+         while (images.hasNext()) {
+            batch.clear();
+            while (batch.size() < BATCH_SIZE && images.hasNext()) {
+               batch.add(images.next());
+            }
+            // parallelStream().map(...).collect(toList()) keeps the order of the batch
+            java.util.List<Record> records = batch.parallelStream().map(image -> read(store, image)).collect(Collectors.toList());
+            for (Record record : records) {
+               if (record.error != null) {
+                  report.skipped++;
+                  System.err.println("Skipping " + record.image + ": " + record.error);
+               } else {
+                  sink.write(record);
+                  report.exported++;
+               }
+            }
+         }
+      } catch (UncheckedIOException ex) {
+         throw ex.getCause();
+      } finally {
+         sink.close();
+      }
+      report.nanos = System.nanoTime() - start;
+      return report;
+   }
+
+   // Parses the labeled data of a single image and reads the image's size. Problems are
+   // recorded in the returned record's error instead of being thrown, so that one bad
+   // file does not stop the export.
+   // Parameters:
+   //    - LabelStore store: the store holding the labeled data
+   //    - String image: absolute pathname of the image
+   Record read(LabelStore store, String image) {
+      Record record = new Record(image);
+      try {
+         String content = store.read(image);
+         if (content == null) {
+            record.error = "no labeled data";
+            return record;
+         }
+         LabelData data = LabelCodec.read(content);
+         Dimension size = ImageHeaders.read(new File(record.image));
+         if (size == null) {
+            record.error = "image format not recognized: " + record.image;
+            return record;
+         }
+         record.width = size.width;
+         record.height = size.height;
+
+         for (int k = -1; k < data.getInstanceCount(); k++) {
+            LabelData labels = k < 0 ? data : data.getInstance(k);
+            if (k >= 0 && labels.getJointCount() == 0 && labels.getBoxFields() != LabelData.BOX_ALL) {
+               continue; // Nothing labeled on this instance
+            }
+            Instance instance = new Instance(jointNames.size());
+            for (int i = 0; i < labels.getJointCount(); i++) {
+               Integer ordinal = jointOrdinals.get(labels.getJointName(i));
+               if (ordinal != null) { // Joints that are not in JointNames.txt are not exported
+                  instance.x[ordinal] = labels.getJointX(i);
+                  instance.y[ordinal] = labels.getJointY(i);
+                  instance.visible[ordinal] = true;
+               }
+            }
+            if (labels.getBoxFields() == LabelData.BOX_ALL) {
+               instance.box = new int[] {labels.getBoxX(), labels.getBoxY(), labels.getBoxW(), labels.getBoxH()};
+            }
+            record.instances.add(instance);
+         }
+         record.tags.putAll(data.getTags());
+      } catch (IOException ex) {
+         record.error = "" + ex;
+      } catch (ParseException ex) {
+         record.error = "" + ex;
+      } catch (RuntimeException ex) { // A corrupt image header can make the parser fail in other ways
+         record.error = "" + ex;
+      }
+      return record;
+   }
+
+   // Main method: exports all .label files under the given root and prints a throughput report
+   public static void main(String[] args) {
+      String root = null;
+      String format = null;
+      String output = null;
+      String jointsFile = "JointNames.txt";
+      String storeSpec = "sidecar";
+      for (int i = 0; i < args.length; i++) {
+         if (args[i].equals("--format") && i + 1 < args.length) {
+            format = args[++i];
+         } else if (args[i].equals("--output") && i + 1 < args.length) {
+            output = args[++i];
+         } else if (args[i].equals("--joints") && i + 1 < args.length) {
+            jointsFile = args[++i];
+         } else if (args[i].equals("--store") && i + 1 < args.length) {
+            storeSpec = args[++i];
+         } else if (root == null && !args[i].startsWith("--")) {
+            root = args[i];
+         } else {
+            root = null;
+            break;
+         }
+      }
+      if (root == null || output == null || format == null
+            || !(format.equals("coco") || format.equals("yolo") || format.equals("jsonl"))) {
+         System.err.println("Usage: java DatasetExporter <root directory> --format <coco|yolo|jsonl> --output <path> [--joints <JointNames.txt>] [--store <label store>]");
+         System.exit(2);
+      }
+      try {
+         DatasetExporter exporter = new DatasetExporter(LabelSchema.readNames(new File(jointsFile)));
+         LabelStore store = LabelStore.open(storeSpec);
+         Report report;
+         try {
+            report = exporter.export(store, Paths.get(root), format, new File(output));
+         } finally {
+            store.close();
+         }
+         System.err.println(report);
+         System.exit(report.skipped == 0 ? 0 : 1);
+      } catch (IOException ex) {
+         System.err.println("Export failed: " + ex);
+         System.exit(2);
+      }
+   }
+
+   // Writes a JSON string value (with quotes) to the given writer
+   private static void writeString(Writer out, String s) throws IOException {
+      out.write('"');
+      out.write(JSONValue.escape(s));
+      out.write('"');
+   }
+
+   // Writes the keypoints of the given instance as a flat x, y, visibility list (without brackets)
+   private static void writeKeypoints(Writer out, Instance r) throws IOException {
+      for (int i = 0; i < r.x.length; i++) {
+         if (i > 0) {
+            out.write(',');
+         }
+         if (r.visible[i]) {
+            out.write(r.x[i] + "," + r.y[i] + ",2");
+         } else {
+            out.write("0,0,0");
+         }
+      }
+   }
+
+   // Summary of an export
+   public static class Report {
+
+      public long exported; // Number of .label files exported
+      public long skipped; // Number of .label files that could not be read
+      public long nanos; // Total time taken
+
+      // Returns the number of exported files per second
+      public double filesPerSecond() {
+         return nanos == 0 ? 0 : exported / (nanos / 1e9);
+      }
+
+      // Human-readable throughput report
+      public String toString() {
+         return String.format("Exported %d files (%d skipped) in %.2f s: %.1f files/s",
+               exported, skipped, nanos / 1e9, filesPerSecond());
+      }
+   }
+
+   // Labeled data of a single image
+   static class Record {
+
+      final String image; // Pathname of the image file
+      int width; // Image width in pixels
+      int height; // Image height in pixels
+      final java.util.List<Instance> instances; // Labeled object instances; the first one is always there
+      final Map<String, String> tags; // Tags sorted by name
+      String error; // Why this record could not be read, or null
+
+      // Creates an empty record for the given image
+      // Parameters:
+      //    - String image: pathname of the image file
+      Record(String image) {
+         this.image = image;
+         instances = new ArrayList<Instance>(1);
+         tags = new TreeMap<String, String>();
+      }
+   }
+
+   // Joints and bounding box of one labeled object instance, with joints in JointNames.txt order
+   static class Instance {
+
+      final int[] x; // Joint x coordinates by joint ordinal
+      final int[] y; // Joint y coordinates by joint ordinal
+      final boolean[] visible; // True for joints that were labeled
+      int[] box; // Bounding box as x, y, w, h, or null if none was confirmed
+
+      // Creates an instance without joints or bounding box
+      // Parameters:
+      //    - int jointCount: number of joint names
+      Instance(int jointCount) {
+         x = new int[jointCount];
+         y = new int[jointCount];
+         visible = new boolean[jointCount];
+      }
+   }
+
+   // Destination of exported records
+   interface Sink extends Closeable {
+
+      // Writes one record
+      void write(Record r) throws IOException;
+   }
+
+   // Writes a single COCO keypoints JSON file. The "images" array is written to the output
+   // as records arrive, while the "annotations" array is spooled to a temporary file and
+   // appended at the end, so that neither has to be held in memory.
+   static class CocoSink implements Sink {
+
+      private final File output; // The COCO JSON file
+      private final java.util.List<String> jointNames; // Keypoint names of the category
+      private final Writer images; // Writes the main file
+      private final File annotationsFile; // Temporary file holding the annotations
+      private final Writer annotations; // Writes the temporary file
+      private long nextImageId; // Id of the next image
+      private long nextAnnotationId; // Id of the next annotation
+
+      // Creates the output file and starts its "images" array
+      CocoSink(File output, java.util.List<String> jointNames) throws IOException {
+         this.output = output;
+         this.jointNames = jointNames;
+         images = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(output), StandardCharsets.UTF_8), 1 << 16);
+         annotationsFile = File.createTempFile("coco-annotations", ".json", output.getAbsoluteFile().getParentFile());
+         annotations = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(annotationsFile), StandardCharsets.UTF_8), 1 << 16);
+         images.write("{\"info\":{\"description\":\"Exported from .label files\"},\n\"images\":[");
+         nextImageId = 1;
+         nextAnnotationId = 1;
+      }
+
+      public void write(Record r) throws IOException {
+         long imageId = nextImageId++;
+         images.write(imageId == 1 ? "\n" : ",\n");
+         images.write("{\"id\":" + imageId + ",\"file_name\":");
+         writeString(images, r.image);
+         images.write(",\"width\":" + r.width + ",\"height\":" + r.height + "}");
+
+         for (Instance instance : r.instances) { // One annotation per object
+            int numKeypoints = 0;
+            for (boolean v : instance.visible) {
+               numKeypoints += v ? 1 : 0;
+            }
+            annotations.write(nextAnnotationId == 1 ? "\n" : ",\n");
+            annotations.write("{\"id\":" + nextAnnotationId++ + ",\"image_id\":" + imageId + ",\"category_id\":1,\"iscrowd\":0,\"keypoints\":[");
+            writeKeypoints(annotations, instance);
+            annotations.write("],\"num_keypoints\":" + numKeypoints);
+            if (instance.box != null) {
+               annotations.write(",\"bbox\":[" + instance.box[0] + "," + instance.box[1] + "," + instance.box[2] + "," + instance.box[3] + "],\"area\":"
+                     + ((long) instance.box[2] * instance.box[3]));
+            }
+            annotations.write("}");
+         }
+      }
+
+      // Appends the annotations and the category, and closes the output
+      public void close() throws IOException {
+         try {
+            annotations.close();
+            images.write("\n],\n\"annotations\":[");
+            Reader spooled = new InputStreamReader(new FileInputStream(annotationsFile), StandardCharsets.UTF_8);
+            try {
+               char[] buf = new char[1 << 16];
+               int n;
+               while ((n = spooled.read(buf)) > 0) {
+                  images.write(buf, 0, n);
+               }
+            } finally {
+               spooled.close();
+            }
+            images.write("\n],\n\"categories\":[{\"id\":1,\"name\":\"object\",\"keypoints\":[");
+            for (int i = 0; i < jointNames.size(); i++) {
+               if (i > 0) {
+                  images.write(',');
+               }
+               writeString(images, jointNames.get(i));
+            }
+            images.write("],\"skeleton\":[]}]}\n");
+         } finally {
+            images.close();
+            annotationsFile.delete();
+         }
+      }
+   }
+
+   // Writes one YOLO pose .txt file per image into a directory tree mirroring the root
+   static class YoloSink implements Sink {
+
+      private final Path root; // Root of the exported .label files
+      private final Path outputDir; // Root of the written .txt files
+
+      // Creates the output directory and writes its dataset.yaml
+      YoloSink(Path root, File outputDir, java.util.List<String> jointNames) throws IOException {
+         this.root = root.toAbsolutePath();
+         this.outputDir = outputDir.toPath();
+         Files.createDirectories(this.outputDir);
+         Writer yaml = Files.newBufferedWriter(this.outputDir.resolve("dataset.yaml"), StandardCharsets.UTF_8);
+         try {
+            yaml.write("kpt_shape: [" + jointNames.size() + ", 3]\n");
+            yaml.write("names:\n  0: object\n");
+            yaml.write("kpt_names:\n");
+            for (String name : jointNames) {
+               yaml.write("  - " + name + "\n");
+            }
+         } finally {
+            yaml.close();
+         }
+      }
+
+      public void write(Record r) throws IOException {
+         Path image = Paths.get(r.image).toAbsolutePath();
+         String name = image.getFileName().toString();
+         int dot = name.lastIndexOf('.');
+         Path relative = root.relativize(image.getParent()).resolve((dot > 0 ? name.substring(0, dot) : name) + ".txt");
+         Path target = outputDir.resolve(relative.toString());
+         Files.createDirectories(target.getParent());
+         Writer out = Files.newBufferedWriter(target, StandardCharsets.UTF_8);
+         try {
+            double w = r.width;
+            double h = r.height;
+            for (Instance instance : r.instances) { // One line per object with a bounding box
+               if (instance.box == null || w <= 0 || h <= 0) {
+                  continue;
+               }
+               StringBuilder line = new StringBuilder("0");
+               appendNormalized(line, (instance.box[0] + instance.box[2] / 2.0) / w);
+               appendNormalized(line, (instance.box[1] + instance.box[3] / 2.0) / h);
+               appendNormalized(line, instance.box[2] / w);
+               appendNormalized(line, instance.box[3] / h);
+               for (int i = 0; i < instance.x.length; i++) {
+                  appendNormalized(line, instance.visible[i] ? instance.x[i] / w : 0);
+                  appendNormalized(line, instance.visible[i] ? instance.y[i] / h : 0);
+                  line.append(instance.visible[i] ? " 2" : " 0");
+               }
+               out.write(line.append('\n').toString());
+            }
+         } finally {
+            out.close();
+         }
+      }
+
+      public void close() {}
+
+      // Appends a space and the given normalized coordinate with six decimals
+      private static void appendNormalized(StringBuilder line, double value) {
+         line.append(' ').append(String.format(Locale.ROOT, "%.6f", value));
+      }
+   }
+
+   // Writes one JSON object per line and image
+   static class JsonlSink implements Sink {
+
+      private final Writer out; // Writes the .jsonl file
+
+      // Creates the output file
+      JsonlSink(File output) throws IOException {
+         out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(output), StandardCharsets.UTF_8), 1 << 16);
+      }
+
+      public void write(Record r) throws IOException {
+         out.write("{\"image\":");
+         writeString(out, r.image);
+         out.write(",\"width\":" + r.width + ",\"height\":" + r.height + ",");
+         writeInstance(r.instances.get(0));
+         out.write(",\"tags\":{");
+         boolean first = true;
+         for (Map.Entry<String, String> tag : r.tags.entrySet()) {
+            if (!first) {
+               out.write(',');
+            }
+            writeString(out, tag.getKey());
+            out.write(':');
+            writeString(out, tag.getValue());
+            first = false;
+         }
+         out.write('}');
+         if (r.instances.size() > 1) { // Further objects, as in the .label file
+            out.write(",\"instances\":[");
+            for (int k = 1; k < r.instances.size(); k++) {
+               out.write(k > 1 ? ",{" : "{");
+               writeInstance(r.instances.get(k));
+               out.write('}');
+            }
+            out.write(']');
+         }
+         out.write("}\n");
+      }
+
+      // Writes the "keypoints" and "bbox" members of the given instance
+      private void writeInstance(Instance instance) throws IOException {
+         out.write("\"keypoints\":[");
+         writeKeypoints(out, instance);
+         out.write("],\"bbox\":");
+         out.write(instance.box == null ? "null" : "[" + instance.box[0] + "," + instance.box[1] + "," + instance.box[2] + "," + instance.box[3] + "]");
+      }
+
+      public void close() throws IOException {
+         out.close();
+      }
+   }
+}
@@ -0,0 +1,445 @@
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.util.*;
+import java.util.concurrent.*;
+import javax.swing.event.*;
+
+// Sorted index of the image files in a whole directory tree (a dataset root such as
+// camera/date/clip/frame.jpg), built in the background by a parallel directory crawl.
+
+// A dataset root may hold millions of images in many thousands of directories, so the
+// index is never built before the first image is shown:
+//    - First, the path to the first directory (in natural order) that holds images is
+//      followed, and that directory is published at once, so the first image can be shown
+//      within a fraction of a second.
+//    - Meanwhile, the whole tree is crawled by a fork/join task per directory, listing
+//      many directories at once (which matters most on network drives). Java's directory
+//      listing does not return the type of the entries, so whether an entry is a
+//      directory costs a stat of its own; it is only asked for entries that are named
+//      neither like images nor like their .label files (or the .labelstatus file), so a
+//      labeled directory costs one stat per subdirectory and stray file, not per image.
+//      Symbolic links to directories are not followed.
+//    - Crawled directories are merged into the index in batches every PUBLISH_MILLIS, and
+//      the listeners are notified, so the previous/next buttons and the filmstrip fill up
+//      while the crawl runs.
+// The images are sorted by directory (directory paths compared name by name in natural
+// order, see DirectoryIndex.compareNatural), then by name. The index is paged: each
+// directory is one page holding the sorted names of its images, and File objects are only
+// created for the images that are actually asked for. Finding an image takes two binary
+// searches (its directory's page, then its name).
+// Unlike DirectoryIndex, the tree is not watched for changes after the crawl; open it
+// again to pick up new images.
+// The number of crawler threads can be set with -Dlabelimage.crawl.threads (default twice
+// the number of cores, at least 8).
+
+public class DatasetIndex implements ImageIndex {
+
+   public static final int CRAWL_THREADS = Integer.getInteger("labelimage.crawl.threads",
+         Math.max(8, 2 * Runtime.getRuntime().availableProcessors())); // Directories listed at once
+   public static final long PUBLISH_MILLIS = 200; // Time between merges of crawled directories into the index
+
+   private static final Map<File, DatasetIndex> OPEN = new HashMap<File, DatasetIndex>(); // Open indexes by root
+   private static final ForkJoinPool CRAWLERS = new ForkJoinPool(CRAWL_THREADS); // Shared by all crawls (daemon threads)
+
+   private final File root; // The indexed directory tree
+   private volatile Pages pages; // Current index (never modified after publishing)
+   private final ConcurrentLinkedQueue<Page> crawled; // Directories crawled but not yet merged into the index
+   private final java.util.List<ChangeListener> listeners; // Notified (on the publisher thread) when the index changes
+   private final CountDownLatch firstPage; // Released once the first images are published or the crawl found none
+   private volatile boolean complete; // True once the whole tree has been crawled and merged
+   private volatile boolean closed; // True once close() has been called
+   private Future<?> crawl; // The running crawl
+
+   // The image names of one directory, sorted in natural order
+   private static class Page {
+
+      final String key; // Path of the directory relative to the root, with '/' separators ("" for the root)
+      final File dir; // The directory
+      final String[] names; // Names of its image files, sorted
+
+      Page(String key, File dir, String[] names) {
+         this.key = key;
+         this.dir = dir;
+         this.names = names;
+      }
+   }
+
+   // Immutable list of pages sorted by directory, with the position of each page's first image
+   private static class Pages implements ImageList {
+
+      final Page[] pages; // Pages sorted by key
+      final int[] offsets; // Position of the first image of each page; offsets[pages.length] is the size
+      final File root; // Root the page keys are relative to
+
+      Pages(File root, Page[] pages) {
+         this.root = root;
+         this.pages = pages;
+         offsets = new int[pages.length + 1];
+         for (int i = 0; i < pages.length; i++) {
+            offsets[i + 1] = offsets[i] + pages[i].names.length;
+         }
+      }
+
+      public int size() {
+         return offsets[pages.length];
+      }
+
+      public File get(int i) {
+         if (i < 0 || i >= size()) {
+            throw new IndexOutOfBoundsException("" + i);
+         }
+         int page = Arrays.binarySearch(offsets, i);
+         if (page < 0) { // Pages are never empty, so offsets are strictly increasing
+            page = -page - 2;
+         }
+         return new File(pages[page].dir, pages[page].names[i - offsets[page]]);
+      }
+
+      public int indexOf(File file) {
+         String key = keyOf(root, file.getAbsoluteFile().getParentFile());
+         if (key == null) {
+            return -1;
+         }
+         int page = pageOf(key);
+         if (page < 0) {
+            return -offsets[-page - 1] - 1;
+         }
+         int pos = Arrays.binarySearch(pages[page].names, file.getName(), NAME_ORDER);
+         return pos >= 0 ? offsets[page] + pos : -(offsets[page] + (-pos - 1)) - 1;
+      }
+
+      // Maps whole pages: a directory's page is published once and kept by later lists
+      public int[] positionsIn(ImageList older) {
+         if (!(older instanceof Pages) || !((Pages) older).root.equals(root)) {
+            return ImageList.super.positionsIn(older);
+         }
+         Pages old = (Pages) older;
+         int[] positions = new int[size()];
+         Arrays.fill(positions, -1);
+         int q = 0;
+         for (int p = 0; p < pages.length; p++) {
+            while (q < old.pages.length && PAGE_ORDER.compare(old.pages[q], pages[p]) < 0) {
+               q++;
+            }
+            if (q < old.pages.length && PAGE_ORDER.compare(old.pages[q], pages[p]) == 0) {
+               String[] oldNames = old.pages[q].names;
+               for (int i = 0; i < pages[p].names.length; i++) {
+                  int pos = oldNames == pages[p].names ? i : Arrays.binarySearch(oldNames, pages[p].names[i], NAME_ORDER);
+                  if (pos >= 0) {
+                     positions[offsets[p] + i] = old.offsets[q] + pos;
+                  }
+               }
+            }
+         }
+         return positions;
+      }
+
+      // Returns the position of the page with the given key, or (-(insertion point) - 1)
+      int pageOf(String key) {
+         int low = 0;
+         int high = pages.length - 1;
+         while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int c = comparePaths(pages[mid].key, key);
+            if (c < 0) {
+               low = mid + 1;
+            } else if (c > 0) {
+               high = mid - 1;
+            } else {
+               return mid;
+            }
+         }
+         return -low - 1;
+      }
+   }
+
+   // Natural ordering of file names (see DirectoryIndex.compareNatural)
+   private static final Comparator<String> NAME_ORDER = new Comparator<String>() {
+      public int compare(String a, String b) {
+         return DirectoryIndex.compareNatural(a, b);
+      }
+   };
+
+   // Ordering of pages by directory path
+   private static final Comparator<Page> PAGE_ORDER = new Comparator<Page>() {
+      public int compare(Page a, Page b) {
+         return comparePaths(a.key, b.key);
+      }
+   };
+
+   // Crawls one directory: publishes its images as a page and crawls its subdirectories in parallel
+   private class Crawl extends RecursiveAction {
+
+      private final Path dir; // Directory to be crawled
+
+      Crawl(Path dir) {
+         this.dir = dir;
+      }
+
+      protected void compute() {
+         if (closed) {
+            return;
+         }
+         java.util.List<String> names = new ArrayList<String>();
+         java.util.List<Crawl> subdirectories = new ArrayList<Crawl>();
+         list(dir, names, subdirectories);
+         if (!names.isEmpty()) {
+            crawled.add(page(dir, names));
+         }
+         invokeAll(subdirectories);
+      }
+   }
+
+   // Starts indexing the given directory tree. Use open() to share indexes.
+   // Parameters:
+   //    - File root: the directory tree to be indexed
+   private DatasetIndex(File root) {
+      this.root = root;
+      pages = new Pages(root, new Page[0]);
+      crawled = new ConcurrentLinkedQueue<Page>();
+      listeners = new CopyOnWriteArrayList<ChangeListener>();
+      firstPage = new CountDownLatch(1);
+   }
+
+   // Returns the index of the given directory tree, starting to crawl it the first time it
+   // is opened
+   // Parameters:
+   //    - File root: the directory tree whose image files are to be indexed
+   public static synchronized DatasetIndex open(File root) throws IOException {
+      File key = root.getAbsoluteFile();
+      if (!key.isDirectory()) {
+         throw new FileNotFoundException(key + " is not a directory");
+      }
+      DatasetIndex index = OPEN.get(key);
+      if (index == null) {
+         index = new DatasetIndex(key);
+         index.start();
+         OPEN.put(key, index);
+      }
+      return index;
+   }
+
+   // Stops the crawl (if it is still running) and forgets this index
+   public void close() {
+      synchronized (DatasetIndex.class) {
+         OPEN.remove(root);
+      }
+      closed = true;
+      if (crawl != null) {
+         crawl.cancel(false);
+      }
+   }
+
+   // Returns the indexed directory tree
+   public File getDirectory() {
+      return root;
+   }
+
+   // Returns the current sorted image files
+   public ImageList images() {
+      return pages;
+   }
+
+   // Returns the number of image files indexed so far
+   public int size() {
+      return pages.size();
+   }
+
+   // Returns false while the tree is still being crawled
+   public boolean isComplete() {
+      return complete;
+   }
+
+   // Waits until the first images have been found, and returns the first image file, or
+   // null if the tree has no images
+   public File awaitFirst() throws InterruptedException {
+      firstPage.await();
+      ImageList current = pages;
+      return current.size() > 0 ? current.get(0) : null;
+   }
+
+   public void addChangeListener(ChangeListener listener) {
+      listeners.add(listener);
+   }
+
+   public void removeChangeListener(ChangeListener listener) {
+      listeners.remove(listener);
+   }
+
+   // Starts the crawl and the thread that merges its results into the index
+   private void start() {
+      crawl = CRAWLERS.submit(new Crawl(root.toPath()));
+      Thread publisher = new Thread(new Runnable() {
+         public void run() {
+            publishLoop();
+         }
+      }, "dataset-index " + root.getName());
+      publisher.setDaemon(true);
+      publisher.start();
+   }
+
+   // Body of the publisher thread: publishes the first directory with images as soon as
+   // it is found, then merges the crawled directories into the index until the crawl is done
+   private void publishLoop() {
+      long start = System.nanoTime();
+      Page first = findFirstPage(root.toPath());
+      if (first != null) {
+         merge(Collections.singletonList(first));
+      }
+      while (!closed) {
+         boolean done = crawl.isDone();
+         java.util.List<Page> batch = new ArrayList<Page>();
+         Page page;
+         while ((page = crawled.poll()) != null) {
+            batch.add(page);
+         }
+         if (!batch.isEmpty()) {
+            merge(batch);
+         }
+         if (done) { // Everything crawled before isDone() returned true has been merged
+            complete = true;
+            firstPage.countDown();
+            Metrics.SCAN.record(start, root.getPath());
+            notifyListeners();
+            return;
+         }
+         try {
+            Thread.sleep(PUBLISH_MILLIS);
+         } catch (InterruptedException ex) {
+            return;
+         }
+      }
+   }
+
+   // Returns the page of the first directory (in index order) that holds images, following
+   // the first subdirectories down from the given directory, or null if there is none
+   private Page findFirstPage(Path dir) {
+      java.util.List<String> names = new ArrayList<String>();
+      java.util.List<Crawl> subdirectories = new ArrayList<Crawl>();
+      list(dir, names, subdirectories);
+      if (!names.isEmpty()) {
+         return page(dir, names);
+      }
+      java.util.List<Path> sorted = new ArrayList<Path>();
+      for (Crawl subdirectory : subdirectories) {
+         sorted.add(subdirectory.dir);
+      }
+      Collections.sort(sorted, new Comparator<Path>() {
+         public int compare(Path a, Path b) {
+            return DirectoryIndex.compareNatural(a.getFileName().toString(), b.getFileName().toString());
+         }
+      });
+      for (Path subdirectory : sorted) {
+         if (closed) {
+            return null;
+         }
+         Page page = findFirstPage(subdirectory);
+         if (page != null) {
+            return page;
+         }
+      }
+      return null;
+   }
+
+   // Merges the given pages into the index (ignoring directories that are already in it),
+   // publishes the result and notifies the listeners
+   private void merge(java.util.List<Page> batch) {
+      Collections.sort(batch, PAGE_ORDER);
+      Page[] current = pages.pages;
+      java.util.List<Page> merged = new ArrayList<Page>(current.length + batch.size());
+      int i = 0;
+      int j = 0;
+      while (i < current.length || j < batch.size()) {
+         int c = i == current.length ? 1 : j == batch.size() ? -1 : PAGE_ORDER.compare(current[i], batch.get(j));
+         if (c <= 0) {
+            merged.add(current[i++]);
+            if (c == 0) { // Already published (the first page is crawled twice)
+               j++;
+            }
+         } else {
+            Page page = batch.get(j++);
+            if (merged.isEmpty() || PAGE_ORDER.compare(merged.get(merged.size() - 1), page) != 0) {
+               merged.add(page);
+            }
+         }
+      }
+      pages = new Pages(root, merged.toArray(new Page[merged.size()]));
+      firstPage.countDown();
+      notifyListeners();
+   }
+
+   // Notifies the listeners that the index has changed
+   private void notifyListeners() {
+      ChangeEvent changeEvent = new ChangeEvent(this);
+      for (ChangeListener listener : listeners) {
+         listener.stateChanged(changeEvent);
+      }
+   }
+
+   // Lists the given directory, adding the names of its image files and a crawl task for
+   // each subdirectory. Directories that cannot be listed are skipped.
+   private void list(Path dir, java.util.List<String> names, java.util.List<Crawl> subdirectories) {
+      try {
+         DirectoryStream<Path> stream = Files.newDirectoryStream(dir);
+         try {
+            for (Path p : stream) {
+               String name = p.getFileName().toString();
+               if (DirectoryIndex.isImageFile(name)) {
+                  names.add(name);
+               } else if (!name.endsWith(LabelValidator.LABEL_EXTENSION) && !name.startsWith(LabelStatus.FILE_NAME)) {
+                  BasicFileAttributes attributes = Files.readAttributes(p, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                  if (attributes.isDirectory()) {
+                     subdirectories.add(new Crawl(p));
+                  }
+               }
+            }
+         } finally {
+            stream.close();
+         }
+      } catch (IOException ex) {
+      } catch (DirectoryIteratorException ex) {}
+   }
+
+   // Returns the page of the given directory with the given image names (sorted here)
+   private Page page(Path dir, java.util.List<String> names) {
+      String[] sorted = names.toArray(new String[names.size()]);
+      Arrays.sort(sorted, NAME_ORDER);
+      return new Page(keyOf(root, dir.toFile()), dir.toFile(), sorted);
+   }
+
+   // Returns the path of the given directory relative to the root with '/' separators, or
+   // null if it is not inside the root
+   private static String keyOf(File root, File dir) {
+      Path relative;
+      try {
+         relative = root.toPath().relativize(dir.toPath());
+      } catch (IllegalArgumentException ex) {
+         return null;
+      }
+      String key = relative.toString().replace(File.separatorChar, '/');
+      return key.equals("..") || key.startsWith("../") ? null : key;
+   }
+
+   // Compares two relative directory paths name by name in natural order; a directory comes
+   // before its subdirectories
+   // Parameters:
+   //    - String a, String b: the paths to be compared ('/' separators, "" for the root)
+   static int comparePaths(String a, String b) {
+      int i = 0;
+      int j = 0;
+      while (i < a.length() && j < b.length()) {
+         int ea = a.indexOf('/', i);
+         int eb = b.indexOf('/', j);
+         ea = ea < 0 ? a.length() : ea;
+         eb = eb < 0 ? b.length() : eb;
+         int c = DirectoryIndex.compareNatural(a.substring(i, ea), b.substring(j, eb));
+         if (c != 0) {
+            return c;
+         }
+         i = ea + 1;
+         j = eb + 1;
+      }
+      return (a.length() - i) - (b.length() - j);
+   }
+}
@@ -0,0 +1,368 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import javax.swing.event.*;
+
+// Sorted index of the image files in one directory, built once and then kept up to date
+// in the background with a WatchService.
+
+// Listing a directory and sorting it again every time an image is opened, and finding the
+// current image with a linear scan, gets slow for directories with hundreds of thousands
+// of images. Instead, one index is built per directory and shared; files that are created
+// or deleted afterwards are inserted into or removed from the index as the WatchService
+// reports them.
+//    - Image files are recognized by their extension (see IMAGE_EXTENSIONS),
+//      ignoring case, so "IMG_0001.JPG" is included too.
+//    - Files are in natural order: runs of digits are compared by their numeric value,
+//      so "frame_2.jpg" comes before "frame_10.jpg".
+//    - The position of a file is found with a binary search.
+// The sorted files are published as an immutable snapshot array, which callers may keep
+// and index freely; every change publishes a new array. All events of one WatchService
+// poll are merged into the array at once, so copying a thousand images into the directory
+// costs a few merges rather than one array copy per image.
+
+public class DirectoryIndex implements ImageIndex {
+
+   public static final String[] IMAGE_EXTENSIONS = new String[] {"gif", "jpeg", "jpg", "png"}; // List of all valid image file extensions
+
+   // Natural ordering of file names: digit runs by numeric value, the rest ignoring case
+   public static final Comparator<File> NATURAL_ORDER = new Comparator<File>() {
+      public int compare(File a, File b) {
+         return compareNatural(a.getName(), b.getName());
+      }
+   };
+
+   private static final Map<File, DirectoryIndex> OPEN = new HashMap<File, DirectoryIndex>(); // Open indexes by directory
+
+   private final File dir; // The indexed directory
+   private volatile File[] files; // Current sorted snapshot of the image files (never modified after publishing)
+   private volatile ImageList list; // The same snapshot as a list
+   private final java.util.List<ChangeListener> listeners; // Notified (on the watcher thread) when the files change
+   private WatchService watcher; // Reports created/deleted files, or null if the directory cannot be watched
+   private Thread watchThread; // Background thread applying the reported changes
+
+   // Builds the index of the given directory. Use open() to share indexes.
+   // Parameters:
+   //    - File dir: the directory to be indexed
+   private DirectoryIndex(File dir) throws IOException {
+      this.dir = dir;
+      listeners = new CopyOnWriteArrayList<ChangeListener>();
+      publish(scan(dir));
+   }
+
+   // Returns the index of the given directory, building it and starting to watch the
+   // directory the first time it is opened.
+   // Parameters:
+   //    - File dir: the directory whose image files are to be indexed
+   public static synchronized DirectoryIndex open(File dir) throws IOException {
+      File key = dir.getAbsoluteFile();
+      DirectoryIndex index = OPEN.get(key);
+      if (index == null) {
+         index = new DirectoryIndex(key);
+         index.startWatching();
+         OPEN.put(key, index);
+      }
+      return index;
+   }
+
+   // Stops watching the directory and forgets this index. A later open() builds it again.
+   public void close() {
+      synchronized (DirectoryIndex.class) {
+         OPEN.remove(dir);
+      }
+      if (watchThread != null) {
+         watchThread.interrupt();
+      }
+      if (watcher != null) {
+         try {
+            watcher.close();
+         } catch (IOException ex) {}
+      }
+   }
+
+   // Returns the indexed directory
+   public File getDirectory() {
+      return dir;
+   }
+
+   // Returns the current sorted image files. The returned array must not be modified.
+   public File[] snapshot() {
+      return files;
+   }
+
+   // Returns the current sorted image files as a list
+   public ImageList images() {
+      return list;
+   }
+
+   // The index of a directory is complete as soon as it has been opened
+   public boolean isComplete() {
+      return true;
+   }
+
+   // Returns the number of image files in the directory
+   public int size() {
+      return files.length;
+   }
+
+   // Returns the image file at the given position
+   // Parameters:
+   //    - int i: position within the sorted image files
+   public File get(int i) {
+      return files[i];
+   }
+
+   // Returns the position of the given file within the sorted image files, or
+   // (-(insertion point) - 1) if it is not in the index (like Arrays.binarySearch)
+   // Parameters:
+   //    - File file: the file to be found
+   public int indexOf(File file) {
+      return indexOf(files, file);
+   }
+
+   // Returns the position of the given file within the given sorted snapshot, or
+   // (-(insertion point) - 1) if it is not in the snapshot
+   // Parameters:
+   //    - File[] snapshot: a snapshot returned by snapshot()
+   //    - File file: the file to be found
+   public static int indexOf(File[] snapshot, File file) {
+      return Arrays.binarySearch(snapshot, file, NATURAL_ORDER);
+   }
+
+   // Registers a listener that is notified whenever image files are added or removed.
+   // Listeners are called on the watcher thread.
+   // Parameters:
+   //    - ChangeListener listener: the listener to be notified
+   public void addChangeListener(ChangeListener listener) {
+      listeners.add(listener);
+   }
+
+   // Unregisters a listener added with addChangeListener
+   // Parameters:
+   //    - ChangeListener listener: the listener to be removed
+   public void removeChangeListener(ChangeListener listener) {
+      listeners.remove(listener);
+   }
+
+   // Returns true if the given file name has one of the image extensions, ignoring case
+   // Parameters:
+   //    - String name: the file name to be checked
+   public static boolean isImageFile(String name) {
+      for (String ext : IMAGE_EXTENSIONS) {
+         int start = name.length() - ext.length();
+         if (start > 0 && name.charAt(start - 1) == '.' && name.regionMatches(true, start, ext, 0, ext.length())) {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   // Compares two file names in natural order: runs of digits are compared by numeric value,
+   // everything else ignoring case. Names that only differ in case or leading zeros are
+   // ordered consistently, so that the order is total.
+   // Parameters:
+   //    - String a, String b: the file names to be compared
+   public static int compareNatural(String a, String b) {
+      int i = 0;
+      int j = 0;
+      int tieBreak = 0; // First difference in leading zeros, used if the names are otherwise equal
+      while (i < a.length() && j < b.length()) {
+         char ca = a.charAt(i);
+         char cb = b.charAt(j);
+         if (isDigit(ca) && isDigit(cb)) {
+            // Skip leading zeros, then the longer digit run is the larger number
+            int za = i;
+            while (za < a.length() && a.charAt(za) == '0') {
+               za++;
+            }
+            int zb = j;
+            while (zb < b.length() && b.charAt(zb) == '0') {
+               zb++;
+            }
+            int ea = za;
+            while (ea < a.length() && isDigit(a.charAt(ea))) {
+               ea++;
+            }
+            int eb = zb;
+            while (eb < b.length() && isDigit(b.charAt(eb))) {
+               eb++;
+            }
+            if (ea - za != eb - zb) {
+               return (ea - za) - (eb - zb);
+            }
+            for (int k = 0; k < ea - za; k++) {
+               int diff = a.charAt(za + k) - b.charAt(zb + k);
+               if (diff != 0) {
+                  return diff;
+               }
+            }
+            if (tieBreak == 0) {
+               tieBreak = (za - i) - (zb - j);
+            }
+            i = ea;
+            j = eb;
+         } else {
+            if (ca != cb) {
+               int diff = Character.toLowerCase(ca) - Character.toLowerCase(cb);
+               if (diff != 0) {
+                  return diff;
+               }
+               if (tieBreak == 0) {
+                  tieBreak = ca - cb;
+               }
+            }
+            i++;
+            j++;
+         }
+      }
+      if (i < a.length() || j < b.length()) {
+         return (a.length() - i) - (b.length() - j);
+      }
+      return tieBreak;
+   }
+
+   // Returns true for the ASCII digits '0' - '9'
+   private static boolean isDigit(char c) {
+      return c >= '0' && c <= '9';
+   }
+
+   // Lists and sorts all image files in the given directory (also used by LabelImageBenchmark)
+   // Parameters:
+   //    - File dir: the directory to be listed
+   static File[] scan(File dir) throws IOException {
+      long start = System.nanoTime();
+      java.util.List<File> found = new ArrayList<File>();
+      DirectoryStream<Path> stream = Files.newDirectoryStream(dir.toPath());
+      try {
+         for (Path p : stream) {
+            // Only check the (rare) candidates that look like images for being directories
+            if (isImageFile(p.getFileName().toString()) && !Files.isDirectory(p)) {
+               found.add(p.toFile());
+            }
+         }
+      } finally {
+         stream.close();
+      }
+      File[] sorted = found.toArray(new File[found.size()]);
+      Arrays.sort(sorted, NATURAL_ORDER);
+      Metrics.SCAN.record(start, dir.getPath());
+      return sorted;
+   }
+
+   // Registers the directory with a WatchService and starts the background thread that
+   // applies the reported changes to the index. If the directory cannot be watched, the
+   // index simply stays as it was built.
+   private void startWatching() {
+      try {
+         watcher = dir.toPath().getFileSystem().newWatchService();
+         dir.toPath().register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE);
+      } catch (IOException ex) {
+         watcher = null;
+         return;
+      } catch (UnsupportedOperationException ex) {
+         watcher = null;
+         return;
+      }
+      watchThread = new Thread(new Runnable() {
+         public void run() {
+            watchLoop();
+         }
+      }, "directory-index " + dir.getName());
+      watchThread.setDaemon(true);
+      watchThread.start();
+   }
+
+   // Body of the watcher thread: applies created/deleted image files to the index, or
+   // rescans the whole directory if the WatchService lost events.
+   private void watchLoop() {
+      while (true) {
+         WatchKey key;
+         try {
+            key = watcher.take();
+         } catch (InterruptedException ex) {
+            return;
+         } catch (ClosedWatchServiceException ex) {
+            return;
+         }
+         boolean changed = false;
+         boolean overflow = false;
+         Map<String, Boolean> created = new HashMap<String, Boolean>(); // Latest event of each image name: created (true) or deleted (false)
+         for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+               overflow = true;
+               continue;
+            }
+            Path name = (Path) event.context();
+            if (isImageFile(name.toString())) {
+               created.put(name.toString(), event.kind() == StandardWatchEventKinds.ENTRY_CREATE);
+            }
+         }
+         if (overflow) { // The rescan includes every change of this poll
+            try {
+               publish(scan(dir));
+               changed = true;
+            } catch (IOException ex) {}
+         } else if (!created.isEmpty()) {
+            changed = apply(created);
+         }
+         if (changed) {
+            ChangeEvent changeEvent = new ChangeEvent(this);
+            for (ChangeListener listener : listeners) {
+               listener.stateChanged(changeEvent);
+            }
+         }
+         if (!key.reset()) { // Directory is no longer accessible
+            return;
+         }
+      }
+   }
+
+   // Inserts the created files at their sorted positions and removes the deleted ones in a
+   // single merge, returning false if nothing changed
+   // Parameters:
+   //    - Map<String, Boolean> created: image names, true if created and false if deleted
+   private boolean apply(Map<String, Boolean> created) {
+      File[] current = files;
+      java.util.List<File> added = new ArrayList<File>();
+      boolean[] removed = new boolean[current.length];
+      int removedCount = 0;
+      for (Map.Entry<String, Boolean> entry : created.entrySet()) {
+         File file = new File(dir, entry.getKey());
+         int pos = indexOf(current, file);
+         if (entry.getValue()) {
+            if (pos < 0 && !file.isDirectory()) {
+               added.add(file);
+            }
+         } else if (pos >= 0 && !removed[pos]) {
+            removed[pos] = true;
+            removedCount++;
+         }
+      }
+      if (added.isEmpty() && removedCount == 0) {
+         return false;
+      }
+      Collections.sort(added, NATURAL_ORDER);
+      File[] updated = new File[current.length - removedCount + added.size()];
+      int i = 0;
+      int j = 0;
+      int n = 0;
+      while (i < current.length || j < added.size()) {
+         if (i < current.length && removed[i]) {
+            i++;
+         } else if (j == added.size() || (i < current.length && NATURAL_ORDER.compare(current[i], added.get(j)) < 0)) {
+            updated[n++] = current[i++];
+         } else {
+            updated[n++] = added.get(j++);
+         }
+      }
+      publish(updated);
+      return true;
+   }
+
+   // Publishes a new sorted snapshot of the image files
+   private void publish(File[] updated) {
+      list = ImageList.of(updated);
+      files = updated;
+   }
+}
@@ -0,0 +1,282 @@
+import java.awt.*;
+import java.awt.event.*;
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import javax.swing.*;
+
+// Watchdog that detects stalls of the Swing event dispatch thread (EDT), i.e. periods in
+// which the GUI does not respond because an event handler is blocking, and reports where
+// they happened.
+
+// A background thread regularly posts a "heartbeat" to the EDT. If the heartbeat has not
+// been run after STALL_MILLIS, the EDT is stalled, and its stack is captured right then,
+// while it is still blocked. When the heartbeat finally runs, the stall's duration is
+// known and the stall is added to the report:
+//    - Stalls are grouped by site: the event being handled (e.g. a click on the
+//      "NEXT IMAGE (>)" button or a key press) and the innermost frame of this program's
+//      own code on the captured stack (e.g. LabelImage.showImage(LabelImage.java:480)).
+//    - For each site, the number of stalls, their total and longest duration, and the
+//      stack of the longest stall are kept.
+//    - Each stall is printed as one line to System.err when it ends, and the whole report
+//      is printed (or written to labelimage.stalls.file) when the program exits.
+// Modal dialogs such as the file chooser run their own event loop inside the event
+// handler that opened them; heartbeats are run by that loop too, so an open dialog is not
+// mistaken for a stall. The event being handled is tracked by a thin EventQueue subclass.
+
+// The threshold can be set with -Dlabelimage.stall.ms (default 250; 0 turns the watchdog off).
+
+public class EdtWatchdog {
+
+   public static final long STALL_MILLIS = Long.getLong("labelimage.stall.ms", 250L); // EDT stalls longer than this are reported
+   public static final String REPORT_FILE = System.getProperty("labelimage.stalls.file"); // File the report is written to on exit, or null for System.err
+   public static final int STACK_DEPTH = 25; // Frames of each stall stack kept in the report
+
+   private static final String[] LIBRARY_PREFIXES = new String[] {"java.", "javax.", "sun.", "jdk.", "com.sun.", "org.json."}; // Classes not part of this program
+
+   private static EdtWatchdog instance; // The installed watchdog, or null
+
+   private final long stallNanos; // Stall threshold
+   private final Map<String, Site> sites; // Stall sites by key, in order of their first stall (guarded by sites)
+   private volatile AWTEvent currentEvent; // Event being dispatched on the EDT, or null
+   private volatile Thread edt; // The event dispatch thread, as seen by the latest heartbeat
+   private volatile long postedAt; // System.nanoTime() when the outstanding heartbeat was posted
+   private volatile boolean outstanding; // True while a heartbeat is waiting to be run
+   private StackTraceElement[] capturedStack; // EDT stack captured during the current stall, or null
+   private String capturedEvent; // Event being handled when the stack was captured
+
+   // Aggregated stalls at one site
+   private static class Site {
+
+      final String event; // Description of the event being handled
+      final String frame; // Innermost frame of this program's code, or the innermost frame
+      int count; // Number of stalls
+      long totalNanos; // Sum of the stall durations
+      long maxNanos; // Longest stall duration
+      StackTraceElement[] stack; // EDT stack of the longest stall
+
+      Site(String event, String frame) {
+         this.event = event;
+         this.frame = frame;
+      }
+   }
+
+   // Event queue that remembers which event is being dispatched
+   private class TrackingEventQueue extends EventQueue {
+
+      protected void dispatchEvent(AWTEvent event) {
+         AWTEvent outer = currentEvent; // Modal dialogs dispatch events inside another event
+         currentEvent = event;
+         try {
+            super.dispatchEvent(event);
+         } finally {
+            currentEvent = outer;
+         }
+      }
+   }
+
+   // Creates a watchdog with the given threshold. Use install() to start it.
+   private EdtWatchdog(long stallMillis) {
+      stallNanos = stallMillis * 1000000L;
+      sites = new LinkedHashMap<String, Site>();
+   }
+
+   // Starts the watchdog for the whole application, unless it is turned off or already
+   // started. Should be called before the GUI is shown.
+   public static synchronized void install() {
+      if (instance != null || STALL_MILLIS <= 0 || GraphicsEnvironment.isHeadless()) {
+         return;
+      }
+      instance = new EdtWatchdog(STALL_MILLIS);
+      instance.start();
+   }
+
+   // Returns the installed watchdog, or null if it is not installed
+   public static synchronized EdtWatchdog getInstance() {
+      return instance;
+   }
+
+   // Installs the event queue and starts the heartbeat thread and the exit report
+   private void start() {
+      Toolkit.getDefaultToolkit().getSystemEventQueue().push(new TrackingEventQueue());
+      Thread thread = new Thread(new Runnable() {
+         public void run() {
+            watchLoop();
+         }
+      }, "edt-watchdog");
+      thread.setDaemon(true);
+      thread.start();
+      Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+         public void run() {
+            writeReport();
+         }
+      }, "edt-watchdog-report"));
+   }
+
+   // Body of the watchdog thread: posts heartbeats and captures the EDT stack when a
+   // heartbeat is late
+   private void watchLoop() {
+      long checkMillis = Math.max(5, Math.min(50, STALL_MILLIS / 4));
+      while (true) {
+         try {
+            Thread.sleep(checkMillis);
+         } catch (InterruptedException ex) {
+            return;
+         }
+         if (!outstanding) {
+            postHeartbeat();
+         } else if (System.nanoTime() - postedAt > stallNanos) {
+            synchronized (this) {
+               Thread thread = edt;
+               if (capturedStack == null && outstanding && thread != null) {
+                  capturedEvent = describe(currentEvent);
+                  capturedStack = thread.getStackTrace();
+               }
+            }
+         }
+      }
+   }
+
+   // Posts a heartbeat to the EDT, which records the stall (if any) when it is run
+   private void postHeartbeat() {
+      postedAt = System.nanoTime();
+      outstanding = true;
+      EventQueue.invokeLater(new Runnable() {
+         public void run() {
+            long stalled = System.nanoTime() - postedAt;
+            edt = Thread.currentThread();
+            StackTraceElement[] stack;
+            String event;
+            synchronized (EdtWatchdog.this) {
+               stack = capturedStack;
+               event = capturedEvent;
+               capturedStack = null;
+               capturedEvent = null;
+               outstanding = false;
+            }
+            if (stack != null && stalled > stallNanos) {
+               record(event, stack, stalled);
+            }
+         }
+      });
+   }
+
+   // Adds a stall to the report and prints it
+   private void record(String event, StackTraceElement[] stack, long nanos) {
+      String frame = innermostOwnFrame(stack);
+      String key = event + " at " + frame;
+      synchronized (sites) {
+         Site site = sites.get(key);
+         if (site == null) {
+            site = new Site(event, frame);
+            sites.put(key, site);
+         }
+         site.count++;
+         site.totalNanos += nanos;
+         if (nanos > site.maxNanos) {
+            site.maxNanos = nanos;
+            site.stack = stack;
+         }
+      }
+      Metrics.STALL.add(nanos);
+      System.err.println("GUI stalled for " + nanos / 1000000 + " ms handling " + key
+            + (stack.length > 0 ? " (blocked in " + stack[0] + ")" : ""));
+   }
+
+   // Returns the report of all stalls so far, sites with the longest total stall time first
+   public String report() {
+      java.util.List<Site> sorted;
+      synchronized (sites) {
+         sorted = new ArrayList<Site>(sites.values());
+      }
+      Collections.sort(sorted, new Comparator<Site>() {
+         public int compare(Site a, Site b) {
+            return Long.compare(b.totalNanos, a.totalNanos);
+         }
+      });
+      StringBuilder text = new StringBuilder();
+      String newline = System.lineSeparator();
+      text.append("GUI stalls longer than ").append(STALL_MILLIS).append(" ms: ").append(sorted.size()).append(" sites").append(newline);
+      for (Site site : sorted) {
+         text.append(newline);
+         text.append(site.event).append(" at ").append(site.frame).append(newline);
+         text.append("   stalls=").append(site.count).append(" totalMs=").append(site.totalNanos / 1000000)
+               .append(" maxMs=").append(site.maxNanos / 1000000).append(newline);
+         text.append("   stack of the longest stall:").append(newline);
+         for (int i = 0; i < Math.min(STACK_DEPTH, site.stack.length); i++) {
+            text.append("      at ").append(site.stack[i]).append(newline);
+         }
+      }
+      return text.toString();
+   }
+
+   // Writes the report to REPORT_FILE, or prints it to System.err, if there were stalls
+   private void writeReport() {
+      synchronized (sites) {
+         if (sites.isEmpty()) {
+            return;
+         }
+      }
+      String report = report();
+      if (REPORT_FILE == null) {
+         System.err.print(report);
+         return;
+      }
+      try {
+         Files.write(Paths.get(REPORT_FILE), report.getBytes(StandardCharsets.UTF_8));
+      } catch (IOException ex) {
+         System.err.println("Could not write GUI stall report to " + REPORT_FILE + ": " + ex);
+         System.err.print(report);
+      }
+   }
+
+   // Returns the innermost frame of this program's own code on the given stack, or the
+   // innermost frame if there is none
+   private static String innermostOwnFrame(StackTraceElement[] stack) {
+      for (StackTraceElement frame : stack) {
+         if (!isLibrary(frame.getClassName())) {
+            return frame.toString();
+         }
+      }
+      return stack.length > 0 ? stack[0].toString() : "unknown";
+   }
+
+   // Returns true if the given class is part of the JDK or a library
+   private static boolean isLibrary(String className) {
+      for (String prefix : LIBRARY_PREFIXES) {
+         if (className.startsWith(prefix)) {
+            return true;
+         }
+      }
+      return className.equals(EdtWatchdog.class.getName()) || className.startsWith(EdtWatchdog.class.getName() + "$");
+   }
+
+   // Returns a short description of the given event, e.g. "button \"NEXT IMAGE (>)\""
+   private static String describe(AWTEvent event) {
+      if (event == null) {
+         return "no event";
+      }
+      Object source = event.getSource();
+      if (source instanceof AbstractButton && (event instanceof MouseEvent || event instanceof KeyEvent || event instanceof ActionEvent)) {
+         return "button \"" + ((AbstractButton) source).getActionCommand() + "\"";
+      }
+      if (event instanceof KeyEvent) {
+         return "key " + KeyEvent.getKeyText(((KeyEvent) event).getKeyCode());
+      }
+      if (event instanceof WindowEvent) {
+         return event.getID() == WindowEvent.WINDOW_CLOSING ? "window closing" : "window event";
+      }
+      if (event instanceof InvocationEvent) {
+         return "invokeLater task";
+      }
+      if (event instanceof MouseEvent) {
+         return "mouse on " + source.getClass().getName();
+      }
+      if (event instanceof PaintEvent) {
+         return "paint";
+      }
+      return event.getClass().getSimpleName();
+   }
+}
@@ -0,0 +1,207 @@
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.*;
+import java.awt.image.*;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Horizontal strip of thumbnails of all images in the current directory, shown below the
+// image being labeled. Clicking a thumbnail jumps to that image.
+
+// The strip is a JList with a fixed cell size inside a scroll pane, so only the cells that
+// are currently visible are ever rendered, no matter how many images the directory has.
+// Rendering never blocks:
+//    - Thumbnails come from ThumbnailCache; a thumbnail that is not in memory yet is drawn
+//      as a gray placeholder, and the strip is repainted once it has been loaded or generated.
+//    - Whether an image has labeled data (drawn as a green marker in the cell's corner) is
+//      looked up in the label store on a background thread the first time its cell is
+//      rendered, and remembered afterwards.
+
+public class Filmstrip extends JPanel {
+
+   public static final int CELL_WIDTH = ThumbnailCache.SIZE + 12; // Width of a thumbnail cell
+   public static final int CELL_HEIGHT = ThumbnailCache.SIZE + 26; // Height of a thumbnail cell, including the file name
+   public static final Color LABELED_COLOR = new Color(0, 170, 0); // Color of the marker of images that have labeled data
+
+   private final LabelStore labelStore; // Where to look up whether an image has labeled data
+   private final FileListModel model; // The image files shown in the strip
+   private final JList<File> list; // Renders the visible thumbnail cells
+   private final Map<String, Boolean> labeled; // Whether each image (by absolute pathname) has labeled data, once looked up
+   private final Set<String> checking; // Images whose labeled status is being looked up
+   private final ExecutorService checker; // Looks up the labeled status of images in the background
+   private final Runnable repainter; // Repaints the strip (called from background threads)
+   private final java.util.List<ActionListener> listeners; // Notified when a thumbnail is clicked
+   private int clickedIndex; // Index of the most recently clicked thumbnail
+
+   // The image files shown in the strip (the latest image index list, never modified).
+   // Only the files of the visible cells are ever asked for.
+   private static class FileListModel extends AbstractListModel<File> {
+
+      private ImageList files = ImageList.of(new File[0]); // The image files, sorted
+
+      public int getSize() {
+         return files.size();
+      }
+
+      public File getElementAt(int index) {
+         return files.get(index);
+      }
+
+      // Replaces the image files, if they have changed
+      void setFiles(ImageList files) {
+         if (files != this.files) {
+            this.files = files;
+            fireContentsChanged(this, 0, Integer.MAX_VALUE);
+         }
+      }
+   }
+
+   // Renders one thumbnail cell: the thumbnail (or a placeholder), the file name, and a
+   // marker if the image has labeled data
+   private class CellRenderer extends JComponent implements ListCellRenderer<File> {
+
+      private File file; // Image file of the cell being rendered
+      private boolean selected; // True if it is the current image
+
+      public Component getListCellRendererComponent(JList<? extends File> list, File value, int index, boolean isSelected, boolean cellHasFocus) {
+         file = value;
+         selected = isSelected;
+         return this;
+      }
+
+      protected void paintComponent(Graphics g) {
+         g.setColor(selected ? new Color(153, 204, 255) : Color.WHITE);
+         g.fillRect(0, 0, getWidth(), getHeight());
+         int size = ThumbnailCache.SIZE;
+         int left = (getWidth() - size) / 2;
+         BufferedImage thumbnail = ThumbnailCache.getInstance().get(file, repainter);
+         if (thumbnail != null) {
+            g.drawImage(thumbnail, left + (size - thumbnail.getWidth()) / 2, 4 + (size - thumbnail.getHeight()) / 2, null);
+         } else {
+            g.setColor(Color.LIGHT_GRAY);
+            g.fillRect(left, 4, size, size);
+         }
+         if (isLabeled(file)) {
+            g.setColor(LABELED_COLOR);
+            g.fillOval(left + size - 14, 8, 10, 10);
+         }
+         g.setColor(Color.BLACK);
+         FontMetrics metrics = g.getFontMetrics();
+         String name = file.getName();
+         while (name.length() > 1 && metrics.stringWidth(name) > getWidth() - 4) { // Cut off names that do not fit
+            name = name.substring(0, name.length() - 1);
+         }
+         g.drawString(name, (getWidth() - metrics.stringWidth(name)) / 2, getHeight() - 6);
+      }
+   }
+
+   // Creates an empty filmstrip
+   // Parameters:
+   //    - LabelStore labelStore: where to look up whether an image has labeled data
+   public Filmstrip(LabelStore labelStore) {
+      super(new BorderLayout());
+      this.labelStore = labelStore;
+      labeled = new ConcurrentHashMap<String, Boolean>();
+      checking = ConcurrentHashMap.newKeySet();
+      listeners = new ArrayList<ActionListener>();
+      checker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+         public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "filmstrip-status");
+            t.setDaemon(true);
+            return t;
+         }
+      });
+      model = new FileListModel();
+      list = new JList<File>(model);
+      list.setLayoutOrientation(JList.HORIZONTAL_WRAP);
+      list.setVisibleRowCount(1);
+      list.setFixedCellWidth(CELL_WIDTH); // Fixed cells: no cell has to be rendered to lay out the list
+      list.setFixedCellHeight(CELL_HEIGHT);
+      list.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+      list.setFocusable(false); // Keep the arrow keys for PREVIOUS/NEXT
+      list.setCellRenderer(new CellRenderer());
+      list.addMouseListener(new MouseAdapter() {
+         // A thumbnail was clicked: tell the listeners which one
+         public void mouseClicked(MouseEvent e) {
+            int index = list.locationToIndex(e.getPoint());
+            if (index >= 0 && list.getCellBounds(index, index).contains(e.getPoint())) {
+               clickedIndex = index;
+               ActionEvent event = new ActionEvent(Filmstrip.this, ActionEvent.ACTION_PERFORMED, "FILMSTRIP");
+               for (ActionListener listener : new ArrayList<ActionListener>(listeners)) {
+                  listener.actionPerformed(event);
+               }
+            }
+         }
+      });
+      repainter = new Runnable() {
+         public void run() {
+            list.repaint();
+         }
+      };
+      JScrollPane scroll = new JScrollPane(list, ScrollPaneConstants.VERTICAL_SCROLLBAR_NEVER, ScrollPaneConstants.HORIZONTAL_SCROLLBAR_ALWAYS);
+      scroll.getHorizontalScrollBar().setUnitIncrement(CELL_WIDTH);
+      scroll.setPreferredSize(new Dimension(CELL_WIDTH * 8, CELL_HEIGHT + scroll.getHorizontalScrollBar().getPreferredSize().height + 4));
+      add(scroll, BorderLayout.CENTER);
+   }
+
+   // Shows the given image files, with the given one selected and scrolled into view
+   // Parameters:
+   //    - ImageList files: all image files being labeled, sorted
+   //    - int current: index of the current image within files
+   public void setFiles(ImageList files, int current) {
+      model.setFiles(files);
+      if (current >= 0 && current < files.size()) {
+         list.setSelectedIndex(current);
+         list.ensureIndexIsVisible(current);
+      } else {
+         list.clearSelection();
+      }
+   }
+
+   // Records whether the given image has labeled data, e.g. after its labels were saved
+   // Parameters:
+   //    - String imagePath: absolute pathname of the image file
+   //    - boolean hasLabels: true if the image has labeled data
+   public void setLabeled(String imagePath, boolean hasLabels) {
+      labeled.put(imagePath, hasLabels);
+      list.repaint();
+   }
+
+   // Returns the index (within the files last passed to setFiles) of the most recently clicked thumbnail
+   public int getClickedIndex() {
+      return clickedIndex;
+   }
+
+   // Adds a listener that is notified (with action command "FILMSTRIP") when a thumbnail is clicked
+   public void addActionListener(ActionListener listener) {
+      listeners.add(listener);
+   }
+
+   // Returns true if the given image is known to have labeled data. If it has not been
+   // looked up yet, starts looking it up in the background and returns false for now.
+   private boolean isLabeled(File file) {
+      final String path = file.getAbsolutePath();
+      Boolean known = labeled.get(path);
+      if (known != null) {
+         return known;
+      }
+      if (checking.add(path)) {
+         checker.execute(new Runnable() {
+            public void run() {
+               try {
+                  if (!labeled.containsKey(path)) { // Not set by setLabeled in the meantime
+                     labeled.putIfAbsent(path, labelStore.contains(path));
+                     list.repaint();
+                  }
+               } catch (IOException ex) {
+                  labeled.putIfAbsent(path, false);
+               } finally {
+                  checking.remove(path);
+               }
+            }
+         });
+      }
+      return false;
+   }
+}
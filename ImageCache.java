@@ -0,0 +1,264 @@
+import javax.swing.*;
+import javax.imageio.*;
+import java.awt.image.*;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+// Decoded-image cache shared by every labeling window, with a background prefetch
+// engine for PREVIOUS/NEXT navigation.
+
+// Decoding a large JPEG with new ImageIcon(fileName) blocks the event dispatch thread
+// for hundreds of milliseconds, so whenever an image is shown the next few and previous
+// few images of the directory are decoded on background threads and kept in a
+// least-recently-used cache. Stepping through a directory then becomes a cache hit.
+// The cache is bounded by the number of decoded bytes (width * height * bytes per pixel)
+// rather than the number of images, because image sizes within a dataset can vary a lot.
+
+// The window sizes and the memory budget can be tuned with system properties:
+//    - labelimage.prefetch.ahead: number of images after the current one to decode (default 3)
+//    - labelimage.prefetch.behind: number of images before the current one to decode (default 1)
+//    - labelimage.cache.mb: maximum decoded size of all cached images in megabytes (default 512)
+
+public class ImageCache {
+
+   public static final int PREFETCH_AHEAD = Integer.getInteger("labelimage.prefetch.ahead", 3); // Images decoded after the current one
+   public static final int PREFETCH_BEHIND = Integer.getInteger("labelimage.prefetch.behind", 1); // Images decoded before the current one
+   public static final long MAX_BYTES = Long.getLong("labelimage.cache.mb", 512L) * 1024 * 1024; // Decoded-bytes budget of the cache
+
+   private static final ImageCache INSTANCE = new ImageCache(MAX_BYTES, PREFETCH_AHEAD, PREFETCH_BEHIND);
+
+   private final long maxBytes; // Maximum total decoded bytes kept in the cache
+   private final int ahead; // Number of images after the current index to prefetch
+   private final int behind; // Number of images before the current index to prefetch
+   private final LinkedHashMap<String, BufferedImage> images; // Decoded images in least-recently-used order (guarded by this)
+   private final Map<String, Future<BufferedImage>> pending; // Decodes that have been submitted but not finished yet
+   private final ExecutorService workers; // Background decoding threads
+   private final AtomicLong hits; // Number of requests served from the cache (or from an already running prefetch)
+   private final AtomicLong misses; // Number of requests that had to decode on the calling thread
+   private long currentBytes; // Total decoded bytes currently in the cache (guarded by this)
+   private volatile String[] window; // Absolute pathnames that are currently worth prefetching
+
+   // Creates a new image cache.
+   // Parameters:
+   //    - long maxBytes: maximum total decoded bytes kept in the cache
+   //    - int ahead: number of images after the current image to prefetch
+   //    - int behind: number of images before the current image to prefetch
+   public ImageCache(long maxBytes, int ahead, int behind) {
+      this.maxBytes = maxBytes;
+      this.ahead = Math.max(0, ahead);
+      this.behind = Math.max(0, behind);
+      images = new LinkedHashMap<String, BufferedImage>(16, 0.75f, true); // access order for LRU
+      pending = new ConcurrentHashMap<String, Future<BufferedImage>>();
+      hits = new AtomicLong();
+      misses = new AtomicLong();
+      window = new String[0];
+      int threads = Math.max(1, Math.min(this.ahead + this.behind, Runtime.getRuntime().availableProcessors() - 1));
+      workers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+         public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "image-prefetch");
+            t.setDaemon(true); // Never keep the application alive just to prefetch
+            t.setPriority(Thread.NORM_PRIORITY - 1);
+            return t;
+         }
+      });
+   }
+
+   // Returns the cache shared by all labeling windows
+   public static ImageCache getInstance() {
+      return INSTANCE;
+   }
+
+   // Returns an image icon for the given image file, taken from the cache when possible.
+   // If the image cannot be decoded by ImageIO, falls back to the regular ImageIcon loading.
+   // Parameters:
+   //    - String fileName: absolute pathname of the image file
+   public ImageIcon getIcon(String fileName) {
+      BufferedImage image = get(fileName);
+      if (image == null) {
+         return new ImageIcon(fileName);
+      }
+      return new ImageIcon(image);
+   }
+
+   // Returns the decoded image for the given image file, or null if it could not be decoded.
+   // A cached image or a prefetch that is already in progress counts as a hit; otherwise the
+   // image is decoded on the calling thread and counted as a miss.
+   // Parameters:
+   //    - String fileName: absolute pathname of the image file
+   public BufferedImage get(String fileName) {
+      synchronized (this) {
+         BufferedImage cached = images.get(fileName);
+         if (cached != null) {
+            hits.incrementAndGet();
+            return cached;
+         }
+      }
+      Future<BufferedImage> inFlight = pending.get(fileName);
+      if (inFlight != null) {
+         try {
+            BufferedImage image = inFlight.get();
+            if (image != null) { // null when the prefetch was dropped or could not decode
+               hits.incrementAndGet();
+               return image;
+            }
+         } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+         } catch (ExecutionException ex) {}
+      }
+      misses.incrementAndGet();
+      BufferedImage image = decode(fileName);
+      put(fileName, image);
+      return image;
+   }
+
+   // Starts decoding the images around the given index of the given list of image files
+   // in the background. Images that are already cached or being decoded are skipped, and
+   // queued decodes that have fallen out of the window by the time they run are dropped.
+   // Parameters:
+   //    - ImageList imgFiles: all image files being labeled, sorted
+   //    - int index: index of the current image within imgFiles
+   public void prefetch(ImageList imgFiles, int index) {
+      if (imgFiles == null) {
+         return;
+      }
+      // Closest images first: next, previous, next + 1, ...
+      java.util.List<String> order = new ArrayList<String>();
+      for (int d = 1; d <= Math.max(ahead, behind); d++) {
+         if (d <= ahead && index + d < imgFiles.size()) {
+            order.add(imgFiles.get(index + d).getAbsolutePath());
+         }
+         if (d <= behind && index - d >= 0) {
+            order.add(imgFiles.get(index - d).getAbsolutePath());
+         }
+      }
+      window = order.toArray(new String[order.size()]);
+      for (final String fileName : order) {
+         synchronized (this) {
+            if (images.containsKey(fileName) || pending.containsKey(fileName)) {
+               continue;
+            }
+         }
+         FutureTask<BufferedImage> task = new FutureTask<BufferedImage>(new Callable<BufferedImage>() {
+            public BufferedImage call() {
+               try {
+                  if (!inWindow(fileName)) { // User has moved on since this was queued
+                     return null;
+                  }
+                  if (isTiled(fileName)) { // Displayed from tiles, never decoded as a whole
+                     return null;
+                  }
+                  BufferedImage image = decode(fileName);
+                  put(fileName, image);
+                  return image;
+               } finally {
+                  pending.remove(fileName);
+               }
+            }
+         });
+         if (pending.putIfAbsent(fileName, task) == null) {
+            workers.execute(task);
+         }
+      }
+   }
+
+   // Returns the number of requests served from the cache
+   public long getHits() {
+      return hits.get();
+   }
+
+   // Returns the number of requests that had to decode on the calling thread
+   public long getMisses() {
+      return misses.get();
+   }
+
+   // Returns the total decoded bytes currently held by the cache
+   public synchronized long getCurrentBytes() {
+      return currentBytes;
+   }
+
+   // Returns the number of images currently held by the cache
+   public synchronized int size() {
+      return images.size();
+   }
+
+   // Removes all images from the cache and resets the counters
+   public synchronized void clear() {
+      images.clear();
+      currentBytes = 0;
+      hits.set(0);
+      misses.set(0);
+   }
+
+   // Summary of the cache counters, e.g. for printing
+   public String toString() {
+      return "ImageCache[hits=" + getHits() + ", misses=" + getMisses() + ", images=" + size()
+            + ", bytes=" + getCurrentBytes() + "/" + maxBytes + "]";
+   }
+
+   // Returns true if the given file is still in the current prefetch window
+   private boolean inWindow(String fileName) {
+      for (String s : window) {
+         if (s.equals(fileName)) {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   // Returns true if the given image file is so large that it is displayed tiled (see TiledImage)
+   private static boolean isTiled(String fileName) {
+      try {
+         return TiledImage.isLarge(ImageHeaders.read(new File(fileName)));
+      } catch (IOException ex) {
+         return false;
+      } catch (RuntimeException ex) { // A corrupt header can make the parser fail in other ways
+         return false;
+      }
+   }
+
+   // Adds a decoded image to the cache, evicting least-recently-used images until the
+   // cache fits within its budget again. The newly added image is never evicted, so an
+   // image larger than the whole budget can still be displayed.
+   private synchronized void put(String fileName, BufferedImage image) {
+      if (image == null) {
+         return;
+      }
+      BufferedImage old = images.put(fileName, image);
+      if (old != null) {
+         currentBytes -= sizeOf(old);
+      }
+      currentBytes += sizeOf(image);
+      Iterator<Map.Entry<String, BufferedImage>> it = images.entrySet().iterator();
+      while (currentBytes > maxBytes && it.hasNext()) {
+         Map.Entry<String, BufferedImage> eldest = it.next();
+         if (eldest.getKey().equals(fileName)) {
+            continue;
+         }
+         currentBytes -= sizeOf(eldest.getValue());
+         it.remove();
+      }
+   }
+
+   // Decodes the given image file, returning null if it cannot be read by ImageIO
+   private static BufferedImage decode(String fileName) {
+      long start = System.nanoTime();
+      try {
+         return ImageIO.read(new File(fileName));
+      } catch (IOException ex) {
+         return null;
+      } catch (RuntimeException ex) { // Corrupt files can throw from inside the decoders
+         return null;
+      } finally {
+         Metrics.DECODE.record(start, fileName);
+      }
+   }
+
+   // Returns the number of bytes held by the pixels of the given decoded image
+   private static long sizeOf(BufferedImage image) {
+      DataBuffer buffer = image.getRaster().getDataBuffer();
+      long bytesPerElement = DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+      return (long) buffer.getSize() * buffer.getNumBanks() * Math.max(1, bytesPerElement);
+   }
+}
@@ -0,0 +1,39 @@
+import javax.imageio.*;
+import javax.imageio.stream.*;
+import java.awt.*;
+import java.io.*;
+import java.util.*;
+
+// Reads image dimensions from the header of an image file, without decoding any pixels.
+// Used by the headless tools (DatasetExporter, LabelValidator), which only need to know the
+// size of each image, and by LabelImage.showImage and ImageCache to decide from the size
+// alone whether an image is shown as tiles instead of being decoded at once.
+
+public class ImageHeaders {
+
+   // Returns the width and height of the given image file, or null if no ImageIO reader
+   // recognizes the file's format.
+   // Parameters:
+   //    - File imageFile: the image file whose dimensions are to be read
+   public static Dimension read(File imageFile) throws IOException {
+      ImageInputStream in = ImageIO.createImageInputStream(imageFile);
+      if (in == null) {
+         return null;
+      }
+      try {
+         Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+         if (!readers.hasNext()) {
+            return null;
+         }
+         ImageReader reader = readers.next();
+         try {
+            reader.setInput(in, true, true); // Only the first image, and skip all metadata
+            return new Dimension(reader.getWidth(0), reader.getHeight(0));
+         } finally {
+            reader.dispose();
+         }
+      } finally {
+         in.close();
+      }
+   }
+}
@@ -0,0 +1,32 @@
+import java.io.*;
+import javax.swing.event.*;
+
+// Sorted index of the image files to be labeled, built in the background and kept up to
+// date. Implemented by DirectoryIndex (the images of one directory) and DatasetIndex (the
+// images of a whole directory tree).
+
+public interface ImageIndex {
+
+   // Returns the directory whose images are indexed
+   File getDirectory();
+
+   // Returns the current sorted image files. Every change publishes a new list.
+   ImageList images();
+
+   // Returns false while the index is still being built in the background
+   boolean isComplete();
+
+   // Registers a listener that is notified whenever image files are added or removed.
+   // Listeners are called on a background thread.
+   // Parameters:
+   //    - ChangeListener listener: the listener to be notified
+   void addChangeListener(ChangeListener listener);
+
+   // Unregisters a listener added with addChangeListener
+   // Parameters:
+   //    - ChangeListener listener: the listener to be removed
+   void removeChangeListener(ChangeListener listener);
+
+   // Stops keeping the index up to date and forgets it. A later open() builds it again.
+   void close();
+}
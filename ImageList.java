@@ -0,0 +1,84 @@
+import java.io.*;
+
+// Immutable, sorted list of image files, as published by an ImageIndex.
+
+// A list may hold millions of images, so callers should only ask for the images they
+// need (e.g. the visible thumbnails or the images around the current one) instead of
+// copying the whole list. Lists are never modified; an index that changes publishes a
+// new list.
+
+public interface ImageList {
+
+   // Returns the number of image files in the list
+   int size();
+
+   // Returns the image file at the given position
+   // Parameters:
+   //    - int i: position within the list
+   File get(int i);
+
+   // Returns the position of the given file within the list, or (-(insertion point) - 1)
+   // if it is not in the list (like Arrays.binarySearch)
+   // Parameters:
+   //    - File file: the file to be found
+   int indexOf(File file);
+
+   // Returns, for each position of this list, the position of the same image file in the
+   // given (older) list, or -1 if it is not in it, e.g. to carry per-image state over to a
+   // new list. This looks up every image; lists published by the same index do it without.
+   // Parameters:
+   //    - ImageList older: the list to be mapped to
+   default int[] positionsIn(ImageList older) {
+      int[] positions = new int[size()];
+      for (int i = 0; i < positions.length; i++) {
+         positions[i] = Math.max(-1, older.indexOf(get(i)));
+      }
+      return positions;
+   }
+
+   // Returns a list of the given image files
+   // Parameters:
+   //    - File[] sorted: image files in natural order (see DirectoryIndex.NATURAL_ORDER), not modified afterwards
+   static ImageList of(File[] sorted) {
+      return new FileArray(sorted);
+   }
+
+   // List of the image files of a sorted array
+   class FileArray implements ImageList {
+
+      private final File[] sorted; // Image files in natural order
+
+      FileArray(File[] sorted) {
+         this.sorted = sorted;
+      }
+
+      public int size() {
+         return sorted.length;
+      }
+
+      public File get(int i) {
+         return sorted[i];
+      }
+
+      public int indexOf(File file) {
+         return DirectoryIndex.indexOf(sorted, file);
+      }
+
+      // Merges the two sorted arrays, which share the File objects of the images they both hold
+      public int[] positionsIn(ImageList older) {
+         if (!(older instanceof FileArray)) {
+            return ImageList.super.positionsIn(older);
+         }
+         File[] old = ((FileArray) older).sorted;
+         int[] positions = new int[sorted.length];
+         int j = 0;
+         for (int i = 0; i < sorted.length; i++) {
+            while (j < old.length && old[j] != sorted[i] && DirectoryIndex.NATURAL_ORDER.compare(old[j], sorted[i]) < 0) {
+               j++;
+            }
+            positions[i] = j < old.length && (old[j] == sorted[i] || old[j].equals(sorted[i])) ? j : -1;
+         }
+         return positions;
+      }
+   }
+}
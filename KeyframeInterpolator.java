@@ -0,0 +1,357 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.stream.*;
+import org.json.simple.parser.*;
+
+// Generates the labels of the frames between labeled keyframes of an image sequence, so
+// that only keyframes have to be labeled by hand.
+
+// Usage:
+//    $ java -cp ".:./json-simple-1.1.jar" KeyframeInterpolator <directory> [--spline] [--store <label store>]
+// It can also be run from the labeling GUI ("INTERPOLATE BETWEEN KEYFRAMES").
+
+// The frames are the images in the order of the image list (natural file name order, see
+// DirectoryIndex), assumed to be evenly spaced in time. Every frame with labeled data that
+// is not marked as interpolated is a keyframe. For each frame between two consecutive
+// keyframes of the same directory, and for each object instance labeled in both (see
+// Annotation), every joint confirmed on both keyframes and the bounding box (if confirmed on
+// both) are interpolated per coordinate:
+//    - LINEAR: along the straight line between the two keyframes
+//    - SPLINE: along a cubic Hermite spline whose tangents at the two keyframes are taken
+//      from the keyframes before and after them (Catmull-Rom, with unevenly spaced
+//      keyframes), so motion stays smooth across keyframes. Where the joint is not
+//      confirmed on a neighbouring keyframe, the tangent is that of the straight line.
+// Joints confirmed on only one of the two keyframes are left out, and tags are copied
+// where both keyframes have the same value. If the two keyframes share no joint and no
+// box, the frames between them are left alone, as labels without any joint or box would
+// count as partially labeled (the GUI never saves such labels). The generated labels are marked as
+// interpolated ("Interpolated": true, see LabelCodec), so they can be found with the query
+// "interpolated" and reviewed; they lose the mark when a joint or box is confirmed on them.
+// Frames that were interpolated before are generated again, so a run after correcting a
+// keyframe updates its neighbours. Frames before the first or after the last keyframe,
+// and frames whose labeled data cannot be read, are left alone.
+// Annotators may keep labeling while a run is going on, so every frame's stamp (see
+// LabelStore.stamp) is taken when its labels are first read, and a frame whose stamp has
+// changed by the time its generated labels are written is left alone too, instead of
+// overwriting what an annotator has labeled meanwhile.
+
+// The labeled data of all frames is read in parallel batches of BATCH_SIZE frames to find
+// the keyframes. The frames between them are then generated and written in parallel
+// batches; only the (few) keyframes around the current batch are kept in memory, so
+// thousands of frames are interpolated in seconds with little memory.
+
+public class KeyframeInterpolator {
+
+   public static final int LINEAR = 0; // Interpolate along straight lines
+   public static final int SPLINE = 1; // Interpolate along cubic Hermite (Catmull-Rom) splines
+   public static final int BATCH_SIZE = 1024; // Frames read or generated in parallel at a time
+
+   private static final byte UNLABELED = 0; // Frame without labeled data
+   private static final byte KEYFRAME = 1; // Frame labeled by an annotator
+   private static final byte INTERPOLATED = 2; // Frame labeled by a previous run
+   private static final byte UNREADABLE = 3; // Frame whose labeled data cannot be read (left alone)
+
+   private final LabelStore store; // Where the labeled data is read from and written to
+   private final int method; // LINEAR or SPLINE
+
+   // Receives every generated frame's labels, e.g. to update an index. Called on the
+   // threads generating the frames.
+   public interface Listener {
+
+      // Called after the given frame's labels have been written to the store
+      // Parameters:
+      //    - String imagePath: absolute pathname of the frame
+      //    - LabelData data: its generated labels (not reused)
+      void generated(String imagePath, LabelData data);
+   }
+
+   // Numbers of frames of one run
+   public static class Result {
+      public int frames; // Frames in the sequence
+      public int keyframes; // Frames labeled by an annotator
+      public int generated; // Frames whose labels were generated and written
+      public int failed; // Frames whose labels could not be read or written
+      public int changed; // Frames left alone because they were labeled during the run
+   }
+
+   // Creates an interpolator
+   // Parameters:
+   //    - LabelStore store: where the labeled data is read from and written to
+   //    - int method: LINEAR or SPLINE
+   public KeyframeInterpolator(LabelStore store, int method) {
+      this.store = store;
+      this.method = method;
+   }
+
+   // Generates and writes the labels of all frames between keyframes of the given sequence
+   // Parameters:
+   //    - ImageList frames: the frames, in order
+   //    - Listener listener: receives the generated labels, or null
+   public Result interpolate(final ImageList frames, final Listener listener) {
+      final Result result = new Result();
+      result.frames = frames.size();
+      final byte[] kinds = new byte[frames.size()];
+      final long[] stamps = new long[frames.size()]; // Stamp of each frame's labels when its kind was read
+      for (int start = 0; start < frames.size(); start += BATCH_SIZE) {
+         IntStream.range(start, Math.min(frames.size(), start + BATCH_SIZE)).parallel().forEach(i -> {
+            stamps[i] = stampOf(frames.get(i)); // Before reading, so a write in between changes it
+            kinds[i] = kindOf(frames.get(i));
+         });
+      }
+      int[] keys = IntStream.range(0, kinds.length).filter(i -> kinds[i] == KEYFRAME).toArray();
+      result.keyframes = keys.length;
+
+      // Frames to be generated, with the keyframe before each of them (by position in keys)
+      java.util.List<int[]> batch = new ArrayList<int[]>(BATCH_SIZE);
+      Map<Integer, LabelData> keyframes = new HashMap<Integer, LabelData>(); // Keyframes around the current batch, by frame position
+      final AtomicInteger generated = new AtomicInteger();
+      final AtomicInteger failed = new AtomicInteger();
+      final AtomicInteger changed = new AtomicInteger();
+      for (int k = 0; k + 1 < keys.length; k++) {
+         if (!sameDirectory(frames, keys[k], keys[k + 1])) {
+            continue; // Never interpolate from one clip into the next
+         }
+         for (int i = keys[k] + 1; i < keys[k + 1]; i++) {
+            if (kinds[i] != UNREADABLE) {
+               batch.add(new int[] {i, k});
+            }
+            if (batch.size() == BATCH_SIZE) {
+               generate(frames, stamps, keys, batch, keyframes, listener, generated, failed, changed);
+               batch.clear();
+            }
+         }
+      }
+      generate(frames, stamps, keys, batch, keyframes, listener, generated, failed, changed);
+      result.generated = generated.get();
+      result.changed = changed.get();
+      result.failed = failed.get() + (int) IntStream.range(0, kinds.length).filter(i -> kinds[i] == UNREADABLE).count();
+      return result;
+   }
+
+   // Generates and writes the labels of one batch of frames in parallel, leaving alone the
+   // frames whose stamp is no longer the given one
+   private void generate(final ImageList frames, final long[] stamps, final int[] keys, java.util.List<int[]> batch,
+         final Map<Integer, LabelData> keyframes, final Listener listener, final AtomicInteger generated, final AtomicInteger failed,
+         final AtomicInteger changed) {
+      if (batch.isEmpty()) {
+         return;
+      }
+      // Read the keyframes the batch needs (two on each side of every gap), forgetting older ones
+      int firstKey = Math.max(0, batch.get(0)[1] - 1);
+      int lastKey = Math.min(keys.length - 1, batch.get(batch.size() - 1)[1] + 2);
+      keyframes.keySet().removeIf(position -> position < keys[firstKey]);
+      for (int k = firstKey; k <= lastKey; k++) {
+         if (!keyframes.containsKey(keys[k])) {
+            keyframes.put(keys[k], read(frames.get(keys[k])));
+         }
+      }
+      batch.parallelStream().forEach(frame -> {
+         int k = frame[1];
+         boolean hasP = k > 0 && sameDirectory(frames, keys[k - 1], keys[k]);
+         boolean hasN = k + 2 < keys.length && sameDirectory(frames, keys[k + 1], keys[k + 2]);
+         LabelData data = interpolate(frame[0],
+               hasP ? keys[k - 1] : -1, hasP ? keyframes.get(keys[k - 1]) : null,
+               keys[k], keyframes.get(keys[k]), keys[k + 1], keyframes.get(keys[k + 1]),
+               hasN ? keys[k + 2] : -1, hasN ? keyframes.get(keys[k + 2]) : null);
+         if (isEmpty(data)) {
+            return;
+         }
+         String imagePath = frames.get(frame[0]).getAbsolutePath();
+         long stamp = stampOf(frames.get(frame[0]));
+         if (stamp == -1 || stamp != stamps[frame[0]]) { // Labeled (or being saved) since it was read
+            changed.incrementAndGet();
+            return;
+         }
+         try {
+            store.write(imagePath, LabelCodec.toString(data));
+            generated.incrementAndGet();
+            if (listener != null) {
+               listener.generated(imagePath, data);
+            }
+         } catch (IOException ex) {
+            System.err.println("Could not write interpolated labels of " + imagePath + ": " + ex);
+            failed.incrementAndGet();
+         }
+      });
+   }
+
+   // Returns the labels of frame t, interpolated between keyframes a and b (tp, p and tn, n
+   // are the keyframes before a and after b, with p or n null if there is none)
+   private LabelData interpolate(int t, int tp, LabelData p, int ta, LabelData a, int tb, LabelData b, int tn, LabelData n) {
+      LabelData data = new LabelData();
+      int instances = Math.min(a.getInstanceCount(), b.getInstanceCount());
+      for (int k = -1; k < instances; k++) {
+         LabelData target = k < 0 ? data : data.addInstance();
+         LabelData ia = instanceOf(a, k);
+         LabelData ib = instanceOf(b, k);
+         LabelData ip = instanceOf(p, k);
+         LabelData in = instanceOf(n, k);
+         for (int i = 0; i < ia.getJointCount(); i++) {
+            String name = ia.getJointName(i);
+            int j = name == null ? -1 : jointIndex(ib, name);
+            if (j < 0) { // Not confirmed on both keyframes
+               continue;
+            }
+            int jp = jointIndex(ip, name);
+            int jn = jointIndex(in, name);
+            target.addJoint(name,
+                  value(t, tp, jp < 0 ? Double.NaN : ip.getJointX(jp), ta, ia.getJointX(i), tb, ib.getJointX(j), tn, jn < 0 ? Double.NaN : in.getJointX(jn)),
+                  value(t, tp, jp < 0 ? Double.NaN : ip.getJointY(jp), ta, ia.getJointY(i), tb, ib.getJointY(j), tn, jn < 0 ? Double.NaN : in.getJointY(jn)));
+         }
+         if (ia.getBoxFields() == LabelData.BOX_ALL && ib.getBoxFields() == LabelData.BOX_ALL) {
+            // Interpolate the two corners, so the box's size changes smoothly too
+            boolean hasP = ip != null && ip.getBoxFields() == LabelData.BOX_ALL;
+            boolean hasN = in != null && in.getBoxFields() == LabelData.BOX_ALL;
+            int left = value(t, tp, hasP ? ip.getBoxX() : Double.NaN, ta, ia.getBoxX(), tb, ib.getBoxX(), tn, hasN ? in.getBoxX() : Double.NaN);
+            int top = value(t, tp, hasP ? ip.getBoxY() : Double.NaN, ta, ia.getBoxY(), tb, ib.getBoxY(), tn, hasN ? in.getBoxY() : Double.NaN);
+            int right = value(t, tp, hasP ? ip.getBoxX() + ip.getBoxW() : Double.NaN, ta, ia.getBoxX() + ia.getBoxW(),
+                  tb, ib.getBoxX() + ib.getBoxW(), tn, hasN ? in.getBoxX() + in.getBoxW() : Double.NaN);
+            int bottom = value(t, tp, hasP ? ip.getBoxY() + ip.getBoxH() : Double.NaN, ta, ia.getBoxY() + ia.getBoxH(),
+                  tb, ib.getBoxY() + ib.getBoxH(), tn, hasN ? in.getBoxY() + in.getBoxH() : Double.NaN);
+            target.setBox(left, top, Math.max(0, right - left), Math.max(0, bottom - top));
+         }
+      }
+      for (Map.Entry<String, String> tag : a.getTags().entrySet()) {
+         if (tag.getValue().equals(b.getTags().get(tag.getKey()))) {
+            data.getTags().put(tag.getKey(), tag.getValue());
+         }
+      }
+      data.setInterpolated(true);
+      return data;
+   }
+
+   // Returns one coordinate at frame t, between its values va at keyframe ta and vb at
+   // keyframe tb; vp (at tp) and vn (at tn) are its values at the neighbouring keyframes,
+   // or NaN if it has none there
+   private int value(int t, int tp, double vp, int ta, double va, int tb, double vb, int tn, double vn) {
+      double h = tb - ta;
+      double s = (t - ta) / h;
+      if (method == LINEAR) {
+         return (int) Math.round(va + (vb - va) * s);
+      }
+      double slope = (vb - va) / h;
+      double ma = Double.isNaN(vp) ? slope : (vb - vp) / (tb - tp); // Tangents, per frame
+      double mb = Double.isNaN(vn) ? slope : (vn - va) / (tn - ta);
+      double s2 = s * s;
+      double s3 = s2 * s;
+      return (int) Math.round((2 * s3 - 3 * s2 + 1) * va + (s3 - 2 * s2 + s) * h * ma + (-2 * s3 + 3 * s2) * vb + (s3 - s2) * h * mb);
+   }
+
+   // Returns true if the two frames are in the same directory (the same clip)
+   private static boolean sameDirectory(ImageList frames, int i, int j) {
+      return frames.get(i).getParentFile().equals(frames.get(j).getParentFile());
+   }
+
+   // Returns true if no instance of the given labels has a joint or a bounding box
+   private static boolean isEmpty(LabelData data) {
+      for (int k = -1; k < data.getInstanceCount(); k++) {
+         LabelData instance = k < 0 ? data : data.getInstance(k);
+         if (instance.getJointCount() > 0 || instance.getBoxFields() == LabelData.BOX_ALL) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   // Returns the given labels' instance (-1 for the first one), or null if there is none
+   private static LabelData instanceOf(LabelData data, int k) {
+      if (data == null || k >= data.getInstanceCount()) {
+         return null;
+      }
+      return k < 0 ? data : data.getInstance(k);
+   }
+
+   // Returns the position of the joint with the given name, or -1 if it is not confirmed
+   private static int jointIndex(LabelData data, String name) {
+      if (data != null) {
+         for (int i = 0; i < data.getJointCount(); i++) {
+            if (name.equals(data.getJointName(i))) {
+               return i;
+            }
+         }
+      }
+      return -1;
+   }
+
+   // Returns the stamp of the given frame's labels (see LabelStore.stamp), or -1 if it cannot be read
+   private long stampOf(File frame) {
+      try {
+         return store.stamp(frame.getAbsolutePath());
+      } catch (IOException ex) {
+         return -1;
+      }
+   }
+
+   // Returns whether the given frame is a keyframe, an interpolated frame, unlabeled, or unreadable
+   private byte kindOf(File frame) {
+      try {
+         String content = store.read(frame.getAbsolutePath());
+         if (content == null) {
+            return UNLABELED;
+         }
+         return LabelCodec.read(content).isInterpolated() ? INTERPOLATED : KEYFRAME;
+      } catch (IOException ex) {
+         return UNREADABLE;
+      } catch (ParseException ex) {
+         return UNREADABLE;
+      }
+   }
+
+   // Reads the labels of a keyframe (an empty LabelData if it cannot be read any more)
+   private LabelData read(File frame) {
+      try {
+         String content = store.read(frame.getAbsolutePath());
+         if (content != null) {
+            return LabelCodec.read(content);
+         }
+      } catch (IOException ex) {
+      } catch (ParseException ex) {}
+      return new LabelData();
+   }
+
+   // Main method: interpolates the frames of the given directory and prints a throughput report
+   public static void main(String[] args) {
+      String directory = null;
+      String storeSpec = "sidecar";
+      int method = LINEAR;
+      for (int i = 0; i < args.length; i++) {
+         if (args[i].equals("--spline")) {
+            method = SPLINE;
+         } else if (args[i].equals("--store") && i + 1 < args.length) {
+            storeSpec = args[++i];
+         } else if (directory == null && !args[i].startsWith("--")) {
+            directory = args[i];
+         } else {
+            directory = null;
+            break;
+         }
+      }
+      if (directory == null) {
+         System.err.println("Usage: java KeyframeInterpolator <directory> [--spline] [--store <label store>]");
+         System.exit(2);
+      }
+
+      try {
+         long start = System.nanoTime();
+         Result result;
+         DirectoryIndex index = DirectoryIndex.open(new File(directory));
+         LabelStore store = LabelStore.open(storeSpec);
+         try {
+            result = new KeyframeInterpolator(store, method).interpolate(index.images(), null);
+         } finally {
+            store.close();
+            index.close();
+         }
+         double seconds = Math.max(1e-9, (System.nanoTime() - start) / 1e9);
+         System.err.println(String.format(Locale.ROOT, "Interpolated %d of %d frames between %d keyframes in %.1f s (%.0f frames/s)%s",
+               result.generated, result.frames, result.keyframes, seconds, result.generated / seconds,
+               (result.failed > 0 ? "; " + result.failed + " frames failed" : "")
+               + (result.changed > 0 ? "; " + result.changed + " frames labeled meanwhile were left alone" : "")));
+         System.exit(result.failed > 0 ? 1 : 0);
+      } catch (IOException ex) {
+         System.err.println("Interpolation failed: " + ex);
+         System.exit(2);
+      }
+   }
+}
@@ -0,0 +1,750 @@
+import java.io.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.util.*;
+import org.json.simple.parser.ParseException;
+
+// Streaming reader and writer for the .label format:
+//    {"Joints":[{"name":"Hips","x-coordinate":12,"y-coordinate":34}, ...],
+//     "Bounding box":{"w":"100","x":"5","h":"200","y":"7"},
+//     "Tags":{"Breed":"Husky", ...}}
+// When several objects are labeled in one image, the first one's joints and bounding box
+// stay in "Joints" and "Bounding box" and the others follow in an "Instances" array:
+//     "Instances":[{"Joints":[...],"Bounding box":{...}}, ...]
+// Files with a single object have no "Instances" key, so they are unchanged, and readers
+// that do not know "Instances" still see the first object.
+// Labels generated by KeyframeInterpolator have "Interpolated":true until they are reviewed.
+
+// Reading a .label file with json-simple builds a complete DOM of JSONObjects, JSONArrays,
+// Longs and Strings, which then has to be copied into the application's own structures.
+// LabelCodec reads the characters once, straight into a LabelData, and writes a LabelData
+// character by character to a Writer (e.g. a buffered channel), without an intermediate
+// DOM or String.
+//    - Output is byte-for-byte what json-simple's toJSONString() produces for the same
+//      labels: keys are written in the iteration order of the HashMaps json-simple uses,
+//      and strings are escaped exactly as JSONValue.escape does.
+//    - Joint coordinates are written as numbers and bounding box fields as strings, as
+//      LabelImage always did. When reading, both numbers and strings are accepted for either.
+//    - Unknown keys of a joint are kept with the joint (as the JSON text json-simple would
+//      write for their values) and written back, as json-simple did by keeping the joint's
+//      JSONObject. Other unknown keys are skipped when reading.
+// Syntax errors are reported as json-simple ParseExceptions, so callers handle them as before.
+// LabelCodecBenchmark compares both paths.
+
+public class LabelCodec {
+
+   public static final String JOINTS = "Joints";
+   public static final String TAGS = "Tags";
+   public static final String BOUNDING_BOX = "Bounding box";
+   public static final String INSTANCES = "Instances";
+   public static final String INTERPOLATED = "Interpolated";
+   public static final String NAME = "name";
+   public static final String X_COORDINATE = "x-coordinate";
+   public static final String Y_COORDINATE = "y-coordinate";
+
+   // Order in which json-simple writes the keys, for the order LabelImage inserts them in
+   // (by whether there are further instances (1) and whether the labels are interpolated (2))
+   private static final String[][] ROOT_ORDERS = new String[][] {
+      hashOrder(JOINTS, TAGS, BOUNDING_BOX),
+      hashOrder(JOINTS, TAGS, BOUNDING_BOX, INSTANCES),
+      hashOrder(JOINTS, TAGS, BOUNDING_BOX, INTERPOLATED),
+      hashOrder(JOINTS, TAGS, BOUNDING_BOX, INSTANCES, INTERPOLATED)};
+   private static final String[] INSTANCE_ORDER = hashOrder(JOINTS, BOUNDING_BOX);
+   private static final String[] JOINT_ORDER = hashOrder(NAME, X_COORDINATE, Y_COORDINATE);
+   private static final String[] BOX_ORDER = hashOrder("x", "y", "w", "h");
+   private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+   private final Reader in; // Source of the characters being read
+   private final char[] buf; // Characters read from in but not consumed yet
+   private int pos; // Position of the next character in buf
+   private int limit; // Number of valid characters in buf
+   private int consumed; // Number of characters consumed before buf[0], for error positions
+   private final StringBuilder text; // Reused for reading strings and numbers
+   private final ArrayList<String> extras; // Reused for collecting a joint's keys and unknown keys' values
+
+   // Creates a reader for the given characters. Use read() instead.
+   // Parameters:
+   //    - Reader in: the .label content
+   private LabelCodec(Reader in) {
+      this.in = in;
+      buf = new char[8192];
+      text = new StringBuilder();
+      extras = new ArrayList<String>();
+   }
+
+   // Reads the given .label content into the given (cleared) LabelData
+   // Parameters:
+   //    - Reader in: the .label content, read up to the end of the root object
+   //    - LabelData data: receives the joints, tags and bounding box
+   public static void read(Reader in, LabelData data) throws IOException, ParseException {
+      data.clear();
+      new LabelCodec(in).readRoot(data);
+   }
+
+   // Reads the given .label content and returns its labels
+   // Parameters:
+   //    - String content: complete content of a .label file
+   public static LabelData read(String content) throws IOException, ParseException {
+      LabelData data = new LabelData();
+      read(new StringReader(content), data);
+      return data;
+   }
+
+   // Writes the given labels in .label format, without a trailing line separator
+   // Parameters:
+   //    - LabelData data: the labels to be written
+   //    - Writer out: destination of the characters
+   public static void write(LabelData data, Writer out) throws IOException {
+      out.write('{');
+      boolean first = true;
+      for (String key : ROOT_ORDERS[(data.instanceCount == 0 ? 0 : 1) | (data.interpolated ? 2 : 0)]) {
+         if (!first) {
+            out.write(',');
+         }
+         first = false;
+         writeString(key, out);
+         out.write(':');
+         if (key == JOINTS) {
+            writeJoints(data, out);
+         } else if (key == TAGS) {
+            writeTags(data, out);
+         } else if (key == BOUNDING_BOX) {
+            writeBox(data, out);
+         } else if (key == INSTANCES) {
+            writeInstances(data, out);
+         } else {
+            out.write("true");
+         }
+      }
+      out.write('}');
+   }
+
+   // Writes the given labels in .label format, followed by the line separator, to the given
+   // channel in the platform's default charset (which LabelImage always used)
+   // Parameters:
+   //    - LabelData data: the labels to be written
+   //    - WritableByteChannel channel: destination of the bytes; not closed
+   public static void write(LabelData data, WritableByteChannel channel) throws IOException {
+      Writer out = Channels.newWriter(channel, Charset.defaultCharset().newEncoder(), 8192);
+      write(data, out);
+      out.write(System.lineSeparator());
+      out.flush();
+   }
+
+   // Returns the given labels in .label format, followed by the line separator, i.e. the
+   // complete content of a .label file
+   // Parameters:
+   //    - LabelData data: the labels to be written
+   public static String toString(LabelData data) {
+      StringWriter out = new StringWriter(64 + data.jointCount * 64);
+      try {
+         write(data, out);
+      } catch (IOException ex) { // Not thrown by StringWriter
+         throw new UncheckedIOException(ex);
+      }
+      out.write(System.lineSeparator());
+      return out.toString();
+   }
+
+   // Writes the "Joints" array
+   private static void writeJoints(LabelData data, Writer out) throws IOException {
+      out.write('[');
+      for (int i = 0; i < data.jointCount; i++) {
+         if (i > 0) {
+            out.write(',');
+         }
+         out.write('{');
+         String[] extras = data.jointExtras[i];
+         HashMap<String, String> values = null; // Values of the unknown keys, also giving their order
+         String[] order = JOINT_ORDER;
+         if (extras != null) {
+            // Insert the keys in the order they were read, as json-simple did, since keys in
+            // the same bucket iterate in insertion order
+            values = new HashMap<String, String>();
+            for (int k = 0; k < extras.length; k += 2) {
+               values.put(extras[k], extras[k + 1]);
+            }
+            values.putIfAbsent(NAME, null);
+            values.putIfAbsent(X_COORDINATE, null);
+            values.putIfAbsent(Y_COORDINATE, null);
+            order = values.keySet().toArray(new String[values.size()]);
+         }
+         boolean first = true;
+         for (String key : order) {
+            if (!first) {
+               out.write(',');
+            }
+            first = false;
+            writeString(key, out);
+            out.write(':');
+            if (values != null && values.get(key) != null) {
+               out.write(values.get(key));
+            } else if (key.equals(NAME)) {
+               if (data.jointNames[i] == null) {
+                  out.write("null");
+               } else {
+                  writeString(data.jointNames[i], out);
+               }
+            } else if (key.equals(X_COORDINATE)) {
+               out.write(Integer.toString(data.jointX[i]));
+            } else {
+               out.write(Integer.toString(data.jointY[i]));
+            }
+         }
+         out.write('}');
+      }
+      out.write(']');
+   }
+
+   // Writes the "Tags" object. Its keys are the tag names, so their order is taken from a
+   // HashMap filled in the order the tags were added, as json-simple would write them.
+   private static void writeTags(LabelData data, Writer out) throws IOException {
+      out.write('{');
+      boolean first = true;
+      for (Map.Entry<String, String> tag : hashOrder(data.tags).entrySet()) {
+         if (!first) {
+            out.write(',');
+         }
+         first = false;
+         writeString(tag.getKey(), out);
+         out.write(':');
+         writeString(tag.getValue(), out);
+      }
+      out.write('}');
+   }
+
+   // Writes the "Bounding box" object, containing only the fields that are present
+   private static void writeBox(LabelData data, Writer out) throws IOException {
+      out.write('{');
+      boolean first = true;
+      for (String key : BOX_ORDER) {
+         int field = boxField(key);
+         if ((data.boxFields & field) == 0) {
+            continue;
+         }
+         if (!first) {
+            out.write(',');
+         }
+         first = false;
+         writeString(key, out);
+         out.write(':');
+         out.write('"');
+         out.write(Integer.toString(field == LabelData.BOX_X ? data.boxX : field == LabelData.BOX_Y ? data.boxY
+               : field == LabelData.BOX_W ? data.boxW : data.boxH));
+         out.write('"');
+      }
+      out.write('}');
+   }
+
+   // Writes the "Instances" array: the joints and bounding box of each further object instance
+   private static void writeInstances(LabelData data, Writer out) throws IOException {
+      out.write('[');
+      for (int i = 0; i < data.instanceCount; i++) {
+         if (i > 0) {
+            out.write(',');
+         }
+         out.write('{');
+         boolean first = true;
+         for (String key : INSTANCE_ORDER) {
+            if (!first) {
+               out.write(',');
+            }
+            first = false;
+            writeString(key, out);
+            out.write(':');
+            if (key == JOINTS) {
+               writeJoints(data.instances.get(i), out);
+            } else {
+               writeBox(data.instances.get(i), out);
+            }
+         }
+         out.write('}');
+      }
+      out.write(']');
+   }
+
+   // Writes a quoted string, escaped like JSONValue.escape
+   private static void writeString(String s, Writer out) throws IOException {
+      out.write('"');
+      int start = 0; // Start of the characters not written yet
+      for (int i = 0; i < s.length(); i++) {
+         char ch = s.charAt(i);
+         String escape;
+         switch (ch) {
+         case '"':
+            escape = "\\\"";
+            break;
+         case '\\':
+            escape = "\\\\";
+            break;
+         case '\b':
+            escape = "\\b";
+            break;
+         case '\f':
+            escape = "\\f";
+            break;
+         case '\n':
+            escape = "\\n";
+            break;
+         case '\r':
+            escape = "\\r";
+            break;
+         case '\t':
+            escape = "\\t";
+            break;
+         case '/':
+            escape = "\\/";
+            break;
+         default:
+            if (ch <= '\u001F' || (ch >= '\u007F' && ch <= '\u009F') || (ch >= '\u2000' && ch <= '\u20FF')) {
+               escape = null;
+               break;
+            }
+            continue;
+         }
+         out.write(s, start, i - start);
+         start = i + 1;
+         if (escape != null) {
+            out.write(escape);
+         } else {
+            out.write('\\');
+            out.write('u');
+            out.write(HEX[(ch >> 12) & 0xF]);
+            out.write(HEX[(ch >> 8) & 0xF]);
+            out.write(HEX[(ch >> 4) & 0xF]);
+            out.write(HEX[ch & 0xF]);
+         }
+      }
+      out.write(s, start, s.length() - start);
+      out.write('"');
+   }
+
+   // Returns the LabelData.BOX_* bit for the given bounding box key, or 0 if it is unknown
+   private static int boxField(String key) {
+      switch (key) {
+      case "x":
+         return LabelData.BOX_X;
+      case "y":
+         return LabelData.BOX_Y;
+      case "w":
+         return LabelData.BOX_W;
+      case "h":
+         return LabelData.BOX_H;
+      default:
+         return 0;
+      }
+   }
+
+   // Returns the given keys in the order a HashMap iterates them after inserting them in
+   // the given order
+   private static String[] hashOrder(String... keys) {
+      HashMap<String, Boolean> map = new HashMap<String, Boolean>();
+      for (String key : keys) {
+         map.put(key, Boolean.TRUE);
+      }
+      return map.keySet().toArray(new String[map.size()]);
+   }
+
+   // Returns a HashMap with the given entries, inserted one by one in the given map's order
+   // (putAll would presize the table differently from json-simple's default JSONObject)
+   private static HashMap<String, String> hashOrder(Map<String, String> entries) {
+      HashMap<String, String> map = new HashMap<String, String>();
+      for (Map.Entry<String, String> entry : entries.entrySet()) {
+         map.put(entry.getKey(), entry.getValue());
+      }
+      return map;
+   }
+
+   // Reads the root object
+   private void readRoot(LabelData data) throws IOException, ParseException {
+      expect('{');
+      if (skipWhitespaceAndPeek() == '}') {
+         pos++;
+         return;
+      }
+      do {
+         String key = readString();
+         expect(':');
+         if (key.equals(JOINTS)) {
+            readJoints(data);
+         } else if (key.equals(TAGS)) {
+            readTags(data);
+         } else if (key.equals(BOUNDING_BOX)) {
+            readBox(data);
+         } else if (key.equals(INSTANCES)) {
+            readInstances(data);
+         } else if (key.equals(INTERPOLATED)) {
+            data.interpolated = readText().equals("true");
+         } else {
+            skipValue();
+         }
+      } while (nextSeparator('}'));
+   }
+
+   // Reads the "Instances" array
+   private void readInstances(LabelData data) throws IOException, ParseException {
+      expect('[');
+      if (skipWhitespaceAndPeek() == ']') {
+         pos++;
+         return;
+      }
+      do {
+         LabelData instance = data.addInstance();
+         expect('{');
+         if (skipWhitespaceAndPeek() == '}') {
+            pos++;
+            continue;
+         }
+         do {
+            String key = readString();
+            expect(':');
+            if (key.equals(JOINTS)) {
+               readJoints(instance);
+            } else if (key.equals(BOUNDING_BOX)) {
+               readBox(instance);
+            } else {
+               skipValue();
+            }
+         } while (nextSeparator('}'));
+      } while (nextSeparator(']'));
+   }
+
+   // Reads the "Joints" array
+   private void readJoints(LabelData data) throws IOException, ParseException {
+      expect('[');
+      if (skipWhitespaceAndPeek() == ']') {
+         pos++;
+         return;
+      }
+      do {
+         expect('{');
+         String name = null;
+         int x = 0;
+         int y = 0;
+         extras.clear();
+         boolean unknown = false; // Whether the joint has keys other than name and coordinates
+         if (skipWhitespaceAndPeek() == '}') {
+            pos++;
+         } else {
+            do {
+               String key = readString();
+               expect(':');
+               extras.add(key);
+               if (key.equals(NAME)) {
+                  name = readText();
+                  extras.add(null);
+               } else if (key.equals(X_COORDINATE)) {
+                  x = readInt();
+                  extras.add(null);
+               } else if (key.equals(Y_COORDINATE)) {
+                  y = readInt();
+                  extras.add(null);
+               } else {
+                  extras.add(readValueText());
+                  unknown = true;
+               }
+            } while (nextSeparator('}'));
+         }
+         data.addJoint(name, x, y, unknown ? extras.toArray(new String[extras.size()]) : null);
+      } while (nextSeparator(']'));
+   }
+
+   // Reads the "Tags" object
+   private void readTags(LabelData data) throws IOException, ParseException {
+      expect('{');
+      if (skipWhitespaceAndPeek() == '}') {
+         pos++;
+         return;
+      }
+      do {
+         String key = readString();
+         expect(':');
+         data.tags.put(key, readText());
+      } while (nextSeparator('}'));
+   }
+
+   // Reads the "Bounding box" object
+   private void readBox(LabelData data) throws IOException, ParseException {
+      expect('{');
+      if (skipWhitespaceAndPeek() == '}') {
+         pos++;
+         return;
+      }
+      do {
+         String key = readString();
+         expect(':');
+         int field = boxField(key);
+         if (field == 0) {
+            skipValue();
+            continue;
+         }
+         int value = readInt();
+         if (field == LabelData.BOX_X) {
+            data.boxX = value;
+         } else if (field == LabelData.BOX_Y) {
+            data.boxY = value;
+         } else if (field == LabelData.BOX_W) {
+            data.boxW = value;
+         } else {
+            data.boxH = value;
+         }
+         data.boxFields |= field;
+      } while (nextSeparator('}'));
+   }
+
+   // Reads an integer, written either as a number or as a string containing the number
+   private int readInt() throws IOException, ParseException {
+      int start = consumed + pos;
+      char c = skipWhitespaceAndPeek();
+      String digits;
+      if (c == '"') {
+         digits = readString().trim();
+      } else {
+         text.setLength(0);
+         while (fill() && isNumberChar(buf[pos])) {
+            text.append(buf[pos++]);
+         }
+         digits = text.toString();
+      }
+      try {
+         return Integer.parseInt(digits);
+      } catch (NumberFormatException ex) {
+         throw new ParseException(start, ParseException.ERROR_UNEXPECTED_TOKEN, digits);
+      }
+   }
+
+   // Reads a string, or the literal text of a number, true, false or null as a string
+   private String readText() throws IOException, ParseException {
+      char c = skipWhitespaceAndPeek();
+      if (c == '"') {
+         return readString();
+      }
+      text.setLength(0);
+      while (fill() && (isNumberChar(buf[pos]) || Character.isLetter(buf[pos]))) {
+         text.append(buf[pos++]);
+      }
+      if (text.length() == 0) {
+         throw unexpected();
+      }
+      return text.toString();
+   }
+
+   // Reads a quoted string, resolving escapes
+   private String readString() throws IOException, ParseException {
+      expect('"');
+      text.setLength(0);
+      while (true) {
+         if (!fill()) {
+            throw unexpected();
+         }
+         // Copy the run of plain characters at once
+         int start = pos;
+         while (pos < limit && buf[pos] != '"' && buf[pos] != '\\') {
+            pos++;
+         }
+         text.append(buf, start, pos - start);
+         if (pos == limit) {
+            continue;
+         }
+         if (buf[pos++] == '"') {
+            return text.toString();
+         }
+         char c = nextChar();
+         switch (c) {
+         case 'b':
+            text.append('\b');
+            break;
+         case 'f':
+            text.append('\f');
+            break;
+         case 'n':
+            text.append('\n');
+            break;
+         case 'r':
+            text.append('\r');
+            break;
+         case 't':
+            text.append('\t');
+            break;
+         case 'u':
+            int code = 0;
+            for (int i = 0; i < 4; i++) {
+               int digit = Character.digit(nextChar(), 16);
+               if (digit < 0) {
+                  pos--;
+                  throw unexpected();
+               }
+               code = code * 16 + digit;
+            }
+            text.append((char) code);
+            break;
+         default: // '"', '\\', '/' and anything else stand for themselves
+            text.append(c);
+         }
+      }
+   }
+
+   // Reads any value and returns it as the JSON text json-simple writes for it after parsing
+   // it: strings escaped like JSONValue.escape, numbers as Long or Double, object keys in
+   // HashMap order
+   private String readValueText() throws IOException, ParseException {
+      char c = skipWhitespaceAndPeek();
+      StringWriter out = new StringWriter();
+      if (c == '"') {
+         writeString(readString(), out);
+      } else if (c == '{') {
+         pos++;
+         HashMap<String, String> entries = new HashMap<String, String>();
+         if (skipWhitespaceAndPeek() == '}') {
+            pos++;
+         } else {
+            do {
+               String key = readString();
+               expect(':');
+               entries.put(key, readValueText());
+            } while (nextSeparator('}'));
+         }
+         out.write('{');
+         boolean first = true;
+         for (Map.Entry<String, String> entry : entries.entrySet()) {
+            if (!first) {
+               out.write(',');
+            }
+            first = false;
+            writeString(entry.getKey(), out);
+            out.write(':');
+            out.write(entry.getValue());
+         }
+         out.write('}');
+      } else if (c == '[') {
+         pos++;
+         out.write('[');
+         if (skipWhitespaceAndPeek() == ']') {
+            pos++;
+         } else {
+            boolean first = true;
+            do {
+               if (!first) {
+                  out.write(',');
+               }
+               first = false;
+               out.write(readValueText());
+            } while (nextSeparator(']'));
+         }
+         out.write(']');
+      } else {
+         String literal = readText();
+         try {
+            if (literal.indexOf('.') >= 0 || literal.indexOf('e') >= 0 || literal.indexOf('E') >= 0) {
+               literal = Double.valueOf(literal).toString();
+            } else if (!Character.isLetter(literal.charAt(0))) {
+               literal = Long.valueOf(literal).toString();
+            }
+         } catch (NumberFormatException ex) {
+            // Keep the literal as written
+         }
+         out.write(literal);
+      }
+      return out.toString();
+   }
+
+   // Skips any value: object, array, string, number, true, false or null
+   private void skipValue() throws IOException, ParseException {
+      char c = skipWhitespaceAndPeek();
+      if (c == '{') {
+         pos++;
+         if (skipWhitespaceAndPeek() == '}') {
+            pos++;
+            return;
+         }
+         do {
+            readString();
+            expect(':');
+            skipValue();
+         } while (nextSeparator('}'));
+      } else if (c == '[') {
+         pos++;
+         if (skipWhitespaceAndPeek() == ']') {
+            pos++;
+            return;
+         }
+         do {
+            skipValue();
+         } while (nextSeparator(']'));
+      } else {
+         readText();
+      }
+   }
+
+   // Consumes either a ',' (returning true) or the given closing character (returning false)
+   private boolean nextSeparator(char close) throws IOException, ParseException {
+      char c = skipWhitespaceAndPeek();
+      if (c == ',' || c == close) {
+         pos++;
+         return c == ',';
+      }
+      throw unexpected();
+   }
+
+   // Consumes the given character, after optional whitespace
+   private void expect(char expected) throws IOException, ParseException {
+      if (skipWhitespaceAndPeek() != expected) {
+         throw unexpected();
+      }
+      pos++;
+   }
+
+   // Skips whitespace and returns the next character without consuming it
+   private char skipWhitespaceAndPeek() throws IOException, ParseException {
+      while (true) {
+         if (!fill()) {
+            throw unexpected();
+         }
+         char c = buf[pos];
+         if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+            return c;
+         }
+         pos++;
+      }
+   }
+
+   // Consumes and returns the next character
+   private char nextChar() throws IOException, ParseException {
+      if (!fill()) {
+         throw unexpected();
+      }
+      return buf[pos++];
+   }
+
+   // Makes sure at least one character is available in buf, returning false at the end of input
+   private boolean fill() throws IOException {
+      if (pos < limit) {
+         return true;
+      }
+      consumed += limit;
+      pos = 0;
+      limit = 0;
+      int n;
+      do {
+         n = in.read(buf, 0, buf.length);
+      } while (n == 0);
+      if (n < 0) {
+         return false;
+      }
+      limit = n;
+      return true;
+   }
+
+   // Returns the error for the next character (or the end of input) being unexpected
+   private ParseException unexpected() {
+      if (pos < limit) {
+         return new ParseException(consumed + pos, ParseException.ERROR_UNEXPECTED_CHAR, Character.valueOf(buf[pos]));
+      }
+      return new ParseException(consumed + pos, ParseException.ERROR_UNEXPECTED_TOKEN, null);
+   }
+
+   // Returns true for characters that can be part of a JSON number
+   private static boolean isNumberChar(char c) {
+      return (c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E';
+   }
+}
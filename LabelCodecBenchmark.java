@@ -0,0 +1,258 @@
+import java.io.*;
+import java.lang.management.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import org.json.simple.*;
+import org.json.simple.parser.*;
+
+// Command-line benchmark comparing LabelCodec with the json-simple path LabelImage used
+// before, for reading and writing .label content.
+
+// Usage:
+//    $ java -cp ".:./json-simple-1.1.jar" LabelCodecBenchmark [--joints <n>] [--tags <n>] [--files <n>] [--seconds <n>]
+//    $ java -cp ".:./json-simple-1.1.jar" LabelCodecBenchmark --verify <root directory>
+
+// The benchmark generates .label contents with the given number of joints and tags
+// (default 17 and 3) and first checks that both paths produce identical output for all of
+// them. It then measures, single-threaded and after a warm-up:
+//    - read:  json-simple parse and copy into joints/tags/bounding box, vs LabelCodec.read
+//    - write: json-simple toJSONString, vs LabelCodec.write
+// and prints the time and the bytes allocated per file for each. --verify instead reads
+// every .label file under the given root and checks that rewriting it with LabelCodec
+// gives exactly the bytes json-simple gives. The exit code is 1 if any output differs.
+
+public class LabelCodecBenchmark {
+
+   private static final String[] TAG_TEXTS = new String[] {"Husky", "3 years", "indoor/outdoor", "\"quoted\"", "caf\u00e9", "\u2010dash", "line\nbreak", "tab\tback\\slash"};
+
+   // Main method: runs the benchmark or the verification
+   public static void main(String[] args) throws Exception {
+      int joints = 17;
+      int tags = 3;
+      int files = 1000;
+      int seconds = 3;
+      String verifyRoot = null;
+      for (int i = 0; i + 1 < args.length; i += 2) {
+         if (args[i].equals("--joints")) {
+            joints = Integer.parseInt(args[i + 1]);
+         } else if (args[i].equals("--tags")) {
+            tags = Integer.parseInt(args[i + 1]);
+         } else if (args[i].equals("--files")) {
+            files = Integer.parseInt(args[i + 1]);
+         } else if (args[i].equals("--seconds")) {
+            seconds = Integer.parseInt(args[i + 1]);
+         } else if (args[i].equals("--verify")) {
+            verifyRoot = args[i + 1];
+         }
+      }
+      if (verifyRoot != null) {
+         System.exit(verify(Paths.get(verifyRoot)) ? 0 : 1);
+      }
+
+      String[] contents = generate(files, joints, tags, new Random(42));
+      int mismatches = 0;
+      for (String content : contents) {
+         if (!viaJsonSimple(content).equals(viaCodec(content))) {
+            mismatches++;
+         }
+      }
+      System.out.println("Generated " + files + " files with " + joints + " joints and " + tags + " tags, "
+            + contents[0].length() + " characters each; output differs for " + mismatches);
+
+      final LabelData data = new LabelData();
+      final StringWriter out = new StringWriter();
+      final java.util.List<Map<String, Object>> parsed = new ArrayList<Map<String, Object>>(contents.length);
+      final LabelData[] typed = new LabelData[contents.length];
+      for (int i = 0; i < contents.length; i++) {
+         parsed.add(copyLikeLabelImage((JSONObject) new JSONParser().parse(contents[i])));
+         typed[i] = LabelCodec.read(contents[i]);
+      }
+      measure("read  json-simple", contents, seconds, new Step() {
+         public void run(int i, String content) throws Exception {
+            copyLikeLabelImage((JSONObject) new JSONParser().parse(content));
+         }
+      });
+      measure("read  LabelCodec ", contents, seconds, new Step() {
+         public void run(int i, String content) throws Exception {
+            LabelCodec.read(new StringReader(content), data);
+         }
+      });
+      measure("write json-simple", contents, seconds, new Step() {
+         public void run(int i, String content) throws Exception {
+            out.getBuffer().setLength(0);
+            out.write(JSONValue.toJSONString(parsed.get(i)));
+         }
+      });
+      measure("write LabelCodec ", contents, seconds, new Step() {
+         public void run(int i, String content) throws Exception {
+            out.getBuffer().setLength(0);
+            LabelCodec.write(typed[i], out);
+         }
+      });
+      System.exit(mismatches == 0 ? 0 : 1);
+   }
+
+   // One benchmarked operation on one file's content
+   interface Step {
+
+      // Performs the operation on the i-th content
+      void run(int i, String content) throws Exception;
+   }
+
+   // Runs the given step over all contents, first for a warm-up and then for the given
+   // number of seconds, and prints the time and allocation per file
+   private static void measure(String name, String[] contents, int seconds, Step step) throws Exception {
+      long warmUpEnd = System.nanoTime() + 1000000000L;
+      while (System.nanoTime() < warmUpEnd) {
+         for (int i = 0; i < contents.length; i++) {
+            step.run(i, contents[i]);
+         }
+      }
+      long allocatedBefore = allocatedBytes();
+      long start = System.nanoTime();
+      long end = start + seconds * 1000000000L;
+      long count = 0;
+      while (System.nanoTime() < end) {
+         for (int i = 0; i < contents.length; i++) {
+            step.run(i, contents[i]);
+         }
+         count += contents.length;
+      }
+      long elapsed = System.nanoTime() - start;
+      long allocated = allocatedBytes() - allocatedBefore;
+      System.out.println(String.format(Locale.ROOT, "%s: %9.0f ns/file %9.0f files/s %8d bytes allocated/file",
+            name, (double) elapsed / count, count * 1e9 / elapsed, allocated < 0 ? -1 : allocated / count));
+   }
+
+   // Returns the bytes allocated by the current thread so far, or a negative value if the
+   // JVM cannot tell
+   private static long allocatedBytes() {
+      ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+      if (threads instanceof com.sun.management.ThreadMXBean) {
+         return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+      }
+      return -1;
+   }
+
+   // Checks every .label file under the given root, returning true if LabelCodec rewrites
+   // all of them exactly as json-simple does
+   private static boolean verify(Path root) throws IOException {
+      int checked = 0;
+      int differing = 0;
+      for (Path file : LabelValidator.findLabelFiles(root)) {
+         String content = new String(Files.readAllBytes(file), Charset.defaultCharset());
+         String expected;
+         try {
+            expected = viaJsonSimple(content);
+         } catch (ParseException ex) {
+            continue; // Not readable by LabelImage either
+         } catch (RuntimeException ex) {
+            continue;
+         }
+         checked++;
+         try {
+            if (!expected.equals(viaCodec(content))) {
+               differing++;
+               System.out.println("Differs: " + file);
+            }
+         } catch (ParseException ex) {
+            differing++;
+            System.out.println("Not readable by LabelCodec: " + file + ": " + ex);
+         }
+      }
+      System.out.println("Checked " + checked + " .label files, " + differing + " differ");
+      return differing == 0;
+   }
+
+   // Reads and rewrites the given content the way LabelImage did with json-simple
+   private static String viaJsonSimple(String content) throws ParseException {
+      return JSONValue.toJSONString(copyLikeLabelImage((JSONObject) new JSONParser().parse(content))) + System.lineSeparator();
+   }
+
+   // Reads and rewrites the given content with LabelCodec
+   private static String viaCodec(String content) throws IOException, ParseException {
+      return LabelCodec.toString(LabelCodec.read(content));
+   }
+
+   // Copies a parsed .label root into new joints, tags and bounding box objects and a new
+   // root, as LabelImage did when loading and saving, together with the further object
+   // instances and the interpolated mark that LabelCodec writes since. The copy is made of
+   // HashMaps (as JSONObject is), so it serializes in the same key order.
+   private static Map<String, Object> copyLikeLabelImage(JSONObject ovr) {
+      Map<String, Object> overall = copyObject(ovr);
+      Map<String, Object> tags = new HashMap<String, Object>();
+      JSONObject inputTags = (JSONObject) ovr.get("Tags");
+      for (Object key : inputTags.keySet()) {
+         tags.put("" + key, inputTags.get(key));
+      }
+      overall.put("Tags", tags);
+      if (ovr.containsKey("Instances")) {
+         java.util.List<Object> instances = new ArrayList<Object>();
+         for (Object instance : (JSONArray) ovr.get("Instances")) {
+            instances.add(copyObject((JSONObject) instance));
+         }
+         overall.put("Instances", instances);
+      }
+      if (Boolean.TRUE.equals(ovr.get("Interpolated"))) {
+         overall.put("Interpolated", Boolean.TRUE);
+      }
+      return overall;
+   }
+
+   // Copies the joints and bounding box of a parsed .label root or instance into a new object
+   private static Map<String, Object> copyObject(JSONObject ovr) {
+      java.util.List<Object> dataset = new ArrayList<Object>();
+      for (Object inputJoint : (JSONArray) ovr.get("Joints")) {
+         JSONObject inputJointObject = (JSONObject) inputJoint;
+         Map<String, Object> joint = new HashMap<String, Object>();
+         for (Object key : inputJointObject.keySet()) {
+            joint.put("" + key, inputJointObject.get(key));
+         }
+         joint.put("x-coordinate", Integer.parseInt("" + joint.get("x-coordinate")));
+         joint.put("y-coordinate", Integer.parseInt("" + joint.get("y-coordinate")));
+         dataset.add(joint);
+      }
+      Map<String, Object> boundingBox = new HashMap<String, Object>();
+      JSONObject inputBox = (JSONObject) ovr.get("Bounding box");
+      for (Object key : inputBox.keySet()) {
+         if (key.equals("x") || key.equals("y") || key.equals("w") || key.equals("h")) {
+            boundingBox.put("" + key, "" + Integer.parseInt("" + inputBox.get(key)));
+         }
+      }
+      Map<String, Object> object = new HashMap<String, Object>();
+      object.put("Joints", dataset);
+      object.put("Bounding box", boundingBox);
+      return object;
+   }
+
+   // Generates .label contents the way LabelImage writes them
+   private static String[] generate(int files, int joints, int tags, Random random) {
+      String[] contents = new String[files];
+      for (int f = 0; f < files; f++) {
+         java.util.List<Object> dataset = new ArrayList<Object>();
+         for (int j = 0; j < joints; j++) {
+            Map<String, Object> joint = new HashMap<String, Object>();
+            joint.put("name", "Joint " + j);
+            joint.put("x-coordinate", random.nextInt(4000));
+            joint.put("y-coordinate", random.nextInt(3000));
+            dataset.add(joint);
+         }
+         Map<String, Object> tagObject = new HashMap<String, Object>();
+         for (int t = 0; t < tags; t++) {
+            tagObject.put("Tag " + t, TAG_TEXTS[random.nextInt(TAG_TEXTS.length)]);
+         }
+         Map<String, Object> boundingBox = new HashMap<String, Object>();
+         boundingBox.put("x", "" + random.nextInt(2000));
+         boundingBox.put("y", "" + random.nextInt(1500));
+         boundingBox.put("w", "" + random.nextInt(2000));
+         boundingBox.put("h", "" + random.nextInt(1500));
+         Map<String, Object> overall = new HashMap<String, Object>();
+         overall.put("Joints", dataset);
+         overall.put("Tags", tagObject);
+         overall.put("Bounding box", boundingBox);
+         contents[f] = JSONValue.toJSONString(overall) + System.lineSeparator();
+      }
+      return contents;
+   }
+}
@@ -0,0 +1,216 @@
+import java.util.*;
+
+// Typed contents of one .label file, as read and written by LabelCodec: the confirmed
+// joints (name and x, y coordinate, in the order they were confirmed), the tags (name and
+// text, in the order they were added), and the bounding box (top-left x, y coordinate,
+// width and height). Each bounding box field is optional, as in the .label format, so
+// boxFields records which of them are present.
+// Further keys of a joint that LabelCodec does not know are kept with the joint as JSON
+// text, so they are written back when the file is saved.
+// When several objects (e.g. animals of a herd) are labeled in one image, the joints and
+// bounding box of the first one are kept here and those of the others in further
+// instances, which are LabelData objects of their own whose tags are not used (tags
+// belong to the image).
+// Labels generated by KeyframeInterpolator are marked as interpolated until an annotator
+// has reviewed them.
+
+public class LabelData {
+
+   public static final int BOX_X = 1; // boxFields bit for the "x" field
+   public static final int BOX_Y = 2; // boxFields bit for the "y" field
+   public static final int BOX_W = 4; // boxFields bit for the "w" field
+   public static final int BOX_H = 8; // boxFields bit for the "h" field
+   public static final int BOX_ALL = BOX_X | BOX_Y | BOX_W | BOX_H; // All bounding box fields
+
+   int jointCount; // Number of joints
+   String[] jointNames; // Joint names, first jointCount entries are used
+   int[] jointX; // Joint x coordinates, first jointCount entries are used
+   int[] jointY; // Joint y coordinates, first jointCount entries are used
+   String[][] jointExtras; // Keys of each joint that has unknown keys, as key, JSON value text pairs (null value for name and coordinates, null if none), first jointCount entries are used
+   final LinkedHashMap<String, String> tags; // Tag names and texts in the order they were added
+   int boxFields; // Which bounding box fields are present (BOX_X | BOX_Y | ...)
+   int boxX; // Top-left corner x coordinate of the bounding box
+   int boxY; // Top-left corner y coordinate of the bounding box
+   int boxW; // Width of the bounding box
+   int boxH; // Height of the bounding box
+   final ArrayList<LabelData> instances; // Further object instances, first instanceCount entries are used (the others are reused)
+   int instanceCount; // Number of further object instances
+   boolean interpolated; // True if the labels were generated by KeyframeInterpolator and not reviewed yet
+
+   // Creates empty label data
+   public LabelData() {
+      jointNames = new String[32];
+      jointX = new int[32];
+      jointY = new int[32];
+      jointExtras = new String[32][];
+      tags = new LinkedHashMap<String, String>();
+      instances = new ArrayList<LabelData>();
+   }
+
+   // Removes all joints, tags, bounding box fields and further instances, so this object can be reused
+   public void clear() {
+      Arrays.fill(jointNames, 0, jointCount, null);
+      Arrays.fill(jointExtras, 0, jointCount, null);
+      jointCount = 0;
+      tags.clear();
+      boxFields = 0;
+      boxX = 0;
+      boxY = 0;
+      boxW = 0;
+      boxH = 0;
+      instanceCount = 0;
+      interpolated = false;
+   }
+
+   // Adds a joint
+   // Parameters:
+   //    - String name: the joint's name
+   //    - int x, int y: the joint's coordinates within the image
+   public void addJoint(String name, int x, int y) {
+      addJoint(name, x, y, null);
+   }
+
+   // Adds a joint with further keys
+   // Parameters:
+   //    - String name: the joint's name
+   //    - int x, int y: the joint's coordinates within the image
+   //    - String[] extras: the joint's keys in the order they were read, as key and JSON
+   //      value text pairs with null values for name and coordinates (null if the joint
+   //      has no other keys)
+   public void addJoint(String name, int x, int y, String[] extras) {
+      if (jointCount == jointNames.length) {
+         int capacity = jointCount * 2;
+         jointNames = Arrays.copyOf(jointNames, capacity);
+         jointX = Arrays.copyOf(jointX, capacity);
+         jointY = Arrays.copyOf(jointY, capacity);
+         jointExtras = Arrays.copyOf(jointExtras, capacity);
+      }
+      jointNames[jointCount] = name;
+      jointX[jointCount] = x;
+      jointY[jointCount] = y;
+      jointExtras[jointCount] = extras;
+      jointCount++;
+   }
+
+   // Sets all four bounding box fields
+   // Parameters:
+   //    - int x, int y: top-left corner of the box
+   //    - int w, int h: width and height of the box
+   public void setBox(int x, int y, int w, int h) {
+      boxX = x;
+      boxY = y;
+      boxW = w;
+      boxH = h;
+      boxFields = BOX_ALL;
+   }
+
+   // Sets the bounding box's top-left x coordinate
+   public void setBoxX(int x) {
+      boxX = x;
+      boxFields |= BOX_X;
+   }
+
+   // Sets the bounding box's top-left y coordinate
+   public void setBoxY(int y) {
+      boxY = y;
+      boxFields |= BOX_Y;
+   }
+
+   // Sets the bounding box's width
+   public void setBoxW(int w) {
+      boxW = w;
+      boxFields |= BOX_W;
+   }
+
+   // Sets the bounding box's height
+   public void setBoxH(int h) {
+      boxH = h;
+      boxFields |= BOX_H;
+   }
+
+   // Returns the number of joints
+   public int getJointCount() {
+      return jointCount;
+   }
+
+   // Returns the name of the joint at the given position
+   public String getJointName(int i) {
+      return jointNames[i];
+   }
+
+   // Returns the x coordinate of the joint at the given position
+   public int getJointX(int i) {
+      return jointX[i];
+   }
+
+   // Returns the y coordinate of the joint at the given position
+   public int getJointY(int i) {
+      return jointY[i];
+   }
+
+   // Returns the keys of the joint at the given position, as key and JSON value text pairs
+   // with null values for name and coordinates (null if it has no other keys)
+   public String[] getJointExtras(int i) {
+      return jointExtras[i];
+   }
+
+   // Returns the tags (name to text) in the order they were added
+   public Map<String, String> getTags() {
+      return tags;
+   }
+
+   // Returns which bounding box fields are present (BOX_X | BOX_Y | ...)
+   public int getBoxFields() {
+      return boxFields;
+   }
+
+   // Returns the bounding box's top-left x coordinate (0 if not present)
+   public int getBoxX() {
+      return boxX;
+   }
+
+   // Returns the bounding box's top-left y coordinate (0 if not present)
+   public int getBoxY() {
+      return boxY;
+   }
+
+   // Returns the bounding box's width (0 if not present)
+   public int getBoxW() {
+      return boxW;
+   }
+
+   // Returns the bounding box's height (0 if not present)
+   public int getBoxH() {
+      return boxH;
+   }
+
+   // Marks the labels as generated by KeyframeInterpolator (true) or labeled by an annotator (false)
+   public void setInterpolated(boolean interpolated) {
+      this.interpolated = interpolated;
+   }
+
+   // Returns true if the labels were generated by KeyframeInterpolator and not reviewed yet
+   public boolean isInterpolated() {
+      return interpolated;
+   }
+
+   // Adds a further object instance and returns it (empty), to receive its joints and bounding box
+   public LabelData addInstance() {
+      if (instanceCount == instances.size()) {
+         instances.add(new LabelData());
+      }
+      LabelData instance = instances.get(instanceCount++);
+      instance.clear();
+      return instance;
+   }
+
+   // Returns the number of further object instances (0 if only one object is labeled)
+   public int getInstanceCount() {
+      return instanceCount;
+   }
+
+   // Returns the further object instance at the given position
+   public LabelData getInstance(int i) {
+      return instances.get(i);
+   }
+}
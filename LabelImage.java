@@ -2,11 +2,12 @@ import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
 import java.util.*;
+import java.util.concurrent.atomic.*;
 import java.io.*;
 import java.awt.image.*;
-import org.json.simple.*;
 import org.json.simple.parser.*;
 import javax.swing.filechooser.*;
+import javax.swing.event.*;
 
 // This GUI program is a tool for labeling object-based images with information
 // such as joints, bounding box, and tags.
@@ -18,11 +19,13 @@ import javax.swing.filechooser.*;
 // colored dots are used to visually display the locations of the joints on the image.
 // The specific colors can be modified via the txt file "JointDotColors.txt" located
 // in this program's directory. Each line in "JointDotColors.txt" should be a color
-// defined by rgb values, in that order. To avoid unexpected results, the number of
-// colors defined in "JointDotColors.txt" should be the same as the number of joint
-// names in "JointNames.txt". The desired tags can also be modified via the txt file
-// "TagNames.txt" located in this program's directory. Please do not change any of
-// the above .txt file names.
+// defined by rgb values, in that order. The number of colors defined in
+// "JointDotColors.txt" must be the same as the number of joint names in "JointNames.txt".
+// The desired tags can also be modified via the txt file "TagNames.txt" located in this
+// program's directory. Please do not change any of the above .txt file names.
+// The files are read once (see LabelSchema), and read again whenever they are changed
+// while the program is running (see SchemaRegistry); the drop-down lists and dot colors
+// then change without restarting.
 // The image file "SampleDogJointsKey.png" is used as a sample joints key for application
 // users. Please do not remove, rename, or modify this image file.
 // The image file "SampleDogLabelFile.png" is used as a sample .label file output for
@@ -34,18 +37,36 @@ import javax.swing.filechooser.*;
 // In the .label file, each joint's name and x, y coordinate is stored, each tag's
 // name and corresponding input is stored, and the bounding box's top-left x, y 
 // coordinate and its width and height is stored.
+// Several objects can be labeled in one image, each with its own joints and bounding box
+// (see Annotation); their confirmed joints and box corners can be dragged, and are found
+// under the mouse through a grid (see HitGrid).
 // Note: the origin is located at the TOP-LEFT corner of the image
+// For very large datasets, the labeled information can instead be kept in binary segment
+// files by running with -Dlabelimage.store=segment:<directory> (see LabelStore).
+// Several annotators can label one shared directory together by running a LeaseServer
+// for it and starting each GUI with -Dlabelimage.lease.server=http://<host>:<port>
+// (and -Dlabelimage.annotator=<name>, default the user name): "NEXT IMAGE" then opens the
+// next image that nobody has labeled or is labeling, and an image another annotator is
+// working on cannot be opened.
 
 public class LabelImage extends JFrame implements ActionListener, WindowListener, KeyListener {
    
    private String folderName; // Absolute pathname of current directory
    private String fileName; // Absolute pathname of current image file
-   private File[] imgFiles; // Stores all of the image files in the current directory
-   private int currImgFileIndex; // Denotes the index of the current image file within the imgFiles array of current directory's files
-   private JSONObject overall; // Root JSONObject for .label file
-   private JSONArray dataset; // Stores the confirmed joint JSONObjects in JSON format for output
-   private JSONObject tags; // Stores the confirmed tags in JSON format for output
-   private JSONObject boundingBox; // Stores the x, y coordinate, width, and height of bounding box in JSON format for output
+   private boolean datasetRoot; // True if folderName was opened with all of its subdirectories (see DatasetIndex)
+   private ImageIndex imgIndex; // Sorted index of all of the image files being labeled, kept up to date in the background
+   private ImageList imgFiles; // All of the image files being labeled (latest list of imgIndex)
+   private int currImgFileIndex; // Denotes the index of the current image file within imgFiles
+   private LabelIndex labelIndex; // Inverted index of the labeled data of imgIndex's images, for queries
+   private LabelStatus labelStatus; // Labeled/partially labeled/unlabeled status of imgIndex's images, persisted in the directory
+   private LabelIndex.Query query; // Previous/next only step through images matching this query (null for all images)
+   private ChangeListener imgIndexListener; // Refreshes the previous/next buttons when image files are added to or removed from the directory
+   private LabelStore labelStore; // Where the labeled data of each image is read from and written to (.label files by default)
+   private LabelJournal journal; // Journal of this session's confirmed labels, replayed after a crash (null if unavailable)
+   private LeaseClient leaseClient; // Leases images from the lease server when several annotators share the directory (null if none is used)
+   private Filmstrip filmstrip; // Thumbnails of all images in the current directory; clicking one opens that image
+   private LabelData labelData; // Reused for reading and writing the .label file
+   private Annotation annotation; // Confirmed joints (by ordinal), tags, and bounding box of the current image
    private int boxX1; // Top-left corner x coordinate of bounding box
    private int boxY1; // Top-left corner y coordinate of bounding box
    private int boxX2; // Bottom-right corner x coordinate of bounding box
@@ -56,156 +77,108 @@ public class LabelImage extends JFrame implements ActionListener, WindowListener
    private JTextField boxX2Input; // Text field to display bottom right corner x coordinate of bounding box
    private JTextField boxY2Input; // Text field to display bottom right corner y coordinate of bounding box
    private JButton confirmBox; // Button to confirm drawn bounding box
+   private javax.swing.Timer boxCornersTimer; // Updates the bounding box text fields at most once per frame while dragging
    private JFrame openFile; // Separate UI frame used for opening files
    private ImageIcon img; // Used to display current image
    private DrawableLabel imgLabel; // UI component that displays an image that can be drawn on (DrawableLabel is nested class)
    private Container c; // Frame's body
+   private JLabel imgName; // Displays the absolute pathname of the current image file
+   private JPanel prevAndNext; // Holds the previous/next image buttons, or labels when there is no previous/next image
+   private JTextField queryInput; // Query restricting the images that previous/next step through (see LabelIndex)
+   private JLabel queryStatus; // Number of images matching the query
+   private JLabel noPrev; // Shown instead of the previous image button for the first image of the directory
+   private JLabel noNext; // Shown instead of the next image button for the last image of the directory
    private JComboBox<String> joint; // Drop-down list of all of the selectable joint names
    private JTextField x; // Text field to display x coordinate of current selected joint
    private JTextField y; // Text field to display y coordinate of current selected joint
    private JButton confirm; // Button to confirm current selected joint x and y coordinate
+   private JComboBox<String> instanceChoice; // Drop-down list of the image's object instances; joints and boxes are confirmed on the selected one
+   private JButton newInstance; // Button to add an object instance to the image and select it
    private JButton load; // Button to open a file chooser and select a new image to be labeled
    private JButton previous; // Button to open the previous image found alphabetically in the current directory
    private JButton next; // Button to open the next image found alphabetically in the current directory
+   private JButton nextUnlabeled; // Button to open the next image without labeled data
+   private JButton nextPartial; // Button to open the next image whose joints are not all labeled
+   private JButton interpolate; // Button to generate the labels of the images between keyframes (see KeyframeInterpolator)
    private JComboBox<String> tagNames; // Drop-down list of all of the selectable tag names
    private JTextField tagInput; // Text field for user to input text for selected tag name
    private JButton confirmTag; // Button to confirm current selected tag with user input
-   private Map<String, Color> jointDotColors; // Maps each joint name to its corresponding dot color for displaying purposes
-   private java.util.List<String> confirmedJoints; // Records all previously confirmed joint names
-   private java.util.List<String> jointNamesList; // Stores a list of all of the possible joint names (read in from "JointNames.txt")
-   private java.util.List<String> tagNamesList; // Stores a list of all of the possible tag names (read in from "TagNames.txt")
-   private java.util.List<Color> jointColorsList; // Stores a list of all of the corresponding joint dot colors (read in from "JointDotColors.txt")
-   public static final String[] EXTENSIONS = new String[] {"gif", "jpeg", "jpg", "png"}; // List of all valid file extensions
+   private ComboBoxRenderer jointRenderer; // Colors each joint name in the drop-down list with its dot color
+   private SchemaRegistry schemaRegistry; // Shared joint names, dot colors and tag names, reloaded when their files change
+   private LabelSchema schema; // Joint names and dot colors by ordinal, and tag names, currently displayed
+   public static final String[] EXTENSIONS = DirectoryIndex.IMAGE_EXTENSIONS; // List of all valid file extensions
    public static final Font TITLE_FONT = new Font("TimesRoman", Font.BOLD, 14); // Universal title font
+   public static final int FRAME_MILLIS = 16; // One frame at 60 Hz
    
    // Sets up the GUI, laying out all of the components. Initializes above fields,
    // including reading in from all supporting files for joints, colors, and tags.
-   // Also reads in and initializes data from .label file if found in directory.
+   // Then displays the given image (see showImage). The same window is reused for
+   // every image that is opened afterwards.
    // Parameters:
    //    - String fileName: absolute pathname of current image to be labeled
    //    - String folderName: absolute pathname of current directory in which current
    //                         image is located
-   //    - File[] imgFiles: all image files in current image's directory.
-   public LabelImage(String fileName, String folderName, File[] imgFiles) throws IOException, ParseException {
-      this.folderName = folderName;
-      this.fileName = fileName;
-      this.imgFiles = imgFiles;
-      currImgFileIndex = 0;
-      if (this.imgFiles != null) {
-         Arrays.sort(this.imgFiles);
-         // Determine the appropriate index of the current image within the sorted
-         // array of image files of this directory.
-         while (!((this.imgFiles[currImgFileIndex].getAbsolutePath()).equals(fileName))) {
-            currImgFileIndex += 1;
-         }
-      }
+   //    - boolean datasetRoot: true to label the images of folderName's subdirectories too
+   public LabelImage(String fileName, String folderName, boolean datasetRoot) throws IOException, ParseException {
+      long start = System.nanoTime();
+      this.datasetRoot = datasetRoot;
       openFile = new JFrame();
-      dataset = new JSONArray();
-      tags = new JSONObject();
-      boundingBox = new JSONObject();
+      // The label store can be chosen with -Dlabelimage.store=sidecar (default) or
+      // -Dlabelimage.store=segment:<directory> (see LabelStore)
+      labelStore = LabelStore.open(System.getProperty("labelimage.store", "sidecar"));
+      imgIndexListener = new ChangeListener() {
+         // Image files were added to or removed from the current directory (called on the
+         // directory index's watcher thread): refresh the previous/next buttons on the GUI thread
+         public void stateChanged(ChangeEvent e) {
+            SwingUtilities.invokeLater(new Runnable() {
+               public void run() {
+                  updateNavigation();
+               }
+            });
+         }
+      };
       boundingBoxColor = Color.BLACK; // Default bounding box color is always black
-      confirmedJoints = new ArrayList<String>();
       
-      jointNamesList = new ArrayList<String>();
-      File jointNames = new File("JointNames.txt");
-      Scanner readJointNames = new Scanner(jointNames);
-      // Read in all of the joint names from "JointNames.txt"
-      while (readJointNames.hasNext()) {
-         jointNamesList.add(readJointNames.next());
-      }
+      // Joint names, dot colors and tag names from "JointNames.txt", "JointDotColors.txt" and
+      // "TagNames.txt" in the program's directory, read and validated once (see LabelSchema)
+      schemaRegistry = SchemaRegistry.open(new File("").getAbsoluteFile());
+      schema = schemaRegistry.get();
+      schemaRegistry.addChangeListener(new ChangeListener() {
+         // The files were changed (called on the registry's watcher thread): show the new
+         // joints, colors and tags on the GUI thread
+         public void stateChanged(ChangeEvent e) {
+            SwingUtilities.invokeLater(new Runnable() {
+               public void run() {
+                  applySchema(schemaRegistry.get());
+               }
+            });
+         }
+      });
       
-      tagNamesList = new ArrayList<String>();
-      File tagNamesFile = new File("TagNames.txt");
-      Scanner readTagNames = new Scanner(tagNamesFile);
-      // Read in all of the tag names from "TagNames.txt"
-      while (readTagNames.hasNext()) {
-         tagNamesList.add(readTagNames.next());
+      // Labels confirmed in a session that ended without saving them (e.g. a crash or power
+      // loss) are recovered from its journal; then this session's journal is started
+      try {
+         int recovered = LabelJournal.recover(LabelJournal.DIRECTORY, labelStore, schema.getJointNames());
+         if (recovered > 0) {
+            System.err.println("Recovered the labels of " + recovered + " images from an unfinished session");
+         }
+         journal = new LabelJournal(LabelJournal.DIRECTORY, labelStore);
+      } catch (IOException ex) {
+         System.err.println("Labels are not journaled: " + ex);
       }
-      
-      jointColorsList = new ArrayList<Color>();
-      File jointColorsFile = new File("JointDotColors.txt");
-      Scanner readJointColors = new Scanner(jointColorsFile);
-      // Read in all of the rgb values from "JointDotColors.txt" and store them as 
-      // colors in jointColorsList
-      while (readJointColors.hasNextLine()) {
-         String line = readJointColors.nextLine();
-         Scanner readLine = new Scanner(line);
-         int r = Integer.parseInt(readLine.next());
-         int g = Integer.parseInt(readLine.next());
-         int b = Integer.parseInt(readLine.next());
-         jointColorsList.add(new Color(r, g, b));
+      String leaseServer = System.getProperty("labelimage.lease.server");
+      if (leaseServer != null) {
+         leaseClient = new LeaseClient(leaseServer, System.getProperty("labelimage.annotator", System.getProperty("user.name")));
       }
       
-      // Display image using image icon within a modified label component that allows for drawing
-      File labelFile = new File(fileName + ".label");
-      img = new ImageIcon(fileName);
-      imgLabel = new DrawableLabel(img); // DrawableLabel is nested class
+      // Display image using image icon within a modified label component that allows for drawing.
+      // The image itself is set by showImage.
+      imgLabel = new DrawableLabel(null); // DrawableLabel is nested class
       imgLabel.setOpaque(true);
       imgLabel.setBackground(new Color(204, 255, 255));
       
-      // If a corresponding .label file can be found for the current image, parse all
-      // .label file's data and store locally for potential modification
-      if (labelFile.exists()) {
-         JSONParser parser = new JSONParser();
-         FileReader reader = new FileReader(labelFile);
-         JSONObject ovr = (JSONObject) parser.parse(reader);
-         JSONArray inputJoints = (JSONArray) ovr.get("Joints");
-         
-         // Add all joints from the .label file into the current dataset to be modified
-         // or added to via further labeling.
-         for (Object inputJoint : inputJoints) {
-            dataset.add((JSONObject) inputJoint);
-            confirmedJoints.add("" + ((JSONObject) inputJoint).get("name"));
-         }
-         
-         // Add all tags and their info from the .label file into the current dataset
-         // of tags/info to be modified or added to via further labeling.
-         JSONObject inputTags = (JSONObject) ovr.get("Tags");
-         for (Iterator iterator = inputTags.keySet().iterator(); iterator.hasNext();) {
-            String key = (String) iterator.next();
-            tags.put(key, inputTags.get(key));
-         }
-         
-         // Add info about bounding box from .label file into current dataset of
-         // bounding box to be potentially modified. If no bounding box info is found,
-         // the current box's info will just be stored as 0's for x, y, w, h.
-         JSONObject inputBox = (JSONObject) ovr.get("Bounding box");
-         int boxW = 0;
-         int boxH = 0;
-         int boxX = 0;
-         int boxY = 0;
-         for (Iterator iterator = inputBox.keySet().iterator(); iterator.hasNext();) {
-            String key = (String) iterator.next();
-            if (key.equals("x")) {
-               boxX = Integer.parseInt("" + inputBox.get("x"));
-               boundingBox.put("x", "" + inputBox.get("x"));
-            }
-            if (key.equals("y")) {
-               boxY = Integer.parseInt("" + inputBox.get("y"));
-               boundingBox.put("y", "" + inputBox.get("y"));
-            }
-            if (key.equals("w")) {
-               boxW = Integer.parseInt("" + inputBox.get("w"));
-               boundingBox.put("w", "" + inputBox.get("w"));
-            }
-            if (key.equals("h")) {
-               boxH = Integer.parseInt("" + inputBox.get("h"));
-               boundingBox.put("h", "" + inputBox.get("h"));
-            }
-         }
-         boxX1 = boxX;
-         boxY1 = boxY;
-         boxX2 = boxX + boxW;
-         boxY2 = boxY + boxH;
-      }
-      
-      overall = new JSONObject();
-      
-      // Create map between joint names and dot colors for convenience
-      jointDotColors = new HashMap<String, Color>();
-      for (int i = 0; i < jointNamesList.size(); i++) {
-         jointDotColors.put(jointNamesList.get(i), jointColorsList.get(i));
-      }
+      labelData = new LabelData();
+      annotation = new Annotation(schema.getJointNames());
       
       // Set up GUI
       setTitle("Label Image");
@@ -214,46 +187,52 @@ public class LabelImage extends JFrame implements ActionListener, WindowListener
       c.setLayout(new BorderLayout());
       c.add(imgLabel, BorderLayout.CENTER);
       JPanel menu = new JPanel();
-      menu.setLayout(new GridLayout(4, 1));
+      menu.setLayout(new GridLayout(5, 1));
+      
+      // Object instances of the image (e.g. each animal of a herd), each with its own joints and box
+      JPanel instanceInfo = new JPanel();
+      instanceInfo.setLayout(new GridLayout(1, 3));
+      JLabel instanceInstruct = new JLabel("Instance:", SwingConstants.RIGHT);
+      instanceInstruct.setFont(TITLE_FONT);
+      instanceInstruct.setOpaque(true);
+      instanceInstruct.setBackground(new Color(204, 255, 204));
+      instanceChoice = new JComboBox<String>(new String[] {"1"});
+      instanceChoice.addActionListener(new ActionListener() {
+         // When another instance is chosen, display its joints and box
+         public void actionPerformed(ActionEvent e) {
+            if (instanceChoice.getSelectedIndex() >= 0) {
+               selectInstance(instanceChoice.getSelectedIndex());
+            }
+         }
+      });
+      instanceChoice.addKeyListener(this);
+      newInstance = new JButton("NEW INSTANCE");
+      newInstance.addActionListener(this);
+      newInstance.addKeyListener(this);
+      instanceInfo.add(instanceInstruct);
+      instanceInfo.add(instanceChoice);
+      instanceInfo.add(newInstance);
+      menu.add(instanceInfo);
       JPanel jointInfo = new JPanel();
       jointInfo.setLayout(new GridLayout(1, 2));
       JLabel jointInstruct = new JLabel("Joint name:", SwingConstants.RIGHT);
       jointInstruct.setFont(TITLE_FONT);
       jointInstruct.setOpaque(true);
       jointInstruct.setBackground(new Color(204, 255, 204));
-      String[] jointNamesListArray = new String[jointNamesList.size()];
-      // Convert to array for JComboBox constructor
-      for (int i = 0; i < jointNamesList.size(); i++) {
-         jointNamesListArray[i] = jointNamesList.get(i);
-      }
-      joint = new JComboBox<String>(jointNamesListArray);
-      ComboBoxRenderer renderer = new ComboBoxRenderer(joint);
+      joint = new JComboBox<String>(schema.getJointNames().toArray(new String[0]));
+      jointRenderer = new ComboBoxRenderer(joint);
       // ComboBoxRenderer (nested class) is used to set each drop-down list's joint
       // name text color to be that of its corresponding dot
-      renderer.setColors(jointColorsList);
-      renderer.setStrings(jointNamesList);
-      joint.setRenderer(renderer);
+      jointRenderer.setColors(schema.getJointColors());
+      jointRenderer.setStrings(schema.getJointNames());
+      joint.setRenderer(jointRenderer);
       joint.addActionListener(new ActionListener() {
          // When the selected item in the JComboBox is changed, change the x and y 
          // coordinate text fields to display the corresponding x and y coordinates
          // of the newly selected joint. If the selected joint has not been confirmed,
          // the text fields will be empty.
          public void actionPerformed(ActionEvent e) {
-            String curr = "" + joint.getSelectedItem();
-            if (confirmedJoints.contains(curr)) {
-               JSONObject desired = null;
-               for (Object o : dataset) {
-                  if (("" + ((JSONObject)o).get("name")).equals(curr)) {
-                     desired = (JSONObject)o;
-                     break;
-                  }
-               }
-               x.setText("" + desired.get("x-coordinate"));
-               y.setText("" + desired.get("y-coordinate"));
-            } else {
-               x.setText("");
-               y.setText("");
-            }
+            showSelectedJoint();
          }
       });
       joint.addKeyListener(this);
@@ -275,21 +254,6 @@ public class LabelImage extends JFrame implements ActionListener, WindowListener
       yCoord.setOpaque(true);
       yCoord.setBackground(new Color(204, 255, 204));
       y = new JTextField();
-      
-      // Since default selected item is the first joint, see if that joint has been
-      // confirmed with x, y coordinates before. If so, display the x, y coordinates.
-      if (confirmedJoints.contains("" + jointNamesList.get(0))) {
-         JSONObject desired = null;
-         for (Object o : dataset) {
-            if (("" + ((JSONObject)o).get("name")).equals("" + jointNamesList.get(0))) {
-               desired = (JSONObject)o;
-               break;
-            }
-         }
-         x.setText("" + desired.get("x-coordinate"));
-         y.setText("" + desired.get("y-coordinate"));
-      }
-      
       yInfo.add(yCoord);
       yInfo.add(y);
       menu.add(yInfo);
@@ -309,33 +273,57 @@ public class LabelImage extends JFrame implements ActionListener, WindowListener
       previous.addKeyListener(this);
       next.addActionListener(this);
       next.addKeyListener(this);
+      nextUnlabeled = new JButton("NEXT UNLABELED IMAGE (Shift >)");
+      nextPartial = new JButton("NEXT PARTIALLY LABELED IMAGE");
+      nextUnlabeled.addActionListener(this);
+      nextUnlabeled.addKeyListener(this);
+      nextPartial.addActionListener(this);
+      nextPartial.addKeyListener(this);
+      interpolate = new JButton("INTERPOLATE BETWEEN KEYFRAMES");
+      interpolate.addActionListener(this);
+      interpolate.addKeyListener(this);
       JPanel top = new JPanel();
       top.setBackground(new Color(204, 229, 255));
-      top.setLayout(new GridLayout(3, 1));
-      JLabel imgName = new JLabel(fileName, SwingConstants.CENTER);
+      top.setLayout(new GridLayout(5, 1));
+      imgName = new JLabel("", SwingConstants.CENTER);
       imgName.setOpaque(true);
       imgName.setBackground(new Color(204, 229, 255));
       top.add(imgName);
       top.add(load);
-      JPanel prevAndNext = new JPanel();
+      prevAndNext = new JPanel();
       prevAndNext.setLayout(new GridLayout(1, 2));
-      if (currImgFileIndex > 0) {
-         prevAndNext.add(previous);
-      } else { // If the current image is the front of the imgFiles array, do not include a prev button
-         JLabel noPrev = new JLabel("No previous image found", SwingConstants.CENTER);
-         noPrev.setOpaque(true);
-         noPrev.setBackground(new Color(204, 229, 255));
-         prevAndNext.add(noPrev);
-      }
-      if (currImgFileIndex < imgFiles.length - 1) {
-         prevAndNext.add(next);
-      } else { // If the current image is the end of the imgFiles array, do not include a next button
-         JLabel noNext = new JLabel("No next image found", SwingConstants.CENTER);
-         noNext.setOpaque(true);
-         noNext.setBackground(new Color(204, 229, 255));
-         prevAndNext.add(noNext);
-      }
+      noPrev = new JLabel("No previous image found", SwingConstants.CENTER);
+      noPrev.setOpaque(true);
+      noPrev.setBackground(new Color(204, 229, 255));
+      noNext = new JLabel("No next image found", SwingConstants.CENTER);
+      noNext.setOpaque(true);
+      noNext.setBackground(new Color(204, 229, 255));
       top.add(prevAndNext);
+      JPanel jumps = new JPanel();
+      jumps.setLayout(new GridLayout(1, 3));
+      jumps.add(nextUnlabeled);
+      jumps.add(nextPartial);
+      jumps.add(interpolate);
+      top.add(jumps);
+      
+      // Query restricting previous/next to matching images, e.g. "Breed=lab & !Tail_End & !box"
+      JPanel queryPanel = new JPanel();
+      queryPanel.setBackground(new Color(204, 229, 255));
+      queryPanel.setLayout(new BorderLayout());
+      queryPanel.add(new JLabel(" Only images matching: "), BorderLayout.LINE_START);
+      queryInput = new JTextField();
+      queryInput.setToolTipText("e.g. Breed=lab & !Tail_End & !box (press Enter; empty for all images)");
+      queryInput.addActionListener(new ActionListener() {
+         // Enter was pressed in the query field: apply the query
+         public void actionPerformed(ActionEvent e) {
+            applyQuery();
+         }
+      });
+      queryPanel.add(queryInput, BorderLayout.CENTER);
+      queryStatus = new JLabel("", SwingConstants.CENTER);
+      queryStatus.setPreferredSize(new Dimension(260, 20));
+      queryPanel.add(queryStatus, BorderLayout.LINE_END);
+      top.add(queryPanel);
       JPanel rightMenu = new JPanel();
       rightMenu.setLayout(new GridLayout(8, 1));
       JPanel tagInfo = new JPanel();
@@ -345,34 +333,18 @@ public class LabelImage extends JFrame implements ActionListener, WindowListener
       tagInstruct.setFont(TITLE_FONT);
       tagInstruct.setOpaque(true);
       tagInstruct.setBackground(new Color(255, 204, 153));
-      // Convert to array for JComboBox constructor
-      String[] tagNamesListArray = new String[tagNamesList.size()];
-      for (int j = 0; j < tagNamesList.size(); j++) {
-         tagNamesListArray[j] = tagNamesList.get(j);
-      }
-      tagNames = new JComboBox<String>(tagNamesListArray);
+      tagNames = new JComboBox<String>(schema.getTagNames().toArray(new String[0]));
       tagInput = new JTextField();
       tagNames.addActionListener(new ActionListener() {
          // if the selected tag is changed, also change the text field to display
          // the corresponding information for the newly selected tag. If no previously
          // stored info can be found for the given tag, display an empty text field.
          public void actionPerformed(ActionEvent e) {
-            String curr = "" + tagNames.getSelectedItem();
-            if (tags.keySet().contains(curr)) {
-               tagInput.setText("" + tags.get(curr));
-            } else {
-               tagInput.setText("");
-            }
+            showSelectedTag();
          }
       });
       tagNames.addKeyListener(this);
       
-      // Since the default tag is always the first one, see if it has previously stored
-      // info. If so, display info in text field.
-      if (tags.keySet().contains(tagNamesList.get(0))) {
-         tagInput.setText("" + tags.get(tagNamesList.get(0)));
-      }
-      
       tagInfo.add(tagInstruct);
       tagInfo.add(tagNames);
       tagInfo.add(tagInput);
@@ -429,7 +401,7 @@ public class LabelImage extends JFrame implements ActionListener, WindowListener
       rightMenu.add(boxColorOptions);
       
       // Further GUI setup
-      JLabel boxInstruct = new JLabel("<html><center>Use right mouse-button to drag a new box.<br>Resize drawn box by dragging corners with right mouse-button.</center></html>", SwingConstants.CENTER);
+      JLabel boxInstruct = new JLabel("<html><center>Use right mouse-button to drag a new box.<br>Resize drawn box by dragging corners with right mouse-button.<br>Drag confirmed joints with left mouse-button.</center></html>", SwingConstants.CENTER);
       boxInstruct.setOpaque(true);
       boxInstruct.setBackground(new Color(255, 204, 204));
       rightMenu.add(boxInstruct);
@@ -440,12 +412,10 @@ public class LabelImage extends JFrame implements ActionListener, WindowListener
       box1Info.add(new JLabel("Top Left:", SwingConstants.CENTER));
       box1Info.add(new JLabel("x:", SwingConstants.RIGHT));
       boxX1Input = new JTextField();
-      boxX1Input.setText("" + boxX1);
       boxX1Input.setColumns(4);
       box1Info.add(boxX1Input);
       box1Info.add(new JLabel("y:", SwingConstants.RIGHT));
       boxY1Input = new JTextField();
-      boxY1Input.setText("" + boxY1);
       boxY1Input.setColumns(4);
       box1Info.add(boxY1Input);
       rightMenu.add(box1Info);
@@ -456,12 +426,10 @@ public class LabelImage extends JFrame implements ActionListener, WindowListener
       box2Info.add(new JLabel("Bottom Right:", SwingConstants.CENTER));
       box2Info.add(new JLabel("x:", SwingConstants.RIGHT));
       boxX2Input = new JTextField();
-      boxX2Input.setText("" + boxX2);
       boxX2Input.setColumns(4);
       box2Info.add(boxX2Input);
       box2Info.add(new JLabel("y:", SwingConstants.RIGHT));
       boxY2Input = new JTextField();
-      boxY2Input.setText("" + boxY2);
       boxY2Input.setColumns(4);
       box2Info.add(boxY2Input);
       rightMenu.add(box2Info);
@@ -471,6 +439,13 @@ public class LabelImage extends JFrame implements ActionListener, WindowListener
       rightMenu.add(confirmBox);
       confirmBox.addActionListener(this);
       confirmBox.addKeyListener(this);
+      boxCornersTimer = new javax.swing.Timer(FRAME_MILLIS, new ActionListener() {
+         // A frame has passed since the box was first dragged: show its latest corners
+         public void actionPerformed(ActionEvent e) {
+            showBoxCorners();
+         }
+      });
+      boxCornersTimer.setRepeats(false);
       
       // Setup bottom sample key
       JPanel bottomKey = new JPanel();
@@ -493,7 +468,31 @@ public class LabelImage extends JFrame implements ActionListener, WindowListener
       sampleLabelFile.setBackground(new Color(153, 204, 255));
       bottomKey.add(sampleLabelFile, BorderLayout.LINE_END);
       
-      c.add(bottomKey, BorderLayout.PAGE_END);
+      // Setup filmstrip of the current directory's images above the sample key
+      filmstrip = new Filmstrip(labelStore);
+      filmstrip.addActionListener(new ActionListener() {
+         // A thumbnail was clicked: write any labeled info of the current image to its
+         // .label file and display the clicked image in this window
+         public void actionPerformed(ActionEvent e) {
+            int index = filmstrip.getClickedIndex();
+            if (index != currImgFileIndex && index < imgFiles.size()) {
+               saveLabels();
+               if (!leaseImage(imgFiles.get(index).getAbsolutePath())) {
+                  return;
+               }
+               try {
+                  showImage(imgFiles.get(index).getAbsolutePath(), folderName);
+               } catch (IOException ex) {
+               } catch (ParseException pEx) {}
+            }
+         }
+      });
+      JPanel bottom = new JPanel();
+      bottom.setLayout(new BorderLayout());
+      bottom.add(filmstrip, BorderLayout.PAGE_START);
+      bottom.add(bottomKey, BorderLayout.CENTER);
+      
+      c.add(bottom, BorderLayout.PAGE_END);
       c.add(menu, BorderLayout.LINE_START);
       c.add(top, BorderLayout.PAGE_START);
       c.add(rightMenu, BorderLayout.LINE_END);
@@ -502,10 +501,487 @@ public class LabelImage extends JFrame implements ActionListener, WindowListener
       addWindowListener(this);
       addKeyListener(this);
       
-      pack();
+      Metrics.FRAME.record(start, null);
+      if (!leaseImage(fileName)) { // Another annotator is labeling the chosen image: start with a free one
+         fileName = nextFreeImage(folderName);
+         if (fileName == null) {
+            System.exit(0);
+         }
+      }
+      showImage(fileName, folderName);
       setVisible(true);
    }
    
+   // Displays the given image in this window, replacing the previously displayed image.
+   // All per-image data (confirmed joints, tags, bounding box) is reset, and then read
+   // in from the image's .label file if found in directory. The window and all of its
+   // components are reused; only the image, the labeled data and the text fields change.
+   // Parameters:
+   //    - String fileName: absolute pathname of the image to be labeled
+   //    - String folderName: absolute pathname of the directory in which the image is located
+   private void showImage(String fileName, String folderName) throws IOException, ParseException {
+      long start = System.nanoTime();
+      // The directory's index is only built the first time the directory is opened
+      ImageIndex index = datasetRoot ? DatasetIndex.open(new File(folderName)) : DirectoryIndex.open(new File(folderName));
+      if (index != imgIndex) {
+         if (imgIndex != null) { // Stop watching the previous directory
+            imgIndex.removeChangeListener(imgIndexListener);
+            imgIndex.close();
+         }
+         imgIndex = index;
+         imgIndex.addChangeListener(imgIndexListener);
+         if (labelIndex != null) {
+            labelIndex.close();
+         }
+         labelIndex = new LabelIndex(imgIndex, labelStore);
+         labelIndex.addChangeListener(imgIndexListener); // Matching images become known as they are indexed
+         labelIndex.start();
+         if (labelStatus != null) {
+            labelStatus.close();
+         }
+         labelStatus = new LabelStatus(imgIndex, labelStore, schema.getJointNames(), leaseClient != null);
+         labelStatus.start();
+      }
+      this.folderName = folderName;
+      this.fileName = fileName;
+      updateNavigation();
+      annotation.clear();
+      boxX1 = 0;
+      boxY1 = 0;
+      boxX2 = 0;
+      boxY2 = 0;
+      
+      // Very large images are never decoded as a whole, but displayed from tiles with zoom
+      // and pan (see TiledImage). Other images are displayed at 1:1; the decoded image is
+      // usually already in the shared cache, prefetched while the previous image was being labeled.
+      Dimension size = null;
+      try {
+         size = ImageHeaders.read(new File(fileName));
+      } catch (IOException ex) {
+      } catch (RuntimeException ex) {} // A corrupt header can make the parser fail in other ways; decode as usual
+      TiledImage tiledImg = null;
+      if (TiledImage.isLarge(size)) {
+         tiledImg = new TiledImage(new File(fileName), size);
+         img = null;
+      } else {
+         img = ImageCache.getInstance().getIcon(fileName);
+      }
+      ImageCache.getInstance().prefetch(this.imgFiles, currImgFileIndex);
+      
+      // If labeled data (a corresponding .label file) can be found for the current image,
+      // read all of its joints, tags and bounding box (see LabelCodec) into the annotation
+      // to be modified or added to via further labeling. If no bounding box info is found,
+      // the current box's info will just be 0's for x, y, w, h.
+      String stored = labelStore.read(fileName);
+      if (stored != null) {
+         long parseStart = System.nanoTime();
+         LabelCodec.read(new StringReader(stored), labelData);
+         annotation.read(labelData);
+         Metrics.PARSE.record(parseStart, fileName);
+         boxX1 = annotation.getBoxX();
+         boxY1 = annotation.getBoxY();
+         boxX2 = annotation.getBoxX() + annotation.getBoxW();
+         boxY2 = annotation.getBoxY() + annotation.getBoxH();
+      }
+      updateInstanceChoice();
+      
+      if (tiledImg != null) {
+         imgLabel.setTiledImage(tiledImg);
+      } else {
+         imgLabel.setImage(img);
+      }
+      imgName.setText(fileName + (annotation.isInterpolated() ? " (interpolated)" : ""));
+      
+      // Start again from the first joint and tag, displaying their previously stored info (if any)
+      joint.setSelectedIndex(0);
+      tagNames.setSelectedIndex(0);
+      showSelectedJoint();
+      showSelectedTag();
+      showBoxCorners();
+      
+      // Resize the window for the new image. If the focused button was just removed
+      // (first/last image reached), move focus so the arrow keys keep working.
+      pack();
+      Component focused = getFocusOwner();
+      if (focused == null || !focused.isShowing()) {
+         joint.requestFocusInWindow();
+      }
+      imgLabel.repaint();
+      Metrics.NAVIGATION.record(start, fileName);
+   }
+   
+   // Takes the latest image files of the current directory from the directory index, finds
+   // the current image's position within them with a binary search, and only shows the
+   // previous/next buttons if there is a previous/next image. The filmstrip is updated to
+   // show the same image files, with the current image selected.
+   private void updateNavigation() {
+      imgFiles = imgIndex.images();
+      currImgFileIndex = imgFiles.indexOf(new File(fileName));
+      if (currImgFileIndex < 0) { // Current image is not (or no longer) in the directory:
+                                  // continue from the image sorted just before it
+         currImgFileIndex = -currImgFileIndex - 2;
+      }
+      prevAndNext.removeAll();
+      if (previousPosition() >= 0) {
+         prevAndNext.add(previous);
+      } else { // If the current image is the front of imgFiles, do not include a prev button
+         prevAndNext.add(noPrev);
+      }
+      if (nextPosition() >= 0 || leaseClient != null) { // The lease server may have a free image before this one
+         prevAndNext.add(next);
+      } else { // If the current image is the end of imgFiles, do not include a next button
+         prevAndNext.add(noNext);
+      }
+      prevAndNext.revalidate();
+      prevAndNext.repaint();
+      filmstrip.setFiles(imgFiles, currImgFileIndex);
+      updateQueryStatus();
+   }
+   
+   // Returns the position within imgFiles of the image that the previous image button
+   // opens (the previous image matching the query, if there is one), or -1 if there is none
+   private int previousPosition() {
+      if (query != null) {
+         return labelIndex.previous(query, imgFiles, currImgFileIndex);
+      }
+      return currImgFileIndex > 0 ? currImgFileIndex - 1 : -1;
+   }
+   
+   // Returns the position within imgFiles of the image that the next image button opens
+   // (the next image matching the query, if there is one), or -1 if there is none
+   private int nextPosition() {
+      if (query != null) {
+         return labelIndex.next(query, imgFiles, currImgFileIndex);
+      }
+      return currImgFileIndex < imgFiles.size() - 1 ? currImgFileIndex + 1 : -1;
+   }
+   
+   // Parses the query entered in the query field and, if the current image does not match
+   // it, moves to the next matching image. An invalid query is reported next to the field.
+   private void applyQuery() {
+      try {
+         query = LabelIndex.parse(queryInput.getText());
+      } catch (IllegalArgumentException ex) {
+         query = null;
+         updateNavigation();
+         queryStatus.setText(ex.getMessage());
+         return;
+      }
+      updateNavigation();
+      if (query != null && Arrays.binarySearch(labelIndex.matches(query, imgFiles), currImgFileIndex) < 0 && nextPosition() >= 0) {
+         next.doClick();
+      }
+   }
+   
+   // Shows how many images match the query, and the current image's place among them
+   private void updateQueryStatus() {
+      if (query == null) {
+         queryStatus.setText(labelIndex.isComplete() ? "" : "Indexing labels: " + labelIndex.getIndexedCount() + " images");
+         return;
+      }
+      int[] matches = labelIndex.matches(query, imgFiles);
+      int place = Arrays.binarySearch(matches, currImgFileIndex);
+      queryStatus.setText((place >= 0 ? (place + 1) + " of " : "") + matches.length + " matching"
+            + (labelIndex.isComplete() ? "" : " (indexing: " + labelIndex.getIndexedCount() + " images)"));
+   }
+   
+   // If at least one joint has been confirmed, write all labeled info (see LabelCodec) to
+   // the label store (by default the current image's .label file). .label files are written
+   // in the background (see LabelWriter), so this never blocks the GUI on slow drives.
+   private void saveLabels() {
+      if (annotation.getTotalConfirmedCount() > 0) {
+         long start = System.nanoTime();
+         annotation.write(labelData);
+         try {
+            labelStore.write(fileName, LabelCodec.toString(labelData));
+            filmstrip.setLabeled(fileName, true);
+            labelIndex.update(fileName, labelData);
+            labelStatus.set(fileName, labelData);
+            if (journal != null) {
+               journal.checkpoint(); // The journaled labels are all in the store now
+            }
+            Metrics.SAVE.record(start, fileName);
+         } catch (IOException ex) {
+            System.err.println("Could not save labels of " + fileName + ": " + ex);
+         }
+      }
+   }
+   
+   // Generates the labels of the images between keyframes of the current image list in the
+   // background (see KeyframeInterpolator), keeping the label index and labeled status up to
+   // date, then reports the result. The current image is shown again if its labels were
+   // generated and it has not been labeled in the meantime.
+   // Parameters:
+   //    - int method: KeyframeInterpolator.LINEAR or SPLINE
+   private void interpolateKeyframes(final int method) {
+      final ImageList frames = imgFiles;
+      final LabelIndex index = labelIndex;
+      final LabelStatus status = labelStatus;
+      final String current = fileName;
+      final AtomicBoolean currentGenerated = new AtomicBoolean();
+      interpolate.setEnabled(false);
+      Thread thread = new Thread(new Runnable() {
+         public void run() {
+            final KeyframeInterpolator.Result result = new KeyframeInterpolator(labelStore, method).interpolate(frames,
+                  new KeyframeInterpolator.Listener() {
+                     public void generated(String imagePath, LabelData data) {
+                        index.update(imagePath, data);
+                        status.set(imagePath, data);
+                        filmstrip.setLabeled(imagePath, true);
+                        if (imagePath.equals(current)) {
+                           currentGenerated.set(true);
+                        }
+                     }
+                  });
+            SwingUtilities.invokeLater(new Runnable() {
+               public void run() {
+                  interpolate.setEnabled(true);
+                  if (currentGenerated.get() && fileName.equals(current)
+                        && (annotation.isInterpolated() || annotation.getTotalConfirmedCount() == 0)) {
+                     try {
+                        showImage(fileName, folderName);
+                     } catch (IOException ex) {
+                     } catch (ParseException pEx) {}
+                  }
+                  JOptionPane.showMessageDialog(LabelImage.this, "Interpolated " + result.generated + " images between "
+                        + result.keyframes + " keyframes" + (result.failed > 0 ? "; " + result.failed + " images failed" : "")
+                        + (result.changed > 0 ? "; " + result.changed + " images labeled meanwhile were left alone." : "."));
+               }
+            });
+         }
+      }, "keyframe-interpolator");
+      thread.setDaemon(true);
+      thread.start();
+   }
+   
+   // Leases the given image from the lease server before it is displayed, and gives the
+   // lease of the current image back. Returns false, after telling the user, if another
+   // annotator is labeling the image. Without a lease server, or if it cannot be reached,
+   // every image can be opened.
+   // Parameters:
+   //    - String newFileName: absolute pathname of the image to be displayed
+   private boolean leaseImage(String newFileName) {
+      if (leaseClient == null || newFileName.equals(fileName)) {
+         return true;
+      }
+      String image = leaseName(newFileName);
+      try {
+         String holder = leaseClient.lease(image);
+         if (holder != null) {
+            JOptionPane.showMessageDialog(this, image + " is being labeled by " + holder);
+            return false;
+         }
+      } catch (IOException ex) {
+         System.err.println("Could not lease " + image + ": " + ex);
+      }
+      releaseLease();
+      return true;
+   }
+   
+   // Leases the next image of the shared directory that nobody has labeled or leased, gives
+   // the lease of the current image back, and returns the new image's absolute pathname.
+   // Returns null, after telling the user, if no such image is left or the lease server
+   // cannot be reached.
+   // Parameters:
+   //    - String folderName: absolute pathname of the shared directory
+   private String nextFreeImage(String folderName) {
+      try {
+         String image = leaseClient.next(fileName == null ? null : leaseName(fileName));
+         if (image == null) {
+            JOptionPane.showMessageDialog(this, "All images are labeled or being labeled by other annotators");
+            return null;
+         }
+         releaseLease();
+         return new File(folderName, image.replace('/', File.separatorChar)).getAbsolutePath();
+      } catch (IOException ex) {
+         JOptionPane.showMessageDialog(this, "Could not reach the lease server: " + ex.getMessage());
+         return null;
+      }
+   }
+   
+   // Returns the name of the given image for the lease server: its path relative to the
+   // shared directory (folderName, the dataset root when its subdirectories are labeled too),
+   // with '/' separators, so that images of the same name in different clips are told apart
+   // Parameters:
+   //    - String imagePath: absolute pathname of an image under folderName
+   private String leaseName(String imagePath) {
+      return LeaseServer.relative(new File(folderName), new File(imagePath));
+   }
+   
+   // Gives the lease of the current image back to the lease server, counting the image as
+   // labeled if at least one joint has been confirmed
+   private void releaseLease() {
+      if (leaseClient == null || fileName == null) {
+         return;
+      }
+      try {
+         leaseClient.release(leaseName(fileName), annotation.getTotalConfirmedCount() > 0);
+      } catch (IOException ex) {
+         System.err.println("Could not release the lease of " + fileName + ": " + ex);
+      }
+   }
+   
+   // Returns the first image file (in natural order) of the given directory or its
+   // subdirectories, or null if there is none. Only waits until the first directory with
+   // images has been found; the rest of the tree is indexed in the background (see DatasetIndex).
+   // Parameters:
+   //    - File dir: the directory to be labeled
+   private static File firstImage(File dir) throws IOException {
+      try {
+         return DatasetIndex.open(dir).awaitFirst();
+      } catch (InterruptedException ex) {
+         throw new InterruptedIOException("Interrupted while looking for images in " + dir);
+      }
+   }
+   
+   // Saves the current image's labeled info and waits until everything written to the
+   // label store is on disk. Used when the window is closed. The session's journal is only
+   // deleted once its labels are safely in the store.
+   private void saveAndFlushLabels() {
+      saveLabels();
+      releaseLease();
+      if (labelStatus != null) {
+         labelStatus.close(); // Writes the labeled status file
+      }
+      try {
+         labelStore.flush();
+         if (journal != null) {
+            journal.close(SidecarLabelStore.FLUSH_MILLIS);
+         }
+      } catch (IOException ex) {
+         System.err.println("Could not save labels: " + ex);
+      }
+   }
+   
+   // Replaces the displayed joints, dot colors and tags with those of the given (reloaded)
+   // schema. Confirmed joints and tags of the current image are kept by name; a joint
+   // that is no longer listed keeps its position but gets no dot color, as if it had been
+   // read from a .label file.
+   // Parameters:
+   //    - LabelSchema newSchema: the schema to be displayed
+   private void applySchema(LabelSchema newSchema) {
+      if (newSchema == schema) {
+         return;
+      }
+      String selectedJoint = (String) joint.getSelectedItem();
+      String selectedTag = (String) tagNames.getSelectedItem();
+      int instance = annotation.getCurrentInstance();
+      annotation.write(labelData);
+      schema = newSchema;
+      annotation = new Annotation(schema.getJointNames());
+      annotation.read(labelData);
+      annotation.selectInstance(instance);
+      if (labelStatus != null) { // Whether an image is partially labeled depends on the joints
+         labelStatus.close();
+         labelStatus = new LabelStatus(imgIndex, labelStore, schema.getJointNames(), leaseClient != null);
+         labelStatus.start();
+      }
+      
+      jointRenderer.setColors(schema.getJointColors());
+      jointRenderer.setStrings(schema.getJointNames());
+      joint.setModel(new DefaultComboBoxModel<String>(schema.getJointNames().toArray(new String[0])));
+      if (schema.getJointNames().contains(selectedJoint)) {
+         joint.setSelectedItem(selectedJoint);
+      }
+      tagNames.setModel(new DefaultComboBoxModel<String>(schema.getTagNames().toArray(new String[0])));
+      if (schema.getTagNames().contains(selectedTag)) {
+         tagNames.setSelectedItem(selectedTag);
+      }
+      updateInstanceChoice();
+      showSelectedJoint();
+      showSelectedTag();
+      imgLabel.invalidateOverlay();
+      imgLabel.repaint();
+   }
+   
+   // Displays the current bounding box's corner x, y positions in the text fields
+   private void showBoxCorners() {
+      boxCornersTimer.stop();
+      boxX1Input.setText("" + boxX1);
+      boxY1Input.setText("" + boxY1);
+      boxX2Input.setText("" + boxX2);
+      boxY2Input.setText("" + boxY2);
+   }
+   
+   // Displays the bounding box's corners within the next frame. Calls in the meantime are
+   // merged, so the text fields are updated at most once per frame.
+   private void scheduleBoxCorners() {
+      if (!boxCornersTimer.isRunning()) {
+         boxCornersTimer.start();
+      }
+   }
+   
+   // Makes the object instance at the given position the current one (adding an instance if
+   // it is the position after the last one), and displays its joints and box. An unconfirmed
+   // box drawn for the previous instance is forgotten.
+   // Parameters:
+   //    - int instance: position of the instance
+   private void selectInstance(int instance) {
+      if (instance == annotation.getCurrentInstance()) {
+         return;
+      }
+      annotation.selectInstance(instance);
+      boxX1 = annotation.getBoxX();
+      boxY1 = annotation.getBoxY();
+      boxX2 = annotation.getBoxX() + annotation.getBoxW();
+      boxY2 = annotation.getBoxY() + annotation.getBoxH();
+      showBoxCorners();
+      showSelectedJoint();
+      updateInstanceChoice();
+      imgLabel.repaint();
+   }
+   
+   // Lists the annotation's instances in the instance drop-down list and selects the current one
+   private void updateInstanceChoice() {
+      if (instanceChoice.getItemCount() != annotation.getInstanceCount()) {
+         String[] items = new String[annotation.getInstanceCount()];
+         for (int i = 0; i < items.length; i++) {
+            items[i] = "" + (i + 1);
+         }
+         instanceChoice.setModel(new DefaultComboBoxModel<String>(items));
+      }
+      if (instanceChoice.getSelectedIndex() != annotation.getCurrentInstance()) {
+         instanceChoice.setSelectedIndex(annotation.getCurrentInstance());
+      }
+   }
+   
+   // Confirms the current instance's joint with the given ordinal at the given coordinates,
+   // e.g. after it was dragged, and redisplays the joints
+   // Parameters:
+   //    - int ordinal: the joint's ordinal
+   //    - int jointX, int jointY: the joint's coordinates within the image
+   private void confirmJoint(int ordinal, int jointX, int jointY) {
+      annotation.confirm(ordinal, jointX, jointY);
+      if (journal != null) {
+         journal.confirmJoint(fileName, annotation.getCurrentInstance(), annotation.getName(ordinal), jointX, jointY);
+      }
+      imgLabel.repaint();
+   }
+   
+   // Displays the x and y coordinates of the joint selected in the drop-down list. If the
+   // selected joint has not been confirmed, the text fields will be empty.
+   private void showSelectedJoint() {
+      int curr = joint.getSelectedIndex(); // Joint ordinal
+      if (curr >= 0 && annotation.isConfirmed(curr)) {
+         x.setText("" + annotation.getX(curr));
+         y.setText("" + annotation.getY(curr));
+      } else {
+         x.setText("");
+         y.setText("");
+      }
+   }
+   
+   // Displays the previously stored info of the tag selected in the drop-down list. If no
+   // previously stored info can be found for the tag, the text field will be empty.
+   private void showSelectedTag() {
+      String curr = "" + tagNames.getSelectedItem();
+      if (annotation.getTags().containsKey(curr)) {
+         tagInput.setText("" + annotation.getTags().get(curr));
+      } else {
+         tagInput.setText("");
+      }
+   }
+   
    // Takes care of when ActionEvents are fired (JButtons are clicked). Case for each
    // of the 6 JButtons in the UI.
    // Parameters:
@@ -514,54 +990,21 @@ public class LabelImage extends JFrame implements ActionListener, WindowListener
       String source = ((JButton)e.getSource()).getActionCommand(); // Get the name of the JButton that was clicked
       // Confirm Joint button was clicked: (and an x and y coordinate have been selected)
       if (source.equals("CONFIRM JOINT AND INCREMENT") && !x.getText().isEmpty() && !y.getText().isEmpty()) {
-         // if the selected joint has been previously confirmed:
-         if (confirmedJoints.contains("" + joint.getSelectedItem())) {
-            // Look for selected joint in the dataset of confirmed joints, storing the index
-            int desiredIndex = 0;
-            for (int i = 0; i < dataset.size(); i++) {
-               JSONObject curr = (JSONObject) dataset.get(i);
-               if (curr.get("name").equals("" + joint.getSelectedItem())) {
-                  desiredIndex = i;
-                  break;
-               }
-            }
-            // Access the desired joint JSONObject and modify its x and y coordinates
-            ((JSONObject)dataset.get(desiredIndex)).put("x-coordinate", Integer.parseInt(x.getText()));
-            ((JSONObject)dataset.get(desiredIndex)).put("y-coordinate", Integer.parseInt(y.getText()));
-         } else { // selected joint has not been previously confirmed:
-            // Create a brand new joint JSONObject for this joint and add to the dataset
-            JSONObject newJoint = new JSONObject();
-            newJoint.put("name", "" + joint.getSelectedItem());
-            newJoint.put("x-coordinate", Integer.parseInt(x.getText()));
-            newJoint.put("y-coordinate", Integer.parseInt(y.getText()));
-            dataset.add(newJoint);
-            confirmedJoints.add("" + joint.getSelectedItem());
+         // Store the selected joint's x and y coordinates. A previously confirmed joint is
+         // modified in place; otherwise the joint is added after all confirmed joints.
+         int currSelectedIndex = joint.getSelectedIndex(); // Joint ordinal
+         if (currSelectedIndex >= 0) {
+            // Store and redisplay image with updated colored dots
+            confirmJoint(currSelectedIndex, Integer.parseInt(x.getText()), Integer.parseInt(y.getText()));
          }
          
-         // redisplay image with updated colored dots
-         imgLabel.repaint();
-         
          // Auto-increment the selected joint to be the next in the drop-down menu for quick labeling
-         String currSelected = "" + joint.getSelectedItem();
-         int currSelectedIndex = jointNamesList.indexOf(currSelected);
-         if (currSelectedIndex < jointNamesList.size() - 1) {
+         if (currSelectedIndex < schema.getJointCount() - 1) {
             joint.setSelectedIndex(currSelectedIndex + 1);
          }
          
       } else if (source.equals("LOAD NEW IMAGE")) { // Load New Image button was clicked
-         setVisible(false);
-         c.removeAll();
-         
-         // if at least one joint has been confirmed, add all labeled info to root and write to .label file
-         if (!dataset.isEmpty()) {
-            try {
-               PrintStream output = new PrintStream(fileName + ".label");
-               overall.put("Joints", dataset);
-               overall.put("Tags", tags);
-               overall.put("Bounding box", boundingBox);
-               output.println(overall.toJSONString());
-            } catch (FileNotFoundException ex) {}
-         }
+         saveLabels(); // Write any labeled info of the current image to its .label file
          
          File folder = new File(folderName);
          // Set up the file chooser with the current directory
@@ -580,120 +1023,131 @@ public class LabelImage extends JFrame implements ActionListener, WindowListener
          openFile.setVisible(true);
          String newFileName = "";
          String newFolderName = "";
-         File[] newImgFiles = null;
+         boolean newDatasetRoot = false;
          
-         // Used for filtering out non-image files when creating the new array of
-         // image files for the new image
-         FilenameFilter filter = new FilenameFilter() {
-            @Override
-            public boolean accept(File dir, String name) {
-               File f = new File(name);
-               for (String ext : EXTENSIONS) {
-                  if (name.endsWith(ext) && !f.isDirectory()) {
-                     return true;
+         // When a file/directory is chosen:
+         try {
+            if (returnVal == JFileChooser.APPROVE_OPTION) {
+               File selected = chooser.getSelectedFile();
+               if (selected.isDirectory()) { // User selected a directory: label it with all of its subdirectories
+                  newFolderName = selected.getAbsolutePath();
+                  newDatasetRoot = true;
+                  File first = firstImage(selected);
+                  if (first == null) { // Exit program if selected directory has no image files
+                     JOptionPane.showMessageDialog(openFile, "No image files found in selected directory... Exiting");
+                     openFile.setVisible(false);
+                     System.exit(0);
                   }
+                  newFileName = first.getAbsolutePath(); // Set new image file to be the first image
+                                                         // in selected directory
+               } else { // User selected a file (not directory)
+                  newFileName = selected.getAbsolutePath();
+                  // Set new folder to be parent directory of selected image file
+                  newFolderName = selected.getAbsoluteFile().getParent();
                }
-               return false;
+               openFile.setVisible(false);
+               openFile.removeAll();
+            } else { // Exit program if a file/directory is not chosen (user manually exits from file chooser window)
+               System.exit(0);
             }
-         };
-         
-         // When a file/directory is chosen:
-         if (returnVal == JFileChooser.APPROVE_OPTION) {
-            File selected = chooser.getSelectedFile();
-            if (selected.isDirectory()) { // User selected a directory
-               newFolderName = selected.getAbsolutePath();
-               newImgFiles = selected.listFiles(filter);
-               if (newImgFiles.length == 0) { // Exit program if selected directory has no image files
-                  JOptionPane.showMessageDialog(openFile, "No image files found in selected directory... Exiting");
-                  openFile.setVisible(false);
-                  System.exit(0);
-               }
-               Arrays.sort(newImgFiles);
-               newFileName = newImgFiles[0].getAbsolutePath(); // Set new image file to be the first image
-                                                               // in selected directory
-            } else { // User selected a file (not directory)
-               newFileName = selected.getAbsolutePath();
-               File parent = selected.getParentFile();
-               if (parent != null) { // Set new folder to be parent directory of selected image file
-                  newFolderName = parent.getAbsolutePath();
-                  // List and sort all image files in parent directory
-                  newImgFiles = parent.listFiles(filter);
-                  Arrays.sort(newImgFiles);
-               }
+            // Display new selected image in this window
+            if (leaseImage(newFileName)) {
+               datasetRoot = newDatasetRoot;
+               showImage(newFileName, newFolderName);
             }
-            openFile.setVisible(false);
-            openFile.removeAll();
-         } else { // Exit program if a file/directory is not chosen (user manually exits from file chooser window)
-            System.exit(0);
-         }
-         try {
-            // Create new image labeling GUI for new selected image
-            LabelImage main = new LabelImage(newFileName, newFolderName, newImgFiles);
          } catch (IOException ex) {
          } catch (ParseException pEx) {}
       } else if (source.equals("(<) PREVIOUS IMAGE")) { // Previous Image button was clicked
-         if (currImgFileIndex > 0) { // as long as not the very first image file alphabetically in directory
-            setVisible(false);
-            c.removeAll();
+         int target = previousPosition();
+         if (target >= 0) { // as long as not the very first (matching) image file
+            saveLabels(); // Write any labeled info of the current image to its .label file
             
-            // if at least one joint has been confirmed, add all labeled info to root and write to .label file
-            if (!dataset.isEmpty()) { 
-               try {
-                  PrintStream output = new PrintStream(fileName + ".label");
-                  overall.put("Joints", dataset);
-                  overall.put("Tags", tags);
-                  overall.put("Bounding box", boundingBox);
-                  output.println(overall.toJSONString());
-               } catch (FileNotFoundException ex) {}
+            // Get the previous (matching) image file in natural order
+            String newFileName = imgFiles.get(target).getAbsolutePath();
+            if (!leaseImage(newFileName)) {
+               return;
             }
-            
-            // Get the previous image file alphabetically in the current image's parent directory
-            String newFileName = imgFiles[currImgFileIndex - 1].getAbsolutePath();
             try {
-               // Create new image labeling GUI for new image
-               LabelImage main = new LabelImage(newFileName, folderName, imgFiles);
+               // Display previous image in this window
+               showImage(newFileName, folderName);
+            } catch (IOException ex) {
+            } catch (ParseException pEx) {}
+         }
+      } else if (source.equals("NEXT IMAGE (>)") && leaseClient != null) { // Next Image button was clicked while sharing
+                                                                            // the directory: open the next free image
+         saveLabels();
+         String newFileName = nextFreeImage(folderName);
+         if (newFileName != null) {
+            try {
+               showImage(newFileName, folderName);
             } catch (IOException ex) {
             } catch (ParseException pEx) {}
          }
       } else if (source.equals("NEXT IMAGE (>)")) { // Next Image button was clicked
-         if (currImgFileIndex < imgFiles.length - 1) { // as long as not the very last image file alphabetically in directory
-            setVisible(false);
-            c.removeAll();
-            
-            // if at least one joint has been confirmed, add all labeled info to root and write to .label file
-            if (!dataset.isEmpty()) {
-               try {
-                  PrintStream output = new PrintStream(fileName + ".label");
-                  overall.put("Joints", dataset);
-                  overall.put("Tags", tags);
-                  overall.put("Bounding box", boundingBox);
-                  output.println(overall.toJSONString());
-               } catch (FileNotFoundException ex) {}
-            }
+         int target = nextPosition();
+         if (target >= 0) { // as long as not the very last (matching) image file
+            saveLabels(); // Write any labeled info of the current image to its .label file
             
-            // Get the next image file alphabetically in the current image's parent directory
-            String newFileName = imgFiles[currImgFileIndex + 1].getAbsolutePath();
+            // Get the next (matching) image file in natural order
+            String newFileName = imgFiles.get(target).getAbsolutePath();
             try {
-               // Create a new image labeling GUI for new image
-               LabelImage main = new LabelImage(newFileName, folderName, imgFiles);
+               // Display next image in this window
+               showImage(newFileName, folderName);
             } catch (IOException ex) {
             } catch (ParseException pEx) {}
          }
+      } else if (source.equals("NEXT UNLABELED IMAGE (Shift >)") || source.equals("NEXT PARTIALLY LABELED IMAGE")) { // Jump to the next image
+                                                                                                                    // with that status (see LabelStatus)
+         saveLabels(); // The current image's status is up to date before searching
+         boolean unlabeled = source.equals("NEXT UNLABELED IMAGE (Shift >)");
+         int target = labelStatus.next(unlabeled ? LabelStatus.UNLABELED : LabelStatus.PARTIAL, imgFiles, currImgFileIndex);
+         if (target < 0) {
+            JOptionPane.showMessageDialog(this, "No " + (unlabeled ? "unlabeled" : "partially labeled") + " image after this one"
+                  + (labelStatus.isReady() ? "." : " (still reading the labeled status of the images)."));
+            return;
+         }
+         String newFileName = imgFiles.get(target).getAbsolutePath();
+         if (!leaseImage(newFileName)) {
+            return;
+         }
+         try {
+            showImage(newFileName, folderName);
+         } catch (IOException ex) {
+         } catch (ParseException pEx) {}
+      } else if (source.equals("INTERPOLATE BETWEEN KEYFRAMES")) { // Generate the labels between keyframes (see KeyframeInterpolator)
+         saveLabels(); // The current image may be a keyframe
+         Object[] methods = {"Linear", "Spline", "Cancel"};
+         int method = JOptionPane.showOptionDialog(this, "Generate the labels of all images between labeled keyframes of this directory,"
+               + " replacing those of images interpolated before?", "Interpolate between keyframes",
+               JOptionPane.DEFAULT_OPTION, JOptionPane.QUESTION_MESSAGE, null, methods, methods[0]);
+         if (method == 0 || method == 1) {
+            interpolateKeyframes(method == 0 ? KeyframeInterpolator.LINEAR : KeyframeInterpolator.SPLINE);
+         }
       } else if (source.equals("CONFIRM TAG")) { // Confirm Tag button was clicked
          // Get user input text from tag text field
          String currTagInput = "" + tagInput.getText();
          
-         // As long as input text is not empty, save input text with selected tag description into tag JSONObject
+         // As long as input text is not empty, save input text with selected tag description into the annotation
          if (!currTagInput.equals("")) {
             String currTagName = "" + tagNames.getSelectedItem();
-            tags.put(currTagName, currTagInput);
+            annotation.getTags().put(currTagName, currTagInput);
+            annotation.setInterpolated(false); // Reviewed
+            if (journal != null) {
+               journal.confirmTag(fileName, currTagName, currTagInput);
+            }
          }
       } else if (source.equals("CONFIRM BOX")) { // Confirm Box button was clicked
-         // Save the drawn bounding box's x, y top-left coordinates and width/height into bounding box JSONObject
-         boundingBox.put("x", "" + boxX1);
-         boundingBox.put("y", "" + boxY1);
-         boundingBox.put("w", "" + (boxX2 - boxX1));
-         boundingBox.put("h", "" + (boxY2 - boxY1));
+         // Save the drawn bounding box's x, y top-left coordinates and width/height into the annotation
+         annotation.setBox(boxX1, boxY1, boxX2 - boxX1, boxY2 - boxY1);
+         if (journal != null) {
+            journal.confirmBox(fileName, annotation.getCurrentInstance(), boxX1, boxY1, boxX2 - boxX1, boxY2 - boxY1);
+         }
+         imgLabel.repaint(); // Other instances' boxes are drawn with the joints
+      } else if (source.equals("NEW INSTANCE")) { // New Instance button was clicked: label another object
+         selectInstance(annotation.getInstanceCount());
+         if (schema.getJointCount() > 0) { // Start again from the first joint
+            joint.setSelectedIndex(0);
+         }
       }
    }
    
@@ -709,35 +1163,19 @@ public class LabelImage extends JFrame implements ActionListener, WindowListener
    public void windowOpened(WindowEvent e) {}
    
    // If the current image labeling GUI is manually closed by user, and at least one joint has been confirmed,
-   // add all labeled image data into root JSONObject and output to .label file
+   // write all labeled image data to the label store (its .label file)
    // Parameters:
    //    - WindowEvent e: action event that is fired when the window is closed
    public void windowClosed(WindowEvent e) {
-      if (!dataset.isEmpty()) {
-         try {
-            PrintStream output = new PrintStream(fileName + ".label");
-            overall.put("Joints", dataset);
-            overall.put("Tags", tags);
-            overall.put("Bounding box", boundingBox);
-            output.println(overall.toJSONString());
-         } catch (FileNotFoundException ex) {}
-      }
+      saveAndFlushLabels();
    }
    
    // If the current image labeling GUI is in the process of closing, and at least one joint has been confirmed,
-   // add all labeled image data into root JSONObject and output to .label file
+   // write all labeled image data to the label store (its .label file)
    // Parameters:
    //    - WindowEvent e: action event that is fired when the window is closing
    public void windowClosing(WindowEvent e) {
-      if (!dataset.isEmpty()) {
-         try {
-            PrintStream output = new PrintStream(fileName + ".label");
-            overall.put("Joints", dataset);
-            overall.put("Tags", tags);
-            overall.put("Bounding box", boundingBox);
-            output.println(overall.toJSONString());
-         } catch (FileNotFoundException ex) {}
-      }
+      saveAndFlushLabels(); // Make sure everything is on disk before exiting
    }
    
    // Empty keyPressed and keyTyped methods to satisfy KeyListener interface
@@ -751,15 +1189,19 @@ public class LabelImage extends JFrame implements ActionListener, WindowListener
    public void keyReleased(KeyEvent e) {
       // If right arrow button, move to next image by programatically clicking the Next Image button.
       // Likewise for left arrow button.
-      if (e.getKeyCode() == KeyEvent.VK_RIGHT && currImgFileIndex < imgFiles.length - 1) {
+      // Shift and right arrow button moves to the next unlabeled image.
+      if (e.getKeyCode() == KeyEvent.VK_RIGHT && e.isShiftDown()) {
+         nextUnlabeled.doClick();
+      } else if (e.getKeyCode() == KeyEvent.VK_RIGHT && (nextPosition() >= 0 || leaseClient != null)) {
          next.doClick();
-      } else if (e.getKeyCode() == KeyEvent.VK_LEFT && currImgFileIndex > 0) {
+      } else if (e.getKeyCode() == KeyEvent.VK_LEFT && previousPosition() >= 0) {
          previous.doClick();
       }
    }
    
    // Main method to handle initial application startup
    public static void main(String[] args) throws IOException, ParseException {
+      EdtWatchdog.install(); // Report event handlers that make the GUI unresponsive (see EdtWatchdog)
    
       // Create initial file chooser
       JFrame initialOpenFile = new JFrame();
@@ -773,51 +1215,29 @@ public class LabelImage extends JFrame implements ActionListener, WindowListener
       
       String initFolderName = "";
       String initFileName = "";
-      File[] initImgFiles = null;
-      
-      // File filter to filter out non-image files. To be used when listing all directory image files into an array.
-      FilenameFilter initialFilter = new FilenameFilter() {
-         @Override
-         public boolean accept(File dir, String name) {
-            File f = new File(name);
-            for (String ext : EXTENSIONS) {
-               if (name.endsWith(ext) && !f.isDirectory()) {
-                  return true;
-               }
-            }
-            return false;
-         }
-      };
+      boolean initDatasetRoot = false;
       
       // Once a file/directory has been selected, determine if selected item is file or directory
       if (returnVal == JFileChooser.APPROVE_OPTION) {
          File selected = initialChooser.getSelectedFile();
          if (selected.isDirectory()) { // If selected a directory
-            // If the chosen directory has image file(s), initial folder is chosen directory,
-            // initial array of image files is the alphabetically sorted list of all image files
-            // in the chosen directory, and initial image file is the first file alphabetically
-            // in the chosen directory.
+            // If the chosen directory or its subdirectories have image file(s), initial folder is
+            // chosen directory, and initial image file is the first image file (in natural order)
+            // in the chosen directory tree. The dataset index started here is reused by the
+            // labeling GUI and keeps indexing the rest of the tree in the background.
             initFolderName = selected.getAbsolutePath();
-            initImgFiles = selected.listFiles(initialFilter);
-            if (initImgFiles.length == 0) { // If chosen directory has no image files, display error and exit application
+            initDatasetRoot = true;
+            File first = firstImage(selected);
+            if (first == null) { // If chosen directory has no image files, display error and exit application
                JOptionPane.showMessageDialog(initialOpenFile, "No image files found in selected directory... Exiting");
                initialOpenFile.setVisible(false);
                System.exit(0);
             }
-            Arrays.sort(initImgFiles);
-            initFileName = initImgFiles[0].getAbsolutePath();
+            initFileName = first.getAbsolutePath();
          } else { // Otherwise, if selected a file
-            // Initial image file is chosen file, initial directory is chosen file's parent directory,
-            // and initial array of image files is the alphabetically sorted list of all image files in
-            // the chosen file's parent directory. If the chosen file has no parent directory, the
-            // initial array of image files remains empty.
+            // Initial image file is chosen file, and initial directory is chosen file's parent directory.
             initFileName = selected.getAbsolutePath();
-            File parent = selected.getParentFile();
-            if (parent != null) {
-               initFolderName = parent.getAbsolutePath();
-               initImgFiles = parent.listFiles(initialFilter);
-               Arrays.sort(initImgFiles);
-            }
+            initFolderName = selected.getAbsoluteFile().getParent();
          }
          initialOpenFile.setVisible(false);
          initialOpenFile.removeAll();
@@ -826,7 +1246,7 @@ public class LabelImage extends JFrame implements ActionListener, WindowListener
       }
       
       // Create an initial image labeling GUI for the initial image file
-      LabelImage main = new LabelImage(initFileName, initFolderName, initImgFiles);
+      LabelImage main = new LabelImage(initFileName, initFolderName, initDatasetRoot);
    }
    
    // Nested class for allowing an image to be drawn on via mouse actions in the GUI
@@ -836,15 +1256,27 @@ public class LabelImage extends JFrame implements ActionListener, WindowListener
       private int mouseY; // Y-position of mouse click
       private int mouseXStart; // Stored x-position when mouse is first pressed and about to be dragged
       private int mouseYStart; // Stored y-position when mouse is first pressed and about to be dragged
-      private boolean resizingTopLeft; // True when the top left corner of the bounding box is being resized
-      private boolean resizingBottomRight; // True when the bottom right corner of the bounding box is being resized
-      private boolean resizingTopRight; // True when the top right corner of the bounding box is being resized
-      private boolean resizingBottomLeft; // True when the bottom left corner of the bounding box is being resized
+      private boolean resizing; // True when a corner of the bounding box is being resized
+      private boolean boxDragging; // True while a bounding box is drawn or resized with the right mouse button
       private int axisX; // Used to store the non-moving x-position corner when the opposite corner
                          // of the bounding box is being resized/dragged
       private int axisY; // Used to store the non-moving y-position corner when the opposite corner
                          // of the bounding box is being resized/dragged
       private boolean mouseJointClicked;
+      private int grabbedInstance; // Instance of the confirmed joint the left mouse button was pressed on
+      private int grabbedJoint; // Ordinal of the confirmed joint the left mouse button was pressed on, or -1
+      private int draggedJoint; // Ordinal of the confirmed joint being dragged with the left mouse button, or -1
+      private HitGrid hitGrid; // Confirmed joints and box corners of all instances, for finding the one under the mouse
+      private long hitGridModCount; // Annotation modification count the hit grid was built for (-1 if never)
+      private Rectangle previewDot; // Area of the most recently drawn unconfirmed joint dot, or null
+      private final LabelPainter painter; // Draws the box being labeled, the joints and the other instances' boxes
+      private TiledImage tiled; // Very large image displayed from tiles with zoom and pan, or null if the icon is displayed at 1:1
+      private double scale; // Screen pixels per image pixel (always 1 unless a tiled image is displayed)
+      private double originX; // Component x position of the tiled image's pixel (0, 0)
+      private double originY; // Component y position of the tiled image's pixel (0, 0)
+      private boolean fitPending; // True until the tiled image has been fitted into the component's actual size
+      private int panX; // Last x-position of the mouse while panning with the middle mouse button
+      private int panY; // Last y-position of the mouse while panning with the middle mouse button
       
       // Creates a new drawable image component with the specified image as a basis
       // Parameters:
@@ -853,11 +1285,18 @@ public class LabelImage extends JFrame implements ActionListener, WindowListener
          super(img); // add image to component
          
          // Initially not resizing
-         resizingTopLeft = false;
-         resizingBottomRight = false;
+         resizing = false;
          
          // Initially no mouse clicked
          mouseJointClicked = false;
+         grabbedJoint = -1;
+         draggedJoint = -1;
+         hitGrid = new HitGrid();
+         hitGridModCount = -1;
+         painter = new LabelPainter();
+         
+         // Initially not tiled, so the image is displayed at 1:1
+         scale = 1.0;
          
          // Add a mouse listener to receive mouse-pressed and mouse-released actions
          this.addMouseListener(new MouseAdapter() {
@@ -872,57 +1311,75 @@ public class LabelImage extends JFrame implements ActionListener, WindowListener
                   mouseX = e.getX();
                   mouseY = e.getY();
                   // Calculate x, y position with respect to image itself
-                  int xC = mouseX - ((imgLabel.getWidth() - img.getIconWidth()) / 2);
-                  int yC = mouseY - ((imgLabel.getHeight() - img.getIconHeight()) / 2);
+                  int xC = toImageX(mouseX);
+                  int yC = toImageY(mouseY);
                   x.setText("" + xC);
                   y.setText("" + yC);
                   mouseJointClicked = true;
-                  repaint();
+                  // Only redraw around the new dot and the previously drawn one (which is erased)
+                  Rectangle damage = dotBounds(mouseX, mouseY);
+                  if (previewDot != null) {
+                     damage.add(previewDot);
+                  }
+                  repaint(damage);
                }
             }
             
             // When mouse is pressed on this component, if the mouse pressed button was the right mouse button,
             // store mouse pressed x, y position with respect to the image. If the mouse was pressed within two
-            // coordinates of any of the previously drawn bounding box's corners, set the appropriate resizing
-            // corner boolean to be true and store the appropriate non-moving axis corner of the box when resizing.
+            // coordinates of a corner of the current instance's drawn box, or of another instance's confirmed box
+            // (which selects that instance), begin resizing and store the opposite corner as the non-moving axis.
+            // If the left mouse button was pressed on a confirmed joint of any instance, begin dragging that joint.
             // Finally, redisplay with updated box.
             // Parameters:
             //    - MouseEvent e: the mouse action event that is fired when the mouse is pressed
             public void mousePressed(MouseEvent e) {
+               if (e.getButton() == MouseEvent.BUTTON2 && tiled != null) { // Start panning a tiled image
+                  panX = e.getX();
+                  panY = e.getY();
+               }
+               if (e.getButton() == MouseEvent.BUTTON1) {
+                  // Grab the nearest confirmed joint under the dot drawn for it, if any. It is only
+                  // selected once it is dragged, so clicking near a joint still places the selected one.
+                  int hit = findHit(HitGrid.JOINT, toImageX(e.getX()), toImageY(e.getY()), Math.max(4, (int) Math.round(4 / scale)));
+                  grabbedJoint = -1;
+                  if (hit >= 0 && hitGrid.getIndex(hit) < schema.getJointCount()) {
+                     grabbedInstance = hitGrid.getInstance(hit);
+                     grabbedJoint = hitGrid.getIndex(hit);
+                  }
+               }
                if (e.getButton() == MouseEvent.BUTTON3) {
+                  boxDragging = true;
                   // Get mouse pressed x, y position with respect to image
-                  mouseXStart = e.getX() - ((imgLabel.getWidth() - img.getIconWidth()) / 2);
-                  mouseYStart = e.getY() - ((imgLabel.getHeight() - img.getIconHeight()) / 2);
+                  mouseXStart = toImageX(e.getX());
+                  mouseYStart = toImageY(e.getY());
                   
-                  // If within two coordinates of any of the four previously drawn box's corners, begin resizing.
-                  if ((mouseXStart - 2 == boxX1 || mouseXStart - 1 == boxX1 || mouseXStart == boxX1 || mouseXStart + 2 == boxX1
-                      || mouseXStart + 1 == boxX1) && (mouseYStart - 2 == boxY1 || mouseYStart - 1 == boxY1 || mouseYStart == boxY1
-                      || mouseYStart + 1 == boxY1 || mouseYStart + 2 == boxY1)) { // Pressed at top-left corner
-                     resizingTopLeft = true; // Resizing top-left mode is activated
-                     // Non-moving axis when resizing/dragging is the opposite corner (bottom-right)
-                     axisX = boxX2;
-                     axisY = boxY2;
-                  } else if ((mouseXStart - 2 == boxX2 || mouseXStart - 1 == boxX2 || mouseXStart == boxX2 || mouseXStart + 2 == boxX2
-                             || mouseXStart + 1 == boxX2) && (mouseYStart - 2 == boxY2 || mouseYStart - 1 == boxY2 || mouseYStart == boxY2
-                             || mouseYStart + 1 == boxY2 || mouseYStart + 2 == boxY2)) { // Pressed at bottom-right corner
-                     resizingBottomRight = true; // Resizing bottom-right mode is activated
-                     // Non-moving axis when resizing/dragging is the opposite corner (top-left)
-                     axisX = boxX1;
-                     axisY = boxY1;
-                  } else if ((mouseXStart - 2 == boxX2 || mouseXStart - 1 == boxX2 || mouseXStart == boxX2 || mouseXStart + 2 == boxX2
-                             || mouseXStart + 1 == boxX2) && (mouseYStart - 2 == boxY1 || mouseYStart - 1 == boxY1 || mouseYStart == boxY1
-                             || mouseYStart + 1 == boxY1 || mouseYStart + 2 == boxY1)) { // Pressed at top-right corner
-                     resizingTopRight = true; // Resizing top-right mode is activated
-                     // Non-moving axis when resizing/dragging is the opposite corner (bottom-left)
-                     axisX = boxX1;
-                     axisY = boxY2;
-                  } else if ((mouseXStart - 2 == boxX1 || mouseXStart - 1 == boxX1 || mouseXStart == boxX1 || mouseXStart + 2 == boxX1
-                             || mouseXStart + 1 == boxX1) && (mouseYStart - 2 == boxY2 || mouseYStart - 1 == boxY2 || mouseYStart == boxY2
-                             || mouseYStart + 1 == boxY2 || mouseYStart + 2 == boxY2)) { // Pressed at bottom-left corner
-                     resizingBottomLeft = true; // Resizing bottom-left mode is activated
-                     // Non-moving axis when resizing/dragging is the opposite corner (top-right)
-                     axisX = boxX2;
-                     axisY = boxY1;
+                  // If within two coordinates (two screen pixels when zoomed out) of any of the four
+                  // corners of the current instance's drawn box, begin resizing. Otherwise, a corner of
+                  // another instance's confirmed box selects that instance and begins resizing its box.
+                  int radius = Math.max(2, (int) Math.round(2 / scale));
+                  int corner = -1;
+                  long cornerDistance = Long.MAX_VALUE;
+                  for (int c = 0; c < 4; c++) {
+                     long dx = cornerX(c) - mouseXStart;
+                     long dy = cornerY(c) - mouseYStart;
+                     if (Math.abs(dx) <= radius && Math.abs(dy) <= radius && dx * dx + dy * dy < cornerDistance) {
+                        corner = c;
+                        cornerDistance = dx * dx + dy * dy;
+                     }
+                  }
+                  if (corner < 0) {
+                     int hit = findHit(HitGrid.CORNER, mouseXStart, mouseYStart, radius);
+                     if (hit >= 0) {
+                        selectInstance(hitGrid.getInstance(hit));
+                        corner = hitGrid.getIndex(hit);
+                     }
+                  }
+                  if (corner >= 0) {
+                     resizing = true; // Resizing mode is activated
+                     // Non-moving axis when resizing/dragging is the opposite corner
+                     axisX = cornerX((corner + 2) % 4);
+                     axisY = cornerY((corner + 2) % 4);
                   }
                   
                   // Redisplay
@@ -939,15 +1396,26 @@ public class LabelImage extends JFrame implements ActionListener, WindowListener
             // Parameters:
             //    - MouseEvent e: the mouse action event that is fired when the mouse is released
             public void mouseReleased(MouseEvent e) {
+               if (e.getButton() == MouseEvent.BUTTON1) {
+                  grabbedJoint = -1;
+               }
+               if (e.getButton() == MouseEvent.BUTTON1 && draggedJoint >= 0) { // Drop the dragged joint where the mouse is
+                  int ordinal = draggedJoint;
+                  draggedJoint = -1;
+                  confirmJoint(ordinal, toImageX(e.getX()), toImageY(e.getY()));
+                  showSelectedJoint();
+               }
                if (e.getButton() == MouseEvent.BUTTON3) {
                   // Get mouse released x, y position with respect to the image
-                  int mouseXEnd = e.getX() - ((imgLabel.getWidth() - img.getIconWidth()) / 2);
-                  int mouseYEnd = e.getY() - ((imgLabel.getHeight() - img.getIconHeight()) / 2);
+                  int mouseXEnd = toImageX(e.getX());
+                  int mouseYEnd = toImageY(e.getY());
+                  
+                  Rectangle damage = boxBounds(); // Area of the box before it changes
                   
                   // If any of the resizing modes are activated, the new box's top-left and bottom-right x, y positions
                   // can be calculated by comparing the mouse-released x, y position with the previously determined
                   // non-moving axis/corner of the box.
-                  if (resizingTopLeft || resizingBottomRight || resizingTopRight || resizingBottomLeft) {
+                  if (resizing) {
                      boxX1 = Math.min(mouseXEnd, axisX);
                      boxY1 = Math.min(mouseYEnd, axisY);
                      boxX2 = Math.max(mouseXEnd, axisX);
@@ -961,20 +1429,16 @@ public class LabelImage extends JFrame implements ActionListener, WindowListener
                      boxY2 = Math.max(mouseYStart, mouseYEnd);
                   }
                   
-                  // Display the updated box corner x, y positions
-                  boxX1Input.setText("" + boxX1);
-                  boxY1Input.setText("" + boxY1);
-                  boxX2Input.setText("" + boxX2);
-                  boxY2Input.setText("" + boxY2);
+                  // Display the final box corner x, y positions right away
+                  showBoxCorners();
                   
-                  // Redisplay with updated box
-                  repaint();
+                  // Redisplay only the area covered by the old and the updated box
+                  damage.add(boxBounds());
+                  repaint(damage);
+                  boxDragging = false;
                   
-                  // Deactivate all resizing modes
-                  resizingTopLeft = false;
-                  resizingTopRight = false;
-                  resizingBottomRight = false;
-                  resizingBottomLeft = false;
+                  // Deactivate resizing mode
+                  resizing = false;
                }
             }
          });
@@ -991,15 +1455,40 @@ public class LabelImage extends JFrame implements ActionListener, WindowListener
             // Parameters: 
             //    - MouseEvent e: the mouse action event that is fired repeatedly as the mouse is dragged.
             public void mouseDragged(MouseEvent e) {
+               if (SwingUtilities.isMiddleMouseButton(e) && tiled != null) { // Pan a tiled image
+                  originX += e.getX() - panX;
+                  originY += e.getY() - panY;
+                  panX = e.getX();
+                  panY = e.getY();
+                  repaint();
+               }
+               if (SwingUtilities.isLeftMouseButton(e) && grabbedJoint >= 0) { // Start dragging the grabbed joint
+                  selectInstance(grabbedInstance);
+                  joint.setSelectedIndex(grabbedJoint);
+                  draggedJoint = grabbedJoint;
+                  grabbedJoint = -1;
+               }
+               if (SwingUtilities.isLeftMouseButton(e) && draggedJoint >= 0) { // Show the dragged joint where the mouse is
+                  Rectangle damage = previewDot != null ? new Rectangle(previewDot) : dotBounds(e.getX(), e.getY());
+                  mouseX = e.getX();
+                  mouseY = e.getY();
+                  x.setText("" + toImageX(mouseX));
+                  y.setText("" + toImageY(mouseY));
+                  mouseJointClicked = true;
+                  damage.add(dotBounds(mouseX, mouseY));
+                  repaint(damage);
+               }
                if (SwingUtilities.isRightMouseButton(e)) {
                   // Determine current x, y mouse position with respect to the image
-                  int mouseXEnd = e.getX() - ((imgLabel.getWidth() - img.getIconWidth()) / 2);
-                  int mouseYEnd = e.getY() - ((imgLabel.getHeight() - img.getIconHeight()) / 2);
+                  int mouseXEnd = toImageX(e.getX());
+                  int mouseYEnd = toImageY(e.getY());
+                  
+                  Rectangle damage = boxBounds(); // Area of the box before it changes
                   
                   // If any of the resizing modes are activated, determine the new box's top-left and bottom-right
                   // x, y positions by comparing the x, y positions of the above current mouse position with the 
                   // previously determined non-moving axis/corner of the box.
-                  if (resizingTopLeft || resizingBottomRight || resizingTopRight || resizingBottomLeft) {
+                  if (resizing) {
                      boxX1 = Math.min(mouseXEnd, axisX);
                      boxY1 = Math.min(mouseYEnd, axisY);
                      boxX2 = Math.max(mouseXEnd, axisX);
@@ -1013,50 +1502,225 @@ public class LabelImage extends JFrame implements ActionListener, WindowListener
                      boxY2 = Math.max(mouseYStart, mouseYEnd);
                   }
                   
-                  // Display the updated box corner x, y positions as the box is further dragged
-                  boxX1Input.setText("" + boxX1);
-                  boxY1Input.setText("" + boxY1);
-                  boxX2Input.setText("" + boxX2);
-                  boxY2Input.setText("" + boxY2);
+                  // Display the updated box corner x, y positions as the box is further dragged,
+                  // at most once per frame however many motion events arrive
+                  scheduleBoxCorners();
                   
-                  // Redisplay with updated dragging box
-                  repaint();
+                  // Redisplay only the area covered by the old and the updated dragging box
+                  damage.add(boxBounds());
+                  repaint(damage);
+               }
+            }
+         });
+         
+         // add a mouse wheel listener to zoom tiled images
+         this.addMouseWheelListener(new MouseWheelListener() {
+         
+            // When the mouse wheel is turned over a tiled image, zoom in or out by 25% per notch,
+            // keeping the image pixel under the mouse in place. Zoom is limited to between half
+            // the size that fits the component and 8 screen pixels per image pixel.
+            // Parameters:
+            //    - MouseWheelEvent e: the mouse wheel event that is fired when the wheel is turned
+            public void mouseWheelMoved(MouseWheelEvent e) {
+               if (tiled == null) {
+                  return;
                }
+               double fit = Math.min((double) getWidth() / tiled.getWidth(), (double) getHeight() / tiled.getHeight());
+               double newScale = scale * Math.pow(1.25, -e.getPreciseWheelRotation());
+               newScale = Math.max(Math.min(fit / 2, 1.0), Math.min(8.0, newScale));
+               originX = e.getX() - (e.getX() - originX) * newScale / scale;
+               originY = e.getY() - (e.getY() - originY) * newScale / scale;
+               scale = newScale;
+               repaint();
             }
          });
       }
       
+      // Displays a new image, forgetting any unfinished mouse interaction with the previous one
+      // Parameters:
+      //    - ImageIcon img: the image icon to be displayed as the basis of this component
+      public void setImage(ImageIcon img) {
+         setIcon(img);
+         setPreferredSize(null); // Size of the icon
+         if (tiled != null) {
+            tiled.close();
+         }
+         tiled = null;
+         scale = 1.0;
+         resetInteraction();
+      }
+      
+      // Displays a new very large image from tiles (see TiledImage), initially zoomed to fit,
+      // forgetting any unfinished mouse interaction with the previous one
+      // Parameters:
+      //    - TiledImage image: the tiled image to be displayed
+      public void setTiledImage(TiledImage image) {
+         setIcon(null);
+         if (tiled != null) {
+            tiled.close();
+         }
+         tiled = image;
+         tiled.setObserver(this);
+         // Take up to 70% of the screen, but no more than the image needs at 1:1
+         Dimension screen = Toolkit.getDefaultToolkit().getScreenSize();
+         setPreferredSize(new Dimension(Math.min(image.getWidth(), screen.width * 7 / 10),
+               Math.min(image.getHeight(), screen.height * 7 / 10)));
+         fitPending = true;
+         resetInteraction();
+      }
+      
+      // Forgets any unfinished mouse interaction
+      private void resetInteraction() {
+         resizing = false;
+         boxDragging = false;
+         grabbedJoint = -1;
+         draggedJoint = -1;
+         mouseJointClicked = false;
+         previewDot = null;
+      }
+      
+      // Returns the image x coordinate shown at the given component x position. At 1:1, the
+      // image is centered in the component; a tiled image is zoomed and panned.
+      public int toImageX(int componentX) {
+         if (tiled == null) {
+            return componentX - ((this.getWidth() - img.getIconWidth()) / 2);
+         }
+         return (int) Math.floor((componentX - originX) / scale);
+      }
+      
+      // Returns the image y coordinate shown at the given component y position
+      public int toImageY(int componentY) {
+         if (tiled == null) {
+            return componentY - ((this.getHeight() - img.getIconHeight()) / 2);
+         }
+         return (int) Math.floor((componentY - originY) / scale);
+      }
+      
+      // Returns the component x position at which the given image x coordinate is shown
+      public int toComponentX(int imageX) {
+         if (tiled == null) {
+            return imageX + ((this.getWidth() - img.getIconWidth()) / 2);
+         }
+         return (int) Math.floor(originX + imageX * scale);
+      }
+      
+      // Returns the component y position at which the given image y coordinate is shown
+      public int toComponentY(int imageY) {
+         if (tiled == null) {
+            return imageY + ((this.getHeight() - img.getIconHeight()) / 2);
+         }
+         return (int) Math.floor(originY + imageY * scale);
+      }
+      
+      // Returns the point of the given kind (see HitGrid) of any instance nearest to the given
+      // image coordinates within the given radius, or -1 if there is none. The hit grid is
+      // only rebuilt if the annotation has changed since it was last built.
+      // Parameters:
+      //    - int kind: HitGrid.JOINT or HitGrid.CORNER
+      //    - int imageX, int imageY: image coordinates, e.g. where the mouse was pressed
+      //    - int radius: greatest distance along either axis, in image pixels
+      private int findHit(int kind, int imageX, int imageY, int radius) {
+         if (hitGridModCount != annotation.getModCount()) {
+            hitGrid.clear();
+            for (int i = 0; i < annotation.getInstanceCount(); i++) {
+               Annotation.Instance instance = annotation.getInstance(i);
+               for (int j = 0; j < instance.getConfirmedCount(); j++) {
+                  int ordinal = instance.getConfirmedOrdinal(j);
+                  hitGrid.add(HitGrid.JOINT, i, ordinal, instance.getX(ordinal), instance.getY(ordinal));
+               }
+               if (i != annotation.getCurrentInstance() && instance.getBoxFields() == LabelData.BOX_ALL) {
+                  int left = instance.getBoxX();
+                  int top = instance.getBoxY();
+                  int right = left + instance.getBoxW();
+                  int bottom = top + instance.getBoxH();
+                  hitGrid.add(HitGrid.CORNER, i, 0, left, top);
+                  hitGrid.add(HitGrid.CORNER, i, 1, right, top);
+                  hitGrid.add(HitGrid.CORNER, i, 2, right, bottom);
+                  hitGrid.add(HitGrid.CORNER, i, 3, left, bottom);
+               }
+            }
+            hitGridModCount = annotation.getModCount();
+         }
+         return hitGrid.find(kind, imageX, imageY, radius);
+      }
+      
+      // Returns the image x coordinate of the given corner of the current instance's drawn box
+      // (0 top-left, 1 top-right, 2 bottom-right, 3 bottom-left)
+      private int cornerX(int corner) {
+         return corner == 1 || corner == 2 ? boxX2 : boxX1;
+      }
+      
+      // Returns the image y coordinate of the given corner of the current instance's drawn box
+      private int cornerY(int corner) {
+         return corner >= 2 ? boxY2 : boxY1;
+      }
+      
+      // Makes the next paint redraw the joint overlay, e.g. because the joint colors changed
+      private void invalidateOverlay() {
+         painter.invalidate();
+      }
+      
+      // Returns the component area covered by the outline of the current bounding box
+      private Rectangle boxBounds() {
+         int left = toComponentX(boxX1);
+         int top = toComponentY(boxY1);
+         return new Rectangle(left - 1, top - 1, toComponentX(boxX2) - left + 3, toComponentY(boxY2) - top + 3);
+      }
+      
+      // Returns the component area covered by a joint dot centered at the given position
+      private Rectangle dotBounds(int centerX, int centerY) {
+         return new Rectangle(centerX - 5, centerY - 5, 11, 11);
+      }
+      
+      // Zooms the tiled image to fit the component (but never beyond 1:1), centered
+      private void fitTiledImage() {
+         scale = Math.min(1.0, Math.min((double) getWidth() / tiled.getWidth(), (double) getHeight() / tiled.getHeight()));
+         originX = (getWidth() - tiled.getWidth() * scale) / 2;
+         originY = (getHeight() - tiled.getHeight() * scale) / 2;
+         fitPending = false;
+      }
+      
       // Overrided method that redraws the component with joints and box, if previously confirmed.
       // Parameters:
       //    - Graphics g: the graphics tool used to draw on this component
       public void paintComponent(Graphics g) {
-         super.paintComponent(g); // Draw the image
-         
-         // Determine offset between component's coordinate system and image's coordinate system.
-         int xOffset = (this.getWidth() - img.getIconWidth()) / 2;
-         int yOffset = (this.getHeight() - img.getIconHeight()) / 2;
-         
-         // Draw the bounding box using the chosen color (black/white) and the x, y positions of the
-         // top-left and bottom-right corners.
-         g.setColor(boundingBoxColor);
-         g.drawRect(boxX1 + xOffset, boxY1 + yOffset, boxX2 - boxX1, boxY2 - boxY1); // (x, y, w, h)
+         long start = System.nanoTime();
+         super.paintComponent(g); // Draw the image (or just the background if tiled)
+         if (tiled != null) {
+            if (fitPending && getWidth() > 0 && getHeight() > 0) {
+               fitTiledImage();
+            }
+            Graphics2D g2 = (Graphics2D) g;
+            g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            Rectangle view = getVisibleRect();
+            Rectangle clip = g.getClipBounds();
+            tiled.paint(g2, originX, originY, scale, view, clip != null ? clip : view);
+         }
          
-         // Draw each joint dot that has been confirmed by accessing the JSONArray dataset
-         for (int i = 0; i < dataset.size(); i++) {
-            JSONObject curr = (JSONObject) dataset.get(i);
-            String currJointName = (String) curr.get("name");
-            int x = Integer.parseInt("" + curr.get("x-coordinate"));
-            int y = Integer.parseInt("" + curr.get("y-coordinate"));
-            g.setColor(jointDotColors.get(currJointName)); // Get appropriate color
-            g.fillOval(x + xOffset - 4, y + yOffset - 4, 8, 8);
+         // Draw the bounding box and all confirmed joint dots (see LabelPainter)
+         if (tiled == null) {
+            painter.setView(toComponentX(0), toComponentY(0), 1.0);
+         } else {
+            painter.setView(originX, originY, scale);
          }
+         painter.paint(g, getWidth(), getHeight(), getGraphicsConfiguration(), annotation, schema.getJointColors(), boundingBoxColor,
+               boxX1, boxY1, boxX2, boxY2);
          
          // If the confirm joint button was not clicked (the mouse button was clicked without confirming)
          if (mouseJointClicked) {
             // Draw an extra dot with the color of the selected joint where the mouse is clicked
-            g.setColor(jointDotColors.get("" + joint.getSelectedItem()));
-            g.fillOval(mouseX - 4, mouseY - 4, 8, 8);
-            mouseJointClicked = false;
+            int selected = joint.getSelectedIndex();
+            painter.paintDot(g, mouseX, mouseY, selected >= 0 ? schema.getJointColor(selected) : null);
+            previewDot = dotBounds(mouseX, mouseY);
+            // The dot is only shown until the next time its area is redrawn
+            Rectangle clip = g.getClipBounds();
+            if (clip == null || clip.contains(previewDot)) {
+               mouseJointClicked = false;
+            }
+         }
+         Metrics.PAINT.record(start, null);
+         if (boxDragging) {
+            Metrics.DRAG.record(start, null);
          }
       }
    }
@@ -1129,19 +1793,8 @@ public class LabelImage extends JFrame implements ActionListener, WindowListener
             setBackground(Color.WHITE);
          }
 
-         if (colors.size() != strings.size()) // Handle issue when the number of colors and text items are not equal
-         {
-            System.out.println("colors.length does not equal strings.length");
-            return this;
-         }
-         else if (colors == null) // Make sure a list of colors was provided
-         {
-            System.out.println("use setColors first.");
-            return this;
-         }
-         else if (strings == null) // Make sure a list of text items was provided
-         {
-            System.out.println("use setStrings first.");
+         if (colors == null || strings == null) // setColors and setStrings not called yet (the schema
+         {                                       // guarantees that there is one color per text item)
             return this;
          }
          
@@ -0,0 +1,436 @@
+import javax.imageio.*;
+import java.awt.*;
+import java.awt.image.*;
+import java.io.*;
+import java.lang.management.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+
+// Command-line benchmark suite for the labeling hot paths, run on generated fixtures, with
+// a baseline file so that performance regressions can be caught.
+
+// Usage:
+//    $ java -Xmx2g -cp ".:./json-simple-1.1.jar" LabelImageBenchmark [--fixtures <directory>] [--only <name part>]
+//          [--warmup <n>] [--iterations <n>] [--seconds <n>] [--output <results.txt>] [--baseline <results.txt>] [--tolerance <percent>]
+
+// Fixtures are generated into the fixtures directory (default: a temporary directory) the
+// first time they are needed and reused afterwards:
+//    - dir-10k: a directory with 10,000 image files (empty, only listed) and 5,000 .label files
+//    - image-1mp.jpg, image-12mp.jpg, image-50mp.jpg: JPEG images of 1, 12 and 50 megapixels
+//    - .label contents with 30 and 500 joints (generated in memory)
+// Benchmarks (each is one operation as LabelImage performs it):
+//    - decode.<size>: ImageIO.read of an image, as ImageCache decodes it
+//    - header.50mp: reading an image's size from its header (ImageHeaders)
+//    - list.10k: listing and sorting the 10k directory (DirectoryIndex.scan)
+//    - indexOf.10k: finding an image within the sorted directory
+//    - parse.<joints>: LabelCodec.read into a reused LabelData and Annotation.read (opening an image)
+//    - serialize.<joints>: Annotation.write and LabelCodec.toString (saving an image)
+//    - paint.<joints>.cached / paint.<joints>.redraw: one frame of the image component, rendered
+//      headless into a BufferedImage: the 1 MP image at 1:1 as the JLabel draws its icon, then
+//      the bounding box, the joint overlay and an unconfirmed joint dot drawn by the same
+//      LabelPainter that LabelImage.DrawableLabel.paintComponent uses, with the overlay
+//      redrawn or not. Tiled images are not measured, because their paints depend on tiles
+//      decoded in the background.
+// Like JMH, each benchmark is run for --warmup warm-up iterations and then --iterations
+// measured iterations of --seconds seconds each, single-threaded; the mean time per
+// operation, its standard deviation over the iterations and the bytes allocated per
+// operation are printed. --output writes the mean times as "<benchmark> <ns/op>" lines, and
+// --baseline compares the mean times with such a file (e.g. BenchmarkBaseline.txt): the
+// exit code is 1 if any benchmark is more than --tolerance percent (default 25) slower.
+
+public class LabelImageBenchmark {
+
+   public static final int[] JOINT_COUNTS = new int[] {30, 500}; // Joints per .label fixture
+   public static final int DIRECTORY_FILES = 10000; // Image files in the directory fixture
+   public static final String[][] IMAGES = new String[][] { // Image fixtures: name, width, height
+      {"1mp", "1000", "1000"},
+      {"12mp", "4000", "3000"},
+      {"50mp", "8660", "5774"}
+   };
+
+   private static volatile Object sink; // Keeps benchmarked results alive so they are not optimized away
+
+   // One benchmarked operation
+   interface Operation {
+
+      // Performs the operation once and returns its result
+      Object run() throws Exception;
+   }
+
+   // Main method: generates the fixtures and runs the benchmarks
+   public static void main(String[] args) throws Exception {
+      System.setProperty("java.awt.headless", "true");
+      File fixtures = null;
+      String only = null;
+      int warmup = 2;
+      int iterations = 5;
+      int seconds = 1;
+      String output = null;
+      String baseline = null;
+      double tolerance = 25;
+      for (int i = 0; i + 1 < args.length; i += 2) {
+         if (args[i].equals("--fixtures")) {
+            fixtures = new File(args[i + 1]);
+         } else if (args[i].equals("--only")) {
+            only = args[i + 1];
+         } else if (args[i].equals("--warmup")) {
+            warmup = Integer.parseInt(args[i + 1]);
+         } else if (args[i].equals("--iterations")) {
+            iterations = Integer.parseInt(args[i + 1]);
+         } else if (args[i].equals("--seconds")) {
+            seconds = Integer.parseInt(args[i + 1]);
+         } else if (args[i].equals("--output")) {
+            output = args[i + 1];
+         } else if (args[i].equals("--baseline")) {
+            baseline = args[i + 1];
+         } else if (args[i].equals("--tolerance")) {
+            tolerance = Double.parseDouble(args[i + 1]);
+         }
+      }
+      if (fixtures == null) {
+         fixtures = Files.createTempDirectory("labelimage-bench").toFile();
+      }
+      fixtures.mkdirs();
+
+      Map<String, Operation> benchmarks = new LinkedHashMap<String, Operation>();
+      addImageBenchmarks(benchmarks, fixtures, only);
+      addDirectoryBenchmarks(benchmarks, fixtures, only);
+      for (int joints : JOINT_COUNTS) {
+         addLabelBenchmarks(benchmarks, joints, only);
+      }
+      for (int joints : JOINT_COUNTS) {
+         addPaintBenchmarks(benchmarks, fixtures, joints, only);
+      }
+
+      System.out.println(String.format(Locale.ROOT, "%-22s %5s %14s %12s %14s", "Benchmark", "Cnt", "Score", "Error", "Alloc"));
+      Map<String, Double> scores = new LinkedHashMap<String, Double>();
+      for (Map.Entry<String, Operation> benchmark : benchmarks.entrySet()) {
+         scores.put(benchmark.getKey(), measure(benchmark.getKey(), benchmark.getValue(), warmup, iterations, seconds));
+      }
+      if (output != null) {
+         writeScores(new File(output), scores);
+      }
+      if (baseline != null) {
+         System.exit(compare(scores, readScores(new File(baseline)), tolerance) ? 0 : 1);
+      }
+   }
+
+   // Adds the image decode and header benchmarks, generating the image fixtures if needed
+   private static void addImageBenchmarks(Map<String, Operation> benchmarks, File fixtures, String only) throws IOException {
+      for (String[] image : IMAGES) {
+         final File file = new File(fixtures, "image-" + image[0] + ".jpg");
+         if (selected("decode." + image[0], only) || (image[0].equals("50mp") && selected("header.50mp", only))) {
+            if (!file.isFile()) {
+               generateImage(file, Integer.parseInt(image[1]), Integer.parseInt(image[2]));
+            }
+         }
+         if (selected("decode." + image[0], only)) {
+            benchmarks.put("decode." + image[0], new Operation() {
+               public Object run() throws IOException {
+                  return ImageIO.read(file);
+               }
+            });
+         }
+         if (image[0].equals("50mp") && selected("header.50mp", only)) {
+            benchmarks.put("header.50mp", new Operation() {
+               public Object run() throws IOException {
+                  return ImageHeaders.read(file);
+               }
+            });
+         }
+      }
+   }
+
+   // Adds the directory listing benchmarks, generating the directory fixture if needed
+   private static void addDirectoryBenchmarks(Map<String, Operation> benchmarks, File fixtures, String only) throws IOException {
+      if (!selected("list.10k", only) && !selected("indexOf.10k", only)) {
+         return;
+      }
+      final File dir = new File(fixtures, "dir-10k");
+      if (!dir.isDirectory()) {
+         generateDirectory(dir);
+      }
+      final File[] sorted = DirectoryIndex.scan(dir);
+      final Random random = new Random(42);
+      if (selected("list.10k", only)) {
+         benchmarks.put("list.10k", new Operation() {
+            public Object run() throws IOException {
+               return DirectoryIndex.scan(dir);
+            }
+         });
+      }
+      if (selected("indexOf.10k", only)) {
+         benchmarks.put("indexOf.10k", new Operation() {
+            public Object run() {
+               return DirectoryIndex.indexOf(sorted, sorted[random.nextInt(sorted.length)]);
+            }
+         });
+      }
+   }
+
+   // Adds the .label parse and serialize benchmarks for the given number of joints
+   private static void addLabelBenchmarks(Map<String, Operation> benchmarks, int joints, String only) {
+      final java.util.List<String> names = jointNames(joints);
+      final String content = LabelCodec.toString(generateLabels(names, new Random(joints)));
+      final LabelData data = new LabelData();
+      final Annotation annotation = new Annotation(names);
+      if (selected("parse." + joints, only)) {
+         benchmarks.put("parse." + joints, new Operation() {
+            public Object run() throws Exception {
+               LabelCodec.read(new StringReader(content), data);
+               annotation.read(data);
+               return annotation;
+            }
+         });
+      }
+      if (selected("serialize." + joints, only)) {
+         final Annotation loaded = new Annotation(names);
+         try {
+            loaded.read(LabelCodec.read(content));
+         } catch (Exception ex) {
+            throw new IllegalStateException(ex);
+         }
+         benchmarks.put("serialize." + joints, new Operation() {
+            public Object run() {
+               loaded.write(data);
+               return LabelCodec.toString(data);
+            }
+         });
+      }
+   }
+
+   // Adds the paint benchmarks for the given number of confirmed joints
+   private static void addPaintBenchmarks(Map<String, Operation> benchmarks, File fixtures, int joints, String only) throws IOException {
+      String cached = "paint." + joints + ".cached";
+      String redraw = "paint." + joints + ".redraw";
+      if (!selected(cached, only) && !selected(redraw, only)) {
+         return;
+      }
+      File file = new File(fixtures, "image-1mp.jpg");
+      if (!file.isFile()) {
+         generateImage(file, 1000, 1000);
+      }
+      java.util.List<String> names = jointNames(joints);
+      Annotation annotation = new Annotation(names);
+      annotation.read(generateLabels(names, new Random(joints)));
+      java.util.List<Color> colors = new ArrayList<Color>(joints);
+      Random random = new Random(7);
+      for (int i = 0; i < joints; i++) {
+         colors.add(new Color(random.nextInt(256), random.nextInt(256), random.nextInt(256)));
+      }
+      if (selected(cached, only)) {
+         benchmarks.put(cached, new Frame(ImageIO.read(file), annotation, colors, false));
+      }
+      if (selected(redraw, only)) {
+         benchmarks.put(redraw, new Frame(ImageIO.read(file), annotation, colors, true));
+      }
+   }
+
+   // One frame of the image component for an image displayed at 1:1, drawn into an
+   // offscreen image with the LabelPainter that DrawableLabel.paintComponent uses
+   private static class Frame implements Operation {
+
+      private final BufferedImage image; // The displayed image
+      private final Annotation annotation; // The confirmed joints
+      private final java.util.List<Color> colors; // Joint dot colors by ordinal
+      private final boolean redraw; // True to redraw the overlay every frame (joints or view changed)
+      private final BufferedImage canvas; // Stands in for the screen
+      private final LabelPainter painter; // Draws the labels, keeping the overlay between frames
+
+      Frame(BufferedImage image, Annotation annotation, java.util.List<Color> colors, boolean redraw) {
+         this.image = image;
+         this.annotation = annotation;
+         this.colors = colors;
+         this.redraw = redraw;
+         canvas = new BufferedImage(image.getWidth() + 200, image.getHeight() + 100, BufferedImage.TYPE_INT_RGB);
+         painter = new LabelPainter();
+      }
+
+      public Object run() {
+         int imageX = (canvas.getWidth() - image.getWidth()) / 2;
+         int imageY = (canvas.getHeight() - image.getHeight()) / 2;
+         Graphics2D g = canvas.createGraphics();
+         g.setColor(Color.LIGHT_GRAY);
+         g.fillRect(0, 0, canvas.getWidth(), canvas.getHeight());
+         g.drawImage(image, imageX, imageY, null);
+         painter.setView(imageX, imageY, 1.0);
+         if (redraw) {
+            painter.invalidate();
+         }
+         painter.paint(g, canvas.getWidth(), canvas.getHeight(), null, annotation, colors, Color.BLACK,
+               annotation.getBoxX(), annotation.getBoxY(), annotation.getBoxX() + annotation.getBoxW(), annotation.getBoxY() + annotation.getBoxH());
+         painter.paintDot(g, imageX + image.getWidth() / 2, imageY + image.getHeight() / 2, colors.get(0));
+         g.dispose();
+         return canvas;
+      }
+   }
+
+   // Runs the given operation for the warm-up and measured iterations, prints its score
+   // and returns the mean time per operation in nanoseconds
+   private static double measure(String name, Operation operation, int warmup, int iterations, int seconds) throws Exception {
+      for (int i = 0; i < warmup; i++) {
+         iteration(operation, seconds);
+      }
+      double[] times = new double[iterations];
+      long operations = 0;
+      long allocatedBefore = allocatedBytes();
+      for (int i = 0; i < iterations; i++) {
+         long[] result = iteration(operation, seconds);
+         times[i] = (double) result[1] / result[0];
+         operations += result[0];
+      }
+      long allocated = allocatedBytes() - allocatedBefore;
+      double mean = 0;
+      for (double t : times) {
+         mean += t / iterations;
+      }
+      double variance = 0;
+      for (double t : times) {
+         variance += (t - mean) * (t - mean) / Math.max(1, iterations - 1);
+      }
+      System.out.println(String.format(Locale.ROOT, "%-22s %5d %11.0f ns %9.0f ns %8d B/op",
+            name, iterations, mean, Math.sqrt(variance), allocated < 0 ? -1 : allocated / operations));
+      return mean;
+   }
+
+   // Runs the given operation repeatedly for the given number of seconds (at least once) and
+   // returns the number of operations and the elapsed nanoseconds
+   private static long[] iteration(Operation operation, int seconds) throws Exception {
+      long start = System.nanoTime();
+      long end = start + seconds * 1000000000L;
+      long count = 0;
+      long now;
+      do {
+         sink = operation.run();
+         count++;
+         now = System.nanoTime();
+      } while (now < end);
+      return new long[] {count, now - start};
+   }
+
+   // Returns the bytes allocated by the current thread so far, or a negative value if the
+   // JVM cannot tell
+   private static long allocatedBytes() {
+      ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+      if (threads instanceof com.sun.management.ThreadMXBean) {
+         return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+      }
+      return -1;
+   }
+
+   // Returns true if the given benchmark should be run
+   private static boolean selected(String name, String only) {
+      return only == null || name.contains(only);
+   }
+
+   // Writes the given mean times as "<benchmark> <ns/op>" lines
+   private static void writeScores(File file, Map<String, Double> scores) throws IOException {
+      StringBuilder text = new StringBuilder();
+      text.append("# LabelImageBenchmark mean times in ns/op, Java ").append(System.getProperty("java.version"))
+            .append(", ").append(Runtime.getRuntime().availableProcessors()).append(" processors\n");
+      for (Map.Entry<String, Double> score : scores.entrySet()) {
+         text.append(score.getKey()).append(' ').append(Math.round(score.getValue())).append('\n');
+      }
+      Files.write(file.toPath(), text.toString().getBytes(StandardCharsets.UTF_8));
+   }
+
+   // Reads mean times written by writeScores
+   private static Map<String, Double> readScores(File file) throws IOException {
+      Map<String, Double> scores = new HashMap<String, Double>();
+      for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+         String[] parts = line.trim().split("\\s+");
+         if (parts.length == 2 && !parts[0].startsWith("#")) {
+            scores.put(parts[0], Double.parseDouble(parts[1]));
+         }
+      }
+      return scores;
+   }
+
+   // Prints how each benchmark compares with the baseline, returning false if any of them
+   // is more than the given percentage slower
+   private static boolean compare(Map<String, Double> scores, Map<String, Double> baseline, double tolerance) {
+      boolean ok = true;
+      System.out.println();
+      for (Map.Entry<String, Double> score : scores.entrySet()) {
+         Double base = baseline.get(score.getKey());
+         if (base == null) {
+            System.out.println(String.format(Locale.ROOT, "%-22s not in baseline", score.getKey()));
+            continue;
+         }
+         double change = (score.getValue() - base) * 100 / base;
+         boolean regressed = change > tolerance;
+         ok &= !regressed;
+         System.out.println(String.format(Locale.ROOT, "%-22s %+7.1f%% vs baseline%s", score.getKey(), change, regressed ? "  REGRESSION" : ""));
+      }
+      return ok;
+   }
+
+   // Returns the joint names "Joint 0", "Joint 1", ... of the given number of joints
+   private static java.util.List<String> jointNames(int joints) {
+      java.util.List<String> names = new ArrayList<String>();
+      for (int i = 0; i < joints; i++) {
+         names.add("Joint " + i);
+      }
+      return names;
+   }
+
+   // Generates labels with all of the given joints within a 1000 x 1000 image, three tags
+   // and a bounding box
+   private static LabelData generateLabels(java.util.List<String> names, Random random) {
+      LabelData data = new LabelData();
+      for (String name : names) {
+         data.addJoint(name, random.nextInt(1000), random.nextInt(1000));
+      }
+      data.getTags().put("Breed", "Husky");
+      data.getTags().put("Age", "3 years");
+      data.getTags().put("Setting", "indoor/outdoor");
+      data.setBox(random.nextInt(500), random.nextInt(500), 100 + random.nextInt(400), 100 + random.nextInt(400));
+      return data;
+   }
+
+   // Writes a JPEG image of the given size with photo-like detail (so it does not
+   // compress unrealistically well)
+   private static void generateImage(File file, int width, int height) throws IOException {
+      System.out.println("Generating " + file + " (" + width + " x " + height + ")");
+      BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+      Graphics2D g = image.createGraphics();
+      g.setPaint(new GradientPaint(0, 0, new Color(40, 90, 160), width, height, new Color(220, 200, 120)));
+      g.fillRect(0, 0, width, height);
+      Random random = new Random(width);
+      int shapes = (int) ((long) width * height / 2000);
+      for (int i = 0; i < shapes; i++) {
+         g.setColor(new Color(random.nextInt(256), random.nextInt(256), random.nextInt(256), 96));
+         g.fillOval(random.nextInt(width), random.nextInt(height), 5 + random.nextInt(60), 5 + random.nextInt(60));
+      }
+      g.dispose();
+      File temp = new File(file.getPath() + ".tmp");
+      if (!ImageIO.write(image, "jpg", temp)) {
+         throw new IOException("No JPEG writer");
+      }
+      Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+   }
+
+   // Creates the directory fixture: DIRECTORY_FILES empty image files, created in a
+   // shuffled order, and a .label file for every other image
+   private static void generateDirectory(File dir) throws IOException {
+      System.out.println("Generating " + dir + " (" + DIRECTORY_FILES + " image files)");
+      File temp = new File(dir.getPath() + ".tmp");
+      temp.mkdirs();
+      java.util.List<Integer> numbers = new ArrayList<Integer>();
+      for (int i = 0; i < DIRECTORY_FILES; i++) {
+         numbers.add(i);
+      }
+      Collections.shuffle(numbers, new Random(42));
+      for (int i : numbers) {
+         String name = "frame_" + i + (i % 10 == 0 ? ".PNG" : ".jpg");
+         new File(temp, name).createNewFile();
+         if (i % 2 == 0) {
+            new File(temp, name + LabelValidator.LABEL_EXTENSION).createNewFile();
+         }
+      }
+      if (!temp.renameTo(dir)) {
+         throw new IOException("Cannot create " + dir);
+      }
+   }
+}
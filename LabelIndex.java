@@ -0,0 +1,635 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+import javax.swing.event.*;
+import org.json.simple.parser.*;
+
+// In-memory inverted index over the labeled data of the images being labeled, so that the
+// labeling GUI can step through only the images matching a query, such as
+//    Breed=lab & !Tail_End & !box
+// (images whose "Breed" tag is "lab", whose joint "Tail_End" was not confirmed, and that
+// have no confirmed bounding box).
+
+// Query terms are separated by '&'; all of them must hold:
+//    - <tag>=<value>:   the tag has exactly this value
+//    - <tag>!=<value>:  the tag has another value
+//    - <name>:          the joint <name> was confirmed, or (if no image has such a joint)
+//                       the tag <name> has any value
+//    - box:             a bounding box was confirmed
+//    - labeled:         the image has labeled data
+//    - interpolated:    the labels were generated by KeyframeInterpolator and not reviewed yet
+// Prefixing a term with '!' negates it, e.g. "!box". Negated terms also match images
+// without labeled data; add "labeled" to exclude those.
+
+// Every image is given a number when it is first indexed. For each tag value, each joint,
+// the bounding box and labeled data, the index keeps the set of image numbers that have
+// it (a "postings" set: a small sorted array while it is small, a bitmap once it is large),
+// so memory grows with the number of distinct tag values, not with images times values.
+// A query is evaluated by intersecting these sets, and its matches are then kept as a
+// sorted array of positions in the image list, so stepping to the previous or next match
+// is a binary search. Saving an image updates the index and patches the cached matches in
+// place instead of evaluating the query again.
+// The labeled data of all images is read in the background, in parallel, in batches of
+// BATCH_SIZE images; images that are added to the image list later are indexed as they
+// appear. Until it is complete, a query only matches the images indexed so far.
+
+public class LabelIndex {
+
+   public static final int BATCH_SIZE = 4096; // Images read in parallel before they are added to the index
+   public static final String BOX = "box"; // Query term for a confirmed bounding box
+   public static final String LABELED = "labeled"; // Query term for images with labeled data
+   public static final String INTERPOLATED = "interpolated"; // Query term for images with interpolated labels
+
+   private final ImageIndex images; // The images being labeled
+   private final LabelStore store; // Where the labeled data is read from
+   private final Map<String, Integer> ids; // Number of each indexed image, by absolute pathname
+   private final Postings labeled; // Images with labeled data
+   private final Postings boxes; // Images with a confirmed bounding box
+   private final Postings interpolated; // Images whose labels were interpolated and not reviewed yet
+   private final Map<String, Postings> joints; // Images in which each joint was confirmed, by joint name
+   private final Map<String, Map<String, Postings>> tags; // Images having each tag value, by tag name and value
+   private final java.util.List<ChangeListener> listeners; // Notified (on the indexing thread) when images have been indexed
+   private final ChangeListener imagesListener; // Wakes the indexing thread when images are added
+   private final Semaphore wake; // Released when the image list changes
+   private volatile boolean complete; // True once every image of the (complete) image list is indexed
+   private volatile boolean closed; // True once close() has been called
+   private long version; // Incremented whenever the index changes
+
+   // Cached matches of the last query (guarded by this)
+   private Query cachedQuery; // The query, or null
+   private ImageList cachedList; // The image list the positions refer to
+   private long cachedVersion; // Index version the matches were computed at
+   private int[] cachedPositions; // Sorted positions (in cachedList) of the matching images
+   private ImageList idList; // Image list that idAt was built for
+   private int[] idAt; // Number of the image at each position of idList, or -1 if not indexed (kept up to date as images are indexed)
+
+   // A parsed query: the terms that must all hold
+   public static class Query {
+
+      final String text; // The query as entered
+      final java.util.List<Term> terms; // Its terms
+
+      Query(String text, java.util.List<Term> terms) {
+         this.text = text;
+         this.terms = terms;
+      }
+
+      public boolean equals(Object o) {
+         return o instanceof Query && ((Query) o).text.equals(text);
+      }
+
+      public int hashCode() {
+         return text.hashCode();
+      }
+
+      public String toString() {
+         return text;
+      }
+   }
+
+   // One term of a query
+   static class Term {
+
+      final boolean negated; // True if the term must not hold
+      final String name; // Tag or joint name, or BOX or LABELED
+      final String value; // Tag value, or null for terms without a value
+
+      Term(boolean negated, String name, String value) {
+         this.negated = negated;
+         this.name = name;
+         this.value = value;
+      }
+   }
+
+   // Set of image numbers: a sorted array while small, a bitmap once it has more than
+   // SMALL_LIMIT members. Not thread-safe (guarded by the LabelIndex).
+   static class Postings {
+
+      static final int SMALL_LIMIT = 256; // Largest size kept as a sorted array
+
+      private int[] small = new int[4]; // Members in ascending order (while bits is null)
+      private int count; // Number of members
+      private BitSet bits; // Members, once there are many
+
+      boolean contains(int id) {
+         return bits != null ? bits.get(id) : Arrays.binarySearch(small, 0, count, id) >= 0;
+      }
+
+      void add(int id) {
+         if (bits != null) {
+            if (!bits.get(id)) {
+               bits.set(id);
+               count++;
+            }
+            return;
+         }
+         int pos = Arrays.binarySearch(small, 0, count, id);
+         if (pos >= 0) {
+            return;
+         }
+         if (count == SMALL_LIMIT) { // Switch to a bitmap
+            bits = new BitSet();
+            for (int i = 0; i < count; i++) {
+               bits.set(small[i]);
+            }
+            small = null;
+            bits.set(id);
+            count++;
+            return;
+         }
+         pos = -pos - 1;
+         if (count == small.length) {
+            small = Arrays.copyOf(small, Math.min(SMALL_LIMIT, count * 2));
+         }
+         System.arraycopy(small, pos, small, pos + 1, count - pos);
+         small[pos] = id;
+         count++;
+      }
+
+      void remove(int id) {
+         if (bits != null) {
+            if (bits.get(id)) {
+               bits.clear(id);
+               count--;
+            }
+            return;
+         }
+         int pos = Arrays.binarySearch(small, 0, count, id);
+         if (pos >= 0) {
+            System.arraycopy(small, pos + 1, small, pos, count - pos - 1);
+            count--;
+         }
+      }
+
+      boolean isEmpty() {
+         return count == 0;
+      }
+
+      // Adds the members to the given bitmap
+      void orInto(BitSet target) {
+         if (bits != null) {
+            target.or(bits);
+         } else {
+            for (int i = 0; i < count; i++) {
+               target.set(small[i]);
+            }
+         }
+      }
+   }
+
+   // Creates an empty index of the given images; call start() to index them
+   // Parameters:
+   //    - ImageIndex images: the images being labeled
+   //    - LabelStore store: where their labeled data is read from
+   public LabelIndex(ImageIndex images, LabelStore store) {
+      this.images = images;
+      this.store = store;
+      ids = new HashMap<String, Integer>();
+      labeled = new Postings();
+      boxes = new Postings();
+      interpolated = new Postings();
+      joints = new HashMap<String, Postings>();
+      tags = new HashMap<String, Map<String, Postings>>();
+      listeners = new CopyOnWriteArrayList<ChangeListener>();
+      wake = new Semaphore(0);
+      imagesListener = new ChangeListener() {
+         public void stateChanged(ChangeEvent e) {
+            wake.release();
+         }
+      };
+   }
+
+   // Starts indexing the images in the background, and keeps indexing images as they are added
+   public void start() {
+      images.addChangeListener(imagesListener);
+      Thread indexer = new Thread(new Runnable() {
+         public void run() {
+            indexLoop();
+         }
+      }, "label-index " + images.getDirectory().getName());
+      indexer.setDaemon(true);
+      indexer.setPriority(Thread.MIN_PRIORITY);
+      indexer.start();
+   }
+
+   // Stops indexing
+   public void close() {
+      closed = true;
+      images.removeChangeListener(imagesListener);
+      wake.release();
+   }
+
+   // Returns the images being indexed
+   public ImageIndex getImages() {
+      return images;
+   }
+
+   // Returns true once every image has been indexed
+   public boolean isComplete() {
+      return complete;
+   }
+
+   // Returns the number of images indexed so far
+   public synchronized int getIndexedCount() {
+      return ids.size();
+   }
+
+   // Registers a listener that is notified whenever a batch of images has been indexed.
+   // Listeners are called on the indexing thread.
+   // Parameters:
+   //    - ChangeListener listener: the listener to be notified
+   public void addChangeListener(ChangeListener listener) {
+      listeners.add(listener);
+   }
+
+   // Parses a query (see above). Returns null for an empty query, which matches every image.
+   // Parameters:
+   //    - String text: the query
+   public static Query parse(String text) {
+      java.util.List<Term> terms = new ArrayList<Term>();
+      for (String part : text.split("&")) {
+         String term = part.trim();
+         if (term.isEmpty()) {
+            continue;
+         }
+         boolean negated = false;
+         while (term.startsWith("!") && !term.startsWith("!=")) {
+            negated = !negated;
+            term = term.substring(1).trim();
+         }
+         int eq = term.indexOf('=');
+         if (eq < 0) {
+            if (term.isEmpty()) {
+               throw new IllegalArgumentException("Missing name after '!'");
+            }
+            terms.add(new Term(negated, term, null));
+            continue;
+         }
+         boolean notEqual = eq > 0 && term.charAt(eq - 1) == '!';
+         String name = term.substring(0, notEqual ? eq - 1 : eq).trim();
+         if (name.isEmpty()) {
+            throw new IllegalArgumentException("Missing tag name in \"" + part.trim() + "\"");
+         }
+         String value = term.substring(eq + 1).trim();
+         if (notEqual && negated) {
+            throw new IllegalArgumentException("Use \"" + name + "=" + value + "\" or \"!" + name + "\" instead of \"" + part.trim() + "\"");
+         } else if (notEqual) { // <tag>!=<value>: the tag is present, with another value
+            terms.add(new Term(false, name, null));
+            terms.add(new Term(true, name, value));
+         } else {
+            terms.add(new Term(negated, name, value));
+         }
+      }
+      return terms.isEmpty() ? null : new Query(text.trim(), terms);
+   }
+
+   // Returns the sorted positions (within the given image list) of the images matching the
+   // given query. The result is cached until the index or the list changes, and must not be modified.
+   // Parameters:
+   //    - Query query: the query
+   //    - ImageList list: the current image list
+   public synchronized int[] matches(Query query, ImageList list) {
+      if (query.equals(cachedQuery) && list == cachedList && version == cachedVersion) {
+         return cachedPositions;
+      }
+      BitSet result = evaluate(query);
+      int[] at = idsOf(list);
+      int[] positions = new int[Math.min(result.cardinality(), at.length)];
+      int n = 0;
+      for (int i = 0; i < at.length && n < positions.length; i++) {
+         if (at[i] >= 0 && result.get(at[i])) {
+            positions[n++] = i;
+         }
+      }
+      cachedQuery = query;
+      cachedList = list;
+      cachedVersion = version;
+      cachedPositions = n == positions.length ? positions : Arrays.copyOf(positions, n);
+      return cachedPositions;
+   }
+
+   // Returns the position of the first image after the given position that matches the
+   // given query, or -1 if there is none
+   // Parameters:
+   //    - Query query: the query
+   //    - ImageList list: the current image list
+   //    - int position: position to search from (exclusive)
+   public int next(Query query, ImageList list, int position) {
+      int[] positions = matches(query, list);
+      int i = Arrays.binarySearch(positions, position);
+      i = i >= 0 ? i + 1 : -i - 1;
+      return i < positions.length ? positions[i] : -1;
+   }
+
+   // Returns the position of the last image before the given position that matches the
+   // given query, or -1 if there is none
+   // Parameters:
+   //    - Query query: the query
+   //    - ImageList list: the current image list
+   //    - int position: position to search from (exclusive)
+   public int previous(Query query, ImageList list, int position) {
+      int[] positions = matches(query, list);
+      int i = Arrays.binarySearch(positions, position);
+      i = i >= 0 ? i - 1 : -i - 2;
+      return i >= 0 ? positions[i] : -1;
+   }
+
+   // Replaces the indexed labeled data of the given image, e.g. after it was saved
+   // Parameters:
+   //    - String imagePath: absolute pathname of the image
+   //    - LabelData data: its labeled data, or null if it has none
+   public synchronized void update(String imagePath, LabelData data) {
+      int id = idOf(imagePath);
+      unindex(id);
+      index(id, data);
+      placeId(imagePath, id, null, -1);
+      // Patch the cached matches instead of evaluating the query again
+      if (cachedQuery != null && cachedVersion == version) {
+         int pos = cachedList.indexOf(new File(imagePath));
+         if (pos >= 0) {
+            int i = Arrays.binarySearch(cachedPositions, pos);
+            boolean matching = matches(cachedQuery, id);
+            if (matching && i < 0) {
+               i = -i - 1;
+               int[] patched = new int[cachedPositions.length + 1];
+               System.arraycopy(cachedPositions, 0, patched, 0, i);
+               patched[i] = pos;
+               System.arraycopy(cachedPositions, i, patched, i + 1, cachedPositions.length - i);
+               cachedPositions = patched;
+            } else if (!matching && i >= 0) {
+               int[] patched = new int[cachedPositions.length - 1];
+               System.arraycopy(cachedPositions, 0, patched, 0, i);
+               System.arraycopy(cachedPositions, i + 1, patched, i, cachedPositions.length - i - 1);
+               cachedPositions = patched;
+            }
+         } else {
+            cachedQuery = null;
+         }
+      }
+      version++;
+      if (cachedQuery != null) {
+         cachedVersion = version;
+      }
+   }
+
+   // Body of the indexing thread: reads the labeled data of all images that are not indexed
+   // yet, in parallel batches, and waits for the image list to change. Only the images that
+   // were not in the previously indexed list are looked at again.
+   private void indexLoop() {
+      ImageList scanned = null; // List whose images have all been indexed, or null
+      while (!closed) {
+         boolean listComplete = images.isComplete();
+         ImageList list = images.images();
+         int[] scannedAt = scanned == null ? null : list.positionsIn(scanned);
+         java.util.List<String> batch = new ArrayList<String>(BATCH_SIZE);
+         java.util.List<Integer> positions = new ArrayList<Integer>(BATCH_SIZE);
+         for (int i = 0; i < list.size() && !closed; i++) {
+            if (scannedAt != null && scannedAt[i] >= 0) {
+               continue;
+            }
+            String path = list.get(i).getPath();
+            synchronized (this) {
+               if (ids.containsKey(path)) {
+                  continue;
+               }
+            }
+            batch.add(path);
+            positions.add(i);
+            if (batch.size() == BATCH_SIZE) {
+               indexBatch(list, batch, positions);
+               batch.clear();
+               positions.clear();
+            }
+         }
+         if (!batch.isEmpty()) {
+            indexBatch(list, batch, positions);
+         }
+         scanned = list;
+         if (listComplete && list == images.images()) {
+            complete = true;
+            notifyListeners();
+         }
+         try {
+            wake.acquire();
+            wake.drainPermits();
+         } catch (InterruptedException ex) {
+            return;
+         }
+      }
+   }
+
+   // Reads the labeled data of the given images in parallel and adds it to the index.
+   // Images that were indexed meanwhile (e.g. saved) are left as they are.
+   // Parameters:
+   //    - ImageList list: the image list the images were taken from
+   //    - List<String> batch: absolute pathnames of the images
+   //    - List<Integer> positions: their positions in the list
+   private void indexBatch(ImageList list, java.util.List<String> batch, java.util.List<Integer> positions) {
+      java.util.List<LabelData> read = batch.parallelStream().map(path -> read(path)).collect(Collectors.toList());
+      synchronized (this) {
+         for (int i = 0; i < batch.size(); i++) {
+            if (!ids.containsKey(batch.get(i))) {
+               int id = idOf(batch.get(i));
+               index(id, read.get(i));
+               placeId(batch.get(i), id, list, positions.get(i));
+            }
+         }
+         version++;
+      }
+      notifyListeners();
+   }
+
+   // Reads the labeled data of one image, or returns null if it has none (or it cannot be read)
+   private LabelData read(String imagePath) {
+      try {
+         String content = store.read(imagePath);
+         return content == null ? null : LabelCodec.read(content);
+      } catch (IOException ex) {
+         return null;
+      } catch (ParseException ex) {
+         return null;
+      }
+   }
+
+   // Returns the number of the given image, numbering it if it is new
+   private int idOf(String imagePath) {
+      Integer id = ids.get(imagePath);
+      if (id == null) {
+         id = ids.size();
+         ids.put(imagePath, id);
+      }
+      return id;
+   }
+
+   // Adds the given labeled data of the given image to the postings
+   private void index(int id, LabelData data) {
+      if (data == null) {
+         return;
+      }
+      labeled.add(id);
+      if (data.isInterpolated()) {
+         interpolated.add(id);
+      }
+      for (int k = -1; k < data.getInstanceCount(); k++) { // A joint or box of any object instance counts
+         LabelData instance = k < 0 ? data : data.getInstance(k);
+         if (instance.getBoxFields() == LabelData.BOX_ALL) {
+            boxes.add(id);
+         }
+         for (int i = 0; i < instance.getJointCount(); i++) {
+            Postings postings = joints.get(instance.getJointName(i));
+            if (postings == null) {
+               postings = new Postings();
+               joints.put(instance.getJointName(i), postings);
+            }
+            postings.add(id);
+         }
+      }
+      for (Map.Entry<String, String> tag : data.getTags().entrySet()) {
+         Map<String, Postings> values = tags.get(tag.getKey());
+         if (values == null) {
+            values = new HashMap<String, Postings>();
+            tags.put(tag.getKey(), values);
+         }
+         String value = tag.getValue().trim();
+         Postings postings = values.get(value);
+         if (postings == null) {
+            postings = new Postings();
+            values.put(value, postings);
+         }
+         postings.add(id);
+      }
+   }
+
+   // Removes the given image from all postings, dropping tag values no image has any more
+   private void unindex(int id) {
+      if (!labeled.contains(id)) {
+         return;
+      }
+      labeled.remove(id);
+      boxes.remove(id);
+      interpolated.remove(id);
+      for (Postings postings : joints.values()) {
+         postings.remove(id);
+      }
+      for (Map<String, Postings> values : tags.values()) {
+         Iterator<Postings> it = values.values().iterator();
+         while (it.hasNext()) {
+            Postings postings = it.next();
+            postings.remove(id);
+            if (postings.isEmpty()) {
+               it.remove();
+            }
+         }
+      }
+   }
+
+   // Returns the numbers of the images matching the given query
+   private BitSet evaluate(Query query) {
+      BitSet result = new BitSet(ids.size());
+      result.set(0, ids.size());
+      for (Term term : query.terms) {
+         BitSet members = new BitSet();
+         Postings postings = postingsOf(term);
+         if (postings != null) {
+            postings.orInto(members);
+         } else if (term.value == null && !joints.containsKey(term.name) && tags.containsKey(term.name)) { // Tag with any value
+            for (Postings value : tags.get(term.name).values()) {
+               value.orInto(members);
+            }
+         }
+         if (term.negated) {
+            result.andNot(members);
+         } else {
+            result.and(members);
+         }
+      }
+      return result;
+   }
+
+   // Returns true if the given image matches the given query
+   private boolean matches(Query query, int id) {
+      for (Term term : query.terms) {
+         boolean member;
+         Postings postings = postingsOf(term);
+         if (postings != null) {
+            member = postings.contains(id);
+         } else if (term.value == null && !joints.containsKey(term.name) && tags.containsKey(term.name)) {
+            member = false;
+            for (Postings value : tags.get(term.name).values()) {
+               member |= value.contains(id);
+            }
+         } else {
+            member = false;
+         }
+         if (member == term.negated) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   // Returns the postings of a term, or null for a tag presence term or an unknown name
+   private Postings postingsOf(Term term) {
+      if (term.value != null) {
+         Map<String, Postings> values = tags.get(term.name);
+         return values == null ? null : values.get(term.value);
+      }
+      if (term.name.equalsIgnoreCase(BOX) && !joints.containsKey(term.name)) {
+         return boxes;
+      }
+      if (term.name.equalsIgnoreCase(LABELED) && !joints.containsKey(term.name)) {
+         return labeled;
+      }
+      if (term.name.equalsIgnoreCase(INTERPOLATED) && !joints.containsKey(term.name)) {
+         return interpolated;
+      }
+      return joints.get(term.name);
+   }
+
+   // Returns the number of the image at each position of the given list (-1 for images not
+   // indexed yet). When the list has changed, the numbers are carried over from the previous
+   // list and only looked up for the images that are new; images indexed afterwards are
+   // filled in by placeId, so queries on the same list cost no pass over it.
+   private int[] idsOf(ImageList list) {
+      if (list != idList || idAt == null) {
+         int[] previous = idList == null ? null : list.positionsIn(idList);
+         int[] updated = new int[list.size()];
+         for (int i = 0; i < updated.length; i++) {
+            if (previous != null && previous[i] >= 0) {
+               updated[i] = idAt[previous[i]];
+            } else {
+               Integer id = ids.isEmpty() ? null : ids.get(list.get(i).getPath());
+               updated[i] = id == null ? -1 : id;
+            }
+         }
+         idList = list;
+         idAt = updated;
+      }
+      return idAt;
+   }
+
+   // Records the number of a newly indexed image at its position in idList, if it is in it
+   // Parameters:
+   //    - String imagePath: absolute pathname of the image
+   //    - int id: its number
+   //    - ImageList list: a list the position is known for, or null
+   //    - int pos: its position in that list
+   private void placeId(String imagePath, int id, ImageList list, int pos) {
+      if (idAt == null) {
+         return;
+      }
+      int at = list == idList ? pos : idList.indexOf(new File(imagePath));
+      if (at >= 0) {
+         idAt[at] = id;
+      }
+   }
+
+   // Notifies the listeners that images have been indexed
+   private void notifyListeners() {
+      ChangeEvent changeEvent = new ChangeEvent(this);
+      for (ChangeListener listener : listeners) {
+         listener.stateChanged(changeEvent);
+      }
+   }
+}
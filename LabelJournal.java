@@ -0,0 +1,351 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+// Write-ahead journal of the labeling operations of one session, so that labels confirmed
+// since the last save survive a crash or power loss.
+
+// Labels are only written to the label store when the user moves to another image or
+// closes the window, and rewriting a whole .label file on every click would be too slow
+// on network drives. Instead, every confirmed joint, tag and bounding box is appended to
+// a small journal file of the session:
+//    - Operations are queued by the GUI without waiting, and appended by a background
+//      thread. It writes all operations queued since its last write at once and forces
+//      them to disk with one fsync ("group commit"), so bursts of clicks cost one fsync.
+//    - When the current image's labels are saved, a checkpoint is queued: once every
+//      earlier operation is in the journal, the label store is flushed and the journal is
+//      truncated, since everything it held is now in the store.
+//    - When the session ends normally, the journal file is deleted. A journal file found
+//      when the program starts therefore belongs to a session that did not end normally
+//      (unless another running instance still holds its lock); recover() then replays its
+//      operations into the label store and deletes it.
+// Journal files are named "session-<start time>-<random>.journal" and start with the
+// int MAGIC. Each operation is a record:
+//    int payload length, payload, int CRC-32 of the payload
+// where the payload is written with DataOutputStream: byte operation, UTF image pathname,
+// and the operation's fields. Joints and boxes of the first object instance are written as
+// JOINT and BOX records; those of further instances (see Annotation) as INSTANCE_JOINT and
+// INSTANCE_BOX records, which start with the instance's position. A torn record at the end
+// (e.g. after a power loss) ends the replay.
+// The journal directory can be set with -Dlabelimage.journal.dir (default ~/.labelimage/journal).
+
+public class LabelJournal {
+
+   public static final File DIRECTORY = new File(System.getProperty("labelimage.journal.dir",
+         System.getProperty("user.home") + File.separator + ".labelimage" + File.separator + "journal"));
+   public static final String JOURNAL_EXTENSION = ".journal"; // Extension of journal files
+
+   private static final int MAGIC = 0x4C424A31; // "LBJ1"
+   private static final byte JOINT = 1; // Joint confirmed: name, x, y
+   private static final byte TAG = 2; // Tag confirmed: name, text
+   private static final byte BOX = 3; // Bounding box confirmed: x, y, w, h
+   private static final byte INSTANCE_JOINT = 4; // Joint of a further instance confirmed: instance, name, x, y
+   private static final byte INSTANCE_BOX = 5; // Bounding box of a further instance confirmed: instance, x, y, w, h
+   private static final byte[] CHECKPOINT = new byte[0]; // Queued to truncate the journal
+   private static final byte[] CLOSE = new byte[0]; // Queued to end the session
+
+   private final File file; // This session's journal file
+   private final LabelStore store; // Store that the journaled labels are saved to
+   private final FileChannel channel; // Open journal file, locked while the session runs
+   private final FileLock lock; // Tells other instances that this journal is in use
+   private final LinkedBlockingQueue<byte[]> queue; // Encoded records, checkpoints and the close request, in order
+   private final Thread writer; // Background thread appending the records
+   private volatile boolean closed; // True once close() has been called
+
+   // Starts a new session journal in the given directory
+   // Parameters:
+   //    - File dir: directory holding the journal files
+   //    - LabelStore store: the store that the session's labels are saved to (flushed at checkpoints)
+   public LabelJournal(File dir, LabelStore store) throws IOException {
+      this.store = store;
+      if (!dir.isDirectory() && !dir.mkdirs()) {
+         throw new IOException("Cannot create journal directory " + dir);
+      }
+      file = new File(dir, "session-" + System.currentTimeMillis() + "-" + Integer.toHexString(new Random().nextInt()) + JOURNAL_EXTENSION);
+      channel = new RandomAccessFile(file, "rw").getChannel();
+      lock = channel.lock();
+      writeHeader();
+      queue = new LinkedBlockingQueue<byte[]>();
+      writer = new Thread(new Runnable() {
+         public void run() {
+            writeLoop();
+         }
+      }, "label-journal");
+      writer.setDaemon(true);
+      writer.start();
+   }
+
+   // Replays the journals of sessions that did not end normally into the given store, and
+   // deletes them. Journals locked by another running instance are left alone.
+   // Returns the number of images whose labels were recovered.
+   // Parameters:
+   //    - File dir: directory holding the journal files
+   //    - LabelStore store: the store to replay into
+   //    - List<String> jointNames: all joint names (from "JointNames.txt")
+   public static int recover(File dir, LabelStore store, java.util.List<String> jointNames) throws IOException {
+      File[] files = dir.listFiles();
+      if (files == null) {
+         return 0;
+      }
+      Arrays.sort(files); // Oldest session first
+      int recovered = 0;
+      for (File journal : files) {
+         if (!journal.getName().endsWith(JOURNAL_EXTENSION)) {
+            continue;
+         }
+         FileChannel in = new RandomAccessFile(journal, "rw").getChannel();
+         try {
+            FileLock orphan;
+            try {
+               orphan = in.tryLock();
+            } catch (OverlappingFileLockException ex) { // Our own session
+               orphan = null;
+            }
+            if (orphan == null) {
+               continue;
+            }
+            recovered += replay(in, store, jointNames);
+            store.flush();
+         } finally {
+            in.close();
+         }
+         journal.delete();
+      }
+      return recovered;
+   }
+
+   // Journals a confirmed joint
+   // Parameters:
+   //    - String imagePath: absolute pathname of the image
+   //    - int instance: position of the joint's object instance
+   //    - String name: the joint's name
+   //    - int x, int y: the joint's coordinates within the image
+   public void confirmJoint(String imagePath, int instance, String name, int x, int y) {
+      try {
+         ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+         DataOutputStream out = new DataOutputStream(bytes);
+         out.writeByte(instance == 0 ? JOINT : INSTANCE_JOINT);
+         out.writeUTF(imagePath);
+         if (instance != 0) {
+            out.writeInt(instance);
+         }
+         out.writeUTF(name);
+         out.writeInt(x);
+         out.writeInt(y);
+         append(bytes.toByteArray());
+      } catch (IOException ex) {} // Not thrown by ByteArrayOutputStream
+   }
+
+   // Journals a confirmed tag
+   // Parameters:
+   //    - String imagePath: absolute pathname of the image
+   //    - String name: the tag's name
+   //    - String text: the tag's text
+   public void confirmTag(String imagePath, String name, String text) {
+      try {
+         ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+         DataOutputStream out = new DataOutputStream(bytes);
+         out.writeByte(TAG);
+         out.writeUTF(imagePath);
+         out.writeUTF(name);
+         out.writeUTF(text);
+         append(bytes.toByteArray());
+      } catch (IOException ex) {} // Not thrown by ByteArrayOutputStream
+   }
+
+   // Journals a confirmed bounding box
+   // Parameters:
+   //    - String imagePath: absolute pathname of the image
+   //    - int instance: position of the box's object instance
+   //    - int x, int y: top-left corner of the box
+   //    - int w, int h: width and height of the box
+   public void confirmBox(String imagePath, int instance, int x, int y, int w, int h) {
+      try {
+         ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+         DataOutputStream out = new DataOutputStream(bytes);
+         out.writeByte(instance == 0 ? BOX : INSTANCE_BOX);
+         out.writeUTF(imagePath);
+         if (instance != 0) {
+            out.writeInt(instance);
+         }
+         out.writeInt(x);
+         out.writeInt(y);
+         out.writeInt(w);
+         out.writeInt(h);
+         append(bytes.toByteArray());
+      } catch (IOException ex) {} // Not thrown by ByteArrayOutputStream
+   }
+
+   // Records that the labels of all journaled operations have been written to the store
+   // (in the background); the journal is truncated once the store has flushed them
+   public void checkpoint() {
+      if (!closed) {
+         queue.add(CHECKPOINT);
+      }
+   }
+
+   // Ends the session: waits until everything queued is handled, flushes the store, and
+   // deletes the journal file. Only call this after the session's labels have been saved.
+   // Parameters:
+   //    - long timeoutMillis: maximum time to wait for the background thread
+   public void close(long timeoutMillis) {
+      if (closed) {
+         return;
+      }
+      closed = true;
+      queue.add(CLOSE);
+      try {
+         writer.join(timeoutMillis);
+      } catch (InterruptedException ex) {
+         Thread.currentThread().interrupt();
+      }
+   }
+
+   // Queues an encoded operation to be appended
+   private void append(byte[] payload) {
+      if (!closed) {
+         queue.add(payload);
+      }
+   }
+
+   // Body of the background thread: appends all queued records at once, forces them to
+   // disk, and handles checkpoints and the close request in queue order
+   private void writeLoop() {
+      java.util.List<byte[]> batch = new ArrayList<byte[]>();
+      while (true) {
+         try {
+            batch.add(queue.take());
+         } catch (InterruptedException ex) {
+            return;
+         }
+         queue.drainTo(batch);
+         try {
+            ByteArrayOutputStream records = new ByteArrayOutputStream();
+            for (byte[] item : batch) {
+               if (item == CHECKPOINT || item == CLOSE) {
+                  writeRecords(records);
+                  store.flush(); // Everything journaled so far is now in the store
+                  if (item == CLOSE) {
+                     lock.release();
+                     channel.close();
+                     file.delete();
+                     return;
+                  }
+                  channel.truncate(4);
+                  channel.force(true);
+               } else {
+                  DataOutputStream out = new DataOutputStream(records);
+                  CRC32 crc = new CRC32();
+                  crc.update(item);
+                  out.writeInt(item.length);
+                  out.write(item);
+                  out.writeInt((int) crc.getValue());
+               }
+            }
+            writeRecords(records);
+         } catch (IOException ex) {
+            System.err.println("Could not write label journal " + file + ": " + ex);
+         }
+         batch.clear();
+      }
+   }
+
+   // Appends the given encoded records to the journal and forces them to disk (one fsync
+   // for the whole batch), then empties the buffer
+   private void writeRecords(ByteArrayOutputStream records) throws IOException {
+      if (records.size() == 0) {
+         return;
+      }
+      ByteBuffer buffer = ByteBuffer.wrap(records.toByteArray());
+      channel.position(channel.size());
+      while (buffer.hasRemaining()) {
+         channel.write(buffer);
+      }
+      channel.force(false);
+      records.reset();
+   }
+
+   // Writes the file header
+   private void writeHeader() throws IOException {
+      ByteBuffer header = ByteBuffer.allocate(4);
+      header.putInt(MAGIC);
+      header.flip();
+      channel.write(header, 0);
+      channel.force(true);
+   }
+
+   // Replays the operations of the given journal into the store, image by image, returning
+   // the number of images written. Images whose joints are all gone are not written, like
+   // LabelImage never saves an image without confirmed joints.
+   private static int replay(FileChannel in, LabelStore store, java.util.List<String> jointNames) throws IOException {
+      Map<String, java.util.List<byte[]>> operations = new LinkedHashMap<String, java.util.List<byte[]>>();
+      DataInputStream records = new DataInputStream(new BufferedInputStream(Channels.newInputStream(in.position(0))));
+      try {
+         if (records.readInt() != MAGIC) {
+            return 0;
+         }
+         while (true) {
+            int length = records.readInt();
+            if (length < 0 || length > 1 << 20) {
+               break;
+            }
+            byte[] payload = new byte[length];
+            records.readFully(payload);
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            if (records.readInt() != (int) crc.getValue()) {
+               break;
+            }
+            String imagePath = new DataInputStream(new ByteArrayInputStream(payload, 1, length - 1)).readUTF();
+            java.util.List<byte[]> forImage = operations.get(imagePath);
+            if (forImage == null) {
+               forImage = new ArrayList<byte[]>();
+               operations.put(imagePath, forImage);
+            }
+            forImage.add(payload);
+         }
+      } catch (EOFException ex) {} // End of the journal, or a torn last record
+
+      int written = 0;
+      LabelData data = new LabelData();
+      Annotation annotation = new Annotation(jointNames);
+      for (Map.Entry<String, java.util.List<byte[]>> image : operations.entrySet()) {
+         annotation.clear();
+         String stored = store.read(image.getKey());
+         if (stored != null) {
+            try {
+               annotation.read(LabelCodec.read(stored));
+            } catch (org.json.simple.parser.ParseException ex) {
+               System.err.println("Not recovering labels of " + image.getKey() + ": its stored labels are unreadable");
+               continue;
+            }
+         }
+         for (byte[] payload : image.getValue()) {
+            DataInputStream op = new DataInputStream(new ByteArrayInputStream(payload));
+            byte kind = op.readByte();
+            op.readUTF(); // Image pathname
+            if (kind == JOINT || kind == INSTANCE_JOINT) {
+               annotation.selectInstance(kind == JOINT ? 0 : op.readInt());
+               String name = op.readUTF();
+               annotation.confirm(name, op.readInt(), op.readInt());
+            } else if (kind == TAG) {
+               String name = op.readUTF();
+               annotation.getTags().put(name, op.readUTF());
+            } else if (kind == BOX || kind == INSTANCE_BOX) {
+               annotation.selectInstance(kind == BOX ? 0 : op.readInt());
+               annotation.setBox(op.readInt(), op.readInt(), op.readInt(), op.readInt());
+            }
+         }
+         if (annotation.getTotalConfirmedCount() > 0) {
+            annotation.write(data);
+            store.write(image.getKey(), LabelCodec.toString(data));
+            written++;
+         }
+      }
+      return written;
+   }
+}
@@ -0,0 +1,145 @@
+import java.awt.*;
+import java.awt.image.*;
+
+// Draws the labels of an Annotation over the displayed image: the bounding box being
+// labeled, a retained overlay with the confirmed joints of all instances and the boxes of
+// the other instances, and the dot of a joint that is not confirmed yet.
+
+// Used by LabelImage.DrawableLabel to paint the image component, and by
+// LabelImageBenchmark to measure exactly that paint headless. The overlay is only redrawn
+// when the joints, the component's size, the zoom/pan, the image position or the box
+// color have changed since it was last drawn, so a paint costs the same however many joints
+// there are.
+
+public class LabelPainter {
+
+   private double originX; // Component x position of image pixel (0, 0)
+   private double originY; // Component y position of image pixel (0, 0)
+   private double scale; // Screen pixels per image pixel
+   private BufferedImage overlay; // Retained layer with all confirmed joint dots, composited over the image
+   private long overlayModCount; // Annotation modification count the overlay was drawn for (-1 if never)
+   private double overlayOriginX; // Component x position of image pixel (0, 0) the overlay was drawn for
+   private double overlayOriginY; // Component y position of image pixel (0, 0) the overlay was drawn for
+   private double overlayScale; // Zoom the overlay was drawn for
+   private Color overlayColor; // Box color the overlay was drawn with
+
+   // Creates a painter for an image displayed at 1:1 with its pixel (0, 0) at the component's origin
+   public LabelPainter() {
+      scale = 1.0;
+      overlayModCount = -1;
+   }
+
+   // Sets where and how large the image is displayed
+   // Parameters:
+   //    - double originX, double originY: component position of image pixel (0, 0)
+   //    - double scale: screen pixels per image pixel
+   public void setView(double originX, double originY, double scale) {
+      this.originX = originX;
+      this.originY = originY;
+      this.scale = scale;
+   }
+
+   // Returns the component x position at which the given image x coordinate is shown
+   public int toComponentX(int imageX) {
+      return (int) Math.floor(originX + imageX * scale);
+   }
+
+   // Returns the component y position at which the given image y coordinate is shown
+   public int toComponentY(int imageY) {
+      return (int) Math.floor(originY + imageY * scale);
+   }
+
+   // Makes the next paint redraw the overlay, e.g. because the joint colors changed
+   public void invalidate() {
+      overlayModCount = -1;
+   }
+
+   // Draws the bounding box being labeled and the overlay of confirmed joints and other
+   // instances' boxes
+   // Parameters:
+   //    - Graphics g: the graphics to draw with
+   //    - int width, int height: size of the component
+   //    - GraphicsConfiguration gc: the component's graphics configuration, or null if it has none
+   //    - Annotation annotation: the labels to be drawn
+   //    - java.util.List<Color> jointColors: dot colors by joint ordinal
+   //    - Color boxColor: color of the boxes (and of joints without a color)
+   //    - int boxX1, int boxY1, int boxX2, int boxY2: image coordinates of the box being labeled
+   public void paint(Graphics g, int width, int height, GraphicsConfiguration gc, Annotation annotation,
+         java.util.List<Color> jointColors, Color boxColor, int boxX1, int boxY1, int boxX2, int boxY2) {
+      // Draw the bounding box using the chosen color (black/white) and the positions of the
+      // top-left and bottom-right corners within the component.
+      g.setColor(boxColor);
+      int left = toComponentX(boxX1);
+      int top = toComponentY(boxY1);
+      g.drawRect(left, top, toComponentX(boxX2) - left, toComponentY(boxY2) - top); // (x, y, w, h)
+
+      // Draw all confirmed joint dots at once from the overlay
+      validateOverlay(width, height, gc, annotation, jointColors, boxColor);
+      if (overlay != null) {
+         g.drawImage(overlay, 0, 0, null);
+      }
+   }
+
+   // Draws the dot of a joint that is not confirmed yet
+   // Parameters:
+   //    - Graphics g: the graphics to draw with
+   //    - int x, int y: component position of the dot's center
+   //    - Color color: the joint's color, or null to keep the current color
+   public void paintDot(Graphics g, int x, int y, Color color) {
+      if (color != null) {
+         g.setColor(color);
+      }
+      g.fillOval(x - 4, y - 4, 8, 8);
+   }
+
+   // Makes sure the overlay holds the confirmed joints of all instances (and the confirmed
+   // boxes of the instances other than the current one) at their current component
+   // positions, redrawing it only if something it shows has changed since it was last drawn.
+   private void validateOverlay(int w, int h, GraphicsConfiguration gc, Annotation annotation,
+         java.util.List<Color> jointColors, Color boxColor) {
+      if (w <= 0 || h <= 0) {
+         return;
+      }
+      if (overlay == null || overlay.getWidth() != w || overlay.getHeight() != h) {
+         overlay = gc != null ? gc.createCompatibleImage(w, h, Transparency.TRANSLUCENT)
+               : new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+         overlayModCount = -1;
+      }
+      if (overlayModCount == annotation.getModCount() && overlayOriginX == originX && overlayOriginY == originY
+            && overlayScale == scale && overlayColor == boxColor) {
+         return;
+      }
+      Graphics2D og = overlay.createGraphics();
+      og.setComposite(AlphaComposite.Clear);
+      og.fillRect(0, 0, w, h);
+      og.setComposite(AlphaComposite.SrcOver);
+      for (int inst = 0; inst < annotation.getInstanceCount(); inst++) {
+         Annotation.Instance instance = annotation.getInstance(inst);
+         og.setColor(boxColor);
+         // The boxes of the other instances are drawn here; the current instance's box is drawn
+         // by paint, as it changes while it is dragged
+         if (inst != annotation.getCurrentInstance() && instance.getBoxFields() == LabelData.BOX_ALL) {
+            int left = toComponentX(instance.getBoxX());
+            int top = toComponentY(instance.getBoxY());
+            og.drawRect(left, top, toComponentX(instance.getBoxX() + instance.getBoxW()) - left,
+                  toComponentY(instance.getBoxY() + instance.getBoxH()) - top);
+         }
+         // Draw each joint dot that has been confirmed, looking up coordinates and color by joint ordinal
+         for (int i = 0; i < instance.getConfirmedCount(); i++) {
+            int ordinal = instance.getConfirmedOrdinal(i);
+            // Joints read from a .label file but not listed in "JointNames.txt" have no color
+            // and keep the previous one
+            if (ordinal < jointColors.size()) {
+               og.setColor(jointColors.get(ordinal)); // Get appropriate color
+            }
+            og.fillOval(toComponentX(instance.getX(ordinal)) - 4, toComponentY(instance.getY(ordinal)) - 4, 8, 8);
+         }
+      }
+      og.dispose();
+      overlayModCount = annotation.getModCount();
+      overlayOriginX = originX;
+      overlayOriginY = originY;
+      overlayScale = scale;
+      overlayColor = boxColor;
+   }
+}
@@ -0,0 +1,135 @@
+import java.awt.*;
+import java.io.*;
+import java.util.*;
+
+// The labeling schema: joint names, joint dot colors and tag names, as read from the
+// supporting files "JointNames.txt", "JointDotColors.txt" and "TagNames.txt".
+
+// A schema is immutable, so it can be shared by everything that displays or checks labels
+// and replaced as a whole when the files change (see SchemaRegistry). It is validated when
+// it is loaded, so a schema that exists is always consistent:
+//    - every joint has exactly one color ("JointDotColors.txt" has as many colors as
+//      "JointNames.txt" has joint names),
+//    - each color line has three rgb values from 0 to 255,
+//    - no joint name is listed twice (joints are identified by name in .label files).
+// Names are separated by whitespace, one per line by convention.
+
+public class LabelSchema {
+
+   public static final String JOINT_NAMES_FILE = "JointNames.txt"; // Joint names, in drop-down list order
+   public static final String JOINT_COLORS_FILE = "JointDotColors.txt"; // One "r g b" line per joint
+   public static final String TAG_NAMES_FILE = "TagNames.txt"; // Tag names, in drop-down list order
+
+   private final java.util.List<String> jointNames; // Joint names by ordinal (unmodifiable)
+   private final java.util.List<Color> jointColors; // Joint dot colors by ordinal (unmodifiable)
+   private final java.util.List<String> tagNames; // Tag names (unmodifiable)
+
+   // Creates a schema from already validated lists
+   private LabelSchema(java.util.List<String> jointNames, java.util.List<Color> jointColors, java.util.List<String> tagNames) {
+      this.jointNames = Collections.unmodifiableList(new ArrayList<String>(jointNames));
+      this.jointColors = Collections.unmodifiableList(new ArrayList<Color>(jointColors));
+      this.tagNames = Collections.unmodifiableList(new ArrayList<String>(tagNames));
+   }
+
+   // Reads and validates the schema files in the given directory
+   // Parameters:
+   //    - File dir: the directory holding "JointNames.txt", "JointDotColors.txt" and "TagNames.txt"
+   public static LabelSchema load(File dir) throws IOException {
+      java.util.List<String> jointNames = readNames(new File(dir, JOINT_NAMES_FILE));
+      java.util.List<Color> jointColors = readColors(new File(dir, JOINT_COLORS_FILE));
+      java.util.List<String> tagNames = readNames(new File(dir, TAG_NAMES_FILE));
+      if (jointNames.size() != jointColors.size()) {
+         throw new IOException(JOINT_NAMES_FILE + " has " + jointNames.size() + " joint names but "
+               + JOINT_COLORS_FILE + " has " + jointColors.size() + " colors");
+      }
+      Set<String> seen = new HashSet<String>();
+      for (String name : jointNames) {
+         if (!seen.add(name)) {
+            throw new IOException(JOINT_NAMES_FILE + " lists joint " + name + " more than once");
+         }
+      }
+      return new LabelSchema(jointNames, jointColors, tagNames);
+   }
+
+   // Reads all whitespace-separated names from the given file, e.g. "JointNames.txt"
+   // Parameters:
+   //    - File file: the names file
+   public static java.util.List<String> readNames(File file) throws IOException {
+      java.util.List<String> names = new ArrayList<String>();
+      Scanner scanner = new Scanner(file);
+      try {
+         while (scanner.hasNext()) {
+            names.add(scanner.next());
+         }
+      } finally {
+         scanner.close();
+      }
+      return names;
+   }
+
+   // Reads one color per non-empty line ("r g b") from the given file
+   private static java.util.List<Color> readColors(File file) throws IOException {
+      java.util.List<Color> colors = new ArrayList<Color>();
+      BufferedReader in = new BufferedReader(new FileReader(file));
+      try {
+         String line;
+         int lineNumber = 0;
+         while ((line = in.readLine()) != null) {
+            lineNumber++;
+            String[] rgb = line.trim().split("\\s+");
+            if (rgb.length == 1 && rgb[0].isEmpty()) {
+               continue;
+            }
+            try {
+               if (rgb.length != 3) {
+                  throw new IllegalArgumentException();
+               }
+               colors.add(new Color(Integer.parseInt(rgb[0]), Integer.parseInt(rgb[1]), Integer.parseInt(rgb[2])));
+            } catch (IllegalArgumentException ex) { // Also NumberFormatException and values out of range
+               throw new IOException(file.getName() + " line " + lineNumber + ": expected three values from 0 to 255, found \"" + line + "\"");
+            }
+         }
+      } finally {
+         in.close();
+      }
+      return colors;
+   }
+
+   // Returns the joint names by ordinal (unmodifiable)
+   public java.util.List<String> getJointNames() {
+      return jointNames;
+   }
+
+   // Returns the number of joints
+   public int getJointCount() {
+      return jointNames.size();
+   }
+
+   // Returns the joint dot colors by ordinal (unmodifiable)
+   public java.util.List<Color> getJointColors() {
+      return jointColors;
+   }
+
+   // Returns the dot color of the joint with the given ordinal
+   public Color getJointColor(int ordinal) {
+      return jointColors.get(ordinal);
+   }
+
+   // Returns the tag names (unmodifiable)
+   public java.util.List<String> getTagNames() {
+      return tagNames;
+   }
+
+   // Returns true if the given object is a schema with the same joints, colors and tags
+   public boolean equals(Object o) {
+      if (!(o instanceof LabelSchema)) {
+         return false;
+      }
+      LabelSchema other = (LabelSchema) o;
+      return jointNames.equals(other.jointNames) && jointColors.equals(other.jointColors) && tagNames.equals(other.tagNames);
+   }
+
+   public int hashCode() {
+      return jointNames.hashCode() * 31 + tagNames.hashCode();
+   }
+}
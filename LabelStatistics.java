@@ -0,0 +1,451 @@
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.json.simple.*;
+import org.json.simple.parser.*;
+
+// Headless command-line tool that reports statistics over the labeled data of every image
+// under a directory tree.
+
+// Usage:
+//    $ java -cp ".:./json-simple-1.1.jar" LabelStatistics <root directory> [--joints <JointNames.txt>] [--tags <TagNames.txt>] [--store <label store>] [--top <n>] [--output <report.json>]
+// The labeled data is read from .label files by default, or from the given label store
+// (see LabelStore.open).
+
+// The report is written as JSON to standard output (or to the given output file):
+//    - images: the number of image files, how many of them are labeled, unlabeled, or
+//      have labeled data that cannot be read, and the number of labeled objects in them
+//      (an image labeled with several object instances, see Annotation, has one object per
+//      instance; further instances with neither joints nor a box are not counted)
+//    - joints: for each joint of "JointNames.txt", the number and fraction of labeled objects
+//      on which it was confirmed, the number of objects with all joints, and how often joint
+//      names that are not listed were found
+//    - boxes: the number of labeled objects with a bounding box, and histograms of the box
+//      size (square root of its area, in pixels, in power-of-two buckets) and of its aspect
+//      ratio (width / height); boxes without a positive width and height are counted apart
+//    - tags: for each tag (those of "TagNames.txt" first), the number of images having it,
+//      its number of distinct values, and its --top (default 20) most frequent values with
+//      their counts
+// A throughput report (files per second) is printed to standard error when done.
+
+// The images are counted by fork/join tasks: a task per directory lists it and forks a
+// task per subdirectory and per BATCH_SIZE image files, so large trees (and large
+// directories) are listed and read by all cores at once. Every task counts its images into
+// its own Accumulator and merges those of the tasks it forked when joining them, so there
+// is no shared state to contend on while reading and image paths are never collected.
+// Only counters are kept, so memory is bounded by the number of distinct tag values (and
+// unknown joint names) and the size of the directories being listed, not by the number of
+// images.
+
+public class LabelStatistics {
+
+   public static final int DEFAULT_TOP = 20; // Most frequent values reported per tag by default
+   public static final int BATCH_SIZE = 256; // Image files of a directory counted by one task
+   public static final int SIZE_BUCKETS = 10; // Box size buckets: < 16, 16-31, ..., 2048-4095, >= 4096 pixels
+   public static final double[] ASPECT_LIMITS = new double[] {0.25, 1 / 3.0, 0.5, 2 / 3.0, 1, 1.5, 2, 3, 4}; // Upper limits of the aspect ratio buckets (the last bucket has none)
+
+   private final java.util.List<String> jointNames; // Joint names in report order
+   private final Map<String, Integer> jointOrdinals; // Position of each joint name within jointNames
+   private final java.util.List<String> tagNames; // Tag names reported first, in this order
+
+   // Creates a new statistics engine for the given joint and tag names
+   // Parameters:
+   //    - List<String> jointNames: all joint names (from "JointNames.txt")
+   //    - List<String> tagNames: all tag names (from "TagNames.txt")
+   public LabelStatistics(java.util.List<String> jointNames, java.util.List<String> tagNames) {
+      this.jointNames = jointNames;
+      this.tagNames = tagNames;
+      jointOrdinals = new HashMap<String, Integer>();
+      for (int i = 0; i < jointNames.size(); i++) {
+         jointOrdinals.put(jointNames.get(i), i);
+      }
+   }
+
+   // Counters over a part of the images. Not thread-safe: every task has its own, and they
+   // are merged as the tasks are joined.
+   class Accumulator {
+
+      long images; // Images counted
+      long labeled; // Images with readable labeled data
+      long unreadable; // Images whose labeled data cannot be read
+      long objects; // Labeled object instances in the labeled images
+      final long[] jointCounts; // Objects on which each joint was confirmed, by joint ordinal
+      long allJoints; // Objects on which every joint was confirmed
+      final Map<String, long[]> unknownJoints; // Occurrences of joint names that are not listed, by name
+      long boxes; // Objects with a bounding box
+      long degenerateBoxes; // Bounding boxes without a positive width and height
+      final long[] sizes; // Bounding boxes per size bucket
+      final long[] aspects; // Bounding boxes per aspect ratio bucket
+      final Map<String, Map<String, long[]>> tags; // Images per tag value, by tag name
+      final LabelData data; // Reused for parsing
+      final boolean[] seen; // Joints seen on the current object, by joint ordinal
+
+      Accumulator() {
+         jointCounts = new long[jointNames.size()];
+         unknownJoints = new HashMap<String, long[]>();
+         sizes = new long[SIZE_BUCKETS];
+         aspects = new long[ASPECT_LIMITS.length + 1];
+         tags = new HashMap<String, Map<String, long[]>>();
+         data = new LabelData();
+         seen = new boolean[jointNames.size()];
+      }
+
+      // Counts the labeled data of one image
+      // Parameters:
+      //    - LabelStore store: the store holding the labeled data
+      //    - String image: absolute pathname of the image
+      void add(LabelStore store, String image) {
+         images++;
+         try {
+            String content = store.read(image);
+            if (content == null) {
+               return;
+            }
+            LabelCodec.read(new StringReader(content), data);
+         } catch (IOException ex) {
+            unreadable++;
+            return;
+         } catch (ParseException ex) {
+            unreadable++;
+            return;
+         }
+         labeled++;
+         for (int k = -1; k < data.getInstanceCount(); k++) {
+            LabelData instance = k < 0 ? data : data.getInstance(k);
+            if (k < 0 || instance.getJointCount() > 0 || instance.getBoxFields() == LabelData.BOX_ALL) {
+               addObject(instance);
+            }
+         }
+
+         for (Map.Entry<String, String> tag : data.getTags().entrySet()) {
+            Map<String, long[]> values = tags.get(tag.getKey());
+            if (values == null) {
+               values = new HashMap<String, long[]>();
+               tags.put(tag.getKey(), values);
+            }
+            count(values, tag.getValue());
+         }
+      }
+
+      // Counts the joints and bounding box of one labeled object
+      void addObject(LabelData instance) {
+         objects++;
+         Arrays.fill(seen, false);
+         int distinct = 0;
+         for (int i = 0; i < instance.getJointCount(); i++) {
+            Integer ordinal = jointOrdinals.get(instance.getJointName(i));
+            if (ordinal == null) {
+               count(unknownJoints, instance.getJointName(i));
+            } else if (!seen[ordinal]) {
+               seen[ordinal] = true;
+               jointCounts[ordinal]++;
+               distinct++;
+            }
+         }
+         if (distinct == jointNames.size()) {
+            allJoints++;
+         }
+
+         if (instance.getBoxFields() == LabelData.BOX_ALL) {
+            boxes++;
+            int w = instance.getBoxW();
+            int h = instance.getBoxH();
+            if (w <= 0 || h <= 0) {
+               degenerateBoxes++;
+            } else {
+               sizes[sizeBucket(Math.sqrt((double) w * h))]++;
+               aspects[aspectBucket(w / (double) h)]++;
+            }
+         }
+      }
+
+      // Adds the counters of another part to this one, and returns this one
+      Accumulator merge(Accumulator other) {
+         images += other.images;
+         labeled += other.labeled;
+         unreadable += other.unreadable;
+         objects += other.objects;
+         for (int i = 0; i < jointCounts.length; i++) {
+            jointCounts[i] += other.jointCounts[i];
+         }
+         allJoints += other.allJoints;
+         mergeCounts(unknownJoints, other.unknownJoints);
+         boxes += other.boxes;
+         degenerateBoxes += other.degenerateBoxes;
+         for (int i = 0; i < sizes.length; i++) {
+            sizes[i] += other.sizes[i];
+         }
+         for (int i = 0; i < aspects.length; i++) {
+            aspects[i] += other.aspects[i];
+         }
+         for (Map.Entry<String, Map<String, long[]>> tag : other.tags.entrySet()) {
+            Map<String, long[]> values = tags.get(tag.getKey());
+            if (values == null) {
+               tags.put(tag.getKey(), tag.getValue());
+            } else {
+               mergeCounts(values, tag.getValue());
+            }
+         }
+         return this;
+      }
+   }
+
+   // Counts the images of a directory and, in parallel, of its subdirectories; or counts a
+   // batch of image files of a directory
+   class ImageCounter extends RecursiveTask<Accumulator> {
+
+      private final LabelStore store; // The store holding the labeled data
+      private final File dir; // Directory to be listed, or null for a batch
+      private final java.util.List<File> batch; // Image files to be counted, or null for a directory
+
+      // Creates a task counting the images under the given directory
+      ImageCounter(LabelStore store, File dir) {
+         this.store = store;
+         this.dir = dir;
+         this.batch = null;
+      }
+
+      // Creates a task counting the given image files
+      ImageCounter(LabelStore store, java.util.List<File> batch) {
+         this.store = store;
+         this.dir = null;
+         this.batch = batch;
+      }
+
+      protected Accumulator compute() {
+         Accumulator stats = new Accumulator();
+         if (batch != null) {
+            for (File image : batch) {
+               stats.add(store, image.getAbsolutePath());
+            }
+            return stats;
+         }
+         File[] files = dir.listFiles();
+         if (files == null) {
+            return stats;
+         }
+         java.util.List<ImageCounter> forked = new ArrayList<ImageCounter>();
+         java.util.List<File> images = new ArrayList<File>();
+         for (File file : files) {
+            if (file.isDirectory()) {
+               forked.add(new ImageCounter(store, file));
+            } else if (DirectoryIndex.isImageFile(file.getName())) {
+               images.add(file);
+            }
+         }
+         // Fork all but the first batch, which is counted by this task
+         for (int from = BATCH_SIZE; from < images.size(); from += BATCH_SIZE) {
+            forked.add(new ImageCounter(store, images.subList(from, Math.min(from + BATCH_SIZE, images.size()))));
+         }
+         for (ImageCounter task : forked) {
+            task.fork();
+         }
+         for (File image : images.subList(0, Math.min(BATCH_SIZE, images.size()))) {
+            stats.add(store, image.getAbsolutePath());
+         }
+         for (ImageCounter task : forked) {
+            stats.merge(task.join());
+         }
+         return stats;
+      }
+   }
+
+   // Computes the statistics of all images under the given root and returns the counters
+   // Parameters:
+   //    - LabelStore store: the store holding the labeled data
+   //    - File root: the directory whose images (including subdirectories) are counted
+   public Accumulator compute(LabelStore store, File root) {
+      return ForkJoinPool.commonPool().invoke(new ImageCounter(store, root.getAbsoluteFile()));
+   }
+
+   // Writes the given statistics as JSON
+   // Parameters:
+   //    - Accumulator stats: the statistics to be written
+   //    - String root: the directory the statistics are about
+   //    - int top: number of most frequent values written per tag
+   //    - Writer out: where the JSON is written
+   public void write(Accumulator stats, String root, int top, Writer out) throws IOException {
+      out.write("{\"root\":\"" + JSONValue.escape(root) + "\",\n\"images\":{\"total\":" + stats.images
+            + ",\"labeled\":" + stats.labeled + ",\"unlabeled\":" + (stats.images - stats.labeled - stats.unreadable)
+            + ",\"unreadable\":" + stats.unreadable + ",\"objects\":" + stats.objects + "},\n");
+
+      out.write("\"joints\":{\"coverage\":[");
+      for (int i = 0; i < jointNames.size(); i++) {
+         out.write((i == 0 ? "\n" : ",\n") + "{\"name\":\"" + JSONValue.escape(jointNames.get(i)) + "\",\"objects\":"
+               + stats.jointCounts[i] + ",\"fraction\":" + fraction(stats.jointCounts[i], stats.objects) + "}");
+      }
+      out.write("],\n\"objectsWithAllJoints\":" + stats.allJoints + ",\"unknown\":");
+      writeCounts(out, stats.unknownJoints, Integer.MAX_VALUE);
+      out.write("},\n");
+
+      out.write("\"boxes\":{\"objects\":" + stats.boxes + ",\"degenerate\":" + stats.degenerateBoxes + ",\"size\":[");
+      for (int i = 0; i < SIZE_BUCKETS; i++) {
+         String range = i == 0 ? "<16" : i == SIZE_BUCKETS - 1 ? ">=" + (8 << i) : (8 << i) + "-" + ((16 << i) - 1);
+         out.write((i == 0 ? "" : ",") + "{\"pixels\":\"" + range + "\",\"boxes\":" + stats.sizes[i] + "}");
+      }
+      out.write("],\n\"aspectRatio\":[");
+      for (int i = 0; i < stats.aspects.length; i++) {
+         String range = i == 0 ? "<" + format(ASPECT_LIMITS[0]) : i == ASPECT_LIMITS.length ? ">=" + format(ASPECT_LIMITS[i - 1])
+               : format(ASPECT_LIMITS[i - 1]) + "-" + format(ASPECT_LIMITS[i]);
+         out.write((i == 0 ? "" : ",") + "{\"widthPerHeight\":\"" + range + "\",\"boxes\":" + stats.aspects[i] + "}");
+      }
+      out.write("]},\n");
+
+      // Tags of TagNames.txt in their order, then any others by name
+      java.util.List<String> names = new ArrayList<String>(tagNames);
+      for (String name : new TreeSet<String>(stats.tags.keySet())) {
+         if (!names.contains(name)) {
+            names.add(name);
+         }
+      }
+      out.write("\"tags\":[");
+      boolean first = true;
+      for (String name : names) {
+         Map<String, long[]> values = stats.tags.get(name);
+         if (values == null) {
+            values = Collections.emptyMap();
+         }
+         long images = 0;
+         for (long[] count : values.values()) {
+            images += count[0];
+         }
+         out.write((first ? "\n" : ",\n") + "{\"name\":\"" + JSONValue.escape(name) + "\",\"images\":" + images
+               + ",\"distinctValues\":" + values.size() + ",\"values\":");
+         writeCounts(out, values, top);
+         out.write("}");
+         first = false;
+      }
+      out.write("]}\n");
+   }
+
+   // Main method: computes the statistics of all images under the given root and writes the report
+   public static void main(String[] args) {
+      String root = null;
+      String jointsFile = LabelSchema.JOINT_NAMES_FILE;
+      String tagsFile = LabelSchema.TAG_NAMES_FILE;
+      String storeSpec = "sidecar";
+      String output = null;
+      int top = DEFAULT_TOP;
+      for (int i = 0; i < args.length; i++) {
+         if (args[i].equals("--joints") && i + 1 < args.length) {
+            jointsFile = args[++i];
+         } else if (args[i].equals("--tags") && i + 1 < args.length) {
+            tagsFile = args[++i];
+         } else if (args[i].equals("--store") && i + 1 < args.length) {
+            storeSpec = args[++i];
+         } else if (args[i].equals("--top") && i + 1 < args.length) {
+            top = Integer.parseInt(args[++i]);
+         } else if (args[i].equals("--output") && i + 1 < args.length) {
+            output = args[++i];
+         } else if (root == null && !args[i].startsWith("--")) {
+            root = args[i];
+         } else {
+            root = null;
+            break;
+         }
+      }
+      if (root == null) {
+         System.err.println("Usage: java LabelStatistics <root directory> [--joints <JointNames.txt>] [--tags <TagNames.txt>] [--store <label store>] [--top <n>] [--output <report.json>]");
+         System.exit(2);
+      }
+
+      try {
+         LabelStatistics statistics = new LabelStatistics(LabelSchema.readNames(new File(jointsFile)), LabelSchema.readNames(new File(tagsFile)));
+         long start = System.nanoTime();
+         Accumulator stats;
+         LabelStore store = LabelStore.open(storeSpec);
+         try {
+            stats = statistics.compute(store, new File(root));
+         } finally {
+            store.close();
+         }
+         long nanos = System.nanoTime() - start;
+         Writer out = new BufferedWriter(output == null ? new OutputStreamWriter(System.out, StandardCharsets.UTF_8)
+               : new OutputStreamWriter(new FileOutputStream(output), StandardCharsets.UTF_8));
+         try {
+            statistics.write(stats, root, top, out);
+         } finally {
+            out.flush();
+            if (output != null) {
+               out.close();
+            }
+         }
+         System.err.println(String.format(Locale.ROOT, "Counted %d images (%d labeled) in %.1f s (%.0f files/s)",
+               stats.images, stats.labeled, nanos / 1e9, stats.images / Math.max(1e-9, nanos / 1e9)));
+         System.exit(0);
+      } catch (IOException ex) {
+         System.err.println("Statistics failed: " + ex);
+         System.exit(2);
+      }
+   }
+
+   // Adds one to the count of the given key
+   private static void count(Map<String, long[]> counts, String key) {
+      long[] count = counts.get(key);
+      if (count == null) {
+         counts.put(key, new long[] {1});
+      } else {
+         count[0]++;
+      }
+   }
+
+   // Adds the counts of source to those of target
+   private static void mergeCounts(Map<String, long[]> target, Map<String, long[]> source) {
+      for (Map.Entry<String, long[]> entry : source.entrySet()) {
+         long[] count = target.get(entry.getKey());
+         if (count == null) {
+            target.put(entry.getKey(), entry.getValue());
+         } else {
+            count[0] += entry.getValue()[0];
+         }
+      }
+   }
+
+   // Writes the given counts as a JSON array of {"value", "count"} objects, most frequent
+   // first (then by value), limited to the given number of entries
+   private static void writeCounts(Writer out, Map<String, long[]> counts, int limit) throws IOException {
+      java.util.List<Map.Entry<String, long[]>> sorted = new ArrayList<Map.Entry<String, long[]>>(counts.entrySet());
+      Collections.sort(sorted, new Comparator<Map.Entry<String, long[]>>() {
+         public int compare(Map.Entry<String, long[]> a, Map.Entry<String, long[]> b) {
+            int byCount = Long.compare(b.getValue()[0], a.getValue()[0]);
+            return byCount != 0 ? byCount : a.getKey().compareTo(b.getKey());
+         }
+      });
+      out.write("[");
+      for (int i = 0; i < Math.min(limit, sorted.size()); i++) {
+         out.write((i == 0 ? "" : ",") + "{\"value\":\"" + JSONValue.escape(sorted.get(i).getKey()) + "\",\"count\":"
+               + sorted.get(i).getValue()[0] + "}");
+      }
+      out.write("]");
+   }
+
+   // Returns the size bucket of a box with the given square root of its area
+   private static int sizeBucket(double side) {
+      int bucket = 0;
+      for (double limit = 16; side >= limit && bucket < SIZE_BUCKETS - 1; limit *= 2) {
+         bucket++;
+      }
+      return bucket;
+   }
+
+   // Returns the aspect ratio bucket of the given width / height ratio
+   private static int aspectBucket(double ratio) {
+      int bucket = 0;
+      while (bucket < ASPECT_LIMITS.length && ratio >= ASPECT_LIMITS[bucket]) {
+         bucket++;
+      }
+      return bucket;
+   }
+
+   // Returns part / whole with four decimals, or 0 if whole is 0
+   private static String fraction(long part, long whole) {
+      return String.format(Locale.ROOT, "%.4f", whole == 0 ? 0 : part / (double) whole);
+   }
+
+   // Formats a bucket limit with at most two decimals
+   private static String format(double limit) {
+      return String.format(Locale.ROOT, "%.2f", limit).replaceAll("\\.?0+$", "");
+   }
+}
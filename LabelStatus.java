@@ -0,0 +1,571 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+import javax.swing.event.*;
+import org.json.simple.parser.*;
+
+// Labeled status of every image being labeled (unlabeled, partially labeled, or labeled),
+// kept as bitmaps in the order of the image list, so that "next unlabeled image" and
+// "next partially labeled image" are found without touching the file system.
+
+// An image is:
+//    - UNLABELED if it has no labeled data,
+//    - PARTIAL if it has labeled data, but not every joint of the schema was confirmed (on
+//      every object instance, see Annotation),
+//    - LABELED if every joint of the schema was confirmed on every object instance.
+// The status is kept in three bitmaps (long words) indexed like the image list: whether
+// the status is known yet, whether the image has labeled data, and whether it has every
+// joint. Finding the next image with a status scans whole words and uses
+// Long.numberOfTrailingZeros, so even 200,000 images are scanned in well under a
+// millisecond. The bitmaps are updated on every save.
+// The bitmaps are persisted in the file ".labelstatus" in the directory being labeled,
+// rewritten in the background WRITE_DELAY_MILLIS after a change and when the directory is
+// closed. The file holds a hash of the image pathnames and of the joint names; if images
+// were added or removed or the schema changed since, or the file is missing, the status of
+// every image is read from the label store in the background (in parallel batches), and
+// jumps see the images read so far. Images added while the directory is open are read as
+// they appear.
+// Labels may also have been written by other programs since the file was written (e.g.
+// KeyframeInterpolator, LabelStoreConverter or another annotator), so the file also holds
+// the store's stamp (see LabelStore.stamp) of every image's labeled data when its status
+// was read. Loaded statuses are used for jumps right away and re-checked in the
+// background: only images whose stamp has changed are read again.
+// When several instances label the same directory through a lease server, the file is
+// only read, never written, as the instances would overwrite each other's file.
+
+public class LabelStatus {
+
+   public static final String FILE_NAME = ".labelstatus"; // Name of the persisted bitmap file in the directory
+   public static final int UNLABELED = 0; // No labeled data
+   public static final int PARTIAL = 1; // Labeled data, but not every joint
+   public static final int LABELED = 2; // Every joint confirmed
+   public static final int BATCH_SIZE = 4096; // Images read in parallel when the status is rebuilt
+   public static final long WRITE_DELAY_MILLIS = 2000; // Time between a change and rewriting the file
+
+   private static final int MAGIC = 0x4C425332; // "LBS2"
+
+   private final ImageIndex images; // The images being labeled
+   private final LabelStore store; // Where the labeled data is read from when the status is rebuilt
+   private final Set<String> jointNames; // All joint names of the schema
+   private final long schemaHash; // Hash of the joint names, stored in the file
+   private final File file; // The persisted bitmap file
+   private final java.util.List<ChangeListener> listeners; // Notified (on the status thread) when statuses have been read
+   private final ChangeListener imagesListener; // Wakes the status thread when images are added or removed
+   private final Semaphore wake; // Released when the image list changes
+   private final ScheduledExecutorService writer; // Rewrites the file in the background
+   private final boolean readOnly; // True if the file is never written (shared directory)
+   private volatile boolean ready; // True once the status of every image is known
+   private volatile boolean closed; // True once close() has been called
+
+   // Bitmaps (guarded by this)
+   private ImageList list; // The image list the bitmaps are indexed like, or null
+   private long[] known; // Images whose status is known
+   private long[] labeled; // Images with labeled data (PARTIAL or LABELED)
+   private long[] complete; // Images with every joint (LABELED)
+   private long[] unverified; // Images whose status was loaded from the file and not re-checked yet
+   private long[] stamps; // Store stamp of each image's labeled data when its status was read (0 if none, -1 if unknown)
+   private boolean dirty; // True if the bitmaps changed since the file was written
+   private ScheduledFuture<?> pendingWrite; // Scheduled rewrite of the file, or null
+
+   // Creates the status of the given images; call start() to load or read it
+   // Parameters:
+   //    - ImageIndex images: the images being labeled
+   //    - LabelStore store: where their labeled data is read from
+   //    - List<String> jointNames: all joint names of the schema
+   //    - boolean readOnly: true if the file must not be written, because other instances
+   //      label the same directory
+   public LabelStatus(ImageIndex images, LabelStore store, java.util.List<String> jointNames, boolean readOnly) {
+      this.images = images;
+      this.store = store;
+      this.readOnly = readOnly;
+      this.jointNames = new HashSet<String>(jointNames);
+      schemaHash = jointNames.hashCode();
+      file = new File(images.getDirectory(), FILE_NAME);
+      listeners = new CopyOnWriteArrayList<ChangeListener>();
+      wake = new Semaphore(0);
+      imagesListener = new ChangeListener() {
+         public void stateChanged(ChangeEvent e) {
+            wake.release();
+         }
+      };
+      writer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+         public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "label-status-writer");
+            t.setDaemon(true);
+            return t;
+         }
+      });
+   }
+
+   // Starts loading (or reading) the status in the background, and keeps it up to date as
+   // images are added or removed
+   public void start() {
+      images.addChangeListener(imagesListener);
+      Thread thread = new Thread(new Runnable() {
+         public void run() {
+            statusLoop();
+         }
+      }, "label-status " + images.getDirectory().getName());
+      thread.setDaemon(true);
+      thread.setPriority(Thread.MIN_PRIORITY);
+      thread.start();
+   }
+
+   // Stops updating the status and writes the file if it has changed
+   public void close() {
+      closed = true;
+      images.removeChangeListener(imagesListener);
+      wake.release();
+      writer.shutdown();
+      write();
+   }
+
+   // Returns true once the status of every image is known
+   public boolean isReady() {
+      return ready;
+   }
+
+   // Registers a listener that is notified whenever statuses have been read. Listeners are
+   // called on a background thread.
+   // Parameters:
+   //    - ChangeListener listener: the listener to be notified
+   public void addChangeListener(ChangeListener listener) {
+      listeners.add(listener);
+   }
+
+   // Returns the status (UNLABELED, PARTIAL or LABELED) of the given labeled data
+   // Parameters:
+   //    - LabelData data: an image's labeled data, or null if it has none
+   public int statusOf(LabelData data) {
+      if (data == null) {
+         return UNLABELED;
+      }
+      for (int k = -1; k < data.getInstanceCount(); k++) {
+         LabelData instance = k < 0 ? data : data.getInstance(k);
+         Set<String> confirmed = new HashSet<String>();
+         for (int i = 0; i < instance.getJointCount(); i++) {
+            if (jointNames.contains(instance.getJointName(i))) {
+               confirmed.add(instance.getJointName(i));
+            }
+         }
+         if (confirmed.size() < jointNames.size()) {
+            return PARTIAL;
+         }
+      }
+      return LABELED;
+   }
+
+   // Records the labeled data of the given image, e.g. after it was saved
+   // Parameters:
+   //    - String imagePath: absolute pathname of the image
+   //    - LabelData data: its labeled data, or null if it has none
+   public synchronized void set(String imagePath, LabelData data) {
+      if (list == null) {
+         return; // Not started yet: the image's status is read from the store
+      }
+      int pos = list.indexOf(new File(imagePath));
+      if (pos >= 0) {
+         set(pos, statusOf(data));
+         stamps[pos] = -1; // The data may still be being written; read its stamp again next time
+         scheduleWrite();
+      }
+   }
+
+   // Returns the position of the first image after the given position that has the given
+   // status, or -1 if there is none. Images whose status is not known yet count as UNLABELED.
+   // If the status thread has not mapped the bitmaps to the current list yet, the last
+   // mapped list is searched and the result translated, so this never does a whole remap on
+   // the caller's (GUI) thread; images that are new in the current list are only found once
+   // they are mapped.
+   // Parameters:
+   //    - int status: UNLABELED, PARTIAL or LABELED
+   //    - ImageList current: the current image list
+   //    - int position: position to search from (exclusive)
+   public synchronized int next(int status, ImageList current, int position) {
+      if (list == null) { // Nothing mapped yet: every image counts as UNLABELED
+         return status == UNLABELED && position + 1 < current.size() ? position + 1 : -1;
+      }
+      if (list == current) {
+         return nextIn(status, position);
+      }
+      int from = position < 0 ? -1 : list.indexOf(current.get(position));
+      if (from < 0 && position >= 0) {
+         from = -from - 2; // Not in the mapped list: search from the image before its insertion point
+      }
+      for (int found = nextIn(status, from); found >= 0; found = nextIn(status, found)) {
+         int pos = current.indexOf(list.get(found));
+         if (pos > position) { // Unless removed from the current list
+            return pos;
+         }
+      }
+      return -1;
+   }
+
+   // Returns the position of the first image of the mapped list after the given position
+   // that has the given status, or -1 if there is none
+   private int nextIn(int status, int position) {
+      int size = list.size();
+      int start = position + 1;
+      for (int w = Math.max(0, start) >>> 6; w < known.length; w++) {
+         long word;
+         if (status == UNLABELED) {
+            word = ~labeled[w];
+         } else if (status == PARTIAL) {
+            word = labeled[w] & ~complete[w];
+         } else {
+            word = complete[w];
+         }
+         if (w == start >>> 6 && start > 0) {
+            word &= -1L << (start & 63); // Skip the bits before start
+         }
+         if (w == known.length - 1 && (size & 63) != 0) {
+            word &= (1L << (size & 63)) - 1; // Skip the bits after the last image
+         }
+         if (word != 0) {
+            return (w << 6) + Long.numberOfTrailingZeros(word);
+         }
+      }
+      return -1;
+   }
+
+   // Body of the status thread: loads the file once the image list is complete, then reads
+   // the status of the images that are not known or not verified yet, and waits for the list
+   // to change
+   private void statusLoop() {
+      boolean loaded = false;
+      while (!closed) {
+         boolean listComplete = images.isComplete();
+         ImageList current = images.images();
+         remap(current);
+         if (listComplete && !loaded) {
+            loaded = true;
+            load(current);
+         }
+         readUnknown(current);
+         if (listComplete && current == images.images()) {
+            ready = true;
+            notifyListeners();
+         }
+         try {
+            wake.acquire();
+            wake.drainPermits();
+         } catch (InterruptedException ex) {
+            return;
+         }
+      }
+   }
+
+   // Reads the status of every image of the given list whose status is not known, and
+   // re-checks the loaded status of every image whose stamp has changed, in parallel batches.
+   // The images to be read are found a bitmap word at a time, so images whose status is
+   // known cost nothing.
+   private void readUnknown(ImageList current) {
+      java.util.List<Integer> batch = new ArrayList<Integer>(BATCH_SIZE);
+      java.util.List<Long> loadedStamps = new ArrayList<Long>(BATCH_SIZE);
+      int i = 0;
+      while (!closed) {
+         synchronized (this) {
+            if (list != current) { // The list changed: start over with the new one
+               return;
+            }
+            i = nextToRead(i);
+            if (i < 0) {
+               break;
+            }
+            loadedStamps.add(get(unverified, i) ? stamps[i] : -1);
+         }
+         batch.add(i++);
+         if (batch.size() == BATCH_SIZE) {
+            if (!readBatch(current, batch, loadedStamps)) {
+               return;
+            }
+            batch.clear();
+            loadedStamps.clear();
+         }
+      }
+      if (!batch.isEmpty() && !closed) {
+         readBatch(current, batch, loadedStamps);
+      }
+   }
+
+   // Reads (or re-checks) the status of the given images of the given list in parallel and
+   // records it, returning false if the list has changed meanwhile
+   // Parameters:
+   //    - ImageList current: the list the positions refer to
+   //    - List<Integer> batch: positions of the images
+   //    - List<Long> loadedStamps: stamp each image's loaded status was read at, or -1
+   private boolean readBatch(final ImageList current, final java.util.List<Integer> batch, final java.util.List<Long> loadedStamps) {
+      java.util.List<long[]> results = IntStream.range(0, batch.size()).parallel()
+            .mapToObj(k -> check(current.get(batch.get(k)).getPath(), loadedStamps.get(k)))
+            .collect(Collectors.toList());
+      synchronized (this) {
+         if (list != current) {
+            return false;
+         }
+         for (int k = 0; k < batch.size(); k++) {
+            int pos = batch.get(k);
+            if (get(known, pos) && !get(unverified, pos)) {
+               continue; // Saved meanwhile
+            }
+            unverified[pos >>> 6] &= ~(1L << pos);
+            long[] result = results.get(k);
+            if (result[0] >= 0) {
+               set(pos, (int) result[0]);
+            }
+            if (stamps[pos] != result[1]) {
+               stamps[pos] = result[1];
+               dirty = true;
+            }
+         }
+         scheduleWrite();
+      }
+      notifyListeners();
+      return true;
+   }
+
+   // Returns the position of the first image at or after the given position whose status
+   // is not known or not verified yet, or -1 if there is none
+   private int nextToRead(int from) {
+      int size = list.size();
+      for (int w = from >>> 6; from < size && w < known.length; w++) {
+         long word = ~known[w] | unverified[w];
+         if (w == from >>> 6) {
+            word &= -1L << (from & 63); // Skip the bits before from
+         }
+         if (w == known.length - 1 && (size & 63) != 0) {
+            word &= (1L << (size & 63)) - 1; // Skip the bits after the last image
+         }
+         if (word != 0) {
+            return (w << 6) + Long.numberOfTrailingZeros(word);
+         }
+      }
+      return -1;
+   }
+
+   // Returns the status of one image (or -1 if the loaded status is still current) and the
+   // stamp of its labeled data. The stamp is taken before the data is read, so data written
+   // in between gets a different stamp and is read again next time.
+   // Parameters:
+   //    - String imagePath: absolute pathname of the image
+   //    - long loadedStamp: stamp the loaded status was read at, or -1 if none was loaded
+   private long[] check(String imagePath, long loadedStamp) {
+      long stamp;
+      try {
+         stamp = store.stamp(imagePath);
+      } catch (IOException ex) {
+         stamp = -1;
+      }
+      if (stamp != -1 && stamp == loadedStamp) {
+         return new long[] {-1, stamp};
+      }
+      return new long[] {statusOf(read(imagePath)), stamp};
+   }
+
+   // Reads the labeled data of one image, or returns null if it has none (or it cannot be read)
+   private LabelData read(String imagePath) {
+      try {
+         String content = store.read(imagePath);
+         return content == null ? null : LabelCodec.read(content);
+      } catch (IOException ex) {
+         return null;
+      } catch (ParseException ex) {
+         return null;
+      }
+   }
+
+   // Makes the bitmaps indexed like the given list, carrying over the status of the images
+   // that were already in the previous list. Only called on the status thread (the only
+   // thread that changes list), which maps the lists without holding the lock.
+   private void remap(ImageList current) {
+      if (current == list) {
+         return;
+      }
+      int[] previous = list == null ? null : current.positionsIn(list);
+      synchronized (this) {
+         remap(current, previous);
+      }
+   }
+
+   // Replaces the bitmaps by ones indexed like the given list
+   // Parameters:
+   //    - ImageList current: the new list
+   //    - int[] previous: position of each of its images in the previous list (-1 if new), or null
+   private void remap(ImageList current, int[] previous) {
+      int words = (current.size() + 63) >>> 6;
+      long[] newKnown = new long[words];
+      long[] newLabeled = new long[words];
+      long[] newComplete = new long[words];
+      long[] newUnverified = new long[words];
+      long[] newStamps = new long[current.size()];
+      Arrays.fill(newStamps, -1);
+      if (previous != null) {
+         for (int i = 0; i < current.size(); i++) {
+            int old = previous[i];
+            if (old >= 0 && get(known, old)) {
+               newKnown[i >>> 6] |= 1L << i;
+               if (get(labeled, old)) {
+                  newLabeled[i >>> 6] |= 1L << i;
+               }
+               if (get(complete, old)) {
+                  newComplete[i >>> 6] |= 1L << i;
+               }
+               if (get(unverified, old)) {
+                  newUnverified[i >>> 6] |= 1L << i;
+               }
+               newStamps[i] = stamps[old];
+            }
+         }
+      }
+      list = current;
+      known = newKnown;
+      labeled = newLabeled;
+      complete = newComplete;
+      unverified = newUnverified;
+      stamps = newStamps;
+   }
+
+   // Sets the status of the image at the given position
+   private void set(int pos, int status) {
+      known[pos >>> 6] |= 1L << pos;
+      unverified[pos >>> 6] &= ~(1L << pos);
+      if (status == UNLABELED) {
+         labeled[pos >>> 6] &= ~(1L << pos);
+      } else {
+         labeled[pos >>> 6] |= 1L << pos;
+      }
+      if (status == LABELED) {
+         complete[pos >>> 6] |= 1L << pos;
+      } else {
+         complete[pos >>> 6] &= ~(1L << pos);
+      }
+      dirty = true;
+   }
+
+   // Returns the bit at the given position of the given bitmap
+   private static boolean get(long[] bits, int pos) {
+      return (bits[pos >>> 6] & (1L << pos)) != 0;
+   }
+
+   // Schedules rewriting the file, unless a rewrite is already scheduled
+   private void scheduleWrite() {
+      if (pendingWrite == null && !closed && !readOnly) {
+         pendingWrite = writer.schedule(new Runnable() {
+            public void run() {
+               write();
+            }
+         }, WRITE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+      }
+   }
+
+   // Loads the bitmaps and stamps from the file, if it matches the given (complete) image
+   // list and the schema. The loaded statuses are marked unverified, to be re-checked by
+   // readUnknown.
+   private void load(ImageList current) {
+      long hash = hashOf(current);
+      try {
+         DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+         try {
+            if (in.readInt() != MAGIC || in.readInt() != current.size() || in.readLong() != hash || in.readLong() != schemaHash) {
+               return;
+            }
+            int words = (current.size() + 63) >>> 6;
+            long[] loadedKnown = new long[words];
+            long[] loadedLabeled = new long[words];
+            long[] loadedComplete = new long[words];
+            for (long[] bits : new long[][] {loadedKnown, loadedLabeled, loadedComplete}) {
+               for (int w = 0; w < words; w++) {
+                  bits[w] = in.readLong();
+               }
+            }
+            long[] loadedStamps = new long[current.size()];
+            for (int i = 0; i < loadedStamps.length; i++) {
+               loadedStamps[i] = in.readLong();
+            }
+            synchronized (this) {
+               if (list != current) {
+                  return;
+               }
+               for (int w = 0; w < words; w++) { // Statuses set since the list was opened win
+                  long fresh = known[w];
+                  known[w] |= loadedKnown[w];
+                  unverified[w] |= loadedKnown[w] & ~fresh;
+                  labeled[w] = (labeled[w] & fresh) | (loadedLabeled[w] & ~fresh);
+                  complete[w] = (complete[w] & fresh) | (loadedComplete[w] & ~fresh);
+               }
+               for (int i = 0; i < loadedStamps.length; i++) {
+                  if (get(unverified, i)) {
+                     stamps[i] = loadedStamps[i];
+                  }
+               }
+            }
+         } finally {
+            in.close();
+         }
+      } catch (FileNotFoundException ex) {
+      } catch (IOException ex) {
+         System.err.println("Could not read labeled status " + file + ": " + ex);
+      }
+   }
+
+   // Writes the bitmaps and stamps to the file (through a temporary file), if they have
+   // changed and cover the complete image list. Statuses that were loaded but not re-checked
+   // yet are written with their loaded stamps, so they are re-checked next time too.
+   private void write() {
+      ImageList written;
+      long[][] bits;
+      long[] writtenStamps;
+      synchronized (this) {
+         pendingWrite = null;
+         if (readOnly || !dirty || list == null || !images.isComplete() || list != images.images()) {
+            return;
+         }
+         written = list;
+         bits = new long[][] {known.clone(), labeled.clone(), complete.clone()};
+         writtenStamps = stamps.clone();
+         dirty = false;
+      }
+      try {
+         long hash = hashOf(written);
+         File temp = new File(file.getParentFile(), FILE_NAME + ".tmp");
+         DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+         try {
+            out.writeInt(MAGIC);
+            out.writeInt(written.size());
+            out.writeLong(hash);
+            out.writeLong(schemaHash);
+            for (long[] bitmap : bits) {
+               for (long word : bitmap) {
+                  out.writeLong(word);
+               }
+            }
+            for (long stamp : writtenStamps) {
+               out.writeLong(stamp);
+            }
+         } finally {
+            out.close();
+         }
+         Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      } catch (IOException ex) {
+         System.err.println("Could not write labeled status " + file + ": " + ex);
+      }
+   }
+
+   // Returns a hash of the pathnames of the given image list, in order
+   private static long hashOf(ImageList current) {
+      long hash = current.size();
+      for (int i = 0; i < current.size(); i++) {
+         hash = hash * 1000003 + current.get(i).getPath().hashCode();
+      }
+      return hash;
+   }
+
+   // Notifies the listeners that statuses have been read
+   private void notifyListeners() {
+      ChangeEvent changeEvent = new ChangeEvent(this);
+      for (ChangeListener listener : listeners) {
+         listener.stateChanged(changeEvent);
+      }
+   }
+}
@@ -0,0 +1,73 @@
+import java.io.*;
+import java.util.*;
+
+// Storage of the labeled data of images.
+
+// Each image's labeled data is one JSON document (see LabelImage for its format), which is
+// read and written as a whole by the labeling GUI. Where it is kept depends on the store:
+//    - SidecarLabelStore: one "<image file name>.label" file next to each image (the default)
+//    - SegmentLabelStore: append-only binary segment files in one directory, for datasets
+//      with so many images that one small file per image becomes too slow
+// Use open() to create a store from its text specification, and LabelStoreConverter to
+// convert labeled data from one store to another.
+
+public interface LabelStore extends Closeable {
+
+   // Returns the labeled data stored for the given image, or null if there is none
+   // Parameters:
+   //    - String imagePath: absolute pathname of the image file
+   String read(String imagePath) throws IOException;
+
+   // Stores the given labeled data for the given image, replacing any previous data.
+   // The data may be written in the background; use flush() to wait until it is.
+   // Parameters:
+   //    - String imagePath: absolute pathname of the image file
+   //    - String content: the image's complete labeled data (JSON)
+   void write(String imagePath, String content) throws IOException;
+
+   // Returns true if labeled data is stored for the given image
+   // Parameters:
+   //    - String imagePath: absolute pathname of the image file
+   boolean contains(String imagePath) throws IOException;
+
+   // Returns a stamp of the labeled data stored for the given image, which changes whenever
+   // the data is rewritten (also by other programs): 0 if there is none, or -1 if it is
+   // being written and has no stable stamp yet. Cheaper than read(); used by LabelStatus to
+   // tell whether a persisted status is still current.
+   // Parameters:
+   //    - String imagePath: absolute pathname of the image file
+   long stamp(String imagePath) throws IOException;
+
+   // Returns the absolute pathnames of all images under the given directory (including
+   // its subdirectories) that have labeled data, sorted
+   // Parameters:
+   //    - String root: absolute pathname of the directory
+   java.util.List<String> list(String root) throws IOException;
+
+   // Returns the absolute pathnames of all images under the given directory (including its
+   // subdirectories) that have labeled data, in a fixed order. Unlike list(), a store may
+   // find them lazily as they are iterated, so that memory use does not grow with the size
+   // of the tree; errors while iterating are thrown as UncheckedIOException.
+   // Parameters:
+   //    - String root: absolute pathname of the directory
+   default Iterator<String> iterate(String root) throws IOException {
+      return list(root).iterator();
+   }
+
+   // Blocks until everything written so far is stored durably
+   void flush() throws IOException;
+
+   // Creates a store from its specification:
+   //    - "sidecar": .label files next to the images
+   //    - "segment:<directory>": segment files in the given directory
+   // Parameters:
+   //    - String spec: the store specification
+   static LabelStore open(String spec) throws IOException {
+      if (spec.equals("sidecar")) {
+         return new SidecarLabelStore();
+      } else if (spec.startsWith("segment:")) {
+         return new SegmentLabelStore(new File(spec.substring("segment:".length())));
+      }
+      throw new IllegalArgumentException("Unknown label store: " + spec + " (expected \"sidecar\" or \"segment:<directory>\")");
+   }
+}
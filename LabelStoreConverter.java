@@ -0,0 +1,57 @@
+import java.io.*;
+
+// Headless command-line tool that copies the labeled data of all images under a directory
+// from one label store to another (see LabelStore.open for the store specifications).
+
+// Usage:
+//    $ java -cp ".:./json-simple-1.1.jar" LabelStoreConverter <from store> <to store> <root directory>
+// For example, to move all .label files under /data/dogs into a segment store and back:
+//    $ java -cp ".:./json-simple-1.1.jar" LabelStoreConverter sidecar segment:/data/dogs-labels /data/dogs
+//    $ java -cp ".:./json-simple-1.1.jar" LabelStoreConverter segment:/data/dogs-labels sidecar /data/dogs
+// The source store is left unchanged.
+
+public class LabelStoreConverter {
+
+   // Copies the labeled data of every image under the given root from one store to another
+   // and returns the number of copied images
+   // Parameters:
+   //    - LabelStore from: the store to read from
+   //    - LabelStore to: the store to write to
+   //    - String root: absolute pathname of the directory whose images are copied
+   public static int convert(LabelStore from, LabelStore to, String root) throws IOException {
+      int copied = 0;
+      for (String imagePath : from.list(root)) {
+         String content = from.read(imagePath);
+         if (content != null) {
+            to.write(imagePath, content);
+            copied++;
+         }
+      }
+      to.flush();
+      return copied;
+   }
+
+   // Main method: copies the labeled data and prints the number of copied images
+   public static void main(String[] args) {
+      if (args.length != 3) {
+         System.err.println("Usage: java LabelStoreConverter <from store> <to store> <root directory>");
+         System.err.println("Stores: \"sidecar\" or \"segment:<directory>\"");
+         System.exit(2);
+      }
+      try {
+         LabelStore from = LabelStore.open(args[0]);
+         LabelStore to = LabelStore.open(args[1]);
+         try {
+            long start = System.nanoTime();
+            int copied = convert(from, to, new File(args[2]).getAbsolutePath());
+            System.err.println(String.format("Copied %d images in %.2f s", copied, (System.nanoTime() - start) / 1e9));
+         } finally {
+            from.close();
+            to.close();
+         }
+      } catch (IOException ex) {
+         System.err.println("Conversion failed: " + ex);
+         System.exit(1);
+      }
+   }
+}
@@ -0,0 +1,302 @@
+import java.awt.*;
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.*;
+import org.json.simple.*;
+import org.json.simple.parser.*;
+
+// Headless command-line tool that checks every .label file under a directory tree.
+
+// Usage:
+//    $ java -cp ".:./json-simple-1.1.jar" LabelValidator <root directory> [--joints <JointNames.txt>] [--output <report.json>]
+
+// The .label files are checked in parallel. For each .label file, the following problems
+// are reported:
+//    - the file cannot be read or is not valid JSON
+//    - the corresponding image file is missing, or its format is not recognized
+//    - a joint has a name that is not listed in "JointNames.txt"
+//    - a joint has missing or non-numeric coordinates, or lies outside the image
+//    - the "Bounding box" is malformed (missing or non-numeric x, y, w, h, or a negative size)
+//    - the bounding box does not fit inside the image
+//    - "Instances" (further labeled objects) is not an array of objects; the joints and
+//      bounding box of each instance are checked like the ones above
+// Image dimensions are read from the image file headers (see ImageHeaders), so no pixels
+// are decoded.
+
+// The report is written as JSON to standard output (or to the given output file):
+//    {"root": ..., "filesChecked": n, "filesWithProblems": m,
+//     "problems": [{"file": ..., "type": ..., "message": ...}, ...]}
+// Problems are listed in file name order. The exit code is 0 if no problems were found,
+// 1 if any problem was found, and 2 if the tool could not be run.
+
+public class LabelValidator {
+
+   public static final String LABEL_EXTENSION = ".label"; // Extension appended to image file names for label files
+
+   private final Set<String> jointNames; // All valid joint names
+
+   // Creates a new validator accepting the given joint names
+   // Parameters:
+   //    - Collection<String> jointNames: all valid joint names
+   public LabelValidator(Collection<String> jointNames) {
+      this.jointNames = new HashSet<String>(jointNames);
+   }
+
+   // Checks a single .label file and returns all problems found (empty if none)
+   // Parameters:
+   //    - Path labelFile: the .label file to be checked
+   public java.util.List<Problem> check(Path labelFile) {
+      java.util.List<Problem> problems = new ArrayList<Problem>();
+      String file = labelFile.toString();
+      JSONObject root;
+      try {
+         Reader reader = Files.newBufferedReader(labelFile, Charset.defaultCharset());
+         try {
+            Object parsed = new JSONParser().parse(reader);
+            if (!(parsed instanceof JSONObject)) {
+               problems.add(new Problem(file, "malformed-json", "top level value is not an object"));
+               return problems;
+            }
+            root = (JSONObject) parsed;
+         } finally {
+            reader.close();
+         }
+      } catch (IOException ex) {
+         problems.add(new Problem(file, "unreadable", "" + ex.getMessage()));
+         return problems;
+      } catch (ParseException ex) {
+         problems.add(new Problem(file, "malformed-json", "" + ex));
+         return problems;
+      }
+
+      // Find the image's dimensions from its header
+      Dimension size = null;
+      String imageName = file.substring(0, file.length() - LABEL_EXTENSION.length());
+      File imageFile = new File(imageName);
+      if (!imageFile.isFile()) {
+         problems.add(new Problem(file, "missing-image", "image file not found: " + imageName));
+      } else {
+         try {
+            size = ImageHeaders.read(imageFile);
+            if (size == null) {
+               problems.add(new Problem(file, "unknown-image-format", "image format not recognized: " + imageName));
+            }
+         } catch (IOException ex) {
+            problems.add(new Problem(file, "unreadable-image", imageName + ": " + ex.getMessage()));
+         } catch (RuntimeException ex) { // A corrupt header can make the parser fail in other ways
+            problems.add(new Problem(file, "unreadable-image", imageName + ": " + ex));
+         }
+      }
+
+      checkJoints(file, root.get("Joints"), size, problems);
+      checkBoundingBox(file, root.get("Bounding box"), size, problems);
+      Object instances = root.get("Instances");
+      if (instances != null && !(instances instanceof JSONArray)) {
+         problems.add(new Problem(file, "malformed-instance", "\"Instances\" is not an array"));
+      } else if (instances != null) {
+         for (Object o : (JSONArray) instances) {
+            if (!(o instanceof JSONObject)) {
+               problems.add(new Problem(file, "malformed-instance", "instance is not an object: " + o));
+               continue;
+            }
+            checkJoints(file, ((JSONObject) o).get("Joints"), size, problems);
+            checkBoundingBox(file, ((JSONObject) o).get("Bounding box"), size, problems);
+         }
+      }
+      return problems;
+   }
+
+   // Checks the "Joints" array of a .label file
+   // Parameters:
+   //    - String file: the .label file's pathname, for reporting
+   //    - Object joints: the value of "Joints"
+   //    - Dimension size: the image's dimensions, or null if unknown
+   //    - List<Problem> problems: found problems are added to this list
+   private void checkJoints(String file, Object joints, Dimension size, java.util.List<Problem> problems) {
+      if (!(joints instanceof JSONArray)) {
+         problems.add(new Problem(file, "malformed-joint", "\"Joints\" is missing or not an array"));
+         return;
+      }
+      for (Object o : (JSONArray) joints) {
+         if (!(o instanceof JSONObject)) {
+            problems.add(new Problem(file, "malformed-joint", "joint is not an object: " + o));
+            continue;
+         }
+         JSONObject joint = (JSONObject) o;
+         String name = "" + joint.get("name");
+         if (!jointNames.contains(name)) {
+            problems.add(new Problem(file, "unknown-joint", "joint name not in JointNames.txt: " + name));
+         }
+         Integer x = parseInt(joint.get("x-coordinate"));
+         Integer y = parseInt(joint.get("y-coordinate"));
+         if (x == null || y == null) {
+            problems.add(new Problem(file, "malformed-joint", name + " has missing or non-numeric coordinates: ("
+                  + joint.get("x-coordinate") + ", " + joint.get("y-coordinate") + ")"));
+         } else if (size != null && (x < 0 || y < 0 || x >= size.width || y >= size.height)) {
+            problems.add(new Problem(file, "joint-out-of-bounds", name + " at (" + x + ", " + y
+                  + ") is outside the " + size.width + "x" + size.height + " image"));
+         }
+      }
+   }
+
+   // Checks the "Bounding box" object of a .label file. An empty object (no box confirmed) is valid.
+   // Parameters:
+   //    - String file: the .label file's pathname, for reporting
+   //    - Object box: the value of "Bounding box"
+   //    - Dimension size: the image's dimensions, or null if unknown
+   //    - List<Problem> problems: found problems are added to this list
+   private void checkBoundingBox(String file, Object box, Dimension size, java.util.List<Problem> problems) {
+      if (!(box instanceof JSONObject)) {
+         problems.add(new Problem(file, "malformed-box", "\"Bounding box\" is missing or not an object"));
+         return;
+      }
+      JSONObject boxObj = (JSONObject) box;
+      if (boxObj.isEmpty()) {
+         return;
+      }
+      String[] keys = {"x", "y", "w", "h"};
+      int[] values = new int[4];
+      boolean malformed = false;
+      for (int i = 0; i < keys.length; i++) {
+         Object value = boxObj.get(keys[i]);
+         Integer parsed = parseInt(value);
+         if (parsed == null) {
+            problems.add(new Problem(file, "malformed-box", "\"" + keys[i] + "\" is missing or non-numeric: " + value));
+            malformed = true;
+         } else {
+            values[i] = parsed;
+         }
+      }
+      if (malformed) {
+         return;
+      }
+      if (values[2] < 0 || values[3] < 0) {
+         problems.add(new Problem(file, "malformed-box", "negative size: w=" + values[2] + ", h=" + values[3]));
+      } else if (size != null && (values[0] < 0 || values[1] < 0 || (long) values[0] + values[2] > size.width
+            || (long) values[1] + values[3] > size.height)) {
+         problems.add(new Problem(file, "box-out-of-bounds", "box (x=" + values[0] + ", y=" + values[1] + ", w=" + values[2]
+               + ", h=" + values[3] + ") is outside the " + size.width + "x" + size.height + " image"));
+      }
+   }
+
+   // Returns the given JSON value as an int (numbers and numeric strings are accepted), or null if it is not one
+   private static Integer parseInt(Object value) {
+      if (value instanceof Long || value instanceof Integer) {
+         long l = ((Number) value).longValue();
+         return (l < Integer.MIN_VALUE || l > Integer.MAX_VALUE) ? null : (int) l;
+      }
+      if (value instanceof String) {
+         try {
+            return Integer.parseInt(((String) value).trim());
+         } catch (NumberFormatException ex) {
+            return null;
+         }
+      }
+      return null;
+   }
+
+   // Returns all .label files under the given directory, sorted by pathname
+   // Parameters:
+   //    - Path root: the directory to be searched recursively
+   public static java.util.List<Path> findLabelFiles(Path root) throws IOException {
+      Stream<Path> walk = Files.walk(root);
+      try {
+         return walk.filter(p -> p.getFileName().toString().endsWith(LABEL_EXTENSION) && Files.isRegularFile(p))
+               .sorted()
+               .collect(Collectors.toList());
+      } finally {
+         walk.close();
+      }
+   }
+
+   // Main method: validates all .label files under the given root and writes the report
+   public static void main(String[] args) {
+      String root = null;
+      String jointsFile = "JointNames.txt";
+      String output = null;
+      for (int i = 0; i < args.length; i++) {
+         if (args[i].equals("--joints") && i + 1 < args.length) {
+            jointsFile = args[++i];
+         } else if (args[i].equals("--output") && i + 1 < args.length) {
+            output = args[++i];
+         } else if (root == null && !args[i].startsWith("--")) {
+            root = args[i];
+         } else {
+            root = null;
+            break;
+         }
+      }
+      if (root == null) {
+         System.err.println("Usage: java LabelValidator <root directory> [--joints <JointNames.txt>] [--output <report.json>]");
+         System.exit(2);
+      }
+
+      try {
+         LabelValidator validator = new LabelValidator(LabelSchema.readNames(new File(jointsFile)));
+         java.util.List<Path> labelFiles = findLabelFiles(Paths.get(root));
+
+         // Check in parallel; the resulting list keeps the sorted file order
+         java.util.List<java.util.List<Problem>> results = labelFiles.parallelStream()
+               .map(validator::check)
+               .collect(Collectors.toList());
+
+         int filesWithProblems = 0;
+         for (java.util.List<Problem> r : results) {
+            if (!r.isEmpty()) {
+               filesWithProblems++;
+            }
+         }
+         Writer out = new BufferedWriter(output == null ? new OutputStreamWriter(System.out, StandardCharsets.UTF_8)
+               : new OutputStreamWriter(new FileOutputStream(output), StandardCharsets.UTF_8));
+         try {
+            out.write("{\"root\":\"" + JSONValue.escape(root) + "\",\"filesChecked\":" + labelFiles.size()
+                  + ",\"filesWithProblems\":" + filesWithProblems + ",\"problems\":[");
+            boolean first = true;
+            for (java.util.List<Problem> r : results) {
+               for (Problem p : r) {
+                  out.write(first ? "\n" : ",\n");
+                  out.write(p.toJSONString());
+                  first = false;
+               }
+            }
+            out.write("\n]}\n");
+         } finally {
+            out.flush();
+            if (output != null) {
+               out.close();
+            }
+         }
+         System.exit(filesWithProblems == 0 ? 0 : 1);
+      } catch (IOException ex) {
+         System.err.println("Validation failed: " + ex);
+         System.exit(2);
+      }
+   }
+
+   // A single problem found in a .label file
+   static class Problem implements JSONAware {
+
+      final String file; // Pathname of the .label file
+      final String type; // Short machine-readable kind of problem, e.g. "unknown-joint"
+      final String message; // Human-readable description
+
+      // Creates a new problem
+      // Parameters:
+      //    - String file: pathname of the .label file
+      //    - String type: short machine-readable kind of problem
+      //    - String message: human-readable description
+      Problem(String file, String type, String message) {
+         this.file = file;
+         this.type = type;
+         this.message = message;
+      }
+
+      // Returns this problem as a JSON object
+      public String toJSONString() {
+         return "{\"file\":\"" + JSONValue.escape(file) + "\",\"type\":\"" + type + "\",\"message\":\""
+               + JSONValue.escape(message) + "\"}";
+      }
+   }
+}
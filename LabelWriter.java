@@ -0,0 +1,253 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+// Background writer for .label files, shared by the whole application.
+
+// Saving a .label file used to open a PrintStream on the event dispatch thread, which
+// stalls the GUI on slow (network) drives and could leave truncated files behind because
+// the stream was never flushed or closed. Instead, the serialized label data is queued
+// here and written by WRITER_THREADS background threads (-Dlabelimage.writer.threads),
+// so that many files saved at once (e.g. by KeyframeInterpolator) are not written one
+// forced write at a time:
+//    - Repeated saves of the same .label file that are still waiting in the queue are
+//      coalesced, so only the latest content is written.
+//    - Each file is first written to a temporary file in the same directory, forced to
+//      disk, and then atomically renamed over the .label file. A reader therefore always
+//      sees either the old or the new content, never a partially written file.
+//    - A file is never written by two threads at once: saved again while it is being
+//      written, it is queued again once that write has finished.
+//    - All pending writes are flushed when the application shuts down.
+//    - Content that is queued or being written can be read back with getPending, so a
+//      .label file that is re-opened right after saving is never read stale.
+// The queue depth and the write latency can be read from the getters below.
+
+public class LabelWriter {
+
+   public static final int WRITER_THREADS = Math.max(1, Integer.getInteger("labelimage.writer.threads", 4)); // Files written at once
+   private static final LabelWriter INSTANCE = new LabelWriter(); // Created after WRITER_THREADS is set
+   private static final long SHUTDOWN_FLUSH_MILLIS = 30000; // Maximum time spent flushing pending writes on exit
+
+   private final Map<String, String> pending; // Latest content waiting to be written, keyed by .label pathname
+   private final Map<String, String> writing; // Content currently being written, keyed by .label pathname
+   private final BlockingQueue<String> queue; // Pathnames in the order they were first queued
+   private final Thread[] writers; // Background threads performing the writes
+   private final Object lock; // Used to wait for the queue to drain
+   private int outstanding; // Number of pathnames queued or being written (guarded by lock)
+   private final AtomicLong writes; // Number of files written
+   private final AtomicLong coalesced; // Number of saves that replaced content still waiting in the queue
+   private final AtomicLong failures; // Number of writes that failed
+   private final AtomicLong totalWriteNanos; // Sum of the time spent writing all files
+   private final AtomicLong maxWriteNanos; // Longest time spent writing a single file
+   private volatile long lastWriteNanos; // Time spent writing the most recent file
+
+   // Creates a new writer and starts its background threads. Pending writes are flushed
+   // by a shutdown hook when the application exits.
+   public LabelWriter() {
+      pending = new ConcurrentHashMap<String, String>();
+      writing = new ConcurrentHashMap<String, String>();
+      queue = new LinkedBlockingQueue<String>();
+      lock = new Object();
+      writes = new AtomicLong();
+      coalesced = new AtomicLong();
+      failures = new AtomicLong();
+      totalWriteNanos = new AtomicLong();
+      maxWriteNanos = new AtomicLong();
+      writers = new Thread[WRITER_THREADS];
+      for (int i = 0; i < writers.length; i++) {
+         writers[i] = new Thread(new Runnable() {
+            public void run() {
+               writeLoop();
+            }
+         }, "label-writer-" + i);
+         writers[i].setDaemon(true);
+         writers[i].start();
+      }
+      Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+         public void run() {
+            flush(SHUTDOWN_FLUSH_MILLIS);
+         }
+      }, "label-writer-shutdown"));
+   }
+
+   // Returns the writer shared by the whole application
+   public static LabelWriter getInstance() {
+      return INSTANCE;
+   }
+
+   // Queues the given content to be written to the given .label file. If a write of the
+   // same file is still waiting in the queue, its content is replaced instead.
+   // Parameters:
+   //    - String labelFileName: absolute pathname of the .label file
+   //    - String content: complete new content of the file
+   public void save(String labelFileName, String content) {
+      synchronized (lock) {
+         if (pending.put(labelFileName, content) != null) {
+            coalesced.incrementAndGet();
+            return;
+         }
+         outstanding++;
+         if (writing.containsKey(labelFileName)) {
+            return; // Queued again by the thread writing it, once it has finished
+         }
+      }
+      queue.add(labelFileName);
+   }
+
+   // Returns the content that is waiting to be written or being written to the given
+   // .label file, or null if there is none (the file on disk is up to date)
+   // Parameters:
+   //    - String labelFileName: absolute pathname of the .label file
+   public String getPending(String labelFileName) {
+      synchronized (lock) {
+         String content = pending.get(labelFileName);
+         return content != null ? content : writing.get(labelFileName);
+      }
+   }
+
+   // Blocks until every write queued so far has been performed, or the given time has passed.
+   // Returns true if all writes were performed.
+   // Parameters:
+   //    - long timeoutMillis: maximum time to wait in milliseconds
+   public boolean flush(long timeoutMillis) {
+      long deadline = System.currentTimeMillis() + timeoutMillis;
+      synchronized (lock) {
+         while (outstanding > 0) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+               return false;
+            }
+            try {
+               lock.wait(remaining);
+            } catch (InterruptedException ex) {
+               Thread.currentThread().interrupt();
+               return false;
+            }
+         }
+      }
+      return true;
+   }
+
+   // Returns the number of .label files waiting to be written
+   public int getQueueDepth() {
+      synchronized (lock) {
+         return outstanding;
+      }
+   }
+
+   // Returns the number of .label files written
+   public long getWrites() {
+      return writes.get();
+   }
+
+   // Returns the number of saves that were merged into a write that was already queued
+   public long getCoalesced() {
+      return coalesced.get();
+   }
+
+   // Returns the number of writes that failed
+   public long getFailures() {
+      return failures.get();
+   }
+
+   // Returns the time spent writing the most recent file in nanoseconds
+   public long getLastWriteNanos() {
+      return lastWriteNanos;
+   }
+
+   // Returns the longest time spent writing a single file in nanoseconds
+   public long getMaxWriteNanos() {
+      return maxWriteNanos.get();
+   }
+
+   // Returns the average time spent writing a file in nanoseconds
+   public long getAverageWriteNanos() {
+      long n = writes.get();
+      return n == 0 ? 0 : totalWriteNanos.get() / n;
+   }
+
+   // Summary of the writer's metrics, e.g. for printing
+   public String toString() {
+      return "LabelWriter[queued=" + getQueueDepth() + ", writes=" + getWrites() + ", coalesced=" + getCoalesced()
+            + ", failures=" + getFailures() + ", avgWriteMs=" + getAverageWriteNanos() / 1000000.0
+            + ", maxWriteMs=" + getMaxWriteNanos() / 1000000.0 + "]";
+   }
+
+   // Body of the background threads: each takes queued pathnames one at a time and writes
+   // the latest content for each of them.
+   private void writeLoop() {
+      while (true) {
+         String labelFileName;
+         try {
+            labelFileName = queue.take();
+         } catch (InterruptedException ex) {
+            return;
+         }
+         String content;
+         synchronized (lock) {
+            content = pending.remove(labelFileName);
+            writing.put(labelFileName, content);
+         }
+         long start = System.nanoTime();
+         try {
+            writeAtomically(labelFileName, content);
+            Metrics.WRITE.record(start, labelFileName);
+            long elapsed = System.nanoTime() - start;
+            lastWriteNanos = elapsed;
+            totalWriteNanos.addAndGet(elapsed);
+            writes.incrementAndGet();
+            long max = maxWriteNanos.get();
+            while (elapsed > max && !maxWriteNanos.compareAndSet(max, elapsed)) {
+               max = maxWriteNanos.get();
+            }
+         } catch (IOException ex) {
+            failures.incrementAndGet();
+            System.err.println("Could not write " + labelFileName + ": " + ex);
+         } finally {
+            synchronized (lock) {
+               writing.remove(labelFileName);
+               if (pending.containsKey(labelFileName)) { // Saved again while being written
+                  queue.add(labelFileName);
+               }
+               outstanding--;
+               lock.notifyAll();
+            }
+         }
+      }
+   }
+
+   // Writes the given content to a temporary file next to the given file, forces it to
+   // disk, and renames it over the given file.
+   // Parameters:
+   //    - String fileName: absolute pathname of the file to be replaced
+   //    - String content: complete new content of the file
+   static void writeAtomically(String fileName, String content) throws IOException {
+      Path target = Paths.get(fileName);
+      Path dir = target.toAbsolutePath().getParent();
+      Path temp = Files.createTempFile(dir, "." + target.getFileName(), ".tmp");
+      try {
+         FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+         try {
+            ByteBuffer bytes = ByteBuffer.wrap(content.getBytes(Charset.defaultCharset()));
+            while (bytes.hasRemaining()) {
+               channel.write(bytes);
+            }
+            channel.force(true);
+         } finally {
+            channel.close();
+         }
+         try {
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+         } catch (AtomicMoveNotSupportedException ex) { // e.g. some network file systems
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+         }
+      } finally {
+         Files.deleteIfExists(temp);
+      }
+   }
+}
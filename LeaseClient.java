@@ -0,0 +1,148 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.*;
+
+// Client of a LeaseServer, used by the labeling GUI when several annotators label one
+// shared directory.
+
+// Images are named by their path relative to the shared directory. The image currently
+// held is renewed by a background thread every labelimage.lease.renew.seconds seconds
+// (default 60, well below the server's default lease of 300 seconds), so it stays leased
+// while the annotator works on it, however long that takes. Requests time out quickly,
+// so an unreachable server never stalls the GUI for long.
+
+public class LeaseClient {
+
+   public static final int TIMEOUT_MILLIS = 2000; // Connect and read timeout of each request
+   public static final long RENEW_SECONDS = Long.getLong("labelimage.lease.renew.seconds", 60L); // Time between renewals of the held lease
+
+   private final String server; // Base URL of the server, without a trailing '/'
+   private final String annotator; // Name of this annotator
+   private volatile String held; // Image currently leased by this client, or null
+   private final Thread renewer; // Background thread renewing the held lease
+
+   // Creates a client of the given server
+   // Parameters:
+   //    - String server: base URL of the server, e.g. "http://labelhost:8765"
+   //    - String annotator: name of this annotator, shown to the others and in the statistics
+   public LeaseClient(String server, String annotator) {
+      this.server = server.endsWith("/") ? server.substring(0, server.length() - 1) : server;
+      this.annotator = annotator;
+      renewer = new Thread(new Runnable() {
+         public void run() {
+            renewLoop();
+         }
+      }, "lease-renewer");
+      renewer.setDaemon(true);
+      renewer.start();
+   }
+
+   // Returns the name of this annotator
+   public String getAnnotator() {
+      return annotator;
+   }
+
+   // Leases the next image that nobody has labeled or leased, preferably the first one
+   // after the given image. Returns it, or null if there is none left.
+   // Parameters:
+   //    - String after: the image just finished, or null
+   public String next(String after) throws IOException {
+      String[] response = request("next", after == null ? "" : "&after=" + encode(after));
+      if (response[0].equals("204")) {
+         return null;
+      }
+      check(response);
+      held = response[1];
+      return response[1];
+   }
+
+   // Leases the given image. Returns null if the lease was granted, or the name of the
+   // annotator holding it otherwise.
+   // Parameters:
+   //    - String image: the image, relative to the shared directory
+   public String lease(String image) throws IOException {
+      String[] response = request("lease", "&image=" + encode(image));
+      if (response[0].equals("409")) {
+         return response[1];
+      }
+      check(response);
+      held = image;
+      return null;
+   }
+
+   // Gives the lease of the given image back
+   // Parameters:
+   //    - String image: the image, relative to the shared directory
+   //    - boolean labeled: true if the image has been labeled
+   public void release(String image, boolean labeled) throws IOException {
+      if (image.equals(held)) {
+         held = null;
+      }
+      check(request("release", "&image=" + encode(image) + "&labeled=" + labeled));
+   }
+
+   // Body of the renewal thread
+   private void renewLoop() {
+      while (true) {
+         try {
+            Thread.sleep(Math.max(1, RENEW_SECONDS) * 1000);
+         } catch (InterruptedException ex) {
+            return;
+         }
+         String image = held;
+         if (image == null) {
+            continue;
+         }
+         try {
+            String[] response = request("renew", "&image=" + encode(image));
+            if (response[0].equals("409")) {
+               System.err.println("Lost the lease of " + image + " (it expired while the server was unreachable)");
+            }
+         } catch (IOException ex) {
+            System.err.println("Could not renew the lease of " + image + ": " + ex);
+         }
+      }
+   }
+
+   // Sends a request to the server and returns its status code and body
+   private String[] request(String operation, String parameters) throws IOException {
+      URL url = new URL(server + "/" + operation + "?annotator=" + encode(annotator) + parameters);
+      HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+      connection.setConnectTimeout(TIMEOUT_MILLIS);
+      connection.setReadTimeout(TIMEOUT_MILLIS);
+      connection.setRequestMethod("POST");
+      try {
+         int status = connection.getResponseCode();
+         InputStream in = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+         String body = "";
+         if (in != null) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int n;
+            try {
+               while ((n = in.read(buffer)) > 0) {
+                  bytes.write(buffer, 0, n);
+               }
+            } finally {
+               in.close();
+            }
+            body = new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+         }
+         return new String[] {"" + status, body};
+      } finally {
+         connection.disconnect();
+      }
+   }
+
+   // Throws an IOException for an unexpected response
+   private static void check(String[] response) throws IOException {
+      if (!response[0].equals("200")) {
+         throw new IOException("Lease server answered " + response[0] + ": " + response[1]);
+      }
+   }
+
+   // URL-encodes a parameter value
+   private static String encode(String value) throws UnsupportedEncodingException {
+      return URLEncoder.encode(value, "UTF-8");
+   }
+}
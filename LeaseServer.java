@@ -0,0 +1,497 @@
+import com.sun.net.httpserver.*;
+import java.io.*;
+import java.net.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import javax.swing.event.*;
+import org.json.simple.*;
+
+// Coordination server that lets several annotators label one shared directory without
+// opening the same image: it hands out time-limited leases on images.
+
+// Usage:
+//    $ java -cp ".:./json-simple-1.1.jar" LeaseServer <shared directory> [--port <n>] [--lease-seconds <n>] [--store <label store>] [--flat]
+// and start each labeling GUI with -Dlabelimage.lease.server=http://<server host>:<port>
+// (see LeaseClient). The annotators must use the sidecar label store (the default), as a
+// segment store can only be open in one program at a time (see SegmentLabelStore); the
+// server reads the same store as the annotators to recognize labeled images.
+// The images of the shared directory and all of its subdirectories are handed out, as
+// when the directory is opened as a dataset root in the GUI (see DatasetIndex; images
+// added later are picked up when the server is restarted). With --flat, only the images
+// directly in the directory are, and images added to it are picked up at once (see
+// DirectoryIndex).
+
+// HTTP API (images are named by their path relative to the shared directory, with '/'
+// separators; every request names its annotator):
+//    POST /next?annotator=<a>[&after=<image>]  lease the next image that is neither labeled
+//                                              nor leased (after the given one, if possible):
+//                                              200 with the image, or 204 if there is none
+//    POST /lease?annotator=<a>&image=<i>       lease the given image: 200, or 409 with the
+//                                              annotator holding it
+//    POST /renew?annotator=<a>&image=<i>       extend a lease: 200, or 409 if it was lost
+//    POST /release?annotator=<a>&image=<i>&labeled=<true|false>
+//                                              give a lease back, counting the image as done
+//                                              if it was labeled: 200
+//    GET  /stats                               JSON with the leases and the throughput of
+//                                              each annotator
+// A lease expires after --lease-seconds (default 300) unless renewed; clients renew
+// theirs every third of that time, so the leases of a crashed client are freed quickly.
+
+// The bookkeeping is lock-free or striped, so hundreds of concurrent requests do not
+// queue behind one lock:
+//    - Leases are kept in a ConcurrentHashMap by image; granting, renewing and releasing
+//      are single atomic compute() calls on the image's entry.
+//    - /next hands out images in directory order from an atomic cursor. Images that come
+//      free again (released unlabeled, or expired), and images added before the cursor,
+//      are put on a lock-free queue that is served first. Whether an image is labeled is asked from the label store once and
+//      remembered.
+//    - Per-annotator counters are LongAdders.
+
+public class LeaseServer {
+
+   public static final int DEFAULT_PORT = 8765; // Port the server listens on by default
+   public static final long DEFAULT_LEASE_SECONDS = 300; // Lease duration by default
+   public static final int THREADS = 64; // Request handling threads
+   public static final int BACKLOG = 1024; // Connections waiting to be accepted
+
+   private final File root; // The shared directory
+   private final ImageIndex index; // Sorted image files of the shared directory (and its subdirectories)
+   private final LabelStore store; // Where labeled images are recognized
+   private final long leaseNanos; // Lease duration
+   private final ConcurrentHashMap<String, Lease> leases; // Current leases by image
+   private final Set<String> labeled; // Images known to be labeled
+   private final ConcurrentLinkedQueue<String> returned; // Images behind the cursor that may be free (released unlabeled, expired or added), handed out before the cursor moves on
+   private final AtomicInteger cursor; // Position in the directory from which /next looks for images
+   private ImageList indexed; // The image list the cursor was last moved to (guarded by this)
+   private final ConcurrentHashMap<String, Annotator> annotators; // Throughput of each annotator
+   private final HttpServer server; // The embedded HTTP server
+   private final ExecutorService handlers; // Threads handling the requests
+   private final ScheduledExecutorService reaper; // Frees expired leases
+
+   // A lease of one image (immutable; renewing replaces it)
+   private static class Lease {
+
+      final String annotator; // Annotator holding the lease
+      final long expires; // System.nanoTime() at which the lease expires
+
+      Lease(String annotator, long expires) {
+         this.annotator = annotator;
+         this.expires = expires;
+      }
+
+      // Returns true if the lease has expired at the given time
+      boolean expired(long now) {
+         return now - expires > 0;
+      }
+   }
+
+   // Throughput counters of one annotator
+   private static class Annotator {
+
+      final long since = System.currentTimeMillis(); // Time of the first request
+      final LongAdder leased = new LongAdder(); // Leases granted
+      final LongAdder labeled = new LongAdder(); // Images released as labeled
+      final LongAdder skipped = new LongAdder(); // Images released unlabeled
+      final LongAdder expired = new LongAdder(); // Leases that expired
+   }
+
+   // Creates a server for the given shared directory; call start() to accept requests
+   // Parameters:
+   //    - File root: the shared directory
+   //    - boolean flat: true to hand out only the images directly in root, not those of its subdirectories
+   //    - int port: the port to listen on (0 for any free port)
+   //    - long leaseSeconds: how long a lease lasts unless it is renewed
+   //    - LabelStore store: where labeled images are recognized
+   public LeaseServer(File root, boolean flat, int port, long leaseSeconds, LabelStore store) throws IOException {
+      this.root = root.getAbsoluteFile();
+      this.store = store;
+      leaseNanos = leaseSeconds * 1000000000L;
+      index = flat ? DirectoryIndex.open(this.root) : DatasetIndex.open(this.root);
+      leases = new ConcurrentHashMap<String, Lease>();
+      labeled = ConcurrentHashMap.newKeySet();
+      returned = new ConcurrentLinkedQueue<String>();
+      cursor = new AtomicInteger();
+      annotators = new ConcurrentHashMap<String, Annotator>();
+      indexed = index.images();
+      index.addChangeListener(new ChangeListener() {
+         public void stateChanged(ChangeEvent e) {
+            imagesChanged();
+         }
+      });
+
+      server = HttpServer.create(new InetSocketAddress(port), BACKLOG);
+      handlers = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+         public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "lease-server");
+            t.setDaemon(true);
+            return t;
+         }
+      });
+      server.setExecutor(handlers);
+      server.createContext("/", new HttpHandler() {
+         public void handle(HttpExchange exchange) throws IOException {
+            try {
+               dispatch(exchange);
+            } catch (RuntimeException ex) {
+               respond(exchange, 500, "" + ex);
+            }
+         }
+      });
+      reaper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+         public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "lease-reaper");
+            t.setDaemon(true);
+            return t;
+         }
+      });
+   }
+
+   // Starts accepting requests and freeing expired leases
+   public void start() {
+      server.start();
+      long period = Math.max(100, leaseNanos / 1000000 / 10);
+      reaper.scheduleWithFixedDelay(new Runnable() {
+         public void run() {
+            reapExpired();
+         }
+      }, period, period, TimeUnit.MILLISECONDS);
+   }
+
+   // Stops the server
+   public void stop() {
+      server.stop(0);
+      handlers.shutdown();
+      reaper.shutdown();
+   }
+
+   // Returns the port the server listens on
+   public int getPort() {
+      return server.getAddress().getPort();
+   }
+
+   // Leases the given image to the given annotator, returning the annotator that holds it
+   // afterwards (the given one if the lease was granted or renewed)
+   // Parameters:
+   //    - String image: the image, relative to the shared directory
+   //    - String annotator: the annotator asking for the lease
+   public String lease(String image, final String annotator) {
+      final long now = System.nanoTime();
+      Lease lease = leases.compute(image, new java.util.function.BiFunction<String, Lease, Lease>() {
+         public Lease apply(String key, Lease current) {
+            if (current == null || current.expired(now) || current.annotator.equals(annotator)) {
+               return new Lease(annotator, now + leaseNanos);
+            }
+            return current;
+         }
+      });
+      if (lease.annotator.equals(annotator)) {
+         annotator(annotator).leased.increment();
+      }
+      return lease.annotator;
+   }
+
+   // Extends the given annotator's lease of the given image, returning false if the
+   // annotator does not hold it (any more)
+   public boolean renew(String image, final String annotator) {
+      final long now = System.nanoTime();
+      Lease lease = leases.computeIfPresent(image, new java.util.function.BiFunction<String, Lease, Lease>() {
+         public Lease apply(String key, Lease current) {
+            return current.annotator.equals(annotator) && !current.expired(now) ? new Lease(annotator, now + leaseNanos) : current;
+         }
+      });
+      return lease != null && lease.annotator.equals(annotator) && !lease.expired(now);
+   }
+
+   // Gives the given annotator's lease of the given image back
+   // Parameters:
+   //    - String image: the image, relative to the shared directory
+   //    - String annotator: the annotator holding the lease
+   //    - boolean done: true if the image has been labeled
+   public void release(String image, final String annotator, boolean done) {
+      final boolean[] released = new boolean[1];
+      leases.computeIfPresent(image, new java.util.function.BiFunction<String, Lease, Lease>() {
+         public Lease apply(String key, Lease current) {
+            if (current.annotator.equals(annotator)) {
+               released[0] = true;
+               return null;
+            }
+            return current;
+         }
+      });
+      if (!released[0]) {
+         return;
+      }
+      if (done) {
+         labeled.add(image);
+         annotator(annotator).labeled.increment();
+      } else {
+         annotator(annotator).skipped.increment();
+         returned.add(image);
+      }
+   }
+
+   // Leases the next image that is neither labeled nor leased to the given annotator, or
+   // returns null if there is none
+   // Parameters:
+   //    - String annotator: the annotator asking for an image
+   //    - String after: image the annotator has just finished (preferred to continue after), or null
+   public String next(String annotator, String after) {
+      // Images that came free again first
+      String image;
+      while ((image = returned.poll()) != null) {
+         if (claim(image, annotator)) {
+            return image;
+         }
+      }
+      ImageList files = index.images();
+      if (after != null) { // Continue after the annotator's last image if it is ahead of the cursor
+         int pos = files.indexOf(file(after));
+         int start = pos >= 0 ? pos + 1 : -pos - 1;
+         int current = cursor.get();
+         if (start > current) {
+            for (int i = start; i < files.size(); i++) {
+               String candidate = relative(files.get(i));
+               if (claim(candidate, annotator)) {
+                  return candidate;
+               }
+            }
+         }
+      }
+      for (int i = cursor.getAndIncrement(); i < files.size(); i = cursor.getAndIncrement()) {
+         String candidate = relative(files.get(i));
+         if (claim(candidate, annotator)) {
+            return candidate;
+         }
+      }
+      // Keep the cursor from growing without bound, unless it was just moved to a new list
+      int current = cursor.get();
+      if (current > files.size()) {
+         cursor.compareAndSet(current, files.size());
+      }
+      return null;
+   }
+
+   // Moves the cursor to the same image in the index's new list and queues the images that
+   // were added before it, so /next does not look through the images handed out again
+   private synchronized void imagesChanged() {
+      ImageList current = index.images();
+      ImageList older = indexed;
+      indexed = current;
+      int[] previous = current.positionsIn(older);
+      // For each position of the older list, the position in the new list of the first
+      // image at or after it that is still there
+      int[] moved = new int[older.size() + 1];
+      int next = current.size();
+      moved[older.size()] = next;
+      int k = older.size();
+      for (int i = current.size() - 1; i >= 0; i--) {
+         if (previous[i] >= 0) {
+            while (k > previous[i] + 1) {
+               moved[--k] = next;
+            }
+            next = i;
+         }
+      }
+      while (k > 0) {
+         moved[--k] = next;
+      }
+      int from;
+      int to;
+      do {
+         from = cursor.get();
+         to = moved[Math.min(from, older.size())];
+      } while (!cursor.compareAndSet(from, to));
+      for (int i = 0; i < to; i++) {
+         if (previous[i] < 0) {
+            returned.add(relative(current.get(i)));
+         }
+      }
+   }
+
+   // Leases the given image to the given annotator if it is neither labeled nor leased
+   private boolean claim(String image, String annotator) {
+      if (isLabeled(image)) {
+         return false;
+      }
+      Lease current = leases.get(image);
+      if (current != null && !current.expired(System.nanoTime())) {
+         return false;
+      }
+      return lease(image, annotator).equals(annotator);
+   }
+
+   // Returns true if the given image is labeled, asking the label store the first time
+   private boolean isLabeled(String image) {
+      if (labeled.contains(image)) {
+         return true;
+      }
+      try {
+         if (store.contains(file(image).getPath())) {
+            labeled.add(image);
+            return true;
+         }
+      } catch (IOException ex) {}
+      return false;
+   }
+
+   // Removes expired leases, making their images available again
+   private void reapExpired() {
+      long now = System.nanoTime();
+      for (Map.Entry<String, Lease> entry : leases.entrySet()) {
+         Lease lease = entry.getValue();
+         if (lease.expired(now) && leases.remove(entry.getKey(), lease)) {
+            annotator(lease.annotator).expired.increment();
+            returned.add(entry.getKey());
+         }
+      }
+   }
+
+   // Returns the counters of the given annotator, creating them on first use
+   private Annotator annotator(String name) {
+      Annotator a = annotators.get(name);
+      if (a == null) {
+         a = annotators.computeIfAbsent(name, new java.util.function.Function<String, Annotator>() {
+            public Annotator apply(String key) {
+               return new Annotator();
+            }
+         });
+      }
+      return a;
+   }
+
+   // Returns the current leases and each annotator's throughput as JSON
+   public String stats() {
+      long now = System.currentTimeMillis();
+      StringBuilder json = new StringBuilder();
+      json.append("{\"root\":\"").append(JSONValue.escape(root.getPath())).append("\",\"images\":").append(index.images().size())
+            .append(",\"leases\":").append(leases.size()).append(",\"annotators\":[");
+      boolean first = true;
+      for (Map.Entry<String, Annotator> entry : new TreeMap<String, Annotator>(annotators).entrySet()) {
+         Annotator a = entry.getValue();
+         double hours = Math.max(1, now - a.since) / 3600000.0;
+         json.append(first ? "" : ",").append("{\"annotator\":\"").append(JSONValue.escape(entry.getKey()))
+               .append("\",\"leased\":").append(a.leased.sum()).append(",\"labeled\":").append(a.labeled.sum())
+               .append(",\"skipped\":").append(a.skipped.sum()).append(",\"expired\":").append(a.expired.sum())
+               .append(",\"labeledPerHour\":").append(String.format(Locale.ROOT, "%.1f", a.labeled.sum() / hours)).append("}");
+         first = false;
+      }
+      return json.append("]}").toString();
+   }
+
+   // Handles one request
+   private void dispatch(HttpExchange exchange) throws IOException {
+      String path = exchange.getRequestURI().getPath();
+      Map<String, String> params = parameters(exchange.getRequestURI().getRawQuery());
+      String annotator = params.get("annotator");
+      String image = params.get("image");
+      if (path.equals("/stats")) {
+         respond(exchange, 200, stats());
+      } else if (annotator == null || annotator.isEmpty()) {
+         respond(exchange, 400, "missing annotator");
+      } else if (path.equals("/next")) {
+         String next = next(annotator, params.get("after"));
+         respond(exchange, next == null ? 204 : 200, next == null ? "" : next);
+      } else if (image == null || image.isEmpty() || image.contains("..")) {
+         respond(exchange, 400, "missing or invalid image");
+      } else if (path.equals("/lease")) {
+         String holder = lease(image, annotator);
+         respond(exchange, holder.equals(annotator) ? 200 : 409, holder);
+      } else if (path.equals("/renew")) {
+         boolean renewed = renew(image, annotator);
+         respond(exchange, renewed ? 200 : 409, "");
+      } else if (path.equals("/release")) {
+         release(image, annotator, "true".equals(params.get("labeled")));
+         respond(exchange, 200, "");
+      } else {
+         respond(exchange, 404, "unknown request");
+      }
+   }
+
+   // Sends a plain text response and closes the exchange
+   private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+      byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().set("Content-Type", body.startsWith("{") ? "application/json" : "text/plain; charset=utf-8");
+      exchange.sendResponseHeaders(status, status == 204 ? -1 : bytes.length);
+      OutputStream out = exchange.getResponseBody();
+      try {
+         if (status != 204) {
+            out.write(bytes);
+         }
+      } finally {
+         out.close();
+      }
+   }
+
+   // Parses a URL query string into its parameters
+   private static Map<String, String> parameters(String query) throws UnsupportedEncodingException {
+      Map<String, String> params = new HashMap<String, String>();
+      if (query == null) {
+         return params;
+      }
+      for (String pair : query.split("&")) {
+         int eq = pair.indexOf('=');
+         if (eq > 0) {
+            params.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"), URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+         }
+      }
+      return params;
+   }
+
+   // Returns the given image file's path relative to the shared directory, with '/' separators
+   private String relative(File file) {
+      return relative(root, file);
+   }
+
+   // Returns the given image file's path relative to the given directory, with '/' separators,
+   // as images are named in the HTTP API
+   // Parameters:
+   //    - File root: the shared directory
+   //    - File file: an image file under root
+   public static String relative(File root, File file) {
+      return root.getAbsoluteFile().toPath().relativize(file.getAbsoluteFile().toPath()).toString().replace(File.separatorChar, '/');
+   }
+
+   // Returns the image file named by the given path relative to the shared directory
+   private File file(String image) {
+      return new File(root, image.replace('/', File.separatorChar));
+   }
+
+   // Main method: serves the given shared directory until the process is stopped
+   public static void main(String[] args) {
+      String root = null;
+      int port = DEFAULT_PORT;
+      long leaseSeconds = DEFAULT_LEASE_SECONDS;
+      String storeSpec = "sidecar";
+      boolean flat = false;
+      for (int i = 0; i < args.length; i++) {
+         if (args[i].equals("--flat")) {
+            flat = true;
+         } else if (args[i].equals("--port") && i + 1 < args.length) {
+            port = Integer.parseInt(args[++i]);
+         } else if (args[i].equals("--lease-seconds") && i + 1 < args.length) {
+            leaseSeconds = Long.parseLong(args[++i]);
+         } else if (args[i].equals("--store") && i + 1 < args.length) {
+            storeSpec = args[++i];
+         } else if (root == null && !args[i].startsWith("--")) {
+            root = args[i];
+         } else {
+            root = null;
+            break;
+         }
+      }
+      if (root == null) {
+         System.err.println("Usage: java LeaseServer <shared directory> [--port <n>] [--lease-seconds <n>] [--store <label store>] [--flat]");
+         System.exit(2);
+      }
+      try {
+         LeaseServer server = new LeaseServer(new File(root), flat, port, leaseSeconds, LabelStore.open(storeSpec));
+         server.start();
+         System.err.println("Leasing images of " + server.root + " on port " + server.getPort());
+      } catch (IOException ex) {
+         System.err.println("Could not start lease server: " + ex);
+         System.exit(2);
+      }
+   }
+}
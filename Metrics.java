@@ -0,0 +1,305 @@
+import java.io.*;
+import java.lang.management.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import javax.management.*;
+import jdk.jfr.*;
+
+// Latency metrics of the labeling hot paths, always on, so that reports of slowness can
+// be answered with data.
+
+// Each metric is a Histogram of operation times. Recording one operation costs a few
+// atomic increments and no allocation, so the metrics stay enabled in production:
+//    - navigation: showing an image (LabelImage.showImage), from click to ready
+//    - frame: constructing the labeling window
+//    - decode: decoding a whole image (ImageCache)
+//    - tile: decoding one tile of a very large image (TiledImage)
+//    - parse: reading a .label file's content into the annotation
+//    - save: serializing and queuing the labels of an image (on the GUI thread)
+//    - write: writing a .label file to disk (LabelWriter's background thread)
+//    - scan: listing and sorting a directory (DirectoryIndex)
+//    - paint: painting the image component (DrawableLabel.paintComponent)
+//    - drag: painting the image component while a bounding box is drawn or resized
+//    - stall: periods in which the GUI did not respond (see EdtWatchdog)
+// The histograms are available:
+//    - as JMX MBeans "labelimage:type=Latency,name=<metric>" (e.g. in JConsole or
+//      VisualVM), with count, mean, percentiles and maximum in milliseconds,
+//    - in a text file rewritten every labelimage.metrics.seconds (default 60) seconds,
+//      if -Dlabelimage.metrics.file=<path> is given,
+//    - as Java Flight Recorder events "labelimage.Latency" (one per operation, with the
+//      metric, the file concerned and the duration) while a recording is running, e.g.
+//      with -XX:StartFlightRecording. When no recording is running, they cost nothing.
+
+public class Metrics {
+
+   public static final String FILE = System.getProperty("labelimage.metrics.file"); // File the metrics are written to, or null
+   public static final long FILE_SECONDS = Long.getLong("labelimage.metrics.seconds", 60L); // Time between metrics file updates
+
+   public static final Histogram NAVIGATION = new Histogram("navigation");
+   public static final Histogram FRAME = new Histogram("frame");
+   public static final Histogram DECODE = new Histogram("decode");
+   public static final Histogram TILE = new Histogram("tile");
+   public static final Histogram PARSE = new Histogram("parse");
+   public static final Histogram SAVE = new Histogram("save");
+   public static final Histogram WRITE = new Histogram("write");
+   public static final Histogram SCAN = new Histogram("scan");
+   public static final Histogram PAINT = new Histogram("paint");
+   public static final Histogram DRAG = new Histogram("drag");
+   public static final Histogram STALL = new Histogram("stall");
+
+   private static final Histogram[] ALL = new Histogram[] {NAVIGATION, FRAME, DECODE, TILE, PARSE, SAVE, WRITE, SCAN, PAINT, DRAG, STALL};
+
+   static {
+      registerMBeans();
+      if (FILE != null) {
+         startFileWriter();
+      }
+   }
+
+   // Management interface of a histogram, as shown by JMX clients
+   public interface HistogramMXBean {
+
+      // Returns the number of recorded operations
+      long getCount();
+
+      // Returns the mean operation time in milliseconds
+      double getMeanMillis();
+
+      // Returns the median operation time in milliseconds (within about 6%)
+      double getP50Millis();
+
+      // Returns the 90th percentile operation time in milliseconds (within about 6%)
+      double getP90Millis();
+
+      // Returns the 99th percentile operation time in milliseconds (within about 6%)
+      double getP99Millis();
+
+      // Returns the longest operation time in milliseconds
+      double getMaxMillis();
+
+      // Forgets all recorded operations
+      void reset();
+   }
+
+   // Flight Recorder event recorded for every measured operation while a recording is running
+   @Name("labelimage.Latency")
+   @Label("Label Image Latency")
+   @Category("Label Image")
+   @StackTrace(false)
+   static class LatencyEvent extends jdk.jfr.Event {
+
+      @Label("Metric")
+      String metric; // Name of the histogram
+
+      @Label("Subject")
+      String subject; // File concerned, or null
+
+      @Label("Latency")
+      @Timespan(Timespan.NANOSECONDS)
+      long latency; // Time taken by the operation
+   }
+
+   // Histogram of operation times with logarithmic buckets: each power of two is divided
+   // into SUB_BUCKETS buckets, so percentiles are exact to within 1 / (2 * SUB_BUCKETS)
+   // over the whole range, with a fixed number of buckets. Thread-safe and lock-free.
+   public static class Histogram implements HistogramMXBean {
+
+      private static final int SUB_BITS = 3; // log2 of the number of buckets per power of two
+      private static final int SUB_BUCKETS = 1 << SUB_BITS; // Buckets per power of two
+
+      private final String name; // Name of the metric
+      private final AtomicLongArray buckets; // Number of operations in each bucket
+      private final AtomicLong count; // Number of operations
+      private final AtomicLong totalNanos; // Sum of all operation times
+      private final AtomicLong maxNanos; // Longest operation time
+
+      // Creates an empty histogram
+      // Parameters:
+      //    - String name: name of the metric
+      public Histogram(String name) {
+         this.name = name;
+         buckets = new AtomicLongArray((64 - SUB_BITS + 1) * SUB_BUCKETS);
+         count = new AtomicLong();
+         totalNanos = new AtomicLong();
+         maxNanos = new AtomicLong();
+      }
+
+      // Returns the name of the metric
+      public String getName() {
+         return name;
+      }
+
+      // Records an operation that started at the given time and has just finished, and
+      // emits a Flight Recorder event for it if a recording is running
+      // Parameters:
+      //    - long startNanos: System.nanoTime() when the operation started
+      //    - String subject: the file concerned, or null
+      public void record(long startNanos, String subject) {
+         long nanos = System.nanoTime() - startNanos;
+         add(nanos);
+         LatencyEvent event = new LatencyEvent();
+         if (event.isEnabled()) {
+            event.metric = name;
+            event.subject = subject;
+            event.latency = nanos;
+            event.commit();
+         }
+      }
+
+      // Records an operation that took the given time
+      // Parameters:
+      //    - long nanos: time taken by the operation in nanoseconds
+      public void add(long nanos) {
+         nanos = Math.max(0, nanos);
+         buckets.incrementAndGet(bucketOf(nanos));
+         count.incrementAndGet();
+         totalNanos.addAndGet(nanos);
+         long max = maxNanos.get();
+         while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+            max = maxNanos.get();
+         }
+      }
+
+      public long getCount() {
+         return count.get();
+      }
+
+      public double getMeanMillis() {
+         long n = count.get();
+         return n == 0 ? 0 : totalNanos.get() / (double) n / 1000000.0;
+      }
+
+      public double getP50Millis() {
+         return percentileNanos(0.5) / 1000000.0;
+      }
+
+      public double getP90Millis() {
+         return percentileNanos(0.9) / 1000000.0;
+      }
+
+      public double getP99Millis() {
+         return percentileNanos(0.99) / 1000000.0;
+      }
+
+      public double getMaxMillis() {
+         return maxNanos.get() / 1000000.0;
+      }
+
+      public void reset() {
+         for (int i = 0; i < buckets.length(); i++) {
+            buckets.set(i, 0);
+         }
+         count.set(0);
+         totalNanos.set(0);
+         maxNanos.set(0);
+      }
+
+      // Summary of the histogram, e.g. for printing
+      public String toString() {
+         return String.format(Locale.ROOT, "%s count=%d meanMs=%.3f p50Ms=%.3f p90Ms=%.3f p99Ms=%.3f maxMs=%.3f",
+               name, getCount(), getMeanMillis(), getP50Millis(), getP90Millis(), getP99Millis(), getMaxMillis());
+      }
+
+      // Returns the time below which the given fraction of the operations took, estimated
+      // as the middle of the bucket it falls into (but never more than the maximum)
+      private double percentileNanos(double fraction) {
+         long total = 0;
+         for (int i = 0; i < buckets.length(); i++) {
+            total += buckets.get(i);
+         }
+         if (total == 0) {
+            return 0;
+         }
+         long target = Math.max(1, (long) Math.ceil(total * fraction));
+         long seen = 0;
+         for (int i = 0; i < buckets.length(); i++) {
+            seen += buckets.get(i);
+            if (seen >= target) {
+               double middle = (lowerBound(i) + (double) lowerBound(i + 1)) / 2;
+               return Math.min(middle, maxNanos.get());
+            }
+         }
+         return maxNanos.get();
+      }
+
+      // Returns the bucket of the given time: times below SUB_BUCKETS nanoseconds have a
+      // bucket each, larger ones are bucketed by their highest SUB_BITS + 1 bits
+      private static int bucketOf(long nanos) {
+         if (nanos < SUB_BUCKETS) {
+            return (int) nanos;
+         }
+         int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+         int sub = (int) (nanos >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+         return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+      }
+
+      // Returns the smallest time in the given bucket
+      private static long lowerBound(int bucket) {
+         if (bucket < SUB_BUCKETS) {
+            return bucket;
+         }
+         int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+         return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BITS);
+      }
+   }
+
+   // Returns all histograms
+   public static java.util.List<Histogram> all() {
+      return Collections.unmodifiableList(Arrays.asList(ALL));
+   }
+
+   // Summary of all histograms, one line each
+   public static String summary() {
+      StringBuilder text = new StringBuilder();
+      for (Histogram histogram : ALL) {
+         text.append(histogram).append(System.lineSeparator());
+      }
+      return text.toString();
+   }
+
+   // Registers each histogram with the platform MBean server. Metrics keep working if
+   // JMX is not available.
+   private static void registerMBeans() {
+      try {
+         MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+         for (Histogram histogram : ALL) {
+            ObjectName name = new ObjectName("labelimage:type=Latency,name=" + histogram.getName());
+            if (!server.isRegistered(name)) {
+               server.registerMBean(histogram, name);
+            }
+         }
+      } catch (JMException ex) {
+         System.err.println("Could not register metrics MBeans: " + ex);
+      } catch (SecurityException ex) {
+         System.err.println("Could not register metrics MBeans: " + ex);
+      }
+   }
+
+   // Starts rewriting the metrics file periodically on a background thread
+   private static void startFileWriter() {
+      ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+         public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "metrics-file");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+         }
+      });
+      long seconds = Math.max(1, FILE_SECONDS);
+      writer.scheduleWithFixedDelay(new Runnable() {
+         public void run() {
+            try {
+               Path target = Paths.get(FILE).toAbsolutePath();
+               Path temp = Files.createTempFile(target.getParent(), "." + target.getFileName(), ".tmp");
+               Files.write(temp, summary().getBytes(StandardCharsets.UTF_8));
+               Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException ex) {
+               System.err.println("Could not write metrics to " + FILE + ": " + ex);
+            }
+         }
+      }, seconds, seconds, TimeUnit.SECONDS);
+   }
+}
@@ -0,0 +1,155 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import javax.swing.event.*;
+
+// Shared, automatically reloaded labeling schema (see LabelSchema) of one directory.
+
+// The schema files are parsed and validated once, and the resulting immutable schema is
+// shared by everything that needs it. A WatchService reports when one of the files is
+// changed on disk; the schema is then loaded again and, if it is valid and actually
+// different, replaces the current one in a single step, and the listeners are notified.
+// Readers therefore always see either the complete old or the complete new schema. If
+// the changed files are not valid (e.g. a joint was added but its color not yet), the
+// current schema is kept and the problem is printed.
+
+public class SchemaRegistry {
+
+   public static final long SETTLE_MILLIS = 200; // Time to wait for further changes (editors often write in several steps)
+
+   private static final Map<File, SchemaRegistry> OPEN = new HashMap<File, SchemaRegistry>(); // Open registries by directory
+
+   private final File dir; // Directory holding the schema files
+   private volatile LabelSchema schema; // Current schema
+   private final java.util.List<ChangeListener> listeners; // Notified (on the watcher thread) when the schema is replaced
+   private WatchService watcher; // Reports changed files, or null if the directory cannot be watched
+
+   // Loads the schema of the given directory. Use open() to share registries.
+   // Parameters:
+   //    - File dir: the directory holding the schema files
+   private SchemaRegistry(File dir) throws IOException {
+      this.dir = dir;
+      listeners = new CopyOnWriteArrayList<ChangeListener>();
+      schema = LabelSchema.load(dir);
+   }
+
+   // Returns the registry of the given directory, loading its schema and starting to watch
+   // the schema files the first time it is opened
+   // Parameters:
+   //    - File dir: the directory holding "JointNames.txt", "JointDotColors.txt" and "TagNames.txt"
+   public static synchronized SchemaRegistry open(File dir) throws IOException {
+      File key = dir.getAbsoluteFile();
+      SchemaRegistry registry = OPEN.get(key);
+      if (registry == null) {
+         registry = new SchemaRegistry(key);
+         registry.startWatching();
+         OPEN.put(key, registry);
+      }
+      return registry;
+   }
+
+   // Returns the current schema
+   public LabelSchema get() {
+      return schema;
+   }
+
+   // Loads the schema files again now, replacing the current schema if they have changed.
+   // Returns true if the schema was replaced.
+   public boolean reload() throws IOException {
+      LabelSchema loaded = LabelSchema.load(dir);
+      synchronized (this) {
+         if (loaded.equals(schema)) {
+            return false;
+         }
+         schema = loaded;
+      }
+      ChangeEvent changeEvent = new ChangeEvent(this);
+      for (ChangeListener listener : listeners) {
+         listener.stateChanged(changeEvent);
+      }
+      return true;
+   }
+
+   // Registers a listener that is notified whenever the schema is replaced. Listeners are
+   // called on the watcher thread.
+   // Parameters:
+   //    - ChangeListener listener: the listener to be notified
+   public void addChangeListener(ChangeListener listener) {
+      listeners.add(listener);
+   }
+
+   // Unregisters a listener added with addChangeListener
+   // Parameters:
+   //    - ChangeListener listener: the listener to be removed
+   public void removeChangeListener(ChangeListener listener) {
+      listeners.remove(listener);
+   }
+
+   // Registers the directory with a WatchService and starts the background thread that
+   // reloads the schema. If the directory cannot be watched, the schema is never reloaded.
+   private void startWatching() {
+      try {
+         watcher = dir.toPath().getFileSystem().newWatchService();
+         dir.toPath().register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+      } catch (IOException ex) {
+         watcher = null;
+         return;
+      } catch (UnsupportedOperationException ex) {
+         watcher = null;
+         return;
+      }
+      Thread watchThread = new Thread(new Runnable() {
+         public void run() {
+            watchLoop();
+         }
+      }, "schema-registry");
+      watchThread.setDaemon(true);
+      watchThread.start();
+   }
+
+   // Body of the watcher thread: reloads the schema once the schema files have stopped changing
+   private void watchLoop() {
+      while (true) {
+         try {
+            WatchKey key = watcher.take();
+            boolean changed = touchesSchema(key);
+            // Collect the rest of a multi-step save before reloading
+            while (changed) {
+               WatchKey more = watcher.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+               if (more == null) {
+                  break;
+               }
+               touchesSchema(more);
+            }
+            if (changed) {
+               try {
+                  reload();
+               } catch (IOException ex) {
+                  System.err.println("Keeping the current labeling schema: " + ex.getMessage());
+               }
+            }
+         } catch (InterruptedException ex) {
+            return;
+         } catch (ClosedWatchServiceException ex) {
+            return;
+         }
+      }
+   }
+
+   // Returns true if the given key's events include one of the schema files, and resets the key
+   private static boolean touchesSchema(WatchKey key) {
+      boolean schemaFile = false;
+      for (WatchEvent<?> event : key.pollEvents()) {
+         if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+            schemaFile = true;
+            continue;
+         }
+         String name = event.context().toString();
+         schemaFile |= name.equals(LabelSchema.JOINT_NAMES_FILE) || name.equals(LabelSchema.JOINT_COLORS_FILE)
+               || name.equals(LabelSchema.TAG_NAMES_FILE);
+      }
+      key.reset();
+      return schemaFile;
+   }
+}
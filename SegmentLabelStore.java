@@ -0,0 +1,452 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+import java.util.zip.*;
+
+// Label store keeping the labeled data of all images in append-only binary segment files
+// in one directory, instead of one small .label file per image.
+
+// Every write appends a record to the newest ("active") segment file; a segment that has
+// grown past MAX_SEGMENT_BYTES is sealed and a new one is started. Records are:
+//    int magic, int key length, int value length, key bytes, value bytes, int CRC-32
+// where the key is the image's absolute pathname and the value its labeled data (JSON),
+// both UTF-8. An in-memory index maps each image to the location of its latest record;
+// it is rebuilt by scanning the segments when the store is opened. A torn record at the
+// end of the active segment (e.g. after a crash) is cut off.
+// Records are read through memory-mapped segment files, so a read is an index lookup and
+// a copy out of the page cache.
+// The store has a single writer: every process keeps its own index and append position, so
+// two processes appending to the same segments would corrupt them. The store therefore
+// holds an exclusive lock on the file LOCK_FILE_NAME in the directory while it is open,
+// and opening a store that another process has open fails. Several annotators labeling
+// through a lease server must use the sidecar store.
+// Older records of re-labeled images are dead space. Sealed segments whose live data has
+// dropped below COMPACTION_THRESHOLD are compacted periodically in the background: their
+// live records are appended to the active segment and the old segment file is deleted.
+
+public class SegmentLabelStore implements LabelStore {
+
+   public static final long MAX_SEGMENT_BYTES = Long.getLong("labelimage.segment.mb", 64L) * 1024 * 1024; // Size at which a segment is sealed
+   public static final double COMPACTION_THRESHOLD = 0.5; // Sealed segments with less live data than this fraction are compacted
+   public static final long COMPACTION_INTERVAL_SECONDS = Long.getLong("labelimage.segment.compactSeconds", 600L); // Time between compaction runs
+   public static final String SEGMENT_EXTENSION = ".seg"; // Extension of segment files
+   public static final String LOCK_FILE_NAME = "store.lock"; // File locked by the process that has the store open
+
+   private static final int MAGIC = 0x4C424C31; // "LBL1"
+   private static final int HEADER_BYTES = 12; // magic, key length, value length
+   private static final int TRAILER_BYTES = 4; // CRC-32
+   private static final Charset UTF8 = Charset.forName("UTF-8");
+
+   private final File dir; // Directory holding the segment files
+   private final Map<String, Location> index; // Location of the latest record of each image
+   private final TreeMap<Integer, Segment> segments; // All segments by id
+   private Segment active; // Segment that new records are appended to
+   private final ReentrantReadWriteLock lock; // Reads share the read lock; writes and compaction take the write lock
+   private final ScheduledExecutorService compactor; // Runs the periodic compaction
+   private final FileChannel lockChannel; // Channel of the lock file, open while the store is
+   private final FileLock fileLock; // Exclusive lock on the lock file, held while the store is open
+
+   // Opens (or creates) the segment store in the given directory, rebuilding its index
+   // and starting periodic compaction. Fails if another process has the store open.
+   // Parameters:
+   //    - File dir: the directory holding the segment files
+   public SegmentLabelStore(File dir) throws IOException {
+      this.dir = dir;
+      if (!dir.isDirectory() && !dir.mkdirs()) {
+         throw new IOException("Cannot create label store directory " + dir);
+      }
+      lockChannel = new RandomAccessFile(new File(dir, LOCK_FILE_NAME), "rw").getChannel();
+      FileLock acquired;
+      try {
+         acquired = lockChannel.tryLock();
+      } catch (OverlappingFileLockException ex) { // Already open in this process
+         acquired = null;
+      }
+      if (acquired == null) {
+         lockChannel.close();
+         throw new IOException("Label store " + dir + " is already open"
+               + " (a segment store can only be open in one program at a time)");
+      }
+      fileLock = acquired;
+      index = new HashMap<String, Location>();
+      segments = new TreeMap<Integer, Segment>();
+      lock = new ReentrantReadWriteLock();
+
+      File[] files = dir.listFiles();
+      java.util.List<Integer> ids = new ArrayList<Integer>();
+      for (File f : files == null ? new File[0] : files) {
+         String name = f.getName();
+         if (name.endsWith(SEGMENT_EXTENSION)) {
+            try {
+               ids.add(Integer.parseInt(name.substring(0, name.length() - SEGMENT_EXTENSION.length())));
+            } catch (NumberFormatException ex) {}
+         }
+      }
+      Collections.sort(ids);
+      for (int i = 0; i < ids.size(); i++) {
+         Segment segment = new Segment(ids.get(i));
+         segments.put(segment.id, segment);
+         scan(segment, i == ids.size() - 1);
+         if (i < ids.size() - 1) {
+            segment.seal();
+         }
+      }
+      if (segments.isEmpty() || segments.lastEntry().getValue().size >= MAX_SEGMENT_BYTES) {
+         if (!segments.isEmpty()) {
+            segments.lastEntry().getValue().seal();
+         }
+         active = newSegment();
+      } else {
+         active = segments.lastEntry().getValue();
+      }
+
+      compactor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+         public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "segment-compactor");
+            t.setDaemon(true);
+            return t;
+         }
+      });
+      compactor.scheduleWithFixedDelay(new Runnable() {
+         public void run() {
+            try {
+               compact();
+            } catch (IOException ex) {
+               System.err.println("Label store compaction failed: " + ex);
+            }
+         }
+      }, COMPACTION_INTERVAL_SECONDS, COMPACTION_INTERVAL_SECONDS, TimeUnit.SECONDS);
+   }
+
+   public String read(String imagePath) throws IOException {
+      lock.readLock().lock();
+      try {
+         Location loc = index.get(imagePath);
+         if (loc == null) {
+            return null;
+         }
+         ByteBuffer buffer = segments.get(loc.segment).map(loc.valueOffset() + loc.valueLength);
+         byte[] value = new byte[loc.valueLength];
+         buffer.position((int) loc.valueOffset());
+         buffer.get(value);
+         return new String(value, UTF8);
+      } finally {
+         lock.readLock().unlock();
+      }
+   }
+
+   public void write(String imagePath, String content) throws IOException {
+      lock.writeLock().lock();
+      try {
+         append(imagePath, content.getBytes(UTF8));
+      } finally {
+         lock.writeLock().unlock();
+      }
+   }
+
+   public boolean contains(String imagePath) {
+      lock.readLock().lock();
+      try {
+         return index.containsKey(imagePath);
+      } finally {
+         lock.readLock().unlock();
+      }
+   }
+
+   // The stamp is derived from the location of the image's latest record, which changes with
+   // every write (and when compaction moves the record)
+   public long stamp(String imagePath) {
+      lock.readLock().lock();
+      try {
+         Location loc = index.get(imagePath);
+         return loc == null ? 0 : 1 + ((long) loc.segment << 32) + loc.offset;
+      } finally {
+         lock.readLock().unlock();
+      }
+   }
+
+   public java.util.List<String> list(String root) {
+      String prefix = root.endsWith(File.separator) ? root : root + File.separator;
+      java.util.List<String> images = new ArrayList<String>();
+      lock.readLock().lock();
+      try {
+         for (String key : index.keySet()) {
+            if (key.startsWith(prefix)) {
+               images.add(key);
+            }
+         }
+      } finally {
+         lock.readLock().unlock();
+      }
+      Collections.sort(images);
+      return images;
+   }
+
+   // Forces the active segment to disk (sealed segments were forced when they were sealed)
+   public void flush() throws IOException {
+      lock.writeLock().lock();
+      try {
+         active.channel.force(false);
+      } finally {
+         lock.writeLock().unlock();
+      }
+   }
+
+   // Stops the periodic compaction, forces all data to disk and closes the segment files
+   public void close() throws IOException {
+      compactor.shutdownNow();
+      lock.writeLock().lock();
+      try {
+         for (Segment segment : segments.values()) {
+            segment.seal();
+         }
+      } finally {
+         lock.writeLock().unlock();
+         fileLock.release();
+         lockChannel.close();
+      }
+   }
+
+   // Returns the number of images with labeled data in this store
+   public int size() {
+      lock.readLock().lock();
+      try {
+         return index.size();
+      } finally {
+         lock.readLock().unlock();
+      }
+   }
+
+   // Returns the total size of all segment files in bytes (live and dead records)
+   public long getTotalBytes() {
+      lock.readLock().lock();
+      try {
+         long total = 0;
+         for (Segment segment : segments.values()) {
+            total += segment.size;
+         }
+         return total;
+      } finally {
+         lock.readLock().unlock();
+      }
+   }
+
+   // Returns the size of all live records in bytes
+   public long getLiveBytes() {
+      lock.readLock().lock();
+      try {
+         long live = 0;
+         for (Segment segment : segments.values()) {
+            live += segment.liveBytes;
+         }
+         return live;
+      } finally {
+         lock.readLock().unlock();
+      }
+   }
+
+   // Compacts every sealed segment whose live data has dropped below COMPACTION_THRESHOLD:
+   // its live records are appended to the active segment and the segment file is deleted.
+   // Returns the number of compacted segments. Called periodically in the background.
+   public int compact() throws IOException {
+      lock.writeLock().lock();
+      try {
+         java.util.List<Segment> candidates = new ArrayList<Segment>();
+         for (Segment segment : segments.values()) {
+            if (segment != active && segment.liveBytes < segment.size * COMPACTION_THRESHOLD) {
+               candidates.add(segment);
+            }
+         }
+         for (Segment segment : candidates) {
+            ByteBuffer buffer = segment.map(segment.size);
+            long offset = 0;
+            while (offset < segment.size) {
+               buffer.position((int) offset);
+               buffer.getInt(); // magic
+               int keyLength = buffer.getInt();
+               int valueLength = buffer.getInt();
+               byte[] key = new byte[keyLength];
+               buffer.get(key);
+               String imagePath = new String(key, UTF8);
+               Location loc = index.get(imagePath);
+               if (loc != null && loc.segment == segment.id && loc.offset == offset) { // Still the latest record
+                  byte[] value = new byte[valueLength];
+                  buffer.get(value);
+                  append(imagePath, value);
+               }
+               offset += HEADER_BYTES + keyLength + valueLength + TRAILER_BYTES;
+            }
+            active.channel.force(false); // Live records must be durable before the old copies disappear
+            segments.remove(segment.id);
+            if (!segment.file.delete()) {
+               segment.file.deleteOnExit();
+            }
+         }
+         return candidates.size();
+      } finally {
+         lock.writeLock().unlock();
+      }
+   }
+
+   // Appends a record to the active segment (sealing it and starting a new one when full)
+   // and points the index at it. Must be called with the write lock held.
+   private void append(String imagePath, byte[] value) throws IOException {
+      byte[] key = imagePath.getBytes(UTF8);
+      int length = HEADER_BYTES + key.length + value.length + TRAILER_BYTES;
+      if (active.size > 0 && active.size + length > MAX_SEGMENT_BYTES) {
+         active.seal();
+         active = newSegment();
+      }
+      ByteBuffer record = ByteBuffer.allocate(length);
+      record.putInt(MAGIC).putInt(key.length).putInt(value.length).put(key).put(value);
+      CRC32 crc = new CRC32();
+      crc.update(record.array(), 0, length - TRAILER_BYTES);
+      record.putInt((int) crc.getValue());
+      record.flip();
+      long offset = active.size;
+      while (record.hasRemaining()) {
+         active.channel.write(record, offset + record.position());
+      }
+      active.size += length;
+      Location loc = new Location(active.id, offset, key.length, value.length);
+      track(imagePath, loc);
+   }
+
+   // Points the index at the given record, moving its length from the previous record's
+   // segment to its own segment's live data
+   private void track(String imagePath, Location loc) {
+      Location old = index.put(imagePath, loc);
+      if (old != null) {
+         Segment oldSegment = segments.get(old.segment);
+         if (oldSegment != null) {
+            oldSegment.liveBytes -= old.length();
+         }
+      }
+      segments.get(loc.segment).liveBytes += loc.length();
+   }
+
+   // Reads all valid records of the given segment into the index. Scanning stops at the
+   // first invalid record; in the last segment the invalid tail is cut off, so new records
+   // are appended after the last valid one.
+   // Parameters:
+   //    - Segment segment: the segment to be scanned
+   //    - boolean last: true for the newest segment
+   private void scan(Segment segment, boolean last) throws IOException {
+      long fileSize = segment.channel.size();
+      ByteBuffer buffer = segment.map(fileSize);
+      long offset = 0;
+      CRC32 crc = new CRC32();
+      while (fileSize - offset >= HEADER_BYTES + TRAILER_BYTES) {
+         buffer.position((int) offset);
+         if (buffer.getInt() != MAGIC) {
+            break;
+         }
+         int keyLength = buffer.getInt();
+         int valueLength = buffer.getInt();
+         long length = (long) HEADER_BYTES + keyLength + valueLength + TRAILER_BYTES;
+         if (keyLength < 0 || valueLength < 0 || offset + length > fileSize) {
+            break;
+         }
+         byte[] body = new byte[(int) length - TRAILER_BYTES];
+         buffer.position((int) offset);
+         buffer.get(body);
+         crc.reset();
+         crc.update(body, 0, body.length);
+         if (buffer.getInt() != (int) crc.getValue()) {
+            break;
+         }
+         String imagePath = new String(body, HEADER_BYTES, keyLength, UTF8);
+         segment.size = offset + length;
+         track(imagePath, new Location(segment.id, offset, keyLength, valueLength));
+         offset += length;
+      }
+      segment.size = offset;
+      if (offset < fileSize) {
+         if (last) {
+            segment.channel.truncate(offset);
+            segment.map = null;
+         } else {
+            System.err.println("Ignoring damaged records at the end of " + segment.file);
+         }
+      }
+   }
+
+   // Creates the next segment file
+   private Segment newSegment() throws IOException {
+      int id = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+      Segment segment = new Segment(id);
+      segments.put(id, segment);
+      return segment;
+   }
+
+   // Location of a record within the segments
+   static class Location {
+
+      final int segment; // Id of the segment holding the record
+      final long offset; // Offset of the record within the segment file
+      final int keyLength; // Length of the record's key in bytes
+      final int valueLength; // Length of the record's value in bytes
+
+      Location(int segment, long offset, int keyLength, int valueLength) {
+         this.segment = segment;
+         this.offset = offset;
+         this.keyLength = keyLength;
+         this.valueLength = valueLength;
+      }
+
+      // Offset of the record's value within the segment file
+      long valueOffset() {
+         return offset + HEADER_BYTES + keyLength;
+      }
+
+      // Total length of the record in bytes
+      int length() {
+         return HEADER_BYTES + keyLength + valueLength + TRAILER_BYTES;
+      }
+   }
+
+   // One segment file
+   class Segment {
+
+      final int id; // Number of the segment, also its file name
+      final File file; // The segment file
+      FileChannel channel; // Open channel for appending and mapping, or null once the segment is sealed
+      long size; // Length of the valid records in bytes
+      long liveBytes; // Length of the records that are still the latest for their image
+      private MappedByteBuffer map; // Read-only mapping of the file, or null before the first read
+
+      // Opens (or creates) the segment file with the given id
+      Segment(int id) throws IOException {
+         this.id = id;
+         file = new File(dir, String.format("%08d", id) + SEGMENT_EXTENSION);
+         channel = new RandomAccessFile(file, "rw").getChannel();
+      }
+
+      // Returns a read-only view of the mapped segment file that covers at least the first
+      // end bytes, remapping the (growing) active segment when needed. The returned buffer
+      // has its own position, so it may be used without further locking.
+      // Parameters:
+      //    - long end: number of bytes from the start of the file that must be mapped
+      synchronized ByteBuffer map(long end) throws IOException {
+         if (channel != null && (map == null || map.capacity() < end)) {
+            map = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.max(end, channel.size()));
+         }
+         return map.duplicate();
+      }
+      
+      // Forces the segment to disk, maps all of its records and closes its channel. A sealed
+      // segment is only read (through its mapping) from then on.
+      synchronized void seal() throws IOException {
+         if (channel != null) {
+            channel.force(false);
+            map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            channel.close();
+            channel = null;
+         }
+      }
+   }
+}
@@ -0,0 +1,159 @@
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Label store keeping each image's labeled data in a "<image file name>.label" file next
+// to the image ("image.jpeg" --> "image.jpeg.label"). Files are written in the background
+// by LabelWriter; data that is still waiting to be written is returned by read().
+
+public class SidecarLabelStore implements LabelStore {
+
+   public static final long FLUSH_MILLIS = 30000; // Maximum time flush() waits for pending writes
+
+   // Returns the stored labeled data of the given image: the content still waiting to be
+   // written if any, otherwise the content of its .label file, or null if there is none
+   public String read(String imagePath) throws IOException {
+      String labelFileName = imagePath + LabelValidator.LABEL_EXTENSION;
+      String pending = LabelWriter.getInstance().getPending(labelFileName);
+      if (pending != null) {
+         return pending;
+      }
+      try {
+         return new String(Files.readAllBytes(Paths.get(labelFileName)), Charset.defaultCharset());
+      } catch (NoSuchFileException ex) {
+         return null;
+      }
+   }
+
+   // Queues the given labeled data to be written atomically to the image's .label file
+   public void write(String imagePath, String content) {
+      LabelWriter.getInstance().save(imagePath + LabelValidator.LABEL_EXTENSION, content);
+   }
+
+   // Returns true if the image has a .label file, or one is waiting to be written
+   public boolean contains(String imagePath) {
+      String labelFileName = imagePath + LabelValidator.LABEL_EXTENSION;
+      return LabelWriter.getInstance().getPending(labelFileName) != null || new File(labelFileName).isFile();
+   }
+
+   // Returns a stamp of the image's .label file combining its modification time (in the
+   // finest resolution the file system has) and its size, as some file systems (FAT,
+   // network shares) only keep the time to a second or two. Returns 0 if there is no .label
+   // file, or -1 if a new one is waiting to be written.
+   public long stamp(String imagePath) throws IOException {
+      String labelFileName = imagePath + LabelValidator.LABEL_EXTENSION;
+      if (LabelWriter.getInstance().getPending(labelFileName) != null) {
+         return -1;
+      }
+      BasicFileAttributes attributes;
+      try {
+         attributes = Files.readAttributes(Paths.get(labelFileName), BasicFileAttributes.class);
+      } catch (NoSuchFileException ex) {
+         return 0;
+      }
+      long stamp = attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS) * 31 + attributes.size();
+      return stamp == 0 || stamp == -1 ? 1 : stamp;
+   }
+
+   // Returns the images of all .label files under the given directory, sorted
+   public java.util.List<String> list(String root) throws IOException {
+      java.util.List<String> images = new ArrayList<String>();
+      for (Path labelFile : LabelValidator.findLabelFiles(Paths.get(root).toAbsolutePath())) {
+         String name = labelFile.toString();
+         images.add(name.substring(0, name.length() - LabelValidator.LABEL_EXTENSION.length()));
+      }
+      return images;
+   }
+
+   // Returns the images of all .label files under the given directory in the same order as
+   // list(), but listing one directory at a time as they are iterated, so only the entries
+   // of the directories on the way are kept
+   public Iterator<String> iterate(String root) {
+      return new LabelFileIterator(Paths.get(root).toAbsolutePath());
+   }
+
+   // Waits until all queued .label files have been written
+   public void flush() throws IOException {
+      if (!LabelWriter.getInstance().flush(FLUSH_MILLIS)) {
+         throw new IOException("Timed out waiting for .label files to be written");
+      }
+   }
+
+   // Same as flush(); the background writer itself is shared and keeps running
+   public void close() throws IOException {
+      flush();
+   }
+
+   // Lazy walk over the .label files of a directory tree (see iterate). The entries of each
+   // directory are sorted by name with "/" appended to the subdirectories' names, which
+   // gives the order of the sorted pathnames of the whole tree.
+   private static class LabelFileIterator implements Iterator<String> {
+
+      private final Deque<Path> entries; // .label files and directories not visited yet, the next one first
+      private final Deque<Boolean> directories; // Whether each of the entries is a directory
+      private String next; // Image of the next .label file, or null if not found yet
+
+      LabelFileIterator(Path root) {
+         entries = new ArrayDeque<Path>();
+         directories = new ArrayDeque<Boolean>();
+         list(root);
+      }
+
+      public boolean hasNext() {
+         while (next == null && !entries.isEmpty()) {
+            Path entry = entries.pop();
+            if (directories.pop()) {
+               list(entry);
+            } else {
+               String name = entry.toString();
+               next = name.substring(0, name.length() - LabelValidator.LABEL_EXTENSION.length());
+            }
+         }
+         return next != null;
+      }
+
+      public String next() {
+         if (!hasNext()) {
+            throw new NoSuchElementException();
+         }
+         String image = next;
+         next = null;
+         return image;
+      }
+
+      // Pushes the .label files and subdirectories of the given directory, in order
+      private void list(Path dir) {
+         final Map<Path, String> keys = new HashMap<Path, String>();
+         try {
+            DirectoryStream<Path> stream = Files.newDirectoryStream(dir);
+            try {
+               for (Path p : stream) {
+                  String name = p.getFileName().toString();
+                  if (name.endsWith(LabelValidator.LABEL_EXTENSION) && Files.isRegularFile(p)) {
+                     keys.put(p, name);
+                  } else if (Files.isDirectory(p, LinkOption.NOFOLLOW_LINKS)) {
+                     keys.put(p, name + "/");
+                  }
+               }
+            } finally {
+               stream.close();
+            }
+         } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+         }
+         java.util.List<Path> sorted = new ArrayList<Path>(keys.keySet());
+         Collections.sort(sorted, new Comparator<Path>() {
+            public int compare(Path a, Path b) {
+               return keys.get(b).compareTo(keys.get(a)); // Last first, as they are pushed
+            }
+         });
+         for (Path p : sorted) {
+            entries.push(p);
+            directories.push(keys.get(p).endsWith("/"));
+         }
+      }
+   }
+}
@@ -0,0 +1,243 @@
+import javax.imageio.*;
+import javax.imageio.stream.*;
+import java.awt.*;
+import java.awt.image.*;
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Thumbnails of image files for the filmstrip, generated in the background and kept both
+// in memory and in a persistent on-disk cache.
+
+// Decoding full images just to show them 96 pixels wide is far too slow for directories
+// with 100,000 images, so:
+//    - Thumbnails are decoded with ImageReadParam source subsampling (only every n-th pixel
+//      of every n-th row is decoded), then scaled to at most SIZE x SIZE pixels.
+//    - Each thumbnail is stored as a small PNG file in the on-disk cache, named by the
+//      SHA-1 hash of the image's absolute pathname, modification time and size (in one of
+//      256 subdirectories, by the hash's first two hex digits). A changed
+//      image therefore gets a new thumbnail, and reopening a directory only reads the
+//      small PNG files.
+//    - Requests are handled by a bounded pool of worker threads, most recent request
+//      first, and only the most recent MAX_QUEUED requests are kept: while scrolling, the
+//      thumbnails currently on screen are generated before those that were scrolled past.
+//    - Recently used thumbnails are also kept in memory (MEMORY_ENTRIES of them).
+// The cache directory can be set with -Dlabelimage.thumbnails.dir (default
+// ~/.labelimage/thumbnails).
+
+public class ThumbnailCache {
+
+   public static final int SIZE = 96; // Maximum width and height of a thumbnail
+   public static final int MEMORY_ENTRIES = 2000; // Number of thumbnails kept in memory
+   public static final int MAX_QUEUED = 256; // Number of pending requests kept (older ones are dropped)
+   public static final File DIRECTORY = new File(System.getProperty("labelimage.thumbnails.dir",
+         System.getProperty("user.home") + File.separator + ".labelimage" + File.separator + "thumbnails"));
+
+   private static final ThumbnailCache INSTANCE = new ThumbnailCache(DIRECTORY);
+
+   private final File dir; // On-disk cache directory
+   private final LinkedHashMap<String, BufferedImage> memory; // Recently used thumbnails by image pathname (guarded by memory)
+   private final LinkedBlockingDeque<Request> queue; // Pending requests, most recent first
+   private final Set<String> queued; // Image pathnames of the pending requests
+   private final Set<String> failed; // Image pathnames that could not be decoded (not requested again)
+
+   // A pending thumbnail request
+   private static class Request {
+
+      final File image; // The image file
+      final Runnable onReady; // Called (on a worker thread) once the thumbnail is available
+
+      Request(File image, Runnable onReady) {
+         this.image = image;
+         this.onReady = onReady;
+      }
+   }
+
+   // Creates a cache storing its thumbnails in the given directory and starts its workers
+   // Parameters:
+   //    - File dir: the on-disk cache directory (created when the first thumbnail is stored)
+   public ThumbnailCache(File dir) {
+      this.dir = dir;
+      memory = new LinkedHashMap<String, BufferedImage>(256, 0.75f, true) { // access order for LRU
+         protected boolean removeEldestEntry(Map.Entry<String, BufferedImage> eldest) {
+            return size() > MEMORY_ENTRIES;
+         }
+      };
+      queue = new LinkedBlockingDeque<Request>();
+      queued = ConcurrentHashMap.newKeySet();
+      failed = ConcurrentHashMap.newKeySet();
+      int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+      for (int i = 0; i < threads; i++) {
+         Thread worker = new Thread(new Runnable() {
+            public void run() {
+               workLoop();
+            }
+         }, "thumbnails-" + i);
+         worker.setDaemon(true);
+         worker.setPriority(Thread.NORM_PRIORITY - 1);
+         worker.start();
+      }
+   }
+
+   // Returns the cache shared by the whole application
+   public static ThumbnailCache getInstance() {
+      return INSTANCE;
+   }
+
+   // Returns the thumbnail of the given image if it is in memory. Otherwise returns null and
+   // queues the thumbnail to be loaded from disk or generated in the background; onReady is
+   // called (on a worker thread) when it is available. Never blocks.
+   // Parameters:
+   //    - File image: the image file
+   //    - Runnable onReady: called once the thumbnail is available, e.g. to repaint
+   public BufferedImage get(File image, Runnable onReady) {
+      String path = image.getAbsolutePath();
+      synchronized (memory) {
+         BufferedImage thumbnail = memory.get(path);
+         if (thumbnail != null) {
+            return thumbnail;
+         }
+      }
+      if (!failed.contains(path) && queued.add(path)) {
+         queue.addFirst(new Request(image, onReady));
+         while (queue.size() > MAX_QUEUED) {
+            Request dropped = queue.pollLast();
+            if (dropped != null) {
+               queued.remove(dropped.image.getAbsolutePath());
+            }
+         }
+      }
+      return null;
+   }
+
+   // Returns the thumbnail of the given image, loading or generating it on the calling
+   // thread if necessary, or null if the image cannot be decoded
+   // Parameters:
+   //    - File image: the image file
+   public BufferedImage load(File image) {
+      String path = image.getAbsolutePath();
+      synchronized (memory) {
+         BufferedImage thumbnail = memory.get(path);
+         if (thumbnail != null) {
+            return thumbnail;
+         }
+      }
+      String key = key(image);
+      File cached = new File(new File(dir, key.substring(0, 2)), key + ".png"); // 256 subdirectories
+      BufferedImage thumbnail = null;
+      if (cached.isFile()) {
+         try {
+            thumbnail = ImageIO.read(cached);
+         } catch (IOException ex) {}
+      }
+      if (thumbnail == null) {
+         thumbnail = generate(image);
+         if (thumbnail == null) {
+            return null;
+         }
+         store(cached, thumbnail);
+      }
+      synchronized (memory) {
+         memory.put(path, thumbnail);
+      }
+      return thumbnail;
+   }
+
+   // Body of each worker thread: loads or generates the most recently requested thumbnail
+   private void workLoop() {
+      while (true) {
+         Request request;
+         try {
+            request = queue.takeFirst();
+         } catch (InterruptedException ex) {
+            return;
+         }
+         try {
+            if (load(request.image) != null) {
+               request.onReady.run();
+            } else {
+               failed.add(request.image.getAbsolutePath());
+            }
+         } catch (RuntimeException ex) { // Corrupt files can throw from inside the decoders
+            failed.add(request.image.getAbsolutePath());
+         } finally {
+            queued.remove(request.image.getAbsolutePath());
+         }
+      }
+   }
+
+   // Returns the cache key of the given image: the SHA-1 hash (hex) of its absolute
+   // pathname, modification time and size
+   private static String key(File image) {
+      String id = image.getAbsolutePath() + "\n" + image.lastModified() + "\n" + image.length();
+      try {
+         byte[] hash = MessageDigest.getInstance("SHA-1").digest(id.getBytes(StandardCharsets.UTF_8));
+         StringBuilder hex = new StringBuilder();
+         for (byte b : hash) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+         }
+         return hex.toString();
+      } catch (NoSuchAlgorithmException ex) { // Every Java platform supports SHA-1
+         throw new IllegalStateException(ex);
+      }
+   }
+
+   // Decodes a subsampled version of the given image and scales it to fit SIZE x SIZE.
+   // Returns null if the image cannot be decoded.
+   private static BufferedImage generate(File image) {
+      BufferedImage decoded = null;
+      try {
+         ImageInputStream in = ImageIO.createImageInputStream(image);
+         if (in == null) {
+            return null;
+         }
+         try {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+               return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+               reader.setInput(in, true, true);
+               int step = Math.max(1, Math.max(reader.getWidth(0), reader.getHeight(0)) / (SIZE * 2));
+               ImageReadParam param = reader.getDefaultReadParam();
+               param.setSourceSubsampling(step, step, 0, 0);
+               decoded = reader.read(0, param);
+            } finally {
+               reader.dispose();
+            }
+         } finally {
+            in.close();
+         }
+      } catch (IOException ex) {
+         return null;
+      }
+      double scale = Math.min(1.0, (double) SIZE / Math.max(decoded.getWidth(), decoded.getHeight()));
+      int w = Math.max(1, (int) Math.round(decoded.getWidth() * scale));
+      int h = Math.max(1, (int) Math.round(decoded.getHeight() * scale));
+      BufferedImage thumbnail = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+      Graphics2D g = thumbnail.createGraphics();
+      g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+      g.drawImage(decoded, 0, 0, w, h, null);
+      g.dispose();
+      return thumbnail;
+   }
+
+   // Writes the given thumbnail to the given cache file, via a temporary file so that
+   // other instances never read a partial file. Failures only cost regenerating it later.
+   private static void store(File cached, BufferedImage thumbnail) {
+      try {
+         Files.createDirectories(cached.getParentFile().toPath());
+         File temp = File.createTempFile("thumbnail", ".tmp", cached.getParentFile());
+         try {
+            ImageIO.write(thumbnail, "png", temp);
+            Files.move(temp.toPath(), cached.toPath(), StandardCopyOption.REPLACE_EXISTING);
+         } finally {
+            temp.delete();
+         }
+      } catch (IOException ex) {}
+   }
+}
@@ -0,0 +1,323 @@
+import javax.imageio.*;
+import javax.imageio.stream.*;
+import java.awt.*;
+import java.awt.image.*;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Very large image (e.g. gigapixel aerial or microscopy images) that is displayed from
+// tiles instead of being decoded as a whole.
+
+// Decoding such an image with ImageIO.read needs several gigabytes of heap, and at 1:1 it
+// does not fit on the screen anyway. Instead, the image is treated as a pyramid of levels:
+// level 0 is full resolution, and each further level halves the width and height, down to
+// the level at which the whole image fits into a single tile. Each level is divided into
+// TILE_SIZE x TILE_SIZE tiles, which are decoded on demand with an ImageReadParam source
+// region (the part of the image covered by the tile) and source subsampling (every
+// 2^level-th pixel), so no more than one tile's pixels are held per decode.
+//    - Only the tiles visible at the current zoom and pan are decoded, on background
+//      threads. Requests for tiles that have scrolled out of view before their turn are
+//      dropped. What is visible is always taken from the component's whole visible area,
+//      not from the clip of a partial repaint, so repainting a dot or a box never drops
+//      the tiles still queued for the rest of the view; a dropped tile that is back in
+//      view by the time it is dropped is queued again.
+//    - Until a tile is decoded, the corresponding part of an already decoded coarser tile
+//      is drawn scaled up, so the view is never blank once the overview tile is decoded.
+//    - Decoded tiles are kept in a least-recently-used cache shared by all tiled images,
+//      bounded by the number of decoded bytes.
+
+// Images with more pixels than labelimage.tiled.megapixels (default 40) are displayed tiled.
+// The tile cache's budget can be set with labelimage.tiles.mb (default 256).
+
+public class TiledImage {
+
+   public static final int TILE_SIZE = 512; // Width and height of a tile in decoded pixels
+   public static final long TILED_PIXELS = Long.getLong("labelimage.tiled.megapixels", 40L) * 1000000; // Images with more pixels are tiled
+   public static final long MAX_TILE_BYTES = Long.getLong("labelimage.tiles.mb", 256L) * 1024 * 1024; // Decoded-bytes budget of the tile cache
+
+   private static final LinkedHashMap<String, BufferedImage> TILES = new LinkedHashMap<String, BufferedImage>(64, 0.75f, true); // Decoded tiles in least-recently-used order (guarded by TILES)
+   private static final Set<String> PENDING = ConcurrentHashMap.newKeySet(); // Tiles queued or being decoded
+   private static final ExecutorService WORKERS = Executors.newFixedThreadPool(Math.max(1, Runtime.getRuntime().availableProcessors() - 1), new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+         Thread t = new Thread(r, "tile-decode");
+         t.setDaemon(true);
+         return t;
+      }
+   });
+   private static long tileBytes; // Total decoded bytes in TILES (guarded by TILES)
+
+   private final File file; // The image file
+   private final String path; // Absolute pathname of the image file, prefix of the tile keys
+   private final int width; // Width of the image in pixels
+   private final int height; // Height of the image in pixels
+   private final int maxLevel; // Coarsest level, at which the whole image fits into one tile
+   private volatile Set<String> visible; // Keys of the tiles in the visible area at the latest paint
+   private volatile Component observer; // Repainted when a tile has been decoded
+
+   // Creates a tiled image for the given image file of the given size. Nothing is decoded yet.
+   // Parameters:
+   //    - File file: the image file
+   //    - Dimension size: the image's width and height (see ImageHeaders)
+   public TiledImage(File file, Dimension size) {
+      this.file = file;
+      path = file.getAbsolutePath();
+      width = size.width;
+      height = size.height;
+      int level = 0;
+      while ((Math.max(width, height) >> level) > TILE_SIZE) {
+         level++;
+      }
+      maxLevel = level;
+      visible = Collections.emptySet();
+   }
+
+   // Returns true if an image of the given size should be displayed tiled
+   // Parameters:
+   //    - Dimension size: the image's width and height
+   public static boolean isLarge(Dimension size) {
+      return size != null && (long) size.width * size.height > TILED_PIXELS;
+   }
+
+   // Returns the width of the image in pixels
+   public int getWidth() {
+      return width;
+   }
+
+   // Returns the height of the image in pixels
+   public int getHeight() {
+      return height;
+   }
+
+   // Sets the component to be repainted whenever a tile of this image has been decoded
+   public void setObserver(Component observer) {
+      this.observer = observer;
+   }
+
+   // Stops decoding tiles of this image once it is no longer displayed: the tiles already
+   // queued are dropped instead of decoded, and no component is repainted. Painting the
+   // image again starts over.
+   public void close() {
+      observer = null;
+      visible = Collections.emptySet();
+   }
+
+   // Returns the pyramid level to draw at the given scale: the coarsest level that still
+   // has at least one decoded pixel per screen pixel
+   // Parameters:
+   //    - double scale: screen pixels per image pixel
+   public int levelFor(double scale) {
+      int level = 0;
+      while (level < maxLevel && (1 << (level + 1)) * scale <= 1.0) {
+         level++;
+      }
+      return level;
+   }
+
+   // Draws the part of the image that intersects the given clip, with image pixel (0, 0)
+   // at the given component position and the given zoom. Tiles of the visible area that
+   // are not decoded yet are requested, and drawn from coarser tiles in the meantime.
+   // Parameters:
+   //    - Graphics2D g: the graphics to draw with
+   //    - double originX, double originY: component position of image pixel (0, 0)
+   //    - double scale: screen pixels per image pixel
+   //    - Rectangle view: the component's visible area
+   //    - Rectangle clip: the component area to be drawn (within view for partial repaints)
+   public void paint(Graphics2D g, double originX, double originY, double scale, Rectangle view, Rectangle clip) {
+      int level = levelFor(scale);
+      int span = TILE_SIZE << level; // Image pixels covered by one tile
+      // Image area within the view
+      double ix0 = Math.max(0, (view.x - originX) / scale);
+      double iy0 = Math.max(0, (view.y - originY) / scale);
+      double ix1 = Math.min(width, (view.x + view.width - originX) / scale);
+      double iy1 = Math.min(height, (view.y + view.height - originY) / scale);
+      Set<String> needed = new HashSet<String>();
+      needed.add(key(maxLevel, 0, 0)); // The overview is always kept wanted as a fallback
+      java.util.List<int[]> missing = new ArrayList<int[]>();
+      if (ix1 > ix0 && iy1 > iy0) {
+         for (int row = (int) (iy0 / span); row <= (int) ((iy1 - 1) / span); row++) {
+            for (int col = (int) (ix0 / span); col <= (int) ((ix1 - 1) / span); col++) {
+               String key = key(level, col, row);
+               needed.add(key);
+               BufferedImage tile = cached(key);
+               if (tile == null) {
+                  missing.add(new int[] {col, row});
+               } else if (intersects(clip, level, col, row, originX, originY, scale)) {
+                  drawTile(g, tile, level, col, row, originX, originY, scale);
+               }
+            }
+         }
+      }
+      visible = needed;
+      request(maxLevel, 0, 0);
+      for (int[] tile : missing) {
+         if (intersects(clip, level, tile[0], tile[1], originX, originY, scale)) {
+            drawFallback(g, level, tile[0], tile[1], originX, originY, scale);
+         }
+         request(level, tile[0], tile[1]);
+      }
+   }
+
+   // Returns true if the given tile's component area intersects the given clip
+   private boolean intersects(Rectangle clip, int level, int col, int row, double originX, double originY, double scale) {
+      int span = TILE_SIZE << level;
+      int x0 = screen(originX, col * span, scale);
+      int y0 = screen(originY, row * span, scale);
+      int x1 = screen(originX, Math.min(width, (col + 1) * span), scale) + 1;
+      int y1 = screen(originY, Math.min(height, (row + 1) * span), scale) + 1;
+      return clip.intersects(x0, y0, x1 - x0, y1 - y0);
+   }
+
+   // Draws the given decoded tile at its position
+   private void drawTile(Graphics2D g, BufferedImage tile, int level, int col, int row, double originX, double originY, double scale) {
+      int span = TILE_SIZE << level;
+      int x0 = col * span;
+      int y0 = row * span;
+      int x1 = Math.min(width, x0 + span);
+      int y1 = Math.min(height, y0 + span);
+      g.drawImage(tile, screen(originX, x0, scale), screen(originY, y0, scale), screen(originX, x1, scale), screen(originY, y1, scale),
+            0, 0, tile.getWidth(), tile.getHeight(), null);
+   }
+
+   // Draws the area of the given (not yet decoded) tile from the finest decoded coarser tile, if any
+   private void drawFallback(Graphics2D g, int level, int col, int row, double originX, double originY, double scale) {
+      int span = TILE_SIZE << level;
+      int x0 = col * span;
+      int y0 = row * span;
+      int x1 = Math.min(width, x0 + span);
+      int y1 = Math.min(height, y0 + span);
+      for (int coarse = level + 1; coarse <= maxLevel; coarse++) {
+         int coarseCol = col >> (coarse - level);
+         int coarseRow = row >> (coarse - level);
+         BufferedImage tile = cached(key(coarse, coarseCol, coarseRow));
+         if (tile == null) {
+            continue;
+         }
+         // Position of the area within the coarse tile, in decoded pixels
+         int coarseSpan = TILE_SIZE << coarse;
+         int sx0 = (x0 - coarseCol * coarseSpan) >> coarse;
+         int sy0 = (y0 - coarseRow * coarseSpan) >> coarse;
+         int sx1 = Math.min(tile.getWidth(), Math.max(sx0 + 1, (x1 - coarseCol * coarseSpan + (1 << coarse) - 1) >> coarse));
+         int sy1 = Math.min(tile.getHeight(), Math.max(sy0 + 1, (y1 - coarseRow * coarseSpan + (1 << coarse) - 1) >> coarse));
+         g.drawImage(tile, screen(originX, x0, scale), screen(originY, y0, scale), screen(originX, x1, scale), screen(originY, y1, scale),
+               sx0, sy0, sx1, sy1, null);
+         return;
+      }
+   }
+
+   // Returns the component coordinate of the given image coordinate
+   private static int screen(double origin, int imageCoordinate, double scale) {
+      return (int) Math.floor(origin + imageCoordinate * scale);
+   }
+
+   // Returns the cache key of the given tile
+   private String key(int level, int col, int row) {
+      return path + "#" + level + "/" + col + "/" + row;
+   }
+
+   // Returns the given tile from the cache, or null if it is not decoded
+   private static BufferedImage cached(String key) {
+      synchronized (TILES) {
+         return TILES.get(key);
+      }
+   }
+
+   // Queues the given tile to be decoded in the background, unless it is cached or queued already
+   private void request(final int level, final int col, final int row) {
+      final String key = key(level, col, row);
+      if (cached(key) != null || !PENDING.add(key)) {
+         return;
+      }
+      WORKERS.execute(new Runnable() {
+         public void run() {
+            boolean dropped = false;
+            try {
+               if (!visible.contains(key)) { // Scrolled or zoomed out of view since it was queued
+                  dropped = true;
+                  return;
+               }
+               BufferedImage tile = decode(level, col, row);
+               if (tile != null) {
+                  put(key, tile);
+                  Component c = observer;
+                  if (c != null) {
+                     c.repaint();
+                  }
+               }
+            } finally {
+               PENDING.remove(key);
+               // A paint that found it still queued did not request it again
+               if (dropped && visible.contains(key)) {
+                  request(level, col, row);
+               }
+            }
+         }
+      });
+   }
+
+   // Decodes the given tile: the image area it covers, subsampled to the level's resolution.
+   // Returns null if the file cannot be decoded.
+   private BufferedImage decode(int level, int col, int row) {
+      int span = TILE_SIZE << level;
+      int x0 = col * span;
+      int y0 = row * span;
+      long start = System.nanoTime();
+      try {
+         ImageInputStream in = ImageIO.createImageInputStream(file);
+         if (in == null) {
+            return null;
+         }
+         try {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+               return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+               reader.setInput(in, true, true);
+               ImageReadParam param = reader.getDefaultReadParam();
+               param.setSourceRegion(new Rectangle(x0, y0, Math.min(span, width - x0), Math.min(span, height - y0)));
+               param.setSourceSubsampling(1 << level, 1 << level, 0, 0);
+               return reader.read(0, param);
+            } finally {
+               reader.dispose();
+            }
+         } finally {
+            in.close();
+         }
+      } catch (IOException ex) {
+         return null;
+      } catch (RuntimeException ex) { // Corrupt files can throw from inside the decoders
+         return null;
+      } finally {
+         Metrics.TILE.record(start, path);
+      }
+   }
+
+   // Adds a decoded tile to the cache, evicting least-recently-used tiles to stay within budget
+   private static void put(String key, BufferedImage tile) {
+      synchronized (TILES) {
+         BufferedImage old = TILES.put(key, tile);
+         if (old != null) {
+            tileBytes -= sizeOf(old);
+         }
+         tileBytes += sizeOf(tile);
+         Iterator<Map.Entry<String, BufferedImage>> it = TILES.entrySet().iterator();
+         while (tileBytes > MAX_TILE_BYTES && it.hasNext()) {
+            Map.Entry<String, BufferedImage> eldest = it.next();
+            if (eldest.getKey().equals(key)) {
+               continue;
+            }
+            tileBytes -= sizeOf(eldest.getValue());
+            it.remove();
+         }
+      }
+   }
+
+   // Returns the number of bytes held by the pixels of the given decoded tile
+   private static long sizeOf(BufferedImage image) {
+      DataBuffer buffer = image.getRaster().getDataBuffer();
+      long bytesPerElement = DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+      return (long) buffer.getSize() * buffer.getNumBanks() * Math.max(1, bytesPerElement);
+   }
+}